@@ -108,6 +108,14 @@ public class TestAgent extends AutonomousBasicAgent {
 		testDataCollector.registerEvent(id,verdict);
 	}
 	
+	/**
+	 * Mark the agent's top goal as failed, with the given reason, and detach it. This
+	 * is used by {@link TestSuiteRunner} to stop an agent that passed its deadline.
+	 */
+	void failGoal(String reason) {
+		if (getGoal() != null) setTopGoalToFail(reason) ;
+	}
+	
 	/**
 	 * Attach a state structure to this agent. The method returns the agent itself
 	 * so that this method can be used in the Fluent Interface style.
@@ -148,6 +156,15 @@ public class TestAgent extends AutonomousBasicAgent {
 		return (TestAgent) super.budget(b) ;
 	}
 	
+	/**
+	 * Let the agent propagate consumed budget and time to the ancestors of its current
+	 * goal only when that goal is closed. See {@link BasicAgent#useBatchedBudgetPropagation()}.
+	 */
+	@Override
+	public TestAgent useBatchedBudgetPropagation() {
+		return (TestAgent) super.useBatchedBudgetPropagation() ;
+	}
+	
 	/**
 	 * Set a goal for this agent. The method returns the agent itself so that this
 	 * method can be used in the Fluent Interface style.
@@ -62,6 +62,23 @@ public class TestDataCollector implements Parsable {
 			}
 		}
 
+		/**
+		 * Add the events and verdict counts of the given trace to this trace. The
+		 * events are kept in chronological order.
+		 */
+		synchronized void mergeFrom(EventTrace T) {
+			synchronized(T) {
+				trace.addAll(T.trace) ;
+				trace.sort(Comparator.comparing((TimeStampedObservationEvent e) -> e.timestamp)) ;
+				numOfPassVerdicts += T.numOfPassVerdicts ;
+				numOfUndecidedVerdicts += T.numOfUndecidedVerdicts ;
+				numOfFailVerdicts += T.numOfFailVerdicts ;
+				if (lastFailVerdict == null 
+						|| (T.lastFailVerdict != null && T.lastFailVerdict.timestamp.isAfter(lastFailVerdict.timestamp)))
+					lastFailVerdict = T.lastFailVerdict ;
+			}
+		}
+
 		@Override
 		public String toString() {
 			throw new UnsupportedOperationException("TODO") ;
@@ -100,6 +117,15 @@ public class TestDataCollector implements Parsable {
 			}
 		}
 		
+		/**
+		 * Add the coverage-points and visit counts of the given map to this map.
+		 */
+		synchronized void mergeFrom(CoverageMap CM) {
+			synchronized(CM) {
+				for (var entry : CM.coverage.entrySet()) coverage.merge(entry.getKey(), entry.getValue(), Integer::sum) ;
+			}
+		}
+		
 		synchronized void registerVisit(CoveragePointEvent e, CoverageMap collectiveCovMap) {
 			if (e == null) return ;
 			int count = 1 ;
@@ -317,13 +343,40 @@ public class TestDataCollector implements Parsable {
 	
 	/**
 	 * Merge two sets of collected test data. The merged data is put into a new 
-	 * instance of TestDataCollector.
+	 * instance of TestDataCollector; this and data2 are left unchanged. If both
+	 * contain data of the same test-agent, its coverage counts and verdict counts
+	 * are added up, and its traces are merged chronologically.
 	 * 
 	 * @param data2 test-date to merge with this test-data.
 	 */
 	public TestDataCollector merge(TestDataCollector data2) {
-		// TODO Auto-generated method stub
-		throw new UnsupportedOperationException("TODO") ;
+		return mergeAll(List.of(this,data2)) ;
+	}
+	
+	/**
+	 * Merge any number of sets of collected test data into a new instance of
+	 * TestDataCollector, as {@link #merge(TestDataCollector)} does for two. The
+	 * given data are left unchanged. Every set is copied once, so this is cheaper
+	 * than merging them one by one.
+	 */
+	public static TestDataCollector mergeAll(Collection<TestDataCollector> data) {
+		var merged = new TestDataCollector() ;
+		for (var D : data) merged.mergeFrom(D) ;
+		// every agent should track every coverage-point:
+		for (var CM : merged.perAgentCoverage.values()) {
+			for (var e : merged.collectiveCoverageMap.coverage.keySet()) CM.startTrackingCoveragePoint(e) ;
+		}
+		return merged ;
+	}
+	
+	private void mergeFrom(TestDataCollector data) {
+		collectiveCoverageMap.mergeFrom(data.collectiveCoverageMap) ;
+		for (var entry : data.perAgentCoverage.entrySet()) {
+			perAgentCoverage.computeIfAbsent(entry.getKey(), id -> new CoverageMap()).mergeFrom(entry.getValue()) ;
+		}
+		for (var entry : data.perAgentEventTrace.entrySet()) {
+			perAgentEventTrace.computeIfAbsent(entry.getKey(), id -> new EventTrace()).mergeFrom(entry.getValue()) ;
+		}
 	}
 	
 	/**
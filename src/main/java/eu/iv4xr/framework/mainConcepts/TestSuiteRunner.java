@@ -0,0 +1,271 @@
+package eu.iv4xr.framework.mainConcepts;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import nl.uu.cs.aplib.Logging;
+import nl.uu.cs.aplib.mainConcepts.Environment;
+import nl.uu.cs.aplib.mainConcepts.GoalStructure;
+
+/**
+ * A TestSuiteRunner runs a suite of {@link TestAgent}s in parallel. Each agent is
+ * given a fresh {@link Environment}, created by a factory that is registered
+ * together with the agent, and is then updated until its goal is concluded.
+ * This replaces hand-written loops that call {@code update()} on one agent after
+ * another.
+ *
+ * <ul>
+ * <li>The agents are run on a {@link ForkJoinPool} with as many threads as there
+ * are cores (or as specified). The suite is split recursively, so idle threads
+ * steal the work of busy ones.
+ * <li>Failures are isolated: an agent (or its environment factory) that throws an
+ * exception is reported as {@link Outcome#CRASHED}, and the other agents just
+ * continue.
+ * <li>Every agent can be given a wall-clock deadline. An agent that has not
+ * concluded its goal when its deadline passes is stopped, and reported as
+ * {@link Outcome#TIMEOUT}. Its goal is then marked as failed and detached, so the
+ * agent ends in the same state as after any failed goal. Its environment may be
+ * in the middle of something; if the environment is {@link AutoCloseable}, it
+ * is closed. The deadline is checked between updates; a single update is not
+ * aborted.
+ * <li>Agents that have no {@link TestDataCollector} are given one of their own.
+ * After the run, the data of all agents can be obtained in a single collector
+ * through {@link #getCollectedTestData()}.
+ * </ul>
+ *
+ * <pre>
+ *    var runner = new TestSuiteRunner().withDeadline(60000) ;
+ *    runner.add(agent1, () -> new MyEnv(...)) ;
+ *    runner.add(agent2, () -> new MyEnv(...)) ;
+ *    var results = runner.run() ;
+ *    var data = runner.getCollectedTestData() ;
+ * </pre>
+ *
+ * Every agent needs a state and a goal before the suite is run. An agent should
+ * only be added once, and should not be run in another way at the same time.
+ */
+public class TestSuiteRunner {
+
+	/**
+	 * The possible outcomes of running a test agent.
+	 */
+	public static enum Outcome { SUCCESS, FAILED, TIMEOUT, CRASHED }
+
+	/**
+	 * The result of running a single test agent.
+	 */
+	public static class Result {
+		TestAgent agent ;
+		Outcome outcome ;
+		Throwable exception ;
+		int numberOfUpdates = 0 ;
+		long runtime ;
+
+		Result(TestAgent agent) { this.agent = agent ; }
+
+		public TestAgent getAgent() { return agent ; }
+
+		public Outcome getOutcome() { return outcome ; }
+
+		/**
+		 * The exception that crashed the agent, if its outcome is {@link Outcome#CRASHED}.
+		 */
+		public Throwable getException() { return exception ; }
+
+		public int getNumberOfUpdates() { return numberOfUpdates ; }
+
+		/**
+		 * The wall-clock time, in ms, that the agent ran.
+		 */
+		public long getRuntime() { return runtime ; }
+
+		@Override
+		public String toString() {
+			String s = "Agent " + agent.getId() + ": " + outcome + " after " + numberOfUpdates + " updates, " + runtime + " ms" ;
+			if (exception != null) s += ". " + exception ;
+			return s ;
+		}
+	}
+
+	static class Entry {
+		TestAgent agent ;
+		Supplier<? extends Environment> envFactory ;
+		long deadline ;
+		Result result ;
+	}
+
+	List<Entry> entries = new ArrayList<>() ;
+	int parallelism ;
+
+	/**
+	 * The deadline, in ms, of agents that are added without an explicit deadline.
+	 */
+	long defaultDeadline = Long.MAX_VALUE ;
+
+	protected Logger logger = Logging.getAPLIBlogger() ;
+
+	/**
+	 * Create a runner that uses as many threads as there are available processors.
+	 */
+	public TestSuiteRunner() {
+		this(Runtime.getRuntime().availableProcessors()) ;
+	}
+
+	/**
+	 * Create a runner that uses the given number of threads.
+	 */
+	public TestSuiteRunner(int parallelism) {
+		if (parallelism <= 0) throw new IllegalArgumentException() ;
+		this.parallelism = parallelism ;
+	}
+
+	/**
+	 * Set the deadline, in ms, of the agents that are added without an explicit
+	 * deadline. The method returns the runner itself so that it can be used in the
+	 * Fluent Interface style.
+	 */
+	public TestSuiteRunner withDeadline(long deadline) {
+		if (deadline <= 0) throw new IllegalArgumentException() ;
+		defaultDeadline = deadline ;
+		return this ;
+	}
+
+	/**
+	 * Add a test agent to the suite. When the suite is run, the agent is given an
+	 * environment created by envFactory. The method returns the runner itself so
+	 * that it can be used in the Fluent Interface style.
+	 */
+	public TestSuiteRunner add(TestAgent agent, Supplier<? extends Environment> envFactory) {
+		return add(agent, envFactory, defaultDeadline) ;
+	}
+
+	/**
+	 * As {@link #add(TestAgent, Supplier)}, but the agent is stopped if it has not
+	 * concluded its goal after the given time in ms.
+	 */
+	public TestSuiteRunner add(TestAgent agent, Supplier<? extends Environment> envFactory, long deadline) {
+		if (agent == null || envFactory == null || deadline <= 0) throw new IllegalArgumentException() ;
+		var E = new Entry() ;
+		E.agent = agent ;
+		E.envFactory = envFactory ;
+		E.deadline = deadline ;
+		entries.add(E) ;
+		return this ;
+	}
+
+	/**
+	 * Return the number of agents in the suite.
+	 */
+	public int numberOfAgents() { return entries.size() ; }
+
+	/**
+	 * Run all agents in the suite, and wait until they are all done. The results
+	 * are returned in the order in which the agents were added.
+	 */
+	public List<Result> run() {
+		for (var E : entries) {
+			if (E.agent.getTestDataCollector() == null) E.agent.setTestDataCollector(new TestDataCollector()) ;
+			E.result = null ;
+		}
+		var pool = new ForkJoinPool(parallelism) ;
+		try {
+			if (! entries.isEmpty()) pool.invoke(new RunSlice(0, entries.size())) ;
+		}
+		finally {
+			pool.shutdown() ;
+		}
+		List<Result> results = new ArrayList<>(entries.size()) ;
+		for (var E : entries) results.add(E.result) ;
+		return results ;
+	}
+
+	/**
+	 * A task to run the agents in a slice of the suite. It is split until it
+	 * consists of a single agent, so that the pool can balance the work.
+	 */
+	@SuppressWarnings("serial")
+	class RunSlice extends RecursiveAction {
+		int lo, hi ;
+
+		RunSlice(int lo, int hi) { this.lo = lo ; this.hi = hi ; }
+
+		@Override
+		protected void compute() {
+			if (hi - lo == 1) {
+				runEntry(entries.get(lo)) ;
+				return ;
+			}
+			int mid = (lo + hi) >>> 1 ;
+			invokeAll(new RunSlice(lo,mid), new RunSlice(mid,hi)) ;
+		}
+	}
+
+	private void runEntry(Entry E) {
+		var agent = E.agent ;
+		var result = new Result(agent) ;
+		long start = System.nanoTime() ;
+		long deadline = E.deadline == Long.MAX_VALUE ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(E.deadline) ;
+		Environment env = null ;
+		try {
+			env = E.envFactory.get() ;
+			agent.attachEnvironment(env) ;
+			GoalStructure G = agent.getGoal() ;
+			if (G == null) throw new IllegalArgumentException("Agent " + agent.getId() + " has no goal.") ;
+			while (agent.getGoal() != null) {
+				if (System.nanoTime() - start > deadline) {
+					result.outcome = Outcome.TIMEOUT ;
+					logger.log(Level.WARNING, "Agent " + agent.getId() + " is stopped as it passed its deadline.") ;
+					agent.failGoal("The deadline has passed.") ;
+					close(env) ;
+					break ;
+				}
+				agent.update() ;
+				result.numberOfUpdates++ ;
+			}
+			if (result.outcome == null)
+				result.outcome = G.getStatus().success() ? Outcome.SUCCESS : Outcome.FAILED ;
+		}
+		catch(Throwable t) {
+			result.outcome = Outcome.CRASHED ;
+			result.exception = t ;
+			logger.log(Level.WARNING, "Agent " + agent.getId() + " crashed: " + t) ;
+		}
+		result.runtime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) ;
+		E.result = result ;
+	}
+
+	private void close(Environment env) {
+		if (! (env instanceof AutoCloseable)) return ;
+		try {
+			((AutoCloseable) env).close() ;
+		}
+		catch(Exception e) {
+			logger.log(Level.WARNING, "Failed to close an environment: " + e) ;
+		}
+	}
+
+	/**
+	 * Return the test data collected by all agents in the suite, merged into a single
+	 * {@link TestDataCollector}, see {@link TestDataCollector#mergeAll(java.util.Collection)}.
+	 * This should be called after {@link #run()}.
+	 */
+	public TestDataCollector getCollectedTestData() {
+		Set<TestDataCollector> collectors = Collections.newSetFromMap(new IdentityHashMap<>()) ;
+		List<TestDataCollector> distinct = new ArrayList<>() ;
+		for (var E : entries) {
+			var dc = E.agent.getTestDataCollector() ;
+			if (dc != null && collectors.add(dc)) distinct.add(dc) ;
+		}
+		return TestDataCollector.mergeAll(distinct) ;
+	}
+
+}
@@ -1,5 +1,10 @@
 package eu.iv4xr.framework.mainConcepts;
 
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
 import eu.iv4xr.framework.exception.Iv4xrError;
 import eu.iv4xr.framework.extensions.pathfinding.SurfaceNavGraph;
 import eu.iv4xr.framework.spatial.Vec3;
@@ -21,6 +26,7 @@ public class W3DEnvironment extends Environment {
 
 	static public String LOADWORLD_CMDNAME  = "LoadWorld" ;
 	static public String OBSERVE_CMDNAME    = "Observe" ;
+	static public String OBSERVE_DELTA_CMDNAME = "ObserveDelta" ;
 	static public String MOVETOWARD_CMDNAME = "Move" ;
 	
 	/**
@@ -62,6 +68,90 @@ public class W3DEnvironment extends Environment {
 		return (WorldModel) sendCommand(agentId,null,OBSERVE_CMDNAME,null,WorldModel.class) ;
 	}	
 	
+	/**
+	 * Send a command to the real environment to obtain what the agent of the given
+	 * id observes, as a delta relative to the observation that the agent has
+	 * acknowledged, see {@link WorldModelDelta}. Typically, the acknowledged
+	 * timestamp is the timestamp of the agent's WorldModel, and the delta is merged
+	 * into it with {@link WorldModel#mergeDelta(WorldModelDelta)}.
+	 * 
+	 * @param agentId The id of the agent whose observation is requested.
+	 * @param acknowledgedTimestamp The timestamp of the last observation the agent has
+	 *                              merged, or -1 if it has none.
+	 */
+	public WorldModelDelta observeDelta(String agentId, long acknowledgedTimestamp) {
+		return (WorldModelDelta) sendCommand(agentId,null,OBSERVE_DELTA_CMDNAME,acknowledgedTimestamp,WorldModelDelta.class) ;
+	}
+	
+	/**
+	 * The observations sent as deltas to every agent, by timestamp, that the agents
+	 * have not acknowledged yet. An observation is kept as its entities, by id.
+	 * Consecutive observations share the instances of the entities that did not
+	 * change.
+	 */
+	Map<String,TreeMap<Long,Map<String,WorldEntity>>> sentObservations = new HashMap<>() ;
+	
+	/**
+	 * A helper for implementing {@link #OBSERVE_DELTA_CMDNAME} in sendCommand_.
+	 * Given a full observation of an agent, it returns the delta relative to the
+	 * observation that was sent to the agent at the acknowledged timestamp. If that
+	 * observation is not known (e.g. the agent has none yet), the delta is a
+	 * complete observation. The given observation is remembered, until the agent
+	 * acknowledges a later one: the remembered observation shares the unchanged
+	 * entities with the one it is relative to, and has copies of the changed
+	 * entities. They are copies because the delta hands the observation's entities
+	 * to the agent, which may change them when it merges them.
+	 * 
+	 * <p>Only the bookkeeping of the remembered observations is synchronized; the
+	 * diff and the copies are made without holding the lock of this environment.
+	 * 
+	 * <p>The delta does not mark any entity as removed; add those to the delta if
+	 * the real environment reports them.
+	 */
+	protected WorldModelDelta deltaObservation(String agentId, long acknowledgedTimestamp, WorldModel observation) {
+		Map<String,WorldEntity> base ;
+		synchronized(this) {
+			var sent = sentObservations.computeIfAbsent(agentId, id -> new TreeMap<>()) ;
+			base = sent.get(acknowledgedTimestamp) ;
+			// observations before the acknowledged one will not be asked for anymore:
+			sent.headMap(acknowledgedTimestamp).clear() ;
+		}
+		var delta = WorldModelDelta.diff(acknowledgedTimestamp, base, observation) ;
+		Map<String,WorldEntity> sentNow = base == null ? new HashMap<>() : new HashMap<>(base) ;
+		for (var id : delta.leftView) sentNow.remove(id) ;
+		for (var e : delta.changed.values()) sentNow.put(e.id, copy(e)) ;
+		synchronized(this) {
+			sentObservations.computeIfAbsent(agentId, id -> new TreeMap<>()).put(observation.timestamp, sentNow) ;
+		}
+		return delta ;
+	}
+	
+	private static WorldEntity copy(WorldEntity e) {
+		try {
+			return e.deepclone() ;
+		}
+		catch(IOException | ClassNotFoundException ex) {
+			throw new Iv4xrError("Cannot copy the observed entity " + e.id + ": " + ex) ;
+		}
+	}
+	
+	/**
+	 * Batch the observes of agents that share this environment, so that the
+	 * observes sent within window ms are executed together (see
+	 * {@link nl.uu.cs.aplib.mainConcepts.Environment#useCommandBatching(long, int, String...)}).
+	 * Observes are declared as read-only, so that the observes of different agents
+	 * in a batch are merged into one operation. Override {@code sendBatch_} to send
+	 * a batch of observes to the real environment as a single request, putting the
+	 * observation of every agent in the resultPerInvoker field of the merged
+	 * operation. This requires the fine-grained locking mode. The method returns
+	 * this environment so that it can be used in the Fluent Interface style.
+	 */
+	public W3DEnvironment batchObservations(long window, int maxBatchSize) {
+		declareReadOnlyCommands(OBSERVE_CMDNAME) ;
+		useCommandBatching(window, maxBatchSize, OBSERVE_CMDNAME) ;
+		return this ;
+	}
+
 	/**
 	 * A command to instruct an agent to move a small distance towards the given
 	 * target location.
@@ -106,6 +196,11 @@ public class W3DEnvironment extends Environment {
 	 *   send over the observation of agent cmd.invokerId. This method should
 	 *   package the result as an instance of WorldModel and return it.
 	 *   
+	 *   cmd.command is OBSERVE_DELTA_CMDNAME: like OBSERVE_CMDNAME, but the
+	 *   observation should be returned as an instance of WorldModelDelta,
+	 *   relative to the observation at the timestamp cmd.arg (a Long). The
+	 *   method deltaObservation can be used to compute it.
+	 *   
 	 *   cmd.command is MOVETOWARD_CMDNAME: this should ask the real-environment
 	 *   to move its entity/agent cmd.invokerId in the direction specified by
 	 *   cmd.arg. This method should also obtain the observation of the said
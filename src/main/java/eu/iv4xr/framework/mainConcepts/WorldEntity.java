@@ -2,6 +2,8 @@ package eu.iv4xr.framework.mainConcepts;
 
 import java.io.*;
 import java.util.*;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 import eu.iv4xr.framework.spatial.Vec3;
 
@@ -45,9 +47,9 @@ public class WorldEntity implements Serializable {
 	 * Note that an entity does not have to be moving (having velocity) to be dynamic.
 	 */
 	public final boolean dynamic ;
-	public Map<String,Serializable> properties = new HashMap<>();
+	public Map<String,Serializable> properties = new StateMap<>();
 	
-	public Map<String,WorldEntity> elements = new HashMap<>() ;
+	public Map<String,WorldEntity> elements = new StateMap<>() ;
 		
 	public WorldEntity(String id, String type, boolean dynamic) {
 		this.id = id ;
@@ -70,17 +72,25 @@ public class WorldEntity implements Serializable {
 	 * its state is possibly different than this entity. This method checks if both entity have
 	 * the same state.
 	 * 
-	 * Dynamic entity is assumed not to change state. Else this method first check the hash-value
-	 * of both entities. If they are the same, this method performs deep comparison of position,
-	 * velocity, properties, and sub-entities. This might be a bit expensive; override this method
-	 * if a faster implementation is wanted.
+	 * Dynamic entity is assumed not to change state. Else this method compares the state-hashes
+	 * of both entities, see {@link #stateHash()}. Since they are cached, this typically costs
+	 * O(1). If the hashes are equal, and all property values in both entities are of a type
+	 * whose hash is exact (see {@link #stateHash()}), the states are taken to be equal: for two
+	 * different states the chance that their 64-bit hashes are equal is about 2^-64, so even
+	 * 10^9 comparisons of changed states per second make a wrong answer less likely than once
+	 * in 500 years. Otherwise this method performs deep comparison of position, velocity,
+	 * properties, and sub-entities.
 	 */
 	public boolean hasSameState(WorldEntity old) {
 		
 		// non-dynamic entity cannot change state:
 		if (!this.dynamic) return true ;	
 		// else:
-		if (this.hashCode() != old.hashCode()) return false ;
+		if (this == old) return true ;
+		var h1 = stateHash_() ;
+		var h2 = old.stateHash_() ;
+		if (h1.hash != h2.hash) return false ;
+		if (h1.exact && h2.exact) return true ;
 		
 		if (! (equal_(position,old.position)
 				   && equal_(velocity,old.velocity)
@@ -89,7 +99,7 @@ public class WorldEntity implements Serializable {
 		    return false ;
 		for (var P : properties.entrySet()) {
 			var q = old.properties.get(P.getKey()) ;
-			if (! P.getValue().equals(q)) return false ;
+			if (! equal_(P.getValue(),q)) return false ;
 		}
 		// so the entities have the same properties.. let's now check the children 
 		if (this.elements.size() != old.elements.size()) return false ;
@@ -102,6 +112,27 @@ public class WorldEntity implements Serializable {
 		return true ;	
 	}
 	
+	/**
+	 * True if e has the same position, velocity, extent, properties, and
+	 * (recursively) elements as this entity. Unlike hasSameState, this also
+	 * compares non-dynamic entities.
+	 */
+	boolean hasEqualState(WorldEntity e) {
+		if (this == e) return true ;
+		if (this.stateHash() != e.stateHash()) return false ;
+		if (! (equal_(position,e.position)
+				   && equal_(velocity,e.velocity)
+				   && equal_(extent,e.extent)
+				   && properties.equals(e.properties)
+				   && elements.size() == e.elements.size()))
+			return false ;
+		for (var elem_ : elements.entrySet()) {
+			var elem2 = e.elements.get(elem_.getKey()) ;
+			if (elem2 == null || ! elem_.getValue().hasEqualState(elem2)) return false ;
+		}
+		return true ;
+	}
+	
 	public Serializable getProperty(String propertyName) {
 		return properties.get(propertyName) ;
 	}
@@ -177,14 +208,243 @@ public class WorldEntity implements Serializable {
 	public boolean isMovingEntity() { return velocity !=null ; }
 	
 	/**
-	 * The hashcode of this Entity.
+	 * The hashcode of this Entity. It is derived from {@link #stateHash()}.
 	 */
 	@Override
 	public int hashCode() {
-		return Objects.hash(position,velocity,extent,properties,elements) ;
+		long h = stateHash() ;
+		return (int) (h ^ (h >>> 32)) ;
+	}
+	
+	/**
+	 * A 64-bit hash of the state of this entity: its position, velocity, extent,
+	 * properties, and (recursively) its elements. Its id, type, and timestamps are
+	 * not part of the state.
+	 * 
+	 * <p>The hash is cached, so that hashing an entity that has not changed since it
+	 * was last hashed costs O(1). The cache is invalidated when position, velocity,
+	 * extent, properties or elements is assigned, and when the properties or the
+	 * elements are modified through put, remove, etc. It is NOT invalidated when an
+	 * element is changed (e.g. the properties of an element are modified), when a
+	 * Vec3 is mutated in place, when a property value is mutated, or when the maps
+	 * are modified through their iterators or entry views; call
+	 * {@link #invalidateStateHash()} on this entity after such modifications.
+	 * 
+	 * <p>The hashes of strings, boxed primitives, enums and Vec3 values are exact:
+	 * they are derived from the full value. Values of other types are hashed by
+	 * their hashCode, so {@link #hasSameState(WorldEntity)} still compares the
+	 * states of entities with such values when their hashes are equal.
+	 */
+	public long stateHash() {
+		return stateHash_().hash ;
+	}
+	
+	private StateHash stateHash_() {
+		var cached = stateHash ;
+		if (cached != null 
+				&& cached.position == position && cached.velocity == velocity && cached.extent == extent
+				&& cached.properties == properties && cached.propertiesVersion == StateMap.versionOf(properties)
+				&& cached.elements == elements && cached.elementsVersion == StateMap.versionOf(elements))
+			return cached ;
+		var H = new StateHash() ;
+		H.position = position ;
+		H.velocity = velocity ;
+		H.extent = extent ;
+		H.properties = properties ;
+		H.propertiesVersion = StateMap.versionOf(properties) ;
+		H.elements = elements ;
+		H.elementsVersion = StateMap.versionOf(elements) ;
+		H.exact = true ;
+		long h = combine(combine(combine(0x5bd1e995L, hash(position)), hash(velocity)), hash(extent)) ;
+		long ph = 0 ;
+		for (var P : properties.entrySet()) {
+			ph += combine(hash(P.getKey()), hash(P.getValue())) ;
+			H.exact = H.exact && hasExactHash(P.getValue()) ;
+		}
+		h = combine(h, ph) ;
+		if (! elements.isEmpty()) {
+			long eh = 0 ;
+			for (var E : elements.entrySet()) {
+				var sub = E.getValue().stateHash_() ;
+				eh += combine(hash(E.getKey()), sub.hash) ;
+				H.exact = H.exact && sub.exact ;
+			}
+			h = combine(h, eh) ;
+		}
+		H.hash = h ;
+		// we can only tell if the maps are modified if they are StateMaps:
+		if (H.propertiesVersion >= 0 && H.elementsVersion >= 0) stateHash = H ;
+		return H ;
+	}
+	
+	/**
+	 * Drop the cached state-hash of this entity and its elements. This is only
+	 * needed after modifications that are not detected automatically, see
+	 * {@link #stateHash()}.
+	 */
+	public void invalidateStateHash() {
+		stateHash = null ;
+		for (var e : elements.values()) e.invalidateStateHash() ;
+	}
+	
+	/**
+	 * The cached hash of the entity's state, together with the field values it was
+	 * calculated from. It is exact if all property values in the entity, and in its
+	 * elements, have an exact hash.
+	 */
+	private static class StateHash {
+		Vec3 position ;
+		Vec3 velocity ;
+		Vec3 extent ;
+		Map<String,Serializable> properties ;
+		int propertiesVersion ;
+		Map<String,WorldEntity> elements ;
+		int elementsVersion ;
+		long hash ;
+		boolean exact ;
+	}
+	
+	private transient StateHash stateHash = null ;
+	
+	/**
+	 * The finalizer of SplitMix64.
+	 */
+	private static long mix(long h) {
+		h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L ;
+		h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL ;
+		return h ^ (h >>> 31) ;
+	}
+	
+	/**
+	 * 64-bit FNV-1a of the characters of s.
+	 */
+	private static long hash(String s) {
+		long h = 0xcbf29ce484222325L ;
+		for (int k=0; k<s.length(); k++) {
+			h = (h ^ s.charAt(k)) * 0x100000001b3L ;
+		}
+		return h ;
+	}
+	
+	/**
+	 * Mix the hash v into the hash h. Every component is mixed before the next one
+	 * is added, so that different components cannot cancel each other out.
+	 */
+	private static long combine(long h, long v) {
+		return mix(h * 0x9e3779b97f4a7c15L + mix(v)) ;
 	}
 	
+	private static long hash(float f) {
+		// +0 and -0 are equal:
+		return Float.floatToIntBits(f + 0.0f) ;
+	}
+	
+	private static long hash(Vec3 v) {
+		if (v == null) return 0x7f4a7c15L ;
+		return combine(combine(combine(TAG_VEC3, hash(v.x)), hash(v.y)), hash(v.z)) ;
+	}
+	
+	private static boolean hasExactHash(Object v) {
+		return v == null || v instanceof String || v instanceof Boolean || v instanceof Integer 
+				|| v instanceof Long || v instanceof Float || v instanceof Double || v instanceof Short 
+				|| v instanceof Byte || v instanceof Character || v instanceof Vec3 || v instanceof Enum ;
+	}
+	
+	private static final long TAG_VEC3 = 1, TAG_BOOLEAN = 2, TAG_INTEGER = 3, TAG_LONG = 4, TAG_FLOAT = 5, 
+			TAG_DOUBLE = 6, TAG_SHORT = 7, TAG_BYTE = 8, TAG_CHARACTER = 9, TAG_ENUM = 10, TAG_OTHER = 11 ;
+	
+	/**
+	 * A 64-bit hash of a property value that agrees with its equals. The class of
+	 * the value is folded into the hash, so that e.g. an Integer and a Long rarely
+	 * get the same hash. Values of a type that is not known here are hashed by their
+	 * hashCode.
+	 */
+	private static long hash(Object v) {
+		if (v == null) return 0x9e3779b97f4a7c15L ;
+		if (v instanceof String) return hash((String) v) ;
+		if (v instanceof Boolean) return combine(TAG_BOOLEAN, (Boolean) v ? 1 : 0) ;
+		if (v instanceof Integer) return combine(TAG_INTEGER, (Integer) v) ;
+		if (v instanceof Long) return combine(TAG_LONG, (Long) v) ;
+		if (v instanceof Float) return combine(TAG_FLOAT, Float.floatToIntBits((Float) v)) ;
+		if (v instanceof Double) return combine(TAG_DOUBLE, Double.doubleToLongBits((Double) v)) ;
+		if (v instanceof Short) return combine(TAG_SHORT, (Short) v) ;
+		if (v instanceof Byte) return combine(TAG_BYTE, (Byte) v) ;
+		if (v instanceof Character) return combine(TAG_CHARACTER, (Character) v) ;
+		if (v instanceof Vec3) return hash((Vec3) v) ;
+		if (v instanceof Enum) return combine(combine(TAG_ENUM, hash(v.getClass().getName())), hash(((Enum<?>) v).name())) ;
+		return combine(TAG_OTHER, v.hashCode()) ;
+	}
+	
+	/**
+	 * The map used for the properties and elements of an entity. It counts how
+	 * often it is modified, so that an entity can tell if its cached state-hash is
+	 * still valid. Modifications through iterators and entry views are not counted.
+	 */
+	static class StateMap<V> extends HashMap<String,V> {
+		
+		transient int version = 0 ;
+		
+		/**
+		 * The version of the given map, or -1 if it is not a StateMap.
+		 */
+		static int versionOf(Map<String,?> map) {
+			return map instanceof StateMap ? ((StateMap<?>) map).version : -1 ;
+		}
+		
+		private void modified() {
+			// never negative:
+			version = (version + 1) & Integer.MAX_VALUE ;
+		}
+		
+		@Override
+		public V put(String key, V value) { modified() ; return super.put(key, value) ; }
+		
+		@Override
+		public void putAll(Map<? extends String, ? extends V> m) { modified() ; super.putAll(m) ; }
+		
+		@Override
+		public V remove(Object key) { modified() ; return super.remove(key) ; }
+		
+		@Override
+		public boolean remove(Object key, Object value) { modified() ; return super.remove(key, value) ; }
+		
+		@Override
+		public void clear() { modified() ; super.clear() ; }
+		
+		@Override
+		public V putIfAbsent(String key, V value) { modified() ; return super.putIfAbsent(key, value) ; }
+		
+		@Override
+		public V replace(String key, V value) { modified() ; return super.replace(key, value) ; }
+		
+		@Override
+		public boolean replace(String key, V oldValue, V newValue) { modified() ; return super.replace(key, oldValue, newValue) ; }
+		
+		@Override
+		public void replaceAll(BiFunction<? super String, ? super V, ? extends V> f) { modified() ; super.replaceAll(f) ; }
+		
+		@Override
+		public V compute(String key, BiFunction<? super String, ? super V, ? extends V> f) { modified() ; return super.compute(key, f) ; }
+		
+		@Override
+		public V computeIfAbsent(String key, Function<? super String, ? extends V> f) { modified() ; return super.computeIfAbsent(key, f) ; }
+		
+		@Override
+		public V computeIfPresent(String key, BiFunction<? super String, ? super V, ? extends V> f) { modified() ; return super.computeIfPresent(key, f) ; }
+		
+		@Override
+		public V merge(String key, V value, BiFunction<? super V, ? super V, ? extends V> f) { modified() ; return super.merge(key, value, f) ; }
+	}
+	
+	/**
+	 * Return a deep copy of this entity, including its elements and its previous
+	 * state. If the entity, its elements, and their previous states are all instances
+	 * of WorldEntity itself, the copy is made through {@link WorldModelCodec}, which is
+	 * faster. Else it is made through Java serialization, which keeps the classes and
+	 * fields of subclasses of WorldEntity.
+	 */
 	public WorldEntity deepclone() throws IOException, ClassNotFoundException {
+		if (isPlainWorldEntity()) return WorldModelCodec.copy(this) ;
 		ByteArrayOutputStream bos = new ByteArrayOutputStream();
 		ObjectOutputStream out = new ObjectOutputStream(bos);
         out.writeObject(this);
@@ -193,5 +453,14 @@ public class WorldEntity implements Serializable {
         var copied = (WorldEntity) in.readObject();
         return copied ;
 	}
+	
+	private boolean isPlainWorldEntity() {
+		if (getClass() != WorldEntity.class) return false ;
+		if (previousState != null && ! previousState.isPlainWorldEntity()) return false ;
+		for (var e : elements.values()) {
+			if (! e.isPlainWorldEntity()) return false ;
+		}
+		return true ;
+	}
 
 }
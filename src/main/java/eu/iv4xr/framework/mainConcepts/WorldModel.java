@@ -2,7 +2,11 @@ package eu.iv4xr.framework.mainConcepts;
 
 import java.io.Serializable;
 import java.util.* ;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
+import eu.iv4xr.framework.spatial.Box;
+import eu.iv4xr.framework.spatial.SpatialGrid;
 import eu.iv4xr.framework.spatial.Vec3;
 import nl.uu.cs.aplib.mainConcepts.Environment;
 
@@ -15,7 +19,7 @@ import nl.uu.cs.aplib.mainConcepts.Environment;
  * how the world is structured; this may incorporate its past knowledge which may no
  * longer be up to date.
  */
-public class WorldModel {
+public class WorldModel implements Serializable {
 	
 	/**
 	 * The id of the agent that owns this World Model.
@@ -38,8 +42,69 @@ public class WorldModel {
 	
 	/**
 	 * In-world entities that populate this World Model.
+	 * 
+	 * <p>The indexes used by the queries (see {@link #entitiesWithin(Vec3, float)}
+	 * and {@link #entitiesOfType(String)}) can only be kept if the modifications of
+	 * this map can be tracked. If it is replaced by another kind of map, e.g. when the
+	 * WorldModel is decoded by Gson, it is replaced by a tracked copy at the next
+	 * merge or query. Hence, do not hold on to this map across those calls; read the
+	 * field again instead.
+	 */
+	public Map<String,WorldEntity> elements = new WorldEntity.StateMap<>() ;
+	
+	/**
+	 * The cell size of the spatial index, see {@link #useSpatialIndex(float)}.
+	 */
+	float spatialIndexCellSize = 2f ;
+	
+	/**
+	 * The names of the properties that are indexed, see {@link #indexProperty(String)}.
+	 */
+	Set<String> indexedProperties = new HashSet<>() ;
+	
+	/**
+	 * The indexes over the elements, used by the spatial queries and the queries by
+	 * type and property. They are built at the first query that needs them, and
+	 * kept up to date by updateEntity and mergeDelta; if elements is modified in
+	 * another way, they are dropped and rebuilt at the next query (see
+	 * syncIndexes).
+	 */
+	private transient SpatialGrid<WorldEntity> spatialIndex = null ;
+	private transient EntityIndex typeIndex = null ;
+	private transient Map<String,EntityIndex> propertyIndexes = null ;
+	
+	/**
+	 * The version of elements (see {@link WorldEntity.StateMap}) that the indexes
+	 * are in sync with.
+	 */
+	private transient int indexesVersion = -1 ;
+	
+	/**
+	 * The number of past states kept per entity, and in total, see
+	 * {@link #keepHistory(int, int)}. 0 means that no history is kept.
+	 */
+	int historyCapacity = 0 ;
+	int maxHistorySize = 0 ;
+	
+	/**
+	 * The past states of the entities, by id. All past states, of all entities,
+	 * are also queued in historyOrder in the order they were recorded, so that the
+	 * oldest can be dropped when more than maxHistorySize states are kept.
+	 */
+	private transient Map<String,EntityHistory> histories = null ;
+	private transient ArrayDeque<HistorySlot> historyOrder = null ;
+	private transient int historySize = 0 ;
+	
+	/**
+	 * The entities of the last observation merged by mergeDelta, by id, and the
+	 * timestamp of that observation. A delta does not mention the entities of this
+	 * view that are unchanged. viewVersion is the version of elements (see
+	 * {@link WorldEntity.StateMap}) when the view was last updated; if elements has
+	 * been modified since, the entities of the view are looked up again.
 	 */
-	public Map<String,WorldEntity> elements = new HashMap<>() ;
+	private transient Map<String,WorldEntity> view = null ;
+	private transient long viewTimestamp = -1 ;
+	private transient int viewVersion = -1 ;
 	
 	public WorldModel() { }
 	
@@ -87,7 +152,7 @@ public class WorldModel {
 		var current = elements.get(e.id) ;
 		if (current==null) {
 			// e is new:
-			elements.put(e.id,e) ;
+			putElement(e) ;
 			return e ;
 		}
 		else {
@@ -95,19 +160,16 @@ public class WorldModel {
 			if (e.timestamp >= current.timestamp) {
 				// check first if there is a state change
 				if (e.hasSameState(current)) {
-					var startTimeStutter = current.lastStutterTimestamp ;
-					if (startTimeStutter<0) startTimeStutter = current.timestamp ;
 					// keep current; just update its timestamp:
-					current.assignTimeStamp(e.timestamp);
-					// update the stutter-timestamp as well:
-					current.lastStutterTimestamp = startTimeStutter ;
+					stutter(current, e.timestamp) ;
 					return current ;
 				}
 				else {
 					// the entity has changes its state 
 					// (its start-stutter-time should already be initialized to -1)
-					elements.put(e.id,e) ;
+					putElement(e) ;
 					e.linkPreviousState(current);
+					recordHistory(current) ;
 					//System.out.println("%%% updating " + e.id) ;
 					return e ;
 				}
@@ -126,6 +188,267 @@ public class WorldModel {
 		}
 	}
 	
+	/**
+	 * Put e in elements, and keep the indexes in sync with it.
+	 */
+	private void putElement(WorldEntity e) {
+		syncIndexes() ;
+		elements.put(e.id,e) ;
+		if (spatialIndex != null) spatialIndex.put(e.id, e.position, e) ;
+		if (typeIndex != null) typeIndex.put(e) ;
+		if (propertyIndexes != null) for (var index : propertyIndexes.values()) index.put(e) ;
+		indexesVersion = WorldEntity.StateMap.versionOf(elements) ;
+	}
+	
+	private void removeElement(String id) {
+		syncIndexes() ;
+		elements.remove(id) ;
+		if (spatialIndex != null) spatialIndex.remove(id) ;
+		if (typeIndex != null) typeIndex.remove(id) ;
+		if (propertyIndexes != null) for (var index : propertyIndexes.values()) index.remove(id) ;
+		indexesVersion = WorldEntity.StateMap.versionOf(elements) ;
+	}
+	
+	/**
+	 * Drop the indexes if elements has been modified since they were last in sync
+	 * with it. If the modifications of elements cannot be tracked, because it is not a
+	 * {@link WorldEntity.StateMap}, it is first replaced by a copy that is one.
+	 */
+	private void syncIndexes() {
+		if (WorldEntity.StateMap.versionOf(elements) < 0) {
+			var tracked = new WorldEntity.StateMap<WorldEntity>() ;
+			tracked.putAll(elements) ;
+			elements = tracked ;
+		}
+		int version = WorldEntity.StateMap.versionOf(elements) ;
+		if (version != indexesVersion) {
+			spatialIndex = null ;
+			typeIndex = null ;
+			propertyIndexes = null ;
+			indexesVersion = version ;
+		}
+	}
+	
+	/**
+	 * A past state of an entity, as kept in its history.
+	 */
+	private static class HistorySlot {
+		String id ;
+		WorldEntity state ;
+		/**
+		 * True if the state has been dropped from the history of its entity.
+		 */
+		boolean dropped = false ;
+		
+		HistorySlot(String id, WorldEntity state) {
+			this.id = id ;
+			this.state = state ;
+		}
+	}
+	
+	/**
+	 * A ring buffer with the past states of one entity, oldest first.
+	 */
+	private static class EntityHistory {
+		HistorySlot[] slots ;
+		int head = 0 ;
+		int size = 0 ;
+		
+		EntityHistory(int capacity) {
+			slots = new HistorySlot[capacity] ;
+		}
+		
+		/**
+		 * The i-th oldest state.
+		 */
+		HistorySlot get(int i) {
+			return slots[(head + i) % slots.length] ;
+		}
+		
+		/**
+		 * Add a state as the newest. If the buffer is full, the oldest state is
+		 * dropped and returned.
+		 */
+		HistorySlot add(HistorySlot slot) {
+			HistorySlot dropped = null ;
+			if (size == slots.length) dropped = removeOldest() ;
+			slots[(head + size) % slots.length] = slot ;
+			size++ ;
+			return dropped ;
+		}
+		
+		HistorySlot removeOldest() {
+			var oldest = slots[head] ;
+			slots[head] = null ;
+			head = (head + 1) % slots.length ;
+			size-- ;
+			oldest.dropped = true ;
+			return oldest ;
+		}
+	}
+	
+	/**
+	 * Keep the history of the top-level entities: whenever an entity changes its
+	 * state, its old state is kept, up to the given number of past states per
+	 * entity, and up to maxHistorySize past states in total; when either limit is
+	 * exceeded, the oldest states are dropped. The history is only recorded from
+	 * this call on, and only for state changes observed by updateEntity (and thus
+	 * mergeNewObservation and mergeDelta); older observations, as merged by
+	 * mergeOldObservation, are not recorded. Calling it with a capacity of 0 drops
+	 * the history. The method returns this WorldModel so that it can be used in the
+	 * Fluent Interface style.
+	 * 
+	 * <p>Past states are the entity instances that were replaced, not copies of
+	 * them. However, sub-elements that are equal in consecutive past states are
+	 * shared: the later past state reuses the instances of the earlier one, so that a
+	 * sub-element that does not change is kept only once. A shared sub-element thus
+	 * carries the timestamps of the earliest past state that has it. When this
+	 * happens, the history keeps a shallow copy of the replaced instance with the
+	 * shared sub-elements, so that the instance itself, which is also the previous
+	 * state of the entity's current state (see {@link WorldEntity#getPreviousState()}),
+	 * is not changed. The current state of an entity never shares instances with its
+	 * past states.
+	 * 
+	 * <p>Note that maxHistorySize limits the number of past states, not their size
+	 * in memory. A past state keeps its sub-elements, except those it shares with
+	 * the state before it. So with entities that have many sub-elements that change
+	 * often, choose maxHistorySize accordingly.
+	 */
+	public WorldModel keepHistory(int capacity, int maxHistorySize) {
+		if (capacity < 0 || maxHistorySize < 0) 
+			throw new IllegalArgumentException("The history capacity should not be negative") ;
+		historyCapacity = capacity ;
+		this.maxHistorySize = maxHistorySize ;
+		histories = null ;
+		historyOrder = null ;
+		historySize = 0 ;
+		return this ;
+	}
+	
+	/**
+	 * Record old as the newest past state of its entity.
+	 */
+	private void recordHistory(WorldEntity old) {
+		if (historyCapacity <= 0 || maxHistorySize <= 0) return ;
+		if (histories == null) {
+			histories = new HashMap<>() ;
+			historyOrder = new ArrayDeque<>() ;
+			historySize = 0 ;
+		}
+		var history = histories.computeIfAbsent(old.id, id -> new EntityHistory(historyCapacity)) ;
+		var recorded = history.size > 0 ? shareUnchangedElements(history.get(history.size - 1).state, old) : old ;
+		var slot = new HistorySlot(old.id, recorded) ;
+		if (history.add(slot) != null) historySize-- ;
+		historySize++ ;
+		historyOrder.add(slot) ;
+		while (historySize > maxHistorySize) {
+			var oldest = historyOrder.poll() ;
+			if (oldest.dropped) continue ;
+			var h = histories.get(oldest.id) ;
+			h.removeOldest() ;
+			if (h.size == 0) histories.remove(oldest.id) ;
+			historySize-- ;
+		}
+		// get rid of the slots that were dropped by the entities' own capacity:
+		if (historyOrder.size() > 2 * historySize + 16) historyOrder.removeIf(S -> S.dropped) ;
+	}
+	
+	/**
+	 * Return the state to record for old, given the previously recorded state of the
+	 * same entity. If some elements of old are equal to those of previous, this is a
+	 * copy of old that refers to the elements of previous instead, so that they are
+	 * not kept twice; else it is old itself. Neither old nor previous is changed: old
+	 * is also the previous state of the entity's current state.
+	 */
+	private static WorldEntity shareUnchangedElements(WorldEntity previous, WorldEntity old) {
+		Map<String,WorldEntity> shared = null ;
+		for (var E : old.elements.entrySet()) {
+			var elem = E.getValue() ;
+			var previousElem = previous.elements.get(E.getKey()) ;
+			if (previousElem == null || elem == previousElem) continue ;
+			var recorded = elem.hasEqualState(previousElem) ? previousElem : shareUnchangedElements(previousElem, elem) ;
+			if (recorded == elem) continue ;
+			if (shared == null) shared = new HashMap<>() ;
+			shared.put(E.getKey(), recorded) ;
+		}
+		if (shared == null) return old ;
+		var copy = new WorldEntity(old.id, old.type, old.dynamic) ;
+		copy.timestamp = old.timestamp ;
+		copy.lastStutterTimestamp = old.lastStutterTimestamp ;
+		copy.position = old.position ;
+		copy.extent = old.extent ;
+		copy.velocity = old.velocity ;
+		copy.properties.putAll(old.properties) ;
+		copy.elements.putAll(old.elements) ;
+		copy.elements.putAll(shared) ;
+		return copy ;
+	}
+	
+	/**
+	 * The recorded past states of the entity with the given id, oldest first. Its
+	 * current state is not included; that is getElement(id). See
+	 * {@link #keepHistory(int, int)}.
+	 */
+	public List<WorldEntity> history(String id) {
+		List<WorldEntity> states = new ArrayList<>() ;
+		var history = histories == null ? null : histories.get(id) ;
+		if (history == null) return states ;
+		for (int i=0; i<history.size; i++) states.add(history.get(i).state) ;
+		return states ;
+	}
+	
+	/**
+	 * The number of past states kept, of all entities.
+	 */
+	public int historySize() {
+		return histories == null ? 0 : historySize ;
+	}
+	
+	/**
+	 * The time from which a state was observed: the start of its stutter period,
+	 * or else its timestamp.
+	 */
+	private static long firstObserved(WorldEntity state) {
+		return state.lastStutterTimestamp >= 0 ? state.lastStutterTimestamp : state.timestamp ;
+	}
+	
+	/**
+	 * Return the state that the entity with the given id had at the given time,
+	 * according to its current state and its recorded past states: the most recent
+	 * state that was observed at or before that time. It returns null if no such
+	 * state is known, e.g. because it has been dropped from the history.
+	 */
+	public WorldEntity stateAt(String id, long time) {
+		var current = elements.get(id) ;
+		if (current != null && firstObserved(current) <= time) return current ;
+		var history = histories == null ? null : histories.get(id) ;
+		if (history == null) return null ;
+		// binary search for the most recent past state observed at or before time:
+		int lo = 0, hi = history.size - 1, found = -1 ;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1 ;
+			if (firstObserved(history.get(mid).state) <= time) {
+				found = mid ;
+				lo = mid + 1 ;
+			}
+			else hi = mid - 1 ;
+		}
+		return found < 0 ? null : history.get(found).state ;
+	}
+	
+	/**
+	 * Register that the entity e is observed at time ts, with the same state as it
+	 * has now. Its timestamp is updated, and if it was not stuttering yet, it starts
+	 * stuttering from its current timestamp.
+	 */
+	private void stutter(WorldEntity e, long ts) {
+		var startTimeStutter = e.lastStutterTimestamp ;
+		if (startTimeStutter<0) startTimeStutter = e.timestamp ;
+		e.assignTimeStamp(ts);
+		// update the stutter-timestamp as well:
+		e.lastStutterTimestamp = startTimeStutter ;
+	}
+	
 	/**
 	 * This will merge a sampled (and more recent) observation (represented as
 	 * another WorldModel) made by the agent into WorldModel. 
@@ -195,6 +518,97 @@ public class WorldModel {
 	}
 	
     
+	/**
+	 * Merge a delta observation (see {@link WorldModelDelta}) into this WorldModel.
+	 * This has the same effect as merging the full observation that the delta
+	 * describes with {@link #mergeNewObservation(WorldModel)}, except that
+	 * entities that the delta marks as removed are removed from this WorldModel:
+	 * 
+	 * <ul>
+	 * <li>New and changed entities are added or updated as in mergeNewObservation;
+	 * the previous state of an updated entity is linked to it.
+	 * <li>The entities of the base observation that the delta does not mention are
+	 * unchanged. They only get the delta's timestamp, and are marked as stuttering
+	 * (see {@link WorldEntity#lastStutterTimestamp}). They are not compared, copied,
+	 * or looked up.
+	 * </ul>
+	 * 
+	 * To know which entities are unchanged, this WorldModel remembers the entities
+	 * of the last delta it merged; this is not part of its serialized form. So,
+	 * unless the delta is a complete observation, this WorldModel should have merged
+	 * the delta's base observation with this method, and not have merged a new
+	 * observation after it. {@link #observeDelta(W3DEnvironment)} asks for a
+	 * complete observation if this is not the case.
+	 * 
+	 * The method returns the list of entities that changed the state of this
+	 * WorldModel, like mergeNewObservation.
+	 */
+	public List<WorldEntity> mergeDelta(WorldModelDelta delta) {
+		if (delta == null) throw new IllegalArgumentException("Null observation received");
+		if (delta.timestamp < this.timestamp) 
+			throw new IllegalArgumentException("Cannot merge an older WorldModel into a newer one.");
+		if (delta.isComplete()) {
+			view = new HashMap<>() ;
+		}
+		else {
+			if (delta.baseTimestamp != this.timestamp)
+				throw new IllegalArgumentException("The delta is relative to time " + delta.baseTimestamp 
+						+ ", but the WorldModel is at time " + this.timestamp) ;
+			if (! hasView())
+				throw new IllegalArgumentException("The entities observed at time " + this.timestamp 
+						+ " are not known; a complete observation is needed") ;
+			syncView() ;
+		}
+		
+		this.position = delta.position ;
+		this.velocity = delta.velocity ;
+		this.extent = delta.extent ;
+		
+		for (var id : delta.leftView) view.remove(id) ;
+		for (var id : delta.removed) view.remove(id) ;
+		for (var V : view.entrySet()) {
+			var current = V.getValue() ;
+			if (! delta.changed.containsKey(V.getKey()) && delta.timestamp >= current.timestamp) 
+				stutter(current, delta.timestamp) ;
+		}
+		List<WorldEntity> impactEntities = new LinkedList<>() ;
+		for (WorldEntity e : delta.changed.values()) {
+			var f = this.updateEntity(e) ;
+			if (e==f) impactEntities.add(e) ;
+			view.put(e.id, f) ;
+		}
+		for (var id : delta.removed) removeElement(id) ;
+		
+		this.timestamp = delta.timestamp ;
+		viewTimestamp = delta.timestamp ;
+		viewVersion = WorldEntity.StateMap.versionOf(elements) ;
+		return impactEntities ;
+	}
+	
+	/**
+	 * True if this WorldModel knows the entities of the observation it merged
+	 * last, so that it can merge a delta relative to it.
+	 */
+	boolean hasView() {
+		return view != null && viewTimestamp == timestamp ;
+	}
+	
+	/**
+	 * Look up the entities of the view again if elements has been modified
+	 * since the view was updated.
+	 */
+	private void syncView() {
+		int version = WorldEntity.StateMap.versionOf(elements) ;
+		if (version >= 0 && version == viewVersion) return ;
+		var it = view.entrySet().iterator() ;
+		while (it.hasNext()) {
+			var V = it.next() ;
+			var e = elements.get(V.getKey()) ;
+			if (e == null) it.remove() ;
+			else V.setValue(e) ;
+		}
+	}
+	
 	/**
 	 * This is used to merge an older observation into this one. E.g. it can be an observation
 	 * sent by another agent.
@@ -211,6 +625,187 @@ public class WorldModel {
     }
 
 	
+	/**
+	 * Set the cell size of the grid that is used to answer the spatial queries
+	 * (entitiesWithin, entitiesInBox, nearestEntities). It should be in the order
+	 * of the typical query radius; the default is 2. The method returns this
+	 * WorldModel so that it can be used in the Fluent Interface style.
+	 */
+	public WorldModel useSpatialIndex(float cellSize) {
+		if (!(cellSize > 0)) throw new IllegalArgumentException("The cell size should be positive: " + cellSize) ;
+		spatialIndexCellSize = cellSize ;
+		spatialIndex = null ;
+		return this ;
+	}
+	
+	/**
+	 * Drop all indexes, so that they are rebuilt at the next query. This is only
+	 * needed after an entity in this WorldModel is changed directly (e.g. its
+	 * position or an indexed property), rather than by merging an observation.
+	 */
+	public void invalidateIndexes() {
+		spatialIndex = null ;
+		typeIndex = null ;
+		propertyIndexes = null ;
+	}
+	
+	/**
+	 * Return the spatial index over the elements, building it if needed.
+	 */
+	private SpatialGrid<WorldEntity> spatialIndex() {
+		syncIndexes() ;
+		if (spatialIndex != null) return spatialIndex ;
+		spatialIndex = new SpatialGrid<WorldEntity>(spatialIndexCellSize) ;
+		for (var e : elements.values()) spatialIndex.put(e.id, e.position, e) ;
+		return spatialIndex ;
+	}
+	
+	/**
+	 * Return the top-level entities whose position is within the given distance from
+	 * the given point, in no particular order. Entities without a position are
+	 * ignored by this and the other spatial queries.
+	 */
+	public List<WorldEntity> entitiesWithin(Vec3 center, float radius) {
+		return spatialIndex().withinRadius(center, radius) ;
+	}
+	
+	/**
+	 * Return the top-level entities whose position is inside the given box, in no
+	 * particular order.
+	 */
+	public List<WorldEntity> entitiesInBox(Box box) {
+		return spatialIndex().withinBox(box) ;
+	}
+	
+	/**
+	 * Return the k top-level entities closest to the given point that satisfy the
+	 * filter, ordered by increasing distance. The filter can be null.
+	 */
+	public List<WorldEntity> nearestEntities(Vec3 point, int k, Predicate<WorldEntity> filter) {
+		return spatialIndex().nearest(point, k, filter) ;
+	}
+	
+	/**
+	 * Return the top-level entity closest to the given point that satisfies the
+	 * filter, or null if there is none. The filter can be null.
+	 */
+	public WorldEntity nearestEntity(Vec3 point, Predicate<WorldEntity> filter) {
+		var nearest = nearestEntities(point, 1, filter) ;
+		return nearest.isEmpty() ? null : nearest.get(0) ;
+	}
+	
+	/**
+	 * Maps the top-level entities to their value of some key, e.g. their type, so
+	 * that the entities with a given value can be looked up. Entities whose value is
+	 * null are not indexed.
+	 */
+	private static class EntityIndex {
+		Function<WorldEntity,Object> key ;
+		Map<Object,Map<String,WorldEntity>> entities = new HashMap<>() ;
+		/**
+		 * The value under which every entity is indexed, by id.
+		 */
+		Map<String,Object> keys = new HashMap<>() ;
+		
+		EntityIndex(Function<WorldEntity,Object> key, Collection<WorldEntity> elements) {
+			this.key = key ;
+			for (var e : elements) put(e) ;
+		}
+		
+		void put(WorldEntity e) {
+			remove(e.id) ;
+			var k = key.apply(e) ;
+			if (k == null) return ;
+			keys.put(e.id, k) ;
+			entities.computeIfAbsent(k, k_ -> new HashMap<>()).put(e.id, e) ;
+		}
+		
+		void remove(String id) {
+			var k = keys.remove(id) ;
+			if (k == null) return ;
+			var group = entities.get(k) ;
+			group.remove(id) ;
+			if (group.isEmpty()) entities.remove(k) ;
+		}
+		
+		Collection<WorldEntity> get(Object k) {
+			var group = entities.get(k) ;
+			return group == null ? Collections.emptyList() : group.values() ;
+		}
+	}
+	
+	/**
+	 * Maintain an index of the top-level entities by the value of the given
+	 * property, so that {@link #entitiesWithProperty(String, Serializable)} with
+	 * this property is a lookup rather than a scan over all entities. The method
+	 * returns this WorldModel so that it can be used in the Fluent Interface style.
+	 */
+	public WorldModel indexProperty(String propertyName) {
+		indexedProperties.add(propertyName) ;
+		return this ;
+	}
+	
+	private EntityIndex typeIndex() {
+		syncIndexes() ;
+		if (typeIndex == null) typeIndex = new EntityIndex(e -> e.type, elements.values()) ;
+		return typeIndex ;
+	}
+	
+	/**
+	 * The index of the given property, or null if the property is not indexed.
+	 */
+	private EntityIndex propertyIndex(String propertyName) {
+		if (! indexedProperties.contains(propertyName)) return null ;
+		syncIndexes() ;
+		if (propertyIndexes == null) propertyIndexes = new HashMap<>() ;
+		return propertyIndexes.computeIfAbsent(propertyName,
+				name -> new EntityIndex(e -> e.properties.get(name), elements.values())) ;
+	}
+	
+	/**
+	 * Return the top-level entities of the given type. The entities are looked up in
+	 * an index.
+	 */
+	public List<WorldEntity> entitiesOfType(String type) {
+		return new ArrayList<>(typeIndex().get(type)) ;
+	}
+	
+	/**
+	 * Return the top-level entities whose given property has the given (non-null)
+	 * value. If the property is indexed (see {@link #indexProperty(String)}), the
+	 * entities are looked up in the index; else all entities are inspected.
+	 */
+	public List<WorldEntity> entitiesWithProperty(String propertyName, Serializable value) {
+		if (value == null) throw new IllegalArgumentException("Cannot look up entities by a null value of " + propertyName) ;
+		var index = propertyIndex(propertyName) ;
+		if (index != null) return new ArrayList<>(index.get(value)) ;
+		List<WorldEntity> result = new ArrayList<>() ;
+		for (var e : elements.values()) {
+			if (value.equals(e.properties.get(propertyName))) result.add(e) ;
+		}
+		return result ;
+	}
+	
+	/**
+	 * Return the top-level entities of the given type whose given property has the
+	 * given (non-null) value, e.g. all doors whose "isOpen" is false. The smaller
+	 * of the two groups (by type and by property) is looked up, and filtered by the
+	 * other criterion.
+	 */
+	public List<WorldEntity> entitiesOfType(String type, String propertyName, Serializable value) {
+		if (value == null) throw new IllegalArgumentException("Cannot look up entities by a null value of " + propertyName) ;
+		var ofType = typeIndex().get(type) ;
+		var index = propertyIndex(propertyName) ;
+		List<WorldEntity> result = new ArrayList<>() ;
+		if (index != null && index.get(value).size() < ofType.size()) {
+			for (var e : index.get(value)) if (e.type.equals(type)) result.add(e) ;
+		}
+		else {
+			for (var e : ofType) if (value.equals(e.properties.get(propertyName))) result.add(e) ;
+		}
+		return result ;
+	}
+	
 	/**
 	 * A query method that returns the set of possible interaction-types(e.g.
 	 * "push", "pick-up") that an agent can do on in-world entities. For each
@@ -288,6 +883,17 @@ public class WorldModel {
 		return env.observe(agentId) ;
 	}
 
+	/**
+	 * Sample the world around the agent, as a delta relative to this WorldModel.
+	 * This will return an instance of WorldModelDelta, which can be merged into
+	 * this WorldModel with {@link #mergeDelta(WorldModelDelta)}. If this WorldModel
+	 * cannot merge a delta relative to its last observation (see mergeDelta), a
+	 * complete observation is asked for.
+	 */
+	public WorldModelDelta observeDelta(W3DEnvironment env) {
+		return env.observeDelta(agentId, hasView() ? timestamp : -1) ;
+	}
+
 	/**
 	 * The agent will move some (small) distance is towards the given target location. This
 	 * method will NOT deal with obstacles in-between. Assuming that the space between the
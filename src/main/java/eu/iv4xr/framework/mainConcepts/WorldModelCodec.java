@@ -0,0 +1,605 @@
+package eu.iv4xr.framework.mainConcepts;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import eu.iv4xr.framework.spatial.Vec3;
+
+/**
+ * A compact binary encoding of {@link WorldModel}s and {@link WorldEntity}s, as an
+ * alternative to Json (e.g. through a JsonEnvironment) and to Java serialization
+ * (as in {@link WorldEntity#deepclone()}). It can be used to send observations
+ * over the wire, and to clone them.
+ *
+ * <ul>
+ * <li>Integers and timestamps are written as variable-length integers (varints).
+ * <li>Vectors are written as three raw floats.
+ * <li>Entity types, property names and string property values are interned: the
+ * first occurrence of such a string in a message is written in full, and later
+ * occurrences as an index to it.
+ * <li>Property values of the common types (booleans, numbers, strings, vectors,
+ * and int and float arrays) are written in a compact form. Other values are
+ * written with Java serialization. When decoding, only values of the classes in
+ * java.lang, java.util, java.time, java.math and eu.iv4xr.framework.spatial (and
+ * arrays of them, and of primitives) are deserialized; use
+ * {@link #allowSerializedValues(String...)} to allow other classes.
+ * <li>The previous state of an entity, if any, is included.
+ * </ul>
+ *
+ * {@link WorldModelDelta}s can be encoded as well. Decoding a WorldModel produces
+ * an instance of WorldModel itself, also if a subclass was encoded.
+ */
+public final class WorldModelCodec {
+
+	static final byte VERSION = 1 ;
+
+	// flags of a Vec3-triple and of an entity:
+	static final int HAS_POSITION = 1 ;
+	static final int HAS_EXTENT = 2 ;
+	static final int HAS_VELOCITY = 4 ;
+	static final int DYNAMIC = 8 ;
+	static final int HAS_PREVIOUS_STATE = 16 ;
+	static final int KEY_DIFFERS_FROM_ID = 32 ;
+
+	// the tags of property values:
+	static final byte NULL = 0 ;
+	static final byte FALSE = 1 ;
+	static final byte TRUE = 2 ;
+	static final byte INT = 3 ;
+	static final byte LONG = 4 ;
+	static final byte FLOAT = 5 ;
+	static final byte DOUBLE = 6 ;
+	static final byte STRING = 7 ;
+	static final byte VEC3 = 8 ;
+	static final byte INT_ARRAY = 9 ;
+	static final byte FLOAT_ARRAY = 10 ;
+	static final byte SERIALIZED = 11 ;
+
+	/**
+	 * The classes that may be deserialized from a property value, in the syntax of
+	 * {@link ObjectInputFilter.Config#createFilter(String)}.
+	 */
+	static final String SERIALIZED_VALUES = "maxdepth=32;java.lang.*;java.util.*;java.time.*;java.math.*;eu.iv4xr.framework.spatial.*" ;
+	
+	static String allowedSerializedValues = SERIALIZED_VALUES ;
+	
+	static volatile ObjectInputFilter serializedValueFilter = ObjectInputFilter.Config.createFilter(SERIALIZED_VALUES + ";!*") ;
+
+	private WorldModelCodec() { }
+	
+	/**
+	 * Also allow property values of the given classes to be deserialized when decoding.
+	 * A pattern is a class name, or a package name followed by .* (the classes in the
+	 * package) or .** (the classes in the package and its sub-packages); see
+	 * {@link ObjectInputFilter.Config#createFilter(String)}. The classes that these
+	 * values refer to must be allowed as well.
+	 */
+	public static synchronized void allowSerializedValues(String ... patterns) {
+		for (var P : patterns) {
+			if (P.isEmpty() || P.contains(";") || P.startsWith("!") || P.contains("="))
+				throw new IllegalArgumentException("Not a class name or package pattern: " + P) ;
+			allowedSerializedValues = allowedSerializedValues + ";" + P ;
+		}
+		serializedValueFilter = ObjectInputFilter.Config.createFilter(allowedSerializedValues + ";!*") ;
+	}
+
+	/**
+	 * Encode the given WorldModel.
+	 */
+	public static byte[] encode(WorldModel wom) {
+		var E = new Encoder() ;
+		E.writeByte(VERSION) ;
+		E.writeWorldModel(wom) ;
+		return E.toByteArray() ;
+	}
+
+	/**
+	 * Decode a WorldModel that was encoded with {@link #encode(WorldModel)}.
+	 */
+	public static WorldModel decodeWorldModel(byte[] bytes) {
+		var D = new Decoder(bytes) ;
+		D.checkVersion() ;
+		return D.readWorldModel() ;
+	}
+
+	/**
+	 * Encode the given entity, along with its elements.
+	 */
+	public static byte[] encode(WorldEntity e) {
+		var E = new Encoder() ;
+		E.writeByte(VERSION) ;
+		E.writeEntity(e, null) ;
+		return E.toByteArray() ;
+	}
+
+	/**
+	 * Decode an entity that was encoded with {@link #encode(WorldEntity)}.
+	 */
+	public static WorldEntity decodeWorldEntity(byte[] bytes) {
+		var D = new Decoder(bytes) ;
+		D.checkVersion() ;
+		return D.readEntity(null) ;
+	}
+	
+	/**
+	 * Copy the given entity by encoding and decoding it. Property values that are
+	 * written with Java serialization are not filtered when decoding, since they
+	 * come from the entity itself.
+	 */
+	static WorldEntity copy(WorldEntity e) {
+		var D = new Decoder(encode(e)) ;
+		D.filter = null ;
+		D.checkVersion() ;
+		return D.readEntity(null) ;
+	}
+
+	/**
+	 * Encode the given delta observation.
+	 */
+	public static byte[] encode(WorldModelDelta delta) {
+		var E = new Encoder() ;
+		E.writeByte(VERSION) ;
+		E.writeDelta(delta) ;
+		return E.toByteArray() ;
+	}
+
+	/**
+	 * Decode a delta observation that was encoded with {@link #encode(WorldModelDelta)}.
+	 */
+	public static WorldModelDelta decodeWorldModelDelta(byte[] bytes) {
+		var D = new Decoder(bytes) ;
+		D.checkVersion() ;
+		return D.readDelta() ;
+	}
+
+	/**
+	 * Write the given WorldModel to a stream, e.g. a connection, preceded by the
+	 * length of its encoding.
+	 */
+	public static void write(WorldModel wom, OutputStream out) throws IOException {
+		var E = new Encoder() ;
+		E.writeByte(VERSION) ;
+		E.writeWorldModel(wom) ;
+		var frame = new Encoder() ;
+		frame.writeVarint(E.size) ;
+		out.write(frame.buffer, 0, frame.size) ;
+		out.write(E.buffer, 0, E.size) ;
+	}
+
+	/**
+	 * Read a WorldModel that was written with {@link #write(WorldModel, OutputStream)}.
+	 */
+	public static WorldModel readWorldModel(InputStream in) throws IOException {
+		long length = 0 ;
+		for (int shift = 0 ; ; shift += 7) {
+			int b = in.read() ;
+			if (b < 0) throw new IOException("Unexpected end of stream.") ;
+			length |= (long) (b & 0x7f) << shift ;
+			if ((b & 0x80) == 0) break ;
+			if (shift > 28) throw new IOException("Corrupt WorldModel frame.") ;
+		}
+		byte[] bytes = new byte[(int) length] ;
+		new DataInputStream(in).readFully(bytes) ;
+		return decodeWorldModel(bytes) ;
+	}
+
+	/**
+	 * Writes into a growable byte array.
+	 */
+	static class Encoder {
+		byte[] buffer = new byte[256] ;
+		int size = 0 ;
+		Map<String,Integer> strings = new HashMap<>() ;
+
+		void ensure(int n) {
+			if (size + n > buffer.length) buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + n)) ;
+		}
+
+		void writeByte(int b) {
+			ensure(1) ;
+			buffer[size++] = (byte) b ;
+		}
+
+		void writeVarint(long v) {
+			ensure(10) ;
+			while ((v & ~0x7fL) != 0) {
+				buffer[size++] = (byte) ((v & 0x7f) | 0x80) ;
+				v >>>= 7 ;
+			}
+			buffer[size++] = (byte) v ;
+		}
+
+		void writeSignedVarint(long v) {
+			writeVarint((v << 1) ^ (v >> 63)) ;
+		}
+
+		void writeInt32(int v) {
+			ensure(4) ;
+			buffer[size++] = (byte) (v >>> 24) ;
+			buffer[size++] = (byte) (v >>> 16) ;
+			buffer[size++] = (byte) (v >>> 8) ;
+			buffer[size++] = (byte) v ;
+		}
+
+		void writeFloat(float f) { writeInt32(Float.floatToIntBits(f)) ; }
+
+		void writeBytes(byte[] bytes) {
+			writeVarint(bytes.length) ;
+			ensure(bytes.length) ;
+			System.arraycopy(bytes, 0, buffer, size, bytes.length) ;
+			size += bytes.length ;
+		}
+
+		/**
+		 * Write a string that is not interned: 0 for null, else its length+1 and
+		 * its UTF-8 bytes.
+		 */
+		void writeString(String s) {
+			if (s == null) {
+				writeVarint(0) ;
+				return ;
+			}
+			var bytes = s.getBytes(StandardCharsets.UTF_8) ;
+			writeVarint(bytes.length + 1) ;
+			ensure(bytes.length) ;
+			System.arraycopy(bytes, 0, buffer, size, bytes.length) ;
+			size += bytes.length ;
+		}
+
+		/**
+		 * Write an interned string: 0 for null, 1 followed by the string for its first
+		 * occurrence, and else 2 + its index.
+		 */
+		void writeInterned(String s) {
+			if (s == null) {
+				writeVarint(0) ;
+				return ;
+			}
+			var index = strings.get(s) ;
+			if (index != null) {
+				writeVarint(index + 2) ;
+				return ;
+			}
+			strings.put(s, strings.size()) ;
+			writeVarint(1) ;
+			writeString(s) ;
+		}
+
+		void writeVec3(Vec3 v) {
+			writeFloat(v.x) ;
+			writeFloat(v.y) ;
+			writeFloat(v.z) ;
+		}
+
+		void writeWorldModel(WorldModel wom) {
+			writeInterned(wom.agentId) ;
+			int flags = 0 ;
+			if (wom.position != null) flags |= HAS_POSITION ;
+			if (wom.extent != null) flags |= HAS_EXTENT ;
+			if (wom.velocity != null) flags |= HAS_VELOCITY ;
+			writeByte(flags) ;
+			if (wom.position != null) writeVec3(wom.position) ;
+			if (wom.extent != null) writeVec3(wom.extent) ;
+			if (wom.velocity != null) writeVec3(wom.velocity) ;
+			writeSignedVarint(wom.timestamp) ;
+			writeElements(wom.elements) ;
+		}
+
+		void writeDelta(WorldModelDelta delta) {
+			writeInterned(delta.agentId) ;
+			int flags = 0 ;
+			if (delta.position != null) flags |= HAS_POSITION ;
+			if (delta.extent != null) flags |= HAS_EXTENT ;
+			if (delta.velocity != null) flags |= HAS_VELOCITY ;
+			writeByte(flags) ;
+			if (delta.position != null) writeVec3(delta.position) ;
+			if (delta.extent != null) writeVec3(delta.extent) ;
+			if (delta.velocity != null) writeVec3(delta.velocity) ;
+			writeSignedVarint(delta.baseTimestamp) ;
+			writeSignedVarint(delta.timestamp) ;
+			writeElements(delta.changed) ;
+			writeVarint(delta.leftView.size()) ;
+			for (var id : delta.leftView) writeString(id) ;
+			writeVarint(delta.removed.size()) ;
+			for (var id : delta.removed) writeString(id) ;
+		}
+
+		void writeElements(Map<String,WorldEntity> elements) {
+			writeVarint(elements.size()) ;
+			for (var entry : elements.entrySet()) writeEntity(entry.getValue(), entry.getKey()) ;
+		}
+
+		/**
+		 * Write the given entity. The key is the key under which the entity is stored
+		 * in its parent's elements, if any.
+		 */
+		void writeEntity(WorldEntity e, String key) {
+			int flags = 0 ;
+			if (e.position != null) flags |= HAS_POSITION ;
+			if (e.extent != null) flags |= HAS_EXTENT ;
+			if (e.velocity != null) flags |= HAS_VELOCITY ;
+			if (e.dynamic) flags |= DYNAMIC ;
+			var previous = e.getPreviousState() ;
+			if (previous != null) flags |= HAS_PREVIOUS_STATE ;
+			boolean keyDiffers = key != null && ! key.equals(e.id) ;
+			if (keyDiffers) flags |= KEY_DIFFERS_FROM_ID ;
+			writeByte(flags) ;
+			if (keyDiffers) writeString(key) ;
+			writeString(e.id) ;
+			writeInterned(e.type) ;
+			writeSignedVarint(e.timestamp) ;
+			writeSignedVarint(e.lastStutterTimestamp) ;
+			if (e.position != null) writeVec3(e.position) ;
+			if (e.extent != null) writeVec3(e.extent) ;
+			if (e.velocity != null) writeVec3(e.velocity) ;
+			writeVarint(e.properties.size()) ;
+			for (var P : e.properties.entrySet()) {
+				writeInterned(P.getKey()) ;
+				writeValue(P.getValue()) ;
+			}
+			writeElements(e.elements) ;
+			if (previous != null) writeEntity(previous, null) ;
+		}
+
+		void writeValue(Serializable v) {
+			if (v == null) writeByte(NULL) ;
+			else if (v instanceof Boolean) writeByte((Boolean) v ? TRUE : FALSE) ;
+			else if (v instanceof Integer) {
+				writeByte(INT) ;
+				writeSignedVarint((Integer) v) ;
+			}
+			else if (v instanceof Long) {
+				writeByte(LONG) ;
+				writeSignedVarint((Long) v) ;
+			}
+			else if (v instanceof Float) {
+				writeByte(FLOAT) ;
+				writeFloat((Float) v) ;
+			}
+			else if (v instanceof Double) {
+				writeByte(DOUBLE) ;
+				long bits = Double.doubleToLongBits((Double) v) ;
+				writeInt32((int) (bits >>> 32)) ;
+				writeInt32((int) bits) ;
+			}
+			else if (v instanceof String) {
+				writeByte(STRING) ;
+				writeInterned((String) v) ;
+			}
+			else if (v instanceof Vec3) {
+				writeByte(VEC3) ;
+				writeVec3((Vec3) v) ;
+			}
+			else if (v instanceof int[]) {
+				writeByte(INT_ARRAY) ;
+				var a = (int[]) v ;
+				writeVarint(a.length) ;
+				for (int x : a) writeSignedVarint(x) ;
+			}
+			else if (v instanceof float[]) {
+				writeByte(FLOAT_ARRAY) ;
+				var a = (float[]) v ;
+				writeVarint(a.length) ;
+				for (float x : a) writeFloat(x) ;
+			}
+			else {
+				writeByte(SERIALIZED) ;
+				var bytes = new ByteArrayOutputStream() ;
+				try (var out = new ObjectOutputStream(bytes)) {
+					out.writeObject(v) ;
+				}
+				catch(IOException ex) {
+					throw new IllegalArgumentException("Cannot encode a property value of type " + v.getClass().getName(), ex) ;
+				}
+				writeBytes(bytes.toByteArray()) ;
+			}
+		}
+
+		byte[] toByteArray() { return Arrays.copyOf(buffer, size) ; }
+	}
+
+	/**
+	 * Reads from a byte array.
+	 */
+	static class Decoder {
+		byte[] buffer ;
+		int position = 0 ;
+		List<String> strings = new ArrayList<>() ;
+		ObjectInputFilter filter = serializedValueFilter ;
+
+		Decoder(byte[] buffer) { this.buffer = buffer ; }
+
+		void checkVersion() {
+			int version = readByte() ;
+			if (version != VERSION) throw new IllegalArgumentException("Unsupported WorldModel encoding version " + version) ;
+		}
+
+		int readByte() {
+			if (position >= buffer.length) throw corrupt() ;
+			return buffer[position++] ;
+		}
+
+		long readVarint() {
+			long v = 0 ;
+			for (int shift = 0 ; shift < 64 ; shift += 7) {
+				int b = readByte() ;
+				v |= (long) (b & 0x7f) << shift ;
+				if ((b & 0x80) == 0) return v ;
+			}
+			throw corrupt() ;
+		}
+
+		long readSignedVarint() {
+			long v = readVarint() ;
+			return (v >>> 1) ^ -(v & 1) ;
+		}
+
+		int readLength() {
+			long n = readVarint() ;
+			if (n < 0 || n > buffer.length - position) throw corrupt() ;
+			return (int) n ;
+		}
+
+		int readInt32() {
+			if (position + 4 > buffer.length) throw corrupt() ;
+			int v = ((buffer[position] & 0xff) << 24) | ((buffer[position+1] & 0xff) << 16)
+					| ((buffer[position+2] & 0xff) << 8) | (buffer[position+3] & 0xff) ;
+			position += 4 ;
+			return v ;
+		}
+
+		float readFloat() { return Float.intBitsToFloat(readInt32()) ; }
+
+		byte[] readBytes() {
+			int n = readLength() ;
+			var bytes = Arrays.copyOfRange(buffer, position, position + n) ;
+			position += n ;
+			return bytes ;
+		}
+
+		String readString() {
+			long n = readVarint() ;
+			if (n == 0) return null ;
+			if (n - 1 > buffer.length - position) throw corrupt() ;
+			var s = new String(buffer, position, (int) (n - 1), StandardCharsets.UTF_8) ;
+			position += n - 1 ;
+			return s ;
+		}
+
+		String readInterned() {
+			long n = readVarint() ;
+			if (n == 0) return null ;
+			if (n == 1) {
+				var s = readString() ;
+				strings.add(s) ;
+				return s ;
+			}
+			if (n - 2 >= strings.size()) throw corrupt() ;
+			return strings.get((int) (n - 2)) ;
+		}
+
+		Vec3 readVec3() {
+			return new Vec3(readFloat(), readFloat(), readFloat()) ;
+		}
+
+		WorldModel readWorldModel() {
+			var wom = new WorldModel() ;
+			wom.agentId = readInterned() ;
+			int flags = readByte() ;
+			if ((flags & HAS_POSITION) != 0) wom.position = readVec3() ;
+			if ((flags & HAS_EXTENT) != 0) wom.extent = readVec3() ;
+			if ((flags & HAS_VELOCITY) != 0) wom.velocity = readVec3() ;
+			wom.timestamp = readSignedVarint() ;
+			readElements(wom.elements) ;
+			return wom ;
+		}
+
+		WorldModelDelta readDelta() {
+			var delta = new WorldModelDelta() ;
+			delta.agentId = readInterned() ;
+			int flags = readByte() ;
+			if ((flags & HAS_POSITION) != 0) delta.position = readVec3() ;
+			if ((flags & HAS_EXTENT) != 0) delta.extent = readVec3() ;
+			if ((flags & HAS_VELOCITY) != 0) delta.velocity = readVec3() ;
+			delta.baseTimestamp = readSignedVarint() ;
+			delta.timestamp = readSignedVarint() ;
+			readElements(delta.changed) ;
+			int n = readLength() ;
+			for (int k=0; k<n; k++) delta.leftView.add(readString()) ;
+			n = readLength() ;
+			for (int k=0; k<n; k++) delta.removed.add(readString()) ;
+			return delta ;
+		}
+
+		void readElements(Map<String,WorldEntity> elements) {
+			int n = readLength() ;
+			for (int k=0; k<n; k++) {
+				String[] key = new String[1] ;
+				var e = readEntity(key) ;
+				elements.put(key[0], e) ;
+			}
+		}
+
+		/**
+		 * Read an entity. If key is not null, the key under which the entity is to be
+		 * stored in its parent is put in key[0].
+		 */
+		WorldEntity readEntity(String[] key) {
+			int flags = readByte() ;
+			String key_ = (flags & KEY_DIFFERS_FROM_ID) != 0 ? readString() : null ;
+			var id = readString() ;
+			var type = readInterned() ;
+			var e = new WorldEntity(id, type, (flags & DYNAMIC) != 0) ;
+			if (key != null) key[0] = key_ != null ? key_ : id ;
+			e.timestamp = readSignedVarint() ;
+			e.lastStutterTimestamp = readSignedVarint() ;
+			if ((flags & HAS_POSITION) != 0) e.position = readVec3() ;
+			if ((flags & HAS_EXTENT) != 0) e.extent = readVec3() ;
+			if ((flags & HAS_VELOCITY) != 0) e.velocity = readVec3() ;
+			int numberOfProperties = readLength() ;
+			for (int k=0; k<numberOfProperties; k++) {
+				var name = readInterned() ;
+				e.properties.put(name, readValue()) ;
+			}
+			readElements(e.elements) ;
+			if ((flags & HAS_PREVIOUS_STATE) != 0) e.linkPreviousState(readEntity(null)) ;
+			return e ;
+		}
+
+		Serializable readValue() {
+			int tag = readByte() ;
+			switch(tag) {
+			  case NULL  : return null ;
+			  case FALSE : return false ;
+			  case TRUE  : return true ;
+			  case INT   : return (int) readSignedVarint() ;
+			  case LONG  : return readSignedVarint() ;
+			  case FLOAT : return readFloat() ;
+			  case DOUBLE :
+				  long high = readInt32() & 0xffffffffL ;
+				  long low = readInt32() & 0xffffffffL ;
+				  return Double.longBitsToDouble((high << 32) | low) ;
+			  case STRING : return readInterned() ;
+			  case VEC3 : return readVec3() ;
+			  case INT_ARRAY :
+				  int[] a = new int[readLength()] ;
+				  for (int k=0; k<a.length; k++) a[k] = (int) readSignedVarint() ;
+				  return a ;
+			  case FLOAT_ARRAY :
+				  int n = readLength() ;
+				  if (4L * n > buffer.length - position) throw corrupt() ;
+				  float[] f = new float[n] ;
+				  for (int k=0; k<n; k++) f[k] = readFloat() ;
+				  return f ;
+			  case SERIALIZED :
+				  try (var in = new ObjectInputStream(new ByteArrayInputStream(readBytes()))) {
+					  if (filter != null) in.setObjectInputFilter(filter) ;
+					  return (Serializable) in.readObject() ;
+				  }
+				  catch(IOException | ClassNotFoundException ex) {
+					  throw new IllegalArgumentException("Corrupt property value in WorldModel encoding.", ex) ;
+				  }
+			}
+			throw corrupt() ;
+		}
+
+		IllegalArgumentException corrupt() {
+			return new IllegalArgumentException("Corrupt WorldModel encoding.") ;
+		}
+	}
+
+}
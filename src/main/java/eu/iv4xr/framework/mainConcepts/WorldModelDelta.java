@@ -0,0 +1,123 @@
+package eu.iv4xr.framework.mainConcepts;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import eu.iv4xr.framework.spatial.Vec3;
+
+/**
+ * An observation that only describes how the world has changed since an earlier
+ * observation, rather than describing everything the agent sees. It is merged into
+ * the agent's {@link WorldModel} with {@link WorldModel#mergeDelta(WorldModelDelta)}.
+ * The idea is that the agent acknowledges the timestamp of its WorldModel when it
+ * asks for an observation (see {@link W3DEnvironment#observeDelta(String, long)}),
+ * and the environment replies with the difference between the current
+ * observation and the observation it sent at that timestamp. In a scene with many
+ * static entities this is much smaller than a full observation.
+ *
+ * <p>A delta consists of:
+ *
+ * <ul>
+ * <li>The entities that the agent observes, and that are new or have changed
+ * their state since the base observation. They are sent in full.
+ * <li>The ids of the entities that were in the base observation, but that the
+ * agent no longer sees.
+ * <li>The ids of the entities that no longer exist in the world. Only the real
+ * environment can know this, so these have to be added by the environment.
+ * </ul>
+ *
+ * The other entities of the base observation are still observed, with the same
+ * state; they are not mentioned at all. So the size of a delta only depends on
+ * what changed.
+ *
+ * <p>A delta with a negative base timestamp is a complete observation; it can be
+ * merged into any WorldModel that is not more recent than the delta.
+ */
+public class WorldModelDelta implements Serializable {
+
+	/**
+	 * The id of the agent that owns the observation.
+	 */
+	public String agentId ;
+
+	/**
+	 * The timestamp of the observation that this delta is relative to. It should be
+	 * equal to the timestamp of the WorldModel that this delta is merged into.
+	 */
+	public long baseTimestamp = -1 ;
+
+	/**
+	 * The timestamp of the new observation.
+	 */
+	public long timestamp = -1 ;
+
+	public Vec3 position ;
+	public Vec3 velocity ;
+	public Vec3 extent ;
+
+	/**
+	 * The observed entities that are new or have changed their state.
+	 */
+	public Map<String,WorldEntity> changed = new HashMap<>() ;
+
+	/**
+	 * The ids of the entities of the base observation that are no longer observed.
+	 */
+	public Set<String> leftView = new HashSet<>() ;
+
+	/**
+	 * The ids of the entities that have been removed from the world.
+	 */
+	public Set<String> removed = new HashSet<>() ;
+
+	public WorldModelDelta() { }
+
+	/**
+	 * True if this delta is a complete observation.
+	 */
+	public boolean isComplete() { return baseTimestamp < 0 ; }
+
+	/**
+	 * Return the delta between two observations of the same agent: base, the
+	 * observation that the agent has acknowledged, and current. If base is null,
+	 * the delta is a complete observation. An entity of current is considered
+	 * unchanged if it is in base with the same state, see
+	 * {@link WorldEntity#hasSameState(WorldEntity)}. The delta contains the
+	 * entities of current themselves, not copies of them.
+	 *
+	 * <p>Entities that are in base but not in current are taken as no longer
+	 * observed, not as removed.
+	 */
+	public static WorldModelDelta diff(WorldModel base, WorldModel current) {
+		if (base == null) return diff(-1, null, current) ;
+		return diff(base.timestamp, base.elements, current) ;
+	}
+	
+	/**
+	 * As {@link #diff(WorldModel, WorldModel)}, where the base observation is given
+	 * by its timestamp and its entities, by id.
+	 */
+	static WorldModelDelta diff(long baseTimestamp, Map<String,WorldEntity> base, WorldModel current) {
+		var delta = new WorldModelDelta() ;
+		delta.agentId = current.agentId ;
+		delta.baseTimestamp = base == null ? -1 : baseTimestamp ;
+		delta.timestamp = current.timestamp ;
+		delta.position = current.position ;
+		delta.velocity = current.velocity ;
+		delta.extent = current.extent ;
+		for (var e : current.elements.values()) {
+			var b = base == null ? null : base.get(e.id) ;
+			if (b == null || ! e.hasSameState(b)) delta.changed.put(e.id, e) ;
+		}
+		if (base != null) {
+			for (var id : base.keySet()) {
+				if (! current.elements.containsKey(id)) delta.leftView.add(id) ;
+			}
+		}
+		return delta ;
+	}
+
+}
@@ -0,0 +1,279 @@
+package eu.iv4xr.framework.spatial;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.Predicate;
+
+/**
+ * A uniform grid of cubic cells over 3D space, for finding the items near a
+ * point quickly. Each item is identified by a key, and has a position; it is
+ * stored in the cell that contains its position. A query only inspects the cells
+ * that overlap with the queried region, so its cost depends on the number of
+ * items near the region rather than on the total number of items.
+ *
+ * <p>The cell size should be in the order of the typical query radius. Much
+ * smaller cells make queries visit many empty cells; much larger cells make them
+ * inspect many items that are too far.
+ *
+ * @param <T> The type of the contained items.
+ */
+public class SpatialGrid<T> {
+
+	/**
+	 * Cell coordinates are clamped to this range, so that they can be packed in a
+	 * long. Items beyond it end up in the cells at the border, which is still
+	 * correct, just slower.
+	 */
+	static final int MAX_CELL = (1 << 20) - 1 ;
+
+	static class Entry<T> {
+		String key ;
+		Vec3 position ;
+		T item ;
+		long cell ;
+
+		Entry(String key, Vec3 position, T item, long cell) {
+			this.key = key ;
+			this.position = position ;
+			this.item = item ;
+			this.cell = cell ;
+		}
+	}
+
+	public final float cellSize ;
+
+	Map<Long,List<Entry<T>>> cells = new HashMap<>() ;
+	Map<String,Entry<T>> entries = new HashMap<>() ;
+
+	/**
+	 * The bounds of the cells that have ever been occupied. They are not shrunk
+	 * when items are removed.
+	 */
+	int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE ;
+	int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE ;
+
+	public SpatialGrid(float cellSize) {
+		if (!(cellSize > 0)) throw new IllegalArgumentException("The cell size should be positive: " + cellSize) ;
+		this.cellSize = cellSize ;
+	}
+
+	public int size() { return entries.size() ; }
+
+	public void clear() {
+		cells.clear() ;
+		entries.clear() ;
+	}
+
+	/**
+	 * Add an item with the given key and position, replacing the item that had the
+	 * same key, if any. If the position is null, the item is only removed.
+	 */
+	public void put(String key, Vec3 position, T item) {
+		remove(key) ;
+		if (position == null) return ;
+		int x = cellIndex(position.x) ;
+		int y = cellIndex(position.y) ;
+		int z = cellIndex(position.z) ;
+		minX = Math.min(minX, x) ; maxX = Math.max(maxX, x) ;
+		minY = Math.min(minY, y) ; maxY = Math.max(maxY, y) ;
+		minZ = Math.min(minZ, z) ; maxZ = Math.max(maxZ, z) ;
+		var entry = new Entry<>(key, position, item, cellKey(x,y,z)) ;
+		entries.put(key, entry) ;
+		cells.computeIfAbsent(entry.cell, c -> new ArrayList<>(4)).add(entry) ;
+	}
+
+	/**
+	 * Remove the item with the given key. It returns true if there was such an item.
+	 */
+	public boolean remove(String key) {
+		var entry = entries.remove(key) ;
+		if (entry == null) return false ;
+		var cell = cells.get(entry.cell) ;
+		cell.remove(entry) ;
+		if (cell.isEmpty()) cells.remove(entry.cell) ;
+		return true ;
+	}
+
+	/**
+	 * Return the items whose distance to the center is at most the radius, in no
+	 * particular order.
+	 */
+	public List<T> withinRadius(Vec3 center, float radius) {
+		List<T> result = new ArrayList<>() ;
+		float radiusSq = radius * radius ;
+		forEachCell(center.x - radius, center.y - radius, center.z - radius,
+				center.x + radius, center.y + radius, center.z + radius,
+				entry -> {
+					if (Vec3.distSq(center, entry.position) <= radiusSq) result.add(entry.item) ;
+				}) ;
+		return result ;
+	}
+
+	/**
+	 * Return the items whose position is inside the given box (inclusive its
+	 * borders), in no particular order.
+	 */
+	public List<T> withinBox(Box box) {
+		List<T> result = new ArrayList<>() ;
+		float x1 = box.center.x - box.width.x/2, x2 = box.center.x + box.width.x/2 ;
+		float y1 = box.center.y - box.width.y/2, y2 = box.center.y + box.width.y/2 ;
+		float z1 = box.center.z - box.width.z/2, z2 = box.center.z + box.width.z/2 ;
+		forEachCell(x1, y1, z1, x2, y2, z2,
+				entry -> {
+					var p = entry.position ;
+					if (x1 <= p.x && p.x <= x2 && y1 <= p.y && p.y <= y2 && z1 <= p.z && p.z <= z2)
+						result.add(entry.item) ;
+				}) ;
+		return result ;
+	}
+
+	/**
+	 * Return the k items closest to the given point that satisfy the filter,
+	 * ordered by increasing distance. The filter can be null. Fewer than k items are
+	 * returned if there are not enough items that satisfy the filter.
+	 *
+	 * <p>The cells are visited in rings of increasing distance around the point,
+	 * until the remaining rings cannot contain a closer item. If the rings grow
+	 * larger than the number of occupied cells (e.g. because few items satisfy the
+	 * filter), the remaining occupied cells are scanned instead.
+	 */
+	public List<T> nearest(Vec3 point, int k, Predicate<? super T> filter) {
+		if (k <= 0 || entries.isEmpty()) return new ArrayList<>() ;
+		// a max-heap of the k best candidates so far:
+		PriorityQueue<Candidate<T>> best = new PriorityQueue<>(Comparator.comparingDouble((Candidate<T> c) -> c.distSq).reversed()) ;
+		int cx = cellIndex(point.x) ;
+		int cy = cellIndex(point.y) ;
+		int cz = cellIndex(point.z) ;
+		int maxRing = Math.max(Math.max(Math.max(cx - minX, maxX - cx), Math.max(cy - minY, maxY - cy)),
+				Math.max(cz - minZ, maxZ - cz)) ;
+		long visited = 0 ;
+		for (int r = 0 ; r <= maxRing ; r++) {
+			if (best.size() == k) {
+				// the cells in ring r are at least r-1 cells away:
+				float bound = (r-1) * cellSize ;
+				if (r > 0 && bound * bound > best.peek().distSq) break ;
+			}
+			if (visited > cells.size()) {
+				// scan the occupied cells that are not visited yet:
+				for (var cell : cells.entrySet()) {
+					long key = cell.getKey() ;
+					int ring = Math.max(Math.max(Math.abs(cellX(key) - cx), Math.abs(cellY(key) - cy)), Math.abs(cellZ(key) - cz)) ;
+					if (ring < r) continue ;
+					for (var entry : cell.getValue()) offer(best, k, point, entry, filter) ;
+				}
+				break ;
+			}
+			visited += forEachCellInRing(cx, cy, cz, r, entry -> offer(best, k, point, entry, filter)) ;
+		}
+		List<T> result = new ArrayList<>(best.size()) ;
+		while (! best.isEmpty()) result.add(best.poll().item) ;
+		Collections.reverse(result) ;
+		return result ;
+	}
+
+	static class Candidate<T> {
+		T item ;
+		float distSq ;
+		Candidate(T item, float distSq) {
+			this.item = item ;
+			this.distSq = distSq ;
+		}
+	}
+
+	private static <T> void offer(PriorityQueue<Candidate<T>> best, int k, Vec3 point, Entry<T> entry, Predicate<? super T> filter) {
+		float d = Vec3.distSq(point, entry.position) ;
+		if (best.size() == k && d >= best.peek().distSq) return ;
+		if (filter != null && ! filter.test(entry.item)) return ;
+		best.add(new Candidate<>(entry.item, d)) ;
+		if (best.size() > k) best.poll() ;
+	}
+
+	private interface EntryVisitor<T> {
+		void visit(Entry<T> entry) ;
+	}
+
+	/**
+	 * Visit the entries in the cells that overlap with the given region. If the region
+	 * spans more cells than there are occupied cells, the occupied cells are scanned
+	 * instead.
+	 */
+	private void forEachCell(float x1, float y1, float z1, float x2, float y2, float z2, EntryVisitor<T> visitor) {
+		if (cells.isEmpty()) return ;
+		int ax = Math.max(cellIndex(x1), minX), bx = Math.min(cellIndex(x2), maxX) ;
+		int ay = Math.max(cellIndex(y1), minY), by = Math.min(cellIndex(y2), maxY) ;
+		int az = Math.max(cellIndex(z1), minZ), bz = Math.min(cellIndex(z2), maxZ) ;
+		if (ax > bx || ay > by || az > bz) return ;
+		long numberOfCells = (long) (bx - ax + 1) * (by - ay + 1) * (bz - az + 1) ;
+		if (numberOfCells > cells.size()) {
+			for (var cell : cells.entrySet()) {
+				long key = cell.getKey() ;
+				int x = cellX(key), y = cellY(key), z = cellZ(key) ;
+				if (ax <= x && x <= bx && ay <= y && y <= by && az <= z && z <= bz) {
+					for (var entry : cell.getValue()) visitor.visit(entry) ;
+				}
+			}
+			return ;
+		}
+		for (int x = ax ; x <= bx ; x++) {
+			for (int y = ay ; y <= by ; y++) {
+				for (int z = az ; z <= bz ; z++) {
+					visitCell(x, y, z, visitor) ;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Visit the entries in the cells whose Chebyshev distance to the cell (cx,cy,cz)
+	 * is r, within the occupied bounds. It returns the number of cells visited.
+	 */
+	private long forEachCellInRing(int cx, int cy, int cz, int r, EntryVisitor<T> visitor) {
+		long count = 0 ;
+		int ax = Math.max(cx - r, minX), bx = Math.min(cx + r, maxX) ;
+		int ay = Math.max(cy - r, minY), by = Math.min(cy + r, maxY) ;
+		int az = Math.max(cz - r, minZ), bz = Math.min(cz + r, maxZ) ;
+		for (int x = ax ; x <= bx ; x++) {
+			for (int y = ay ; y <= by ; y++) {
+				if (Math.abs(x - cx) == r || Math.abs(y - cy) == r) {
+					for (int z = az ; z <= bz ; z++) {
+						visitCell(x, y, z, visitor) ;
+						count++ ;
+					}
+				}
+				else {
+					// only the two faces at distance r in the z-direction:
+					if (cz - r >= az) { visitCell(x, y, cz - r, visitor) ; count++ ; }
+					if (r > 0 && cz + r <= bz) { visitCell(x, y, cz + r, visitor) ; count++ ; }
+				}
+			}
+		}
+		return count ;
+	}
+
+	private void visitCell(int x, int y, int z, EntryVisitor<T> visitor) {
+		var cell = cells.get(cellKey(x,y,z)) ;
+		if (cell == null) return ;
+		for (var entry : cell) visitor.visit(entry) ;
+	}
+
+	int cellIndex(float c) {
+		float i = (float) Math.floor(c / cellSize) ;
+		if (i < - MAX_CELL) return - MAX_CELL ;
+		if (i > MAX_CELL) return MAX_CELL ;
+		return (int) i ;
+	}
+
+	static long cellKey(int x, int y, int z) {
+		return ((long) (x + MAX_CELL) << 42) | ((long) (y + MAX_CELL) << 21) | (long) (z + MAX_CELL) ;
+	}
+
+	static int cellX(long key) { return (int) (key >>> 42) - MAX_CELL ; }
+	static int cellY(long key) { return (int) ((key >>> 21) & 0x1fffff) - MAX_CELL ; }
+	static int cellZ(long key) { return (int) (key & 0x1fffff) - MAX_CELL ; }
+
+}
@@ -1,5 +1,6 @@
 package eu.iv4xr.framework.spatial;
 
+import java.io.Serializable;
 import java.util.Objects;
 
 /**
@@ -7,7 +8,7 @@ import java.util.Objects;
  * 
  * @author Naraenda
  */
-public class Vec3 {
+public class Vec3 implements Serializable {
     public float x, y, z;
 
     /**
@@ -128,6 +129,16 @@ public class Vec3 {
         return Vec3.sub(a, b).length();
     }
 
+    /**
+     * @return The squared distance between two vectors.
+     */
+    public static float distSq(Vec3 a, Vec3 b) {
+        float dx = a.x - b.x;
+        float dy = a.y - b.y;
+        float dz = a.z - b.z;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
     /**
      * @return The cross product between two vectors.
      */
@@ -0,0 +1,65 @@
+package nl.uu.cs.aplib;
+
+import nl.uu.cs.aplib.metrics.InMemoryMetricsRegistry;
+import nl.uu.cs.aplib.metrics.MetricsRegistry;
+
+/**
+ * Define aplib metrics. Agents, actions and environments report e.g. how often
+ * and how long agents update, guards are evaluated, actions are executed and
+ * environment commands are sent, to a single registry accessible from anywhere.
+ * By default this is {@link MetricsRegistry#NO_OP}, in which case nothing is
+ * measured. Use {@link #useInMemoryRegistry()} or {@link #setRegistry(MetricsRegistry)}
+ * to start collecting metrics.
+ * 
+ * <p>
+ * The reported metrics are:
+ * <ul>
+ *    <li> timer agent.<i>id</i>.update : the duration of the agent's updates.
+ *    <li> counter agent.<i>id</i>.noEnabledAction : updates where no action was enabled.
+ *    <li> gauge agent.<i>id</i>.budget : the remaining budget of the agent's goal.
+ *    <li> timer action.<i>name</i>.guard : evaluations of the action's guard.
+ *    <li> counter action.<i>name</i>.guardCacheHit : guard results taken from the cache.
+ *    <li> timer action.<i>name</i>.exec : executions of the action, as measured by
+ *         {@link nl.uu.cs.aplib.mainConcepts.CostFunction}.
+ *    <li> timer env.command.<i>command</i> : calls to {@code Environment.sendCommand}.
+ * </ul>
+ */
+public class Metrics {
+	
+	Metrics() { }
+	
+	private static volatile MetricsRegistry registry = MetricsRegistry.NO_OP ;
+	
+	/**
+	 * Get the registry to which aplib reports its metrics.
+	 */
+	public static MetricsRegistry getRegistry() { return registry ; }
+	
+	/**
+	 * Let aplib report its metrics to the given registry. Passing null switches
+	 * off the metrics.
+	 */
+	public static void setRegistry(MetricsRegistry r) {
+		registry = r == null ? MetricsRegistry.NO_OP : r ;
+	}
+	
+	/**
+	 * Install a fresh {@link InMemoryMetricsRegistry}, and return it.
+	 */
+	public static InMemoryMetricsRegistry useInMemoryRegistry() {
+		var r = new InMemoryMetricsRegistry() ;
+		setRegistry(r) ;
+		return r ;
+	}
+	
+	/**
+	 * Switch off the metrics.
+	 */
+	public static void disable() { setRegistry(null) ; }
+	
+	/**
+	 * True if metrics are being collected.
+	 */
+	public static boolean isEnabled() { return ! registry.isNoOp() ; }
+
+}
@@ -0,0 +1,246 @@
+package nl.uu.cs.aplib.agents;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import nl.uu.cs.aplib.Logging;
+import nl.uu.cs.aplib.agents.AutonomousBasicAgent.Command;
+
+/**
+ * An AgentScheduler runs many {@link AutonomousBasicAgent}s on a fixed pool of
+ * worker threads. This is an alternative to running each agent on its own
+ * thread through {@link AutonomousBasicAgent#loop()}, which limits the number
+ * of agents that can be run in a single JVM.
+ *
+ * <p>
+ * An agent is handed over to the scheduler with {@link #register(AutonomousBasicAgent)}.
+ * The scheduler will then invoke the agent's {@code update()} in the same way
+ * as {@code loop()} does: the agent gets a tick every {@code samplingInterval}
+ * ms (or immediately after the previous tick, if that took longer than the
+ * interval). Agents that have no goal, or that are paused, are parked and do not
+ * consume any thread. They are woken up again when they are given a goal, when
+ * they are resumed, or when a message arrives for them. When an agent is
+ * stopped it is removed from the scheduler. Threads that wait on
+ * {@link AutonomousBasicAgent#waitUntilTheGoalIsConcluded()} are notified as
+ * usual.
+ *
+ * <p>
+ * The ticks are executed by a {@link ForkJoinPool} (in FIFO mode). Delays between
+ * ticks are kept by a single timer thread which does no other work than handing
+ * agents that are due back to the pool.
+ *
+ * <pre>
+ *    var scheduler = new AgentScheduler(4) ;
+ *    scheduler.register(agent1) ;
+ *    scheduler.register(agent2) ;
+ *    ...
+ *    scheduler.shutdown() ;
+ * </pre>
+ */
+public class AgentScheduler {
+
+	/**
+	 * The possible states of an agent managed by the scheduler.
+	 */
+	static enum SlotStatus { PARKED, WAITING, QUEUED, RUNNING }
+
+	/**
+	 * Scheduling bookkeeping of a single agent. Every {@link AutonomousBasicAgent}
+	 * owns one; access to it is synchronized on the slot itself.
+	 */
+	static class Slot {
+		SlotStatus status = SlotStatus.PARKED ;
+		/**
+		 * Set if a wake-up request arrives while the agent is being ticked.
+		 */
+		boolean wakeRequested = false ;
+		/**
+		 * The pending timer, if the agent is waiting for its next tick.
+		 */
+		ScheduledFuture<?> delayed = null ;
+	}
+
+	ForkJoinPool workers ;
+	ScheduledExecutorService timer ;
+
+	Set<AutonomousBasicAgent> agents = ConcurrentHashMap.newKeySet() ;
+
+	protected Logger logger = Logging.getAPLIBlogger() ;
+
+	/**
+	 * Create a scheduler that uses as many worker threads as there are available
+	 * processors.
+	 */
+	public AgentScheduler() {
+		this(Runtime.getRuntime().availableProcessors()) ;
+	}
+
+	/**
+	 * Create a scheduler with the given number of worker threads.
+	 */
+	public AgentScheduler(int numberOfWorkers) {
+		if (numberOfWorkers <= 0) throw new IllegalArgumentException() ;
+		workers = new ForkJoinPool(numberOfWorkers, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true) ;
+		var timer_ = new ScheduledThreadPoolExecutor(1, r -> {
+			var t = new Thread(r, "AgentScheduler-timer") ;
+			t.setDaemon(true) ;
+			return t ;
+		}) ;
+		timer_.setRemoveOnCancelPolicy(true);
+		timer = timer_ ;
+	}
+
+	/**
+	 * Hand over the given agent to this scheduler. From now on the scheduler will
+	 * drive the agent's ticks. The agent should not also be run through its own
+	 * {@code loop()}. An agent can only be registered to one scheduler at a time.
+	 * The method returns the scheduler itself so that it can be used in the Fluent
+	 * Interface style.
+	 */
+	public AgentScheduler register(AutonomousBasicAgent agent) {
+		if (agent.scheduler != null)
+			throw new IllegalArgumentException("Agent " + agent.getId() + " is already registered to a scheduler.") ;
+		if (agent.thisAgentThread != null)
+			throw new IllegalArgumentException("Agent " + agent.getId() + " already runs on its own thread.") ;
+		agents.add(agent) ;
+		agent.scheduler = this ;
+		wakeUp(agent) ;
+		return this ;
+	}
+
+	/**
+	 * Remove the agent from this scheduler. If the agent is in the middle of a tick,
+	 * that tick will be completed, but no further tick will be given.
+	 */
+	public void deregister(AutonomousBasicAgent agent) {
+		if (agent.scheduler != this) return ;
+		var slot = agent.schedulerSlot ;
+		synchronized(slot) {
+			if (slot.delayed != null) slot.delayed.cancel(false) ;
+			slot.delayed = null ;
+			if (slot.status != SlotStatus.RUNNING) slot.status = SlotStatus.PARKED ;
+			agent.scheduler = null ;
+		}
+		agents.remove(agent) ;
+	}
+
+	/**
+	 * Return the number of agents currently managed by this scheduler.
+	 */
+	public int numberOfAgents() { return agents.size() ; }
+
+	/**
+	 * Ask the scheduler to give the agent a tick as soon as possible. This is
+	 * invoked by the agent itself, e.g. when it is given a new goal, when it is
+	 * resumed, or when a message arrives. If the agent turns out to have nothing to
+	 * do, it will simply be parked again.
+	 */
+	void wakeUp(AutonomousBasicAgent agent) {
+		var slot = agent.schedulerSlot ;
+		synchronized(slot) {
+			if (agent.scheduler != this) return ;
+			switch(slot.status) {
+			   case PARKED  : enqueue(agent) ; break ;
+			   case WAITING :
+				    // the agent is sleeping between two ticks; cut the sleep short:
+				    if (slot.delayed.cancel(false)) enqueue(agent) ;
+				    break ;
+			   case QUEUED  : break ;
+			   case RUNNING : slot.wakeRequested = true ; break ;
+			}
+		}
+	}
+
+	/**
+	 * Put the agent in the workers' queue. The caller must hold the lock of the agent's slot.
+	 */
+	private void enqueue(AutonomousBasicAgent agent) {
+		var slot = agent.schedulerSlot ;
+		slot.status = SlotStatus.QUEUED ;
+		slot.delayed = null ;
+		workers.execute(() -> runTick(agent)) ;
+	}
+
+	/**
+	 * Invoked by the timer when a waiting agent is due for its next tick.
+	 */
+	private void timerExpired(AutonomousBasicAgent agent) {
+		var slot = agent.schedulerSlot ;
+		synchronized(slot) {
+			if (slot.status == SlotStatus.WAITING && agent.scheduler == this) enqueue(agent) ;
+		}
+	}
+
+	private void runTick(AutonomousBasicAgent agent) {
+		var slot = agent.schedulerSlot ;
+		synchronized(slot) {
+			if (agent.scheduler != this) return ;
+			slot.status = SlotStatus.RUNNING ;
+			slot.wakeRequested = false ;
+		}
+		long delay ;
+		try {
+			delay = agent.tickOnce() ;
+		}
+		catch(Throwable t) {
+			logger.log(Level.WARNING,"Agent " + agent.getId() + " is removed from its scheduler due to exception " +  t) ;
+			parkAndDeregister(agent) ;
+			return ;
+		}
+		if (agent.cmd == Command.STOP) {
+			logger.log(Level.INFO,"Agent " + agent.getId() + " is stopping...") ;
+			parkAndDeregister(agent) ;
+			return ;
+		}
+		synchronized(slot) {
+			if (agent.scheduler != this) {
+				slot.status = SlotStatus.PARKED ;
+				// the agent was registered to another scheduler during the tick; that
+				// scheduler's wake-up request could not be served while the agent ran:
+				if (agent.scheduler != null) agent.scheduler.enqueue(agent) ;
+				return ;
+			}
+			if (slot.wakeRequested || delay == 0) {
+				enqueue(agent) ;
+			}
+			else if (delay < 0) {
+				slot.status = SlotStatus.PARKED ;
+			}
+			else {
+				slot.status = SlotStatus.WAITING ;
+				slot.delayed = timer.schedule(() -> timerExpired(agent), delay, TimeUnit.MILLISECONDS) ;
+			}
+		}
+	}
+
+	/**
+	 * Deregister an agent whose tick has just ended. Its slot is parked in the same
+	 * critical section, so that the agent can be registered again.
+	 */
+	private void parkAndDeregister(AutonomousBasicAgent agent) {
+		var slot = agent.schedulerSlot ;
+		synchronized(slot) {
+			slot.status = SlotStatus.PARKED ;
+			deregister(agent) ;
+		}
+	}
+
+	/**
+	 * Stop this scheduler. All agents are deregistered; ticks that are currently
+	 * running will be completed. Agents that were deregistered this way can be
+	 * registered to another scheduler, or be run with their own {@code loop()}.
+	 */
+	public void shutdown() {
+		for (var agent : agents) deregister(agent) ;
+		timer.shutdownNow() ;
+		workers.shutdown() ;
+	}
+
+}
@@ -1,5 +1,8 @@
 package nl.uu.cs.aplib.agents;
 
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.*;
 import java.util.function.Predicate;
@@ -9,6 +12,7 @@ import nl.uu.cs.aplib.mainConcepts.*;
 import nl.uu.cs.aplib.multiAgentSupport.ComNode;
 import nl.uu.cs.aplib.multiAgentSupport.Message;
 import nl.uu.cs.aplib.multiAgentSupport.Messenger;
+import nl.uu.cs.aplib.utils.NanoTime;
 import nl.uu.cs.aplib.utils.Time;
 
 
@@ -19,6 +23,13 @@ import nl.uu.cs.aplib.utils.Time;
  * 
  * Do note that an AutonomousBasicAgent requires a state of type {@link State} .
  * 
+ * <p>
+ * By default the agent polls: it does a tick every {@code samplingInterval} ms.
+ * Alternatively it can be made event-driven with
+ * {@link #useEventDrivenWakeUp(String...)}, in which case it backs off when it
+ * has nothing to do, and is woken up by change notifications of its
+ * {@link Environment} and by incoming messages.
+ * 
  * @author Wish
  *
  */
@@ -36,7 +47,7 @@ public class AutonomousBasicAgent extends BasicAgent {
 	
 	public static enum Command { PAUSE, STOP }
 	
-	protected Command cmd = null ;
+	protected volatile Command cmd = null ;
 	
 	protected ComNode comNode = null ;
 	
@@ -45,6 +56,69 @@ public class AutonomousBasicAgent extends BasicAgent {
 	protected final Condition goalConcluded  = lock.newCondition(); 
 	protected Thread thisAgentThread = null ;
 	
+	/**
+	 * If not null, this is the {@link AgentScheduler} that drives this agent's ticks,
+	 * as an alternative to running the agent on its own thread through {@link #loop()}.
+	 */
+	volatile AgentScheduler scheduler = null ;
+	
+	/**
+	 * Bookkeeping used by {@link AgentScheduler} to track whether a tick of this agent
+	 * is waiting, queued, or running.
+	 */
+	final AgentScheduler.Slot schedulerSlot = new AgentScheduler.Slot() ;
+	
+	/**
+	 * Time tracker used by {@link #tickOnce()}.
+	 */
+	private final Time tickTime = new NanoTime() ;
+	
+	/**
+	 * True if this agent runs in the event-driven mode, see {@link #useEventDrivenWakeUp(String...)}.
+	 */
+	protected volatile boolean eventDriven = false ;
+	
+	/**
+	 * In the event-driven mode, the maximum time in ms that the agent sleeps when it
+	 * has nothing to do and no relevant change notification arrives.
+	 */
+	protected long maxBackoff = 10000 ;
+	
+	/**
+	 * The current back-off in ms, in the event-driven mode.
+	 */
+	private long backoff = 0 ;
+	
+	/**
+	 * The topics given to {@link #useEventDrivenWakeUp(String...)}, or null if the
+	 * topics are to be derived from the current goal.
+	 */
+	private Set<String> subscribedTopics = null ;
+	
+	/**
+	 * The topics whose change notifications wake up this agent. If null, every
+	 * notification does.
+	 */
+	private volatile Set<String> relevantTopics = null ;
+	
+	/**
+	 * The goal from which relevantTopics was derived, so that they can be derived
+	 * again when the agent moves to another goal.
+	 */
+	private GoalStructure topicsGoal = null ;
+	
+	private Environment.ChangeListener changeListener = null ;
+	
+	/**
+	 * Monitor on which the agent waits for events, in the event-driven mode. The
+	 * fields eventPending and pendingTopics are guarded by it. Notifiers only need
+	 * this monitor, and never the agent's lock, so that they do not block on an
+	 * agent that is in the middle of a tick.
+	 */
+	private final Object eventMonitor = new Object() ;
+	private boolean eventPending = false ;
+	private final Set<String> pendingTopics = new HashSet<>() ;
+	
 	/**
 	 * Create a plain instance of AutonomousBasicAgent. To be useful you will need 
 	 * to add few other things to it, e.g. a state and a goal.
@@ -96,10 +170,60 @@ public class AutonomousBasicAgent extends BasicAgent {
 		try {
 			super.setGoal(g) ;
 			shadowg_ = g ;
+			if (eventDriven) calculateRelevantTopics() ;
 			triggerArrived.signal(); 
-			return this ;
 		}
 		finally { lock.unlock(); }
+		wakeUpScheduler() ;
+		return this ;
+	}
+	
+	/**
+	 * Take a snapshot of this agent, see {@link BasicAgent#snapshot()}. If the agent
+	 * is running, the snapshot is taken between two ticks.
+	 */
+	@Override
+	public byte[] snapshot() {
+		lock.lock();
+		try {
+			return super.snapshot() ;
+		}
+		finally { lock.unlock(); }
+	}
+	
+	/**
+	 * Restore this agent from a snapshot, see {@link BasicAgent#restore(byte[])}. If
+	 * the agent is running, this is done between two ticks.
+	 */
+	@Override
+	public AutonomousBasicAgent restore(byte[] snapshot) {
+		lock.lock();
+		try {
+			super.restore(snapshot) ;
+			shadowg_ = goal ;
+			if (eventDriven) calculateRelevantTopics() ;
+		}
+		finally { lock.unlock(); }
+		wakeUpScheduler() ;
+		return this ;
+	}
+	
+	@Override
+	public void addAfter(GoalStructure G) {
+		super.addAfter(G) ;
+		if (eventDriven) calculateRelevantTopics() ;
+	}
+	
+	@Override
+	public void addBefore(GoalStructure G) {
+		super.addBefore(G) ;
+		if (eventDriven) calculateRelevantTopics() ;
+	}
+	
+	@Override
+	public void remove(GoalStructure G) {
+		super.remove(G) ;
+		if (eventDriven) calculateRelevantTopics() ;
 	}
 	
 	@Override
@@ -123,13 +247,143 @@ public class AutonomousBasicAgent extends BasicAgent {
 		samplingInterval = interval ; return this ;
 	}
 	
+	/**
+	 * Switch this agent to the event-driven mode. Rather than doing a tick every
+	 * {@code samplingInterval} ms regardless of whether anything has changed, the
+	 * agent then behaves as follows:
+	 * 
+	 * <ul>
+	 * <li>As long as it finds enabled actions, it keeps ticking every
+	 * {@code samplingInterval} ms.
+	 * <li>When a tick finds no enabled action, the agent sleeps. The sleep starts at
+	 * {@code samplingInterval} ms and is doubled at each subsequent idle tick, up to
+	 * {@link #setMaxBackoff(long)}.
+	 * <li>The sleep is cut short when the agent's {@link Environment} announces a
+	 * change on a relevant topic through {@link Environment#notifyChange(String)},
+	 * or when a message arrives. The back-off is then reset.
+	 * </ul>
+	 * 
+	 * If topics are given, only notifications on those topics are relevant. Else
+	 * the relevant topics are the names that the guards of the actions in the
+	 * current goal depend on, see {@link Action#guardDependsOn(String...)}; if some
+	 * action does not declare its dependencies, every topic is relevant. Before the
+	 * next tick, every notified topic is also marked as changed in the agent's
+	 * state (see {@link SimpleState#markChanged(String)}), so that cached guard
+	 * results depending on it are invalidated.
+	 * 
+	 * <p>
+	 * The agent must already have a state with an Environment. The method returns
+	 * this agent itself, so that it can be used in the Fluent Interface style.
+	 */
+	public AutonomousBasicAgent useEventDrivenWakeUp(String ... topics) {
+		if (state == null || state.env() == null) 
+			throw new IllegalArgumentException("Agent " + id + ": needs a state and an environment first.") ;
+		lock.lock();
+		try {
+			subscribedTopics = topics.length == 0 ? null : new HashSet<>(Arrays.asList(topics)) ;
+			calculateRelevantTopics() ;
+			backoff = samplingInterval ;
+			if (changeListener == null) {
+				changeListener = (env,topic) -> environmentChanged(topic) ;
+				state.env().addChangeListener(changeListener) ;
+			}
+			eventDriven = true ;
+		}
+		finally { lock.unlock(); }
+		return this ;
+	}
+	
+	/**
+	 * Set the maximum time in ms that the agent sleeps in the event-driven mode, when
+	 * it has nothing to do. The method returns this agent itself, so that it can be
+	 * used in the Fluent Interface style.
+	 */
+	public AutonomousBasicAgent setMaxBackoff(long maxBackoff) {
+		this.maxBackoff = maxBackoff ; return this ;
+	}
+	
+	private void calculateRelevantTopics() {
+		topicsGoal = currentGoal ;
+		if (subscribedTopics != null) relevantTopics = subscribedTopics ;
+		else relevantTopics = currentGoal == null ? null : currentGoal.getGuardDependencies() ;
+	}
+	
+	/**
+	 * Invoked by the Environment, on whatever thread announces the change.
+	 */
+	private void environmentChanged(String topic) {
+		synchronized(eventMonitor) {
+			pendingTopics.add(topic) ;
+		}
+		var relevant = relevantTopics ;
+		if (relevant == null || relevant.contains(topic)) signalEvent() ;
+	}
+	
+	private void signalEvent() {
+		synchronized(eventMonitor) {
+			eventPending = true ;
+			eventMonitor.notifyAll();
+		}
+		wakeUpScheduler() ;
+	}
+	
+	/**
+	 * Mark the notified topics as changed in the agent's state. The caller must hold the agent's lock.
+	 */
+	private void consumeEvents() {
+		synchronized(eventMonitor) {
+			if (eventPending) backoff = samplingInterval ;
+			eventPending = false ;
+			for (String topic : pendingTopics) state.markChanged(topic) ;
+			pendingTopics.clear();
+		}
+	}
+	
+	/**
+	 * Calculate how long the agent should wait for an event before its next tick, in
+	 * the event-driven mode. The caller must hold the agent's lock.
+	 */
+	private long nextEventWait(Time time) {
+		// the tick may have moved the agent to another goal:
+		if (currentGoal != topicsGoal) calculateRelevantTopics() ;
+		if (candidates.isEmpty()) {
+			// nothing to do; back off:
+			long wait = backoff ;
+			backoff = Math.min(maxBackoff, backoff <= 0 ? 1 : 2*backoff) ;
+			return wait ;
+		}
+		backoff = samplingInterval ;
+		return Math.max(0, samplingInterval - elapsedMillis(time)) ;
+	}
+	
+	/**
+	 * Wait until an event arrives, until the agent is commanded to pause or stop, or
+	 * until the given time in ms has passed. The caller must NOT hold the agent's lock.
+	 */
+	private void awaitEvent(long timeout) {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout) ;
+		synchronized(eventMonitor) {
+			try {
+				while (!eventPending && cmd == null) {
+					long remaining = deadline - System.nanoTime() ;
+					if (remaining <= 0) return ;
+					TimeUnit.NANOSECONDS.timedWait(eventMonitor, remaining) ;
+				}
+			}
+			catch(InterruptedException e) { }
+		}
+	}
+	
 	/**
 	 * If the agent is already running autonomously, invoking this method will cause it
 	 * to pause. While it is paused, it will not trigger any tick. User {@link #resume()}
 	 * to make the agent resuming its autonomous run. An incoming message will also cause
 	 * the agent to resume.
 	 */
-	public void pause() { cmd = Command.PAUSE ; }
+	public void pause() { 
+		cmd = Command.PAUSE ; 
+		wakeUpFromEventWait() ;
+	}
 	
 	private void awakeThisAgentFromSleep() {
 		if (thisAgentThread !=null) {
@@ -138,6 +392,25 @@ public class AutonomousBasicAgent extends BasicAgent {
 		}
 	}
 	
+	/**
+	 * Awaken the agent if it is waiting for an event, so that it sees a new command
+	 * without waiting for the back-off to expire.
+	 */
+	private void wakeUpFromEventWait() {
+		synchronized(eventMonitor) {
+			eventMonitor.notifyAll();
+		}
+	}
+	
+	/**
+	 * If this agent is driven by an {@link AgentScheduler}, ask the scheduler to give
+	 * it a tick as soon as possible.
+	 */
+	private void wakeUpScheduler() {
+		var s = scheduler ;
+		if (s != null) s.wakeUp(this) ;
+	}
+	
 	/**
 	 * If this agent is sleeping (e.g. while waiting until it is time to do its next
 	 * tick), and it was paused ({@link #pause() was called}, this method will cause
@@ -150,6 +423,7 @@ public class AutonomousBasicAgent extends BasicAgent {
 			cmd = null ; triggerArrived.signal(); 
 		}
 		finally { lock.unlock(); }
+		wakeUpScheduler() ;
 	}
 	
 	/**
@@ -162,6 +436,8 @@ public class AutonomousBasicAgent extends BasicAgent {
 	public void stop() { 
 		awakeThisAgentFromSleep() ;
 		cmd = Command.STOP ; 
+		wakeUpFromEventWait() ;
+		wakeUpScheduler() ;
 	}
 	
 	/**
@@ -186,6 +462,8 @@ public class AutonomousBasicAgent extends BasicAgent {
 			triggerArrived.signal();  // awaken the agent
 		}
 		finally { lock.unlock(); }
+		if (eventDriven) signalEvent() ;
+		else wakeUpScheduler() ;
 	}
 
 	/**
@@ -217,6 +495,34 @@ public class AutonomousBasicAgent extends BasicAgent {
 	}
 	
 	
+	/**
+	 * Execute a single iteration of the autonomous loop (see {@link #loop()}). This
+	 * is used by an {@link AgentScheduler} to drive this agent from a shared pool of
+	 * worker threads, rather than from a dedicated thread.
+	 * 
+	 * @return the time in ms until this agent wants its next tick, or a negative
+	 *         value if the agent currently has nothing to do (it has no goal, or it
+	 *         is paused or stopped). In the latter case the agent should not be
+	 *         ticked until it is woken up again.
+	 */
+	long tickOnce() {
+		lock.lock();
+		try {
+			if (goal == null || cmd != null) return -1 ;
+			tickTime.sample();
+			if (eventDriven) consumeEvents() ;
+			update() ;
+			if (goal == null) {
+				log(Level.INFO,"Agent " + id + " closed the current goal: " + shadowg_.getStatus() + ".") ;
+				goalConcluded.signalAll();
+				return -1 ;
+			}
+			if (eventDriven) return nextEventWait(tickTime) ;
+			return Math.max(0, samplingInterval - elapsedMillis(tickTime)) ;
+		}
+		finally { lock.unlock(); }
+	}
+	
 	/**
 	 * This will run the agent in an infinite loop. The idea is to run this in a new
 	 * thread, e.g. as in:
@@ -252,15 +558,22 @@ public class AutonomousBasicAgent extends BasicAgent {
 		finally { }
 	}
 	
+	private static long elapsedMillis(Time time) {
+		return time.unit().toMillis(time.elapsedTimeSinceLastSample()) ;
+	}
+	
 	private void loopWorker() {
 		
 		thisAgentThread = Thread.currentThread() ;
 		log(Level.INFO,"Agent " + id + " enters its loop on Thread " +  thisAgentThread.getId()) ;
 		
-		Time time = new Time() ;
+		Time time = new NanoTime() ;
+		GoalStructure announced = null ;
 
 		//repeat forever:		
 		while(cmd != Command.STOP) {
+			// in the event-driven mode, how long to wait for an event after releasing the lock:
+			long eventWait = 0 ;
 			lock.lock();
 			try {
 				// wait until the goal is not null:
@@ -269,8 +582,10 @@ public class AutonomousBasicAgent extends BasicAgent {
 					try { triggerArrived.await(); }
 					catch(InterruptedException e) { }
 				}
-				if (goal != null) 
+				if (goal != null && goal != announced) {
 					log(Level.INFO,"Agent " + id + " identifies a goal and starts working on it. Budget: " + goal.getBudget()) ;
+					announced = goal ;
+				}
 				while(goal != null && cmd != Command.STOP) {
 					while(cmd == Command.PAUSE) {
 						log(Level.INFO,"Agent " + id + " is paused.") ;
@@ -278,14 +593,21 @@ public class AutonomousBasicAgent extends BasicAgent {
 						catch(InterruptedException e) { }
 					}
 					time.sample(); 
+					if (eventDriven) consumeEvents() ;
 					update() ;
 					if (goal == null) {
 						log(Level.INFO,"Agent " + id + " closed the current goal: " + shadowg_.getStatus() + ".") ;
 						// the goal is solved then
 						goalConcluded.signalAll();
+						announced = null ;
+						break ;
+					}
+					if (eventDriven) {
+						// release the lock, and wait for an event outside it:
+						eventWait = nextEventWait(time) ;
 						break ;
 					}
-					long sleeptime = samplingInterval - time.elapsedTimeSinceLastSample() ;
+					long sleeptime = samplingInterval - elapsedMillis(time) ;
 					// if needed, just sleep until it is time to do the next sampling:
 					if (sleeptime>100) {
 						try { 
@@ -301,6 +623,7 @@ public class AutonomousBasicAgent extends BasicAgent {
 				//goalConcluded.signalAll();
 				lock.unlock(); 
 			}	
+			if (eventWait > 0 && cmd == null) awaitEvent(eventWait) ;
 			// break ;
 			/*
 			try {
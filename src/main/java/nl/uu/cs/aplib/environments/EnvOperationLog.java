@@ -0,0 +1,173 @@
+package nl.uu.cs.aplib.environments;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The binary format of the logs written by {@link RecordingEnvironment} and read by
+ * {@link ReplayEnvironment}. A log starts with a header (a magic number and the
+ * format version), followed by any number of records, one for every command that
+ * was sent to the environment. A record consists of:
+ *
+ * <ol>
+ * <li>The invoker-id, target-id and name of the command.
+ * <li>The argument of the command.
+ * <li>Either the result of the command, or the class name and message of the
+ * exception that the command threw.
+ * </ol>
+ *
+ * Arguments and results are written with Java serialization, so they should be
+ * {@link Serializable} (or null). Every record is self-contained, so a log can be
+ * appended to, and a record that is cut off at the end of a log is ignored.
+ */
+final class EnvOperationLog {
+
+	static final int MAGIC = 0x41504c52 ; // "APLR"
+	static final short VERSION = 1 ;
+
+	static final byte RESULT = 0 ;
+	static final byte EXCEPTION = 1 ;
+
+	private EnvOperationLog() { }
+
+	/**
+	 * A single recorded command.
+	 */
+	static class Record {
+		String invokerId ;
+		String targetId ;
+		String command ;
+		byte[] arg ;
+		byte outcome ;
+		// the serialized result, if outcome is RESULT:
+		byte[] result ;
+		// the exception, if outcome is EXCEPTION:
+		String exceptionClass ;
+		String exceptionMessage ;
+	}
+
+	static void writeHeader(DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC) ;
+		out.writeShort(VERSION) ;
+	}
+
+	static void writeRecord(DataOutputStream out, Record R) throws IOException {
+		writeString(out, R.invokerId) ;
+		writeString(out, R.targetId) ;
+		writeString(out, R.command) ;
+		writeBytes(out, R.arg) ;
+		out.writeByte(R.outcome) ;
+		if (R.outcome == RESULT) {
+			writeBytes(out, R.result) ;
+		}
+		else {
+			writeString(out, R.exceptionClass) ;
+			writeString(out, R.exceptionMessage) ;
+		}
+	}
+
+	/**
+	 * Read all records of a log.
+	 */
+	static List<Record> readAll(DataInputStream in) throws IOException {
+		int magic ;
+		try {
+			magic = in.readInt() ;
+		}
+		catch(EOFException e) {
+			throw new IllegalArgumentException("Empty environment log.") ;
+		}
+		if (magic != MAGIC) throw new IllegalArgumentException("Not an environment log.") ;
+		short version = in.readShort() ;
+		if (version != VERSION) throw new IllegalArgumentException("Unsupported environment log version " + version) ;
+		List<Record> records = new ArrayList<>() ;
+		while (true) {
+			var R = new Record() ;
+			try {
+				R.invokerId = readString(in) ;
+				R.targetId = readString(in) ;
+				R.command = readString(in) ;
+				R.arg = readBytes(in) ;
+				R.outcome = in.readByte() ;
+				if (R.outcome == RESULT) {
+					R.result = readBytes(in) ;
+				}
+				else if (R.outcome == EXCEPTION) {
+					R.exceptionClass = readString(in) ;
+					R.exceptionMessage = readString(in) ;
+				}
+				else throw new IllegalArgumentException("Corrupt environment log.") ;
+			}
+			catch(EOFException e) {
+				// the end of the log; a record that was cut off, e.g. because the
+				// recording process crashed, is dropped.
+				return records ;
+			}
+			records.add(R) ;
+		}
+	}
+
+	/**
+	 * Serialize the given object; null is serialized to null.
+	 */
+	static byte[] serialize(Object o) {
+		if (o == null) return null ;
+		if (! (o instanceof Serializable))
+			throw new IllegalArgumentException("Cannot log an instance of " + o.getClass().getName() + "; it is not Serializable.") ;
+		var bytes = new ByteArrayOutputStream() ;
+		try (var out = new ObjectOutputStream(bytes)) {
+			out.writeObject(o) ;
+		}
+		catch(IOException e) {
+			throw new IllegalArgumentException("Cannot log an instance of " + o.getClass().getName(), e) ;
+		}
+		return bytes.toByteArray() ;
+	}
+
+	static Object deserialize(byte[] bytes) {
+		if (bytes == null) return null ;
+		try (var in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+			return in.readObject() ;
+		}
+		catch(IOException | ClassNotFoundException e) {
+			throw new IllegalArgumentException("Corrupt value in environment log.", e) ;
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		writeBytes(out, s == null ? null : s.getBytes(StandardCharsets.UTF_8)) ;
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = readBytes(in) ;
+		return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8) ;
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+		if (bytes == null) {
+			out.writeInt(-1) ;
+			return ;
+		}
+		out.writeInt(bytes.length) ;
+		out.write(bytes) ;
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		int n = in.readInt() ;
+		if (n < 0) return null ;
+		byte[] bytes = new byte[n] ;
+		in.readFully(bytes) ;
+		return bytes ;
+	}
+
+}
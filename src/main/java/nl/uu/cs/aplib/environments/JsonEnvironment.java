@@ -1,6 +1,14 @@
 package nl.uu.cs.aplib.environments;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonReader;
 
 import nl.uu.cs.aplib.mainConcepts.Environment;
 import nl.uu.cs.aplib.mainConcepts.Environment.EnvOperation;
@@ -19,6 +27,13 @@ import nl.uu.cs.aplib.mainConcepts.Environment.EnvOperation;
  * Agents should use the wrapper method sendCommand(...) instead, which internally
  * will call sendCommand_, and parse the returned JSON string into a Java object.
  * 
+ * <p>For large replies, building the whole reply as a String first is expensive.
+ * Instead of a String, sendCommand_ can therefore also return the reply as a
+ * stream: an {@link InputStream} or a {@link ReadableByteChannel} (UTF-8 encoded),
+ * or a {@link Reader}. The reply is then parsed directly from the stream, which
+ * is closed afterwards. InputStreams and channels are decoded with a buffer that
+ * is reused across commands (one per thread).
+ * 
  * @author Wish
  */
 public class JsonEnvironment extends Environment {
@@ -45,15 +60,26 @@ public class JsonEnvironment extends Environment {
 		gson = jsonBuilderParser ;
 	}
 	
+	/**
+	 * Reusable decoders for replies that come as byte streams, one per thread.
+	 */
+	static final ThreadLocal<Utf8StreamReader> decoders = ThreadLocal.withInitial(Utf8StreamReader::new) ;
+	
 	/**
 	 * This method will invoke the underlying sendCommand_, that in turn is expected to
 	 * send the command as a string in the Json format to the real environment. If the
 	 * command is supposed to return anything, sendCommand_ will return this as a string
-	 * in the Json format as well.
+	 * in the Json format as well, or as a stream producing such a string.
 	 * If the parameter expectedTypeOfResult is specified, the returned string will be
 	 * parsed into an instance of the specified type.
 	 * If the parameter expectedTypeOfResult is left null, this method won't know to
 	 * what the Json string should be parsed to, so it will simply return null.	
+	 * 
+	 * <p>The size of the returned string in UTF-8, or the number of bytes read from
+	 * the returned InputStream or channel, is registered as transferred bytes (see
+	 * {@link #registerBytesTransferred(long)}). Implementations of sendCommand_ can
+	 * register the size of the sent commands themselves, and that of replies
+	 * returned as a Reader.
 	 */
 	@Override
 	public Object sendCommand(
@@ -63,10 +89,44 @@ public class JsonEnvironment extends Environment {
 	         Object arg,
 	         Class expectedTypeOfResult
 	         ) {
-		String result = (String) super.sendCommand(invokerId,targetId,command,arg,String.class) ;
-		if (expectedTypeOfResult == null) 
-			return null ;
-		return gson.fromJson(result, expectedTypeOfResult) ;
+		Object result = super.sendCommand(invokerId,targetId,command,arg,String.class) ;
+		if (result == null || result instanceof String) {
+			if (result != null) registerBytesTransferred(Utf8StreamReader.utf8Length((String) result)) ;
+			if (expectedTypeOfResult == null) 
+				return null ;
+			return gson.fromJson((String) result, expectedTypeOfResult) ;
+		}
+		if (result instanceof ReadableByteChannel) 
+			result = Channels.newInputStream((ReadableByteChannel) result) ;
+		if (result instanceof InputStream) {
+			var decoder = decoders.get() ;
+			// the thread's decoder may be busy if a parsed object itself calls an environment:
+			if (decoder.inUse) decoder = new Utf8StreamReader() ;
+			decoder.reset((InputStream) result) ;
+			try {
+				return parse(decoder, expectedTypeOfResult) ;
+			}
+			finally {
+				registerBytesTransferred(decoder.numberOfBytesRead) ;
+			}
+		}
+		if (result instanceof Reader) 
+			return parse((Reader) result, expectedTypeOfResult) ;
+		throw new IllegalArgumentException("Unexpected type of reply: " + result.getClass().getName()) ;
+	}
+	
+	/**
+	 * Parse the reply from the given reader into an instance of expectedTypeOfResult,
+	 * and close the reader. If expectedTypeOfResult is null, the reply is not parsed.
+	 */
+	private Object parse(Reader reply, Class expectedTypeOfResult) {
+		try (reply) {
+			if (expectedTypeOfResult == null) return null ;
+			return gson.fromJson(new JsonReader(reply), expectedTypeOfResult) ;
+		}
+		catch(IOException e) {
+			throw new UncheckedIOException(e) ;
+		}
 	}
 	
 	
@@ -74,8 +134,9 @@ public class JsonEnvironment extends Environment {
 	 * Override this method. The method should send the command to the real
 	 * environment in the Json format. If the command is supposed to return some
 	 * infomation back, this method is supposed to return this information as a
-	 * string in Json format. The wrapper method sendCommand will then parse this
-	 * Json string to an object with the corresponding structure.
+	 * string in Json format, or as an InputStream, ReadableByteChannel or Reader
+	 * that produces such a string. The wrapper method sendCommand will then parse
+	 * this Json string to an object with the corresponding structure.
 	 */
 	@Override
 	protected Object sendCommand_(EnvOperation cmd) {
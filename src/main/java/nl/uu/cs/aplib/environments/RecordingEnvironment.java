@@ -0,0 +1,148 @@
+package nl.uu.cs.aplib.environments;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import nl.uu.cs.aplib.environments.EnvOperationLog.Record;
+import nl.uu.cs.aplib.mainConcepts.Environment;
+
+/**
+ * An Environment that wraps around another Environment, and records every
+ * command that is sent through it, along with the command's result, in an
+ * append-only binary log. The log can later be fed to a {@link ReplayEnvironment}
+ * to re-run the same agents without the real environment.
+ *
+ * <p>
+ * To record, give the agents a RecordingEnvironment instead of the original one:
+ *
+ * <pre>
+ *    var env = new RecordingEnvironment(new MyEnv(...), Path.of("run.log")) ;
+ *    agent.attachEnvironment(env) ;
+ *    ... run the agent ...
+ *    env.close() ;
+ * </pre>
+ *
+ * The commands are passed to the wrapped environment through its
+ * {@link Environment#sendCommand(String, String, String, Object, Class)}. Only
+ * commands are recorded: {@link #refresh()} and {@link #resetAndInstrument()} are
+ * passed on to the wrapped environment, but whatever they change in that
+ * environment is not part of the log. Record/replay therefore works best with
+ * environments whose agents obtain all their observations through commands.
+ *
+ * <p>
+ * The arguments and results of the commands are logged with Java serialization,
+ * so they have to be Serializable. A command that throws an exception is logged
+ * as well, with the class and message of the exception; the exception is then
+ * rethrown. Every record is flushed as soon as it is written, so the log survives
+ * a crash of the recording process.
+ */
+public class RecordingEnvironment extends Environment implements Closeable {
+
+	Environment recordedEnv ;
+	DataOutputStream log ;
+	long numberOfRecords = 0 ;
+
+	/**
+	 * Record the commands sent to recordedEnv to the given stream. A header is
+	 * written to the stream first.
+	 */
+	public RecordingEnvironment(Environment recordedEnv, OutputStream log) {
+		this(recordedEnv, log, true) ;
+	}
+
+	/**
+	 * Record the commands sent to recordedEnv to the given file. If the file
+	 * already contains a log, the new records are appended to it.
+	 */
+	public RecordingEnvironment(Environment recordedEnv, Path logFile) throws IOException {
+		this(recordedEnv,
+			 Files.newOutputStream(logFile, StandardOpenOption.CREATE, StandardOpenOption.APPEND),
+			 ! Files.exists(logFile) || Files.size(logFile) == 0) ;
+	}
+
+	private RecordingEnvironment(Environment recordedEnv, OutputStream log, boolean writeHeader) {
+		if (recordedEnv == null || log == null) throw new IllegalArgumentException() ;
+		this.recordedEnv = recordedEnv ;
+		this.log = new DataOutputStream(new BufferedOutputStream(log)) ;
+		if (writeHeader) {
+			try {
+				EnvOperationLog.writeHeader(this.log) ;
+				this.log.flush() ;
+			}
+			catch(IOException e) {
+				throw new UncheckedIOException(e) ;
+			}
+		}
+	}
+
+	/**
+	 * Return the environment whose commands are recorded.
+	 */
+	public Environment getRecordedEnvironment() { return recordedEnv ; }
+
+	/**
+	 * Return the number of commands recorded so far.
+	 */
+	public synchronized long getNumberOfRecords() { return numberOfRecords ; }
+
+	@Override
+	public void refreshWorker() {
+		recordedEnv.refresh() ;
+	}
+
+	@Override
+	public void resetWorker() {
+		recordedEnv.resetAndInstrument() ;
+	}
+
+	@Override
+	protected Object sendCommand_(EnvOperation cmd) {
+		var R = new Record() ;
+		R.invokerId = cmd.invokerId ;
+		R.targetId = cmd.targetId ;
+		R.command = cmd.command ;
+		R.arg = EnvOperationLog.serialize(cmd.arg) ;
+		Object result ;
+		try {
+			result = recordedEnv.sendCommand(cmd.invokerId, cmd.targetId, cmd.command, cmd.arg, cmd.expectedTypeOfResult) ;
+		}
+		catch(RuntimeException e) {
+			R.outcome = EnvOperationLog.EXCEPTION ;
+			R.exceptionClass = e.getClass().getName() ;
+			R.exceptionMessage = e.getMessage() ;
+			append(R) ;
+			throw e ;
+		}
+		R.outcome = EnvOperationLog.RESULT ;
+		R.result = EnvOperationLog.serialize(result) ;
+		append(R) ;
+		return result ;
+	}
+
+	private synchronized void append(Record R) {
+		try {
+			EnvOperationLog.writeRecord(log, R) ;
+			log.flush() ;
+			numberOfRecords++ ;
+		}
+		catch(IOException e) {
+			throw new UncheckedIOException(e) ;
+		}
+	}
+
+	/**
+	 * Close the log. Commands sent after this will fail.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		log.close() ;
+	}
+
+}
@@ -0,0 +1,120 @@
+package nl.uu.cs.aplib.environments;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import nl.uu.cs.aplib.environments.EnvOperationLog.Record;
+import nl.uu.cs.aplib.mainConcepts.Environment;
+
+/**
+ * An Environment that answers the commands of agents from a log written by a
+ * {@link RecordingEnvironment}, without a real environment. This allows agents to
+ * be re-run at CPU speed, e.g. for regression testing or for profiling the
+ * agents' own logic.
+ *
+ * <p>
+ * The recorded commands are served per invoker, in the order in which they were
+ * recorded. So, agents that ran concurrently while recording can be replayed even
+ * if their commands now interleave differently, as long as every agent sends the
+ * same commands as before. Every command is checked against the log: if its
+ * target, name or argument differs from the recorded one, or if the invoker has no
+ * recorded commands left, the replay has diverged from the recording, and an
+ * {@link IllegalStateException} is thrown. A command that threw an exception when
+ * it was recorded throws an exception of the same class (if possible) and with the
+ * same message when it is replayed.
+ *
+ * <p>
+ * {@link #refresh()} and {@link #resetAndInstrument()} do nothing.
+ */
+public class ReplayEnvironment extends Environment {
+
+	Map<String,ArrayDeque<Record>> records = new HashMap<>() ;
+	int numberOfRecords = 0 ;
+	int numberOfReplayed = 0 ;
+
+	/**
+	 * Read the log from the given stream. The whole log is read at once.
+	 */
+	public ReplayEnvironment(InputStream log) {
+		try (var in = new DataInputStream(new BufferedInputStream(log))) {
+			for (var R : EnvOperationLog.readAll(in)) {
+				records.computeIfAbsent(R.invokerId, id -> new ArrayDeque<>()).add(R) ;
+				numberOfRecords++ ;
+			}
+		}
+		catch(IOException e) {
+			throw new UncheckedIOException(e) ;
+		}
+	}
+
+	/**
+	 * Read the log from the given file.
+	 */
+	public ReplayEnvironment(Path logFile) throws IOException {
+		this(Files.newInputStream(logFile)) ;
+	}
+
+	/**
+	 * Return the number of commands in the log.
+	 */
+	public synchronized int getNumberOfRecords() { return numberOfRecords ; }
+
+	/**
+	 * Return the number of commands in the log that have not been replayed yet.
+	 */
+	public synchronized int remaining() { return numberOfRecords - numberOfReplayed ; }
+
+	/**
+	 * True if all commands in the log have been replayed.
+	 */
+	public boolean isExhausted() { return remaining() == 0 ; }
+
+	@Override
+	protected Object sendCommand_(EnvOperation cmd) {
+		var R = next(cmd) ;
+		if (R.outcome == EnvOperationLog.EXCEPTION) throw recreateException(R) ;
+		return EnvOperationLog.deserialize(R.result) ;
+	}
+
+	private synchronized Record next(EnvOperation cmd) {
+		var queue = records.get(cmd.invokerId) ;
+		if (queue == null || queue.isEmpty())
+			throw new IllegalStateException("Replay diverged: no more recorded commands of " + cmd.invokerId
+					+ ", but it sends " + cmd.command) ;
+		var R = queue.peek() ;
+		if (! Objects.equals(R.command, cmd.command)
+				|| ! Objects.equals(R.targetId, cmd.targetId)
+				|| ! Arrays.equals(R.arg, EnvOperationLog.serialize(cmd.arg)))
+			throw new IllegalStateException("Replay diverged: " + cmd.invokerId + " sends " + cmd.command
+					+ " to " + cmd.targetId + ", but the recorded command is " + R.command + " to " + R.targetId) ;
+		queue.poll() ;
+		numberOfReplayed++ ;
+		return R ;
+	}
+
+	private static RuntimeException recreateException(Record R) {
+		try {
+			var C = Class.forName(R.exceptionClass) ;
+			if (RuntimeException.class.isAssignableFrom(C)) {
+				return (RuntimeException) C.getConstructor(String.class).newInstance(R.exceptionMessage) ;
+			}
+		}
+		catch(ClassNotFoundException | NoSuchMethodException | InstantiationException
+				| IllegalAccessException | InvocationTargetException e) {
+			// fall through
+		}
+		return new RuntimeException(R.exceptionClass + ": " + R.exceptionMessage) ;
+	}
+
+}
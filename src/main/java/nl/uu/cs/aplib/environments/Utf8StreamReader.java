@@ -0,0 +1,118 @@
+package nl.uu.cs.aplib.environments;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A Reader that decodes a UTF-8 encoded InputStream. Unlike
+ * {@link java.io.InputStreamReader}, an instance can be pointed to a new stream
+ * with {@link #reset(InputStream)}, so that its buffer and decoder are reused
+ * across many streams. It also counts the bytes it reads. An instance should
+ * only be used by one thread at a time.
+ */
+final class Utf8StreamReader extends Reader {
+
+	static final int BUFFER_SIZE = 64 * 1024 ;
+
+	private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE) ;
+	private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE) ;
+
+	private InputStream in ;
+	private boolean endOfInput ;
+	private boolean flushed ;
+	long numberOfBytesRead ;
+
+	/**
+	 * True while the reader is reading a stream, i.e. between reset and close.
+	 */
+	boolean inUse = false ;
+
+	/**
+	 * Return the number of bytes of the UTF-8 encoding of the given string, without
+	 * encoding it. An unpaired surrogate counts as one byte, as it is encoded as '?'.
+	 */
+	static long utf8Length(CharSequence s) {
+		long n = 0 ;
+		int length = s.length() ;
+		for (int k=0; k<length; k++) {
+			char c = s.charAt(k) ;
+			if (c < 0x80) n++ ;
+			else if (c < 0x800) n += 2 ;
+			else if (Character.isHighSurrogate(c) && k+1 < length && Character.isLowSurrogate(s.charAt(k+1))) {
+				n += 4 ; k++ ;
+			}
+			else if (Character.isSurrogate(c)) n++ ;
+			else n += 3 ;
+		}
+		return n ;
+	}
+
+	/**
+	 * Start reading the given stream.
+	 */
+	Utf8StreamReader reset(InputStream in) {
+		this.in = in ;
+		bytes.clear() ;
+		bytes.limit(0) ;
+		decoder.reset() ;
+		endOfInput = false ;
+		flushed = false ;
+		numberOfBytesRead = 0 ;
+		inUse = true ;
+		return this ;
+	}
+
+	@Override
+	public int read(char[] cbuf, int off, int len) throws IOException {
+		if (in == null) throw new IOException("Stream closed") ;
+		if (len == 0) return 0 ;
+		if (flushed) return -1 ;
+		var out = CharBuffer.wrap(cbuf, off, len) ;
+		while (true) {
+			var result = decoder.decode(bytes, out, endOfInput) ;
+			// cbuf is full:
+			if (result.isOverflow()) return out.position() - off ;
+			// else all bytes so far are decoded:
+			if (endOfInput) {
+				decoder.flush(out) ;
+				flushed = true ;
+				int n = out.position() - off ;
+				return n == 0 ? -1 : n ;
+			}
+			if (out.position() > off) return out.position() - off ;
+			// the decoder needs more bytes:
+			bytes.compact() ;
+			int n = in.read(bytes.array(), bytes.position(), bytes.remaining()) ;
+			if (n < 0) {
+				endOfInput = true ;
+			}
+			else {
+				bytes.position(bytes.position() + n) ;
+				numberOfBytesRead += n ;
+			}
+			bytes.flip() ;
+		}
+	}
+
+	/**
+	 * Close the underlying stream. The reader itself can be reused with
+	 * {@link #reset(InputStream)}.
+	 */
+	@Override
+	public void close() throws IOException {
+		inUse = false ;
+		if (in == null) return ;
+		var in_ = in ;
+		in = null ;
+		in_.close() ;
+	}
+
+}
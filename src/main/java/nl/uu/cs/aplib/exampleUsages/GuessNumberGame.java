@@ -2,6 +2,7 @@ package nl.uu.cs.aplib.exampleUsages;
 
 import nl.uu.cs.aplib.environments.ConsoleEnvironment;
 import nl.uu.cs.aplib.mainConcepts.*;
+import nl.uu.cs.aplib.mainConcepts.Tactic.PrimitiveTactic;
 
 import static nl.uu.cs.aplib.AplibEDSL.* ;
 
@@ -51,14 +52,11 @@ public class GuessNumberGame  {
 	}
 
 	
-	static public void main(String[] args) { // run this to run the demo
-		
-	  // specifying the goal to solve:	
-      Goal g = goal("the-goal")
-        	   .toSolve((String p) -> p.equals("y") || p.equals("out of range")) ;	
-		
-      // defining the actions for the agent:
-	  var asklb = action("askLowerBound")
+	/**
+	 * An action that asks the user for a number that is less or equal to the secret number.
+	 */
+	static public PrimitiveTactic askLowerBound() {
+	  return action("askLowerBound")
 		.desc("Ask user to give a number less or equal that his secret number.")
 		.do1((MyAgentState belief) -> {
 		  var o = belief.env().ask("Type a number less or equal to your number:");
@@ -71,8 +69,13 @@ public class GuessNumberGame  {
 		  return "" ;
 	      })
 		.lift() ;
-	  
-      var guess = action("guess")
+	}
+	
+	/**
+	 * An action that guesses the secret number, and asks the user to confirm.
+	 */
+	static public PrimitiveTactic guess() {
+      return action("guess")
     	.desc("Guessing the secret number and ask the user to confirm if it is right or wrong.")
         .do1((MyAgentState belief) -> {
           // the agent performs some inference:
@@ -88,6 +91,17 @@ public class GuessNumberGame  {
           return o ;	 
           })
         .lift() ;
+	}
+	
+	static public void main(String[] args) { // run this to run the demo
+		
+	  // specifying the goal to solve:	
+      Goal g = goal("the-goal")
+        	   .toSolve((String p) -> p.equals("y") || p.equals("out of range")) ;	
+		
+      // defining the actions for the agent:
+      var asklb = askLowerBound() ;
+      var guess = guess() ;
         
       // specifying the tactic to solve the goal:  
       g.withTactic(SEQ(asklb,guess)) ;
@@ -16,6 +16,7 @@ import nl.uu.cs.aplib.exampleUsages.fiveGame.FiveGame.GAMESTATUS;
 import nl.uu.cs.aplib.exampleUsages.fiveGame.FiveGame.SQUARE;
 import nl.uu.cs.aplib.exampleUsages.fiveGame.FiveGame.Square_;
 import nl.uu.cs.aplib.mainConcepts.*;
+import nl.uu.cs.aplib.mainConcepts.Tactic.PrimitiveTactic;
 
 import static nl.uu.cs.aplib.AplibEDSL.* ;
 
@@ -268,23 +269,20 @@ public class FiveGame_withAgent {
 	}
 	
 	
-	static public void main(String[] args) throws InvalidTheoryException, NoSolutionException, MalformedGoalException {
-		
-		 //test() ;
-		
-		
-		// creating an instance of the FiveGame
-		var thegame = new FiveGame(7,0) ;
-		// create an agent state and an environment, attached to the game:
-		var state = new MyState().setEnvironment(new FiveGameEnv().attachGame(thegame));
-		// creatint the agent:
-		var agent = new BasicAgent() . attachState(state) ;
-		
-		var rnd = new Random() ;
-		
-		// defining various actions
-		// this one will randomly choose an empty square, that has a horizontal or vertical cross-neighbor:
-		var besideHV = action("besideHV") 
+	/**
+	 * Create an agent state, attached to the given game. The state has a prolog engine
+	 * containing the rules to decide the agent's moves.
+	 */
+	static public State mkState(FiveGame thegame) {
+		return new MyState().setEnvironment(new FiveGameEnv().attachGame(thegame)) ;
+	}
+	
+	/**
+	 * An action that randomly chooses an empty square that has a horizontal or vertical 
+	 * cross-neighbor, and puts a cross there.
+	 */
+	static public PrimitiveTactic besideHV(Random rnd) {
+		return action("besideHV") 
 			. do1((MyState st) -> {
 			     var empties = st.getEmptySquaresWithHVNeighboringCross() ;
 			     if (empties.isEmpty()) empties = st.getEmptySquares() ;
@@ -295,9 +293,13 @@ public class FiveGame_withAgent {
 			     return status ;
 		       }) 
 			. lift() ;
-		
-		// put a cross if there is a winning horizontal or vertical conf:
-		var winningmove = action("winningmove")
+	}
+	
+	/**
+	 * An action that puts a cross if there is a winning horizontal or vertical configuration.
+	 */
+	static public PrimitiveTactic winningMove() {
+		return action("winningmove")
 			. do2((MyState st) -> (QueryResult qsolution) -> {		
 			     if (qsolution == null) return null ;
 			     int x = qsolution.int_("X") ;
@@ -308,9 +310,13 @@ public class FiveGame_withAgent {
 		      })
 			. on((MyState st) -> st.prolog().query(winningMove.on("X","Y")) ) 
 			. lift() ;
-		
-		// block the opponent if it has a 4 consecutive hor. or vert. row:
-		var block = action("block")
+	}
+	
+	/**
+	 * An action that blocks the opponent if it has 4 consecutive horizontal or vertical circles.
+	 */
+	static public PrimitiveTactic block() {
+		return action("block")
 				. do2((MyState st) -> (QueryResult qsolution) -> {		
 				     if (qsolution == null) return null ;
 				     int x = qsolution.int_("X") ;
@@ -321,9 +327,13 @@ public class FiveGame_withAgent {
 			      })
 				. on((MyState st) -> st.prolog().query(blockMove.on("X","Y")) ) 
 				. lift() ;
-		
-		// place a cross next to 3 consecutive hor or vert crosses:
-		var smartmove = action("smartmove")
+	}
+	
+	/**
+	 * An action that places a cross next to 3 consecutive horizontal or vertical crosses.
+	 */
+	static public PrimitiveTactic smartMove() {
+		return action("smartmove")
 				. do2((MyState st) -> (QueryResult qsolution) -> {		
 				     if (qsolution == null) return null ;
 				     int x = qsolution.int_("X") ;
@@ -334,6 +344,27 @@ public class FiveGame_withAgent {
 			      })
 				. on((MyState st) -> st.prolog().query(set4Move.on("X","Y")) ) 
 				. lift() ;
+	}
+	
+	static public void main(String[] args) throws InvalidTheoryException, NoSolutionException, MalformedGoalException {
+		
+		 //test() ;
+		
+		
+		// creating an instance of the FiveGame
+		var thegame = new FiveGame(7,0) ;
+		// create an agent state and an environment, attached to the game:
+		var state = new MyState().setEnvironment(new FiveGameEnv().attachGame(thegame));
+		// creatint the agent:
+		var agent = new BasicAgent() . attachState(state) ;
+		
+		var rnd = new Random() ;
+		
+		// defining various actions
+		var besideHV = besideHV(rnd) ;
+		var winningmove = winningMove() ;
+		var block = block() ;
+		var smartmove = smartMove() ;
 		
 		// define a goal and specify a tactic:
 		var g = goal("goal")
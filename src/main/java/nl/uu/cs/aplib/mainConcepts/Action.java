@@ -1,8 +1,15 @@
 package nl.uu.cs.aplib.mainConcepts;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.*;
 
+import nl.uu.cs.aplib.Metrics;
 import nl.uu.cs.aplib.mainConcepts.Tactic.PrimitiveTactic;
+import nl.uu.cs.aplib.metrics.Counter;
+import nl.uu.cs.aplib.metrics.MetricsRegistry;
+import nl.uu.cs.aplib.metrics.Timer;
+import nl.uu.cs.aplib.utils.LatencyHistogram;
 
 /**
  * Actions are the building blocks for to build a {@link Tactic}. To solve a
@@ -28,6 +35,14 @@ import nl.uu.cs.aplib.mainConcepts.Tactic.PrimitiveTactic;
  * not imposed by this implementation of Action. However the implementation of {@link SimpleAgent}
  * does impose this.
  * 
+ * <p>
+ * An Action itself is only a definition. The state of its execution by an agent
+ * (the result of the last guard evaluation, whether the Action is completed, the
+ * cached guard result, and the agent's statistics of the Action) is kept in an
+ * {@link ExecutionContext}, which is stored in the agent's state. So, the same
+ * Action, and the same {@link Tactic} library, can be shared by many agents, also
+ * when these agents run on different threads.
+ * 
  * @author wish
  *
  */
@@ -35,9 +50,20 @@ public class Action {
 	
 	String name ;
 	public String desc ;
-	boolean completed = false ;
-	long totalRuntime = 0 ;
-	int invocationCount = 0 ;
+	
+	/**
+	 * The total time spent by agents on invocations of this action, in ns. This, and
+	 * the other statistics below, are summed over all agents that use this action.
+	 */
+	final AtomicLong totalRuntime = new AtomicLong() ;
+	final AtomicInteger invocationCount = new AtomicInteger() ;
+	
+	/**
+	 * The distribution of the time (in ns) spent by agents on each invocation of
+	 * this action. It is only precise below one ms for agents that use
+	 * {@link BasicAgent#useNanoTime()}.
+	 */
+	final LatencyHistogram latency = new LatencyHistogram() ;
 	
 	/**
 	 * This Action's guard, which is a query over the agent's state. This action
@@ -49,16 +75,112 @@ public class Action {
 	Function<SimpleState,Object> guard = s -> this.true_ ;
 	
 	private final Boolean true_ = true ; 
+	
+	/**
+	 * The completion flag as last set by any agent that executed this Action. It only
+	 * serves the stateless {@link #isCompleted()}; agents use the flag in their own
+	 * {@link ExecutionContext}.
+	 */
+	volatile boolean completed = false ;
 
 	
 	/**
-	 * Store the result of guard evaluation, until it is retrieved.
+	 * If true, the guard of this Action has been declared to be free of side effects,
+	 * see {@link #sideEffectFreeGuard()}.
 	 */
-	private Object queryResult = null ;
+	boolean sideEffectFreeGuard = false ;
 	
-	Object retrieveQueryResult() {
-		Object o = queryResult ; queryResult = null ;
-		return o ;
+	/**
+	 * If not null, these are the names of the parts of the agent's state that the
+	 * guard depends on. The guard's result is then cached, and only re-evaluated
+	 * when one of these parts is marked as changed (see {@link SimpleState#markChanged(String)}).
+	 * If null, the guard is re-evaluated every time it is queried.
+	 */
+	String[] guardDependencies = null ;
+	
+	/**
+	 * Incremented whenever the cached guard results of all agents have to be
+	 * dropped, see {@link #invalidateGuardCache()}.
+	 */
+	private final AtomicLong guardGeneration = new AtomicLong() ;
+	
+	final AtomicInteger guardCacheHits = new AtomicInteger() ;
+	final AtomicInteger guardCacheMisses = new AtomicInteger() ;
+	
+	/**
+	 * The metric handles of this action; see {@link Metrics}. They are replaced as a
+	 * whole when the registry changes, so that agents sharing this action can read
+	 * them without locking.
+	 */
+	private volatile MetricHandles metrics = null ;
+	
+	private static class MetricHandles {
+		final MetricsRegistry registry ;
+		final Timer guardTimer ;
+		final Timer execTimer ;
+		final Counter guardCacheHitCounter ;
+		
+		MetricHandles(MetricsRegistry registry, String name) {
+			this.registry = registry ;
+			guardTimer = registry.timer("action." + name + ".guard") ;
+			execTimer = registry.timer("action." + name + ".exec") ;
+			guardCacheHitCounter = registry.counter("action." + name + ".guardCacheHit") ;
+		}
+	}
+	
+	/**
+	 * The execution state of an {@link Action} as seen by a single agent: the result
+	 * of the last evaluation of the Action's guard (to be passed to its effect), whether
+	 * the Action is completed, its cached guard result, and the agent's own
+	 * statistics of the Action. An agent's contexts are kept in its state, see
+	 * {@link SimpleState#contextOf(Action)}. Access to a context is synchronized on
+	 * the context.
+	 */
+	static public class ExecutionContext {
+		
+		Object queryResult = null ;
+		volatile boolean completed = false ;
+		
+		boolean hasCachedResult = false ;
+		long cachedGeneration ;
+		long[] cachedVersions ;
+		Object cachedQueryResult ;
+		
+		int invocationCount = 0 ;
+		long totalRuntime = 0 ;
+		int guardCacheHits = 0 ;
+		int guardCacheMisses = 0 ;
+		
+		ExecutionContext() { }
+		
+		synchronized Object retrieveQueryResult() {
+			Object o = queryResult ; queryResult = null ;
+			return o ;
+		}
+		
+		synchronized void invalidateGuardCache() {
+			hasCachedResult = false ;
+			cachedQueryResult = null ;
+		}
+		
+		/**
+		 * True if the Action has been marked as completed for this agent.
+		 */
+		public boolean isCompleted() { return completed ; }
+		
+		/**
+		 * The number of times this agent invoked the Action.
+		 */
+		public synchronized int getInvocationCount() { return invocationCount ; }
+		
+		/**
+		 * The total time, in ns, that this agent spent on invocations of the Action.
+		 */
+		public synchronized long getTotalRuntime() { return totalRuntime ; }
+		
+		public synchronized int getGuardCacheHits() { return guardCacheHits ; }
+		
+		public synchronized int getGuardCacheMisses() { return guardCacheMisses ; }
 	}
 	
 	
@@ -92,6 +214,7 @@ public class Action {
 	 */
 	public <AgentSt> Action on_(Predicate<AgentSt> guard) { 
 		this.guard = st -> { if (guard.test((AgentSt) st))return true_ ; else return null ; } ;
+		invalidateGuardCache() ;
 		return this ;
 	}
 	
@@ -101,9 +224,91 @@ public class Action {
 	 */
 	public <AgentSt,QueryResult> Action on(Function<AgentSt,QueryResult> myguard) { 
 		this.guard = st -> myguard.apply((AgentSt) st) ;
+		invalidateGuardCache() ;
+		return this ;
+	}
+	
+	/**
+	 * Declare that the guard of this Action only depends on the parts of the
+	 * agent's state identified by the given names. The result of the guard will
+	 * then be cached, and is only re-evaluated after one of these parts has been
+	 * marked as changed through {@link SimpleState#markChanged(String)}, or after
+	 * this Action has been executed. This is useful for guards that are expensive
+	 * to evaluate, e.g. guards that do path finding or Prolog queries.
+	 * 
+	 * <p>It is your responsibility to mark the parts as changed whenever they do
+	 * change; else the agent will act on a stale guard result. The method returns
+	 * the Action itself so that it can be used in the Fluent Interface style.
+	 */
+	public Action guardDependsOn(String ... names) {
+		guardDependencies = names ;
+		invalidateGuardCache() ;
 		return this ;
 	}
 	
+	/**
+	 * Declare that the guard of this Action has no side effects: it only reads the
+	 * agent's state (and the environment), and it is safe to evaluate it on another
+	 * thread, concurrently with the guards of other actions. Only the guards of
+	 * such actions are evaluated in parallel by a {@link Tactic#parallel()} tactic.
+	 * The method returns the Action itself so that it can be used in the Fluent
+	 * Interface style.
+	 */
+	public Action sideEffectFreeGuard() {
+		sideEffectFreeGuard = true ;
+		return this ;
+	}
+	
+	/**
+	 * Drop the cached results of this Action's guard, of all agents that use it.
+	 */
+	public void invalidateGuardCache() {
+		guardGeneration.incrementAndGet() ;
+	}
+	
+	/**
+	 * The number of times the guard's result could be taken from the cache, over
+	 * all agents.
+	 */
+	public int getGuardCacheHits() { return guardCacheHits.get() ; }
+	
+	/**
+	 * The number of times the guard had to be evaluated, although it declared its
+	 * dependencies (so, its result could have been cached), over all agents.
+	 */
+	public int getGuardCacheMisses() { return guardCacheMisses.get() ; }
+	
+	/**
+	 * The number of times this action was invoked, over all agents.
+	 */
+	public int getInvocationCount() { return invocationCount.get() ; }
+	
+	/**
+	 * The total time, in ns, that agents spent on invocations of this action.
+	 */
+	public long getTotalRuntime() { return totalRuntime.get() ; }
+	
+	/**
+	 * The distribution of the time, in ns, that agents spent on each invocation
+	 * of this action.
+	 */
+	public LatencyHistogram getLatencyHistogram() { return latency ; }
+	
+	/**
+	 * Register that the agent owning the given state invoked this action, taking
+	 * the given time in ns.
+	 */
+	void registerInvocation(SimpleState agentstate, long elapsed) {
+		var ctx = agentstate.contextOf(this) ;
+		synchronized(ctx) {
+			ctx.invocationCount++ ;
+			ctx.totalRuntime += elapsed ;
+		}
+		invocationCount.incrementAndGet() ;
+		totalRuntime.addAndGet(elapsed) ;
+		latency.record(elapsed);
+	}
+	
 	/**
 	 * Set the given function as the effect-part of this Action. The method returns
 	 * the Action itself so that it can be used in the Fluent Interface style.
@@ -111,7 +316,7 @@ public class Action {
 	Action do__(Function<SimpleState,Function<Object,Object>> action) {
 		this.effect = s -> y -> { 
 			try { return action.apply(s).apply(y) ; }
-			finally { completed = true  ;}
+			finally { markCompleted(s,true) ;}
 		} ;
 		return this ;
 	}
@@ -156,14 +361,12 @@ public class Action {
 		var action_ = this.effect ;
 		Function<SimpleState,Function<Object,Object>> a = s -> y -> {
 			var o = action_.apply(s).apply(y) ;
-			if (myguard.test(s)) {
-				completed = true ;
-			}
-			else completed = false ;
+			markCompleted(s,myguard.test(s)) ;
 			return o ;
 		} ;
 		this.effect = a ;
 		this.guard = o -> true_ ;
+		invalidateGuardCache() ;
 		return this ;
 	}
 	
@@ -194,17 +397,106 @@ public class Action {
 	// === fluent interface end
 	
 	/**
-	 * True if the Action has been marked as completed.
+	 * True if the Action has been marked as completed by the agent that owns the
+	 * given state.
 	 */
+	public boolean isCompleted(SimpleState agentstate) { return agentstate.contextOf(this).completed ; }
+	
+	/**
+	 * True if the Action has been marked as completed by the agent that last
+	 * executed it. This is only meaningful if the Action is used by a single agent.
+	 * 
+	 * @deprecated use {@link #isCompleted(SimpleState)}, which gives the completion
+	 * status for a specific agent.
+	 */
+	@Deprecated
 	public boolean isCompleted() { return completed ; }
 	
+	/**
+	 * Mark this Action as completed, or not, for the agent that owns the given state.
+	 */
+	void markCompleted(SimpleState agentstate, boolean isCompleted) {
+		agentstate.contextOf(this).completed = isCompleted ;
+		completed = isCompleted ;
+	}
+	
 
 	/**
 	 * True if the guard of this Action evaluates to true on the given agent state.
+	 * The result of the guard is kept in the agent's {@link ExecutionContext} of this
+	 * Action, to be passed to the effect by {@link #exec1(SimpleState)}.
 	 */
 	public boolean isEnabled(SimpleState agentstate) { 
-		queryResult = guard.apply(agentstate) ;
-		return queryResult != null ;
+		var ctx = agentstate.contextOf(this) ;
+		synchronized(ctx) {
+			if (guardDependencies == null) {
+				ctx.queryResult = evaluateGuard(agentstate) ;
+				return ctx.queryResult != null ;
+			}
+			long generation = guardGeneration.get() ;
+			if (ctx.hasCachedResult && ctx.cachedGeneration == generation && cachedVersionsAreCurrent(ctx,agentstate)) {
+				ctx.guardCacheHits++ ;
+				guardCacheHits.incrementAndGet() ;
+				var registry = Metrics.getRegistry() ;
+				if (! registry.isNoOp()) bindMetrics(registry).guardCacheHitCounter.inc() ;
+				ctx.queryResult = ctx.cachedQueryResult ;
+				return ctx.queryResult != null ;
+			}
+			ctx.guardCacheMisses++ ;
+			guardCacheMisses.incrementAndGet() ;
+			// sample the versions before evaluating the guard, so that changes made
+			// during the evaluation will invalidate the cache:
+			int N = guardDependencies.length ;
+			if (ctx.cachedVersions == null || ctx.cachedVersions.length != N) ctx.cachedVersions = new long[N] ;
+			for (int k=0; k<N; k++) ctx.cachedVersions[k] = agentstate.versionOf(guardDependencies[k]) ;
+			ctx.queryResult = evaluateGuard(agentstate) ;
+			ctx.cachedQueryResult = ctx.queryResult ;
+			ctx.cachedGeneration = generation ;
+			ctx.hasCachedResult = true ;
+			return ctx.queryResult != null ;
+		}
+	}
+	
+	private Object evaluateGuard(SimpleState agentstate) {
+		var registry = Metrics.getRegistry() ;
+		if (registry.isNoOp()) return guard.apply(agentstate) ;
+		var timer = bindMetrics(registry).guardTimer ;
+		long t0 = System.nanoTime() ;
+		try {
+			return guard.apply(agentstate) ;
+		}
+		finally {
+			timer.record(System.nanoTime() - t0) ;
+		}
+	}
+	
+	/**
+	 * Return the metric handles of this action, making sure that they come from the
+	 * given registry.
+	 */
+	private MetricHandles bindMetrics(MetricsRegistry registry) {
+		var handles = metrics ;
+		if (handles == null || handles.registry != registry) {
+			handles = new MetricHandles(registry,name) ;
+			metrics = handles ;
+		}
+		return handles ;
+	}
+	
+	/**
+	 * Return the timer in the given registry to which this action's executions
+	 * are reported.
+	 */
+	Timer execTimer(MetricsRegistry registry) {
+		return bindMetrics(registry).execTimer ;
+	}
+	
+	private boolean cachedVersionsAreCurrent(ExecutionContext ctx, SimpleState agentstate) {
+		if (ctx.cachedVersions.length != guardDependencies.length) return false ;
+		for (int k=0; k<guardDependencies.length; k++) {
+			if (ctx.cachedVersions[k] != agentstate.versionOf(guardDependencies[k])) return false ;
+		}
+		return true ;
 	}
 	
 	/**
@@ -216,10 +508,14 @@ public class Action {
 	 * does not check whether the guard is true on that state. The agent that calls
 	 * this method is responsible for guaranteeing this.
 	 * 
-	 * <p>Note:  calling this method will clear the stored guard's query result.
+	 * <p>Note:  calling this method will clear the stored guard's query result, and
+	 * also the guard's cached result, if there is one.
 	 */
 	public Object exec1(SimpleState agentstate) {
-		Object o = retrieveQueryResult() ;
+		var ctx = agentstate.contextOf(this) ;
+		Object o = ctx.retrieveQueryResult() ;
+		// the effect may change the state the guard depends on:
+		ctx.invalidateGuardCache() ;
 		Object proposal = effect.apply(agentstate).apply(o) ;
 		return proposal ;
 	}
@@ -0,0 +1,293 @@
+package nl.uu.cs.aplib.mainConcepts;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import nl.uu.cs.aplib.mainConcepts.GoalStructure.GoalsCombinator;
+import nl.uu.cs.aplib.mainConcepts.GoalStructure.PrimitiveGoal;
+import nl.uu.cs.aplib.mainConcepts.ProgressStatus.ProgressStatus_;
+import nl.uu.cs.aplib.mainConcepts.Tactic.PrimitiveTactic;
+
+/**
+ * Writes and reads the binary snapshots of {@link BasicAgent#snapshot()} and
+ * {@link BasicAgent#restore(byte[])}. A snapshot contains, in this order:
+ *
+ * <ol>
+ * <li>A header: a magic number and the format version.
+ * <li>The agent's goal structure, in pre-order. For every node: its combinator
+ * and number of subgoals (to check that the snapshot fits the goal structure it
+ * is restored into), its status, and its budget and time bookkeeping. For every
+ * leaf goal moreover: the status and distance of the goal, and the completion
+ * flags of the actions in its tactic, in pre-order.
+ * <li>The position of the current goal in the goal structure, and of the current
+ * tactic in the current goal's tactic.
+ * <li>Optionally, the content of the agent's state, as written by a
+ * {@link StateSerializer}.
+ * </ol>
+ *
+ * The goal structure itself (the goals' predicates, the tactics, the actions) is
+ * code, and is not part of the snapshot. It has to be rebuilt by the application,
+ * and given to the agent before the snapshot is restored.
+ */
+final class AgentSnapshot {
+
+	static final int MAGIC = 0x41504c53 ; // "APLS"
+	static final short VERSION = 1 ;
+
+	private AgentSnapshot() { }
+
+	/**
+	 * The recorded state of a single node of a goal structure.
+	 */
+	static class GoalRecord {
+		byte combinator ;
+		int numberOfSubgoals ;
+		byte status ;
+		String info ;
+		double bmax, budget, consumedBudget, pendingBudget ;
+		long consumedTime, pendingTime ;
+		// only for leaf goals:
+		byte goalStatus ;
+		String goalInfo ;
+		Double distance ;
+		boolean[] completed ;
+	}
+
+	static byte[] write(BasicAgent agent) {
+		var bytes = new ByteArrayOutputStream() ;
+		try (var out = new DataOutputStream(bytes)) {
+			out.writeInt(MAGIC) ;
+			out.writeShort(VERSION) ;
+			out.writeBoolean(agent.goal != null) ;
+			if (agent.goal != null) {
+				var nodes = goalNodes(agent.goal) ;
+				out.writeInt(nodes.size()) ;
+				for (var G : nodes) writeGoal(out, G, agent.state) ;
+				out.writeInt(agent.currentGoal == null ? -1 : nodes.indexOf(agent.currentGoal)) ;
+				int tacticIndex = -1 ;
+				if (agent.currentGoal != null && agent.currentTactic != null)
+					tacticIndex = tacticNodes(agent.currentGoal.goal.tactic).indexOf(agent.currentTactic) ;
+				out.writeInt(tacticIndex) ;
+			}
+			out.writeBoolean(agent.stateSerializer != null) ;
+			if (agent.stateSerializer != null) agent.stateSerializer.write(agent.state, out) ;
+		}
+		catch(IOException e) {
+			throw new UncheckedIOException(e) ;
+		}
+		return bytes.toByteArray() ;
+	}
+
+	private static void writeGoal(DataOutputStream out, GoalStructure G, SimpleState state) throws IOException {
+		out.writeByte(G.combinator.ordinal()) ;
+		out.writeInt(G.subgoals.size()) ;
+		writeStatus(out, G.status) ;
+		out.writeDouble(G.bmax) ;
+		out.writeDouble(G.budget) ;
+		out.writeDouble(G.consumedBudget) ;
+		out.writeDouble(G.pendingBudget) ;
+		out.writeLong(G.consumedTime) ;
+		out.writeLong(G.pendingTime) ;
+		if (G instanceof PrimitiveGoal) {
+			var goal = ((PrimitiveGoal) G).goal ;
+			writeStatus(out, goal.status) ;
+			out.writeBoolean(goal.distance != null) ;
+			if (goal.distance != null) out.writeDouble(goal.distance) ;
+			var tactics = tacticNodes(goal.tactic) ;
+			out.writeInt(tactics.size()) ;
+			for (var T : tactics) {
+				out.writeBoolean(T instanceof PrimitiveTactic
+						&& ((PrimitiveTactic) T).action.isCompleted(state)) ;
+			}
+		}
+	}
+
+	private static void writeStatus(DataOutputStream out, ProgressStatus status) throws IOException {
+		out.writeByte(status.status.ordinal()) ;
+		out.writeBoolean(status.info != null) ;
+		if (status.info != null) out.writeUTF(status.info) ;
+	}
+
+	static void read(BasicAgent agent, byte[] snapshot) {
+		try (var in = new DataInputStream(new ByteArrayInputStream(snapshot))) {
+			if (in.readInt() != MAGIC) throw new IllegalArgumentException("Not an agent snapshot.") ;
+			short version = in.readShort() ;
+			if (version != VERSION) throw new IllegalArgumentException("Unsupported snapshot version " + version) ;
+
+			boolean hasGoal = in.readBoolean() ;
+			List<GoalStructure> nodes = null ;
+			GoalRecord[] records = null ;
+			int currentGoalIndex = -1 ;
+			int currentTacticIndex = -1 ;
+			if (hasGoal) {
+				if (agent.goal == null)
+					throw new IllegalArgumentException("Agent " + agent.id + ": needs a goal structure to restore the snapshot into.") ;
+				nodes = goalNodes(agent.goal) ;
+				int N = in.readInt() ;
+				if (N != nodes.size()) throw mismatch(agent) ;
+				records = new GoalRecord[N] ;
+				for (int k=0; k<N; k++) {
+					records[k] = readGoal(in) ;
+					checkShape(agent, nodes.get(k), records[k]) ;
+				}
+				currentGoalIndex = in.readInt() ;
+				currentTacticIndex = in.readInt() ;
+				if (currentGoalIndex < -1 || currentGoalIndex >= N) throw mismatch(agent) ;
+				if (currentGoalIndex >= 0) {
+					if (! (nodes.get(currentGoalIndex) instanceof PrimitiveGoal)) throw mismatch(agent) ;
+					int numberOfTactics = tacticNodes(((PrimitiveGoal) nodes.get(currentGoalIndex)).goal.tactic).size() ;
+					if (currentTacticIndex < -1 || currentTacticIndex >= numberOfTactics) throw mismatch(agent) ;
+				}
+			}
+			boolean hasState = in.readBoolean() ;
+			if (hasState) {
+				if (agent.stateSerializer == null)
+					throw new IllegalArgumentException("Agent " + agent.id + ": needs a StateSerializer to restore the snapshot.") ;
+				readState(agent, in) ;
+			}
+
+			// everything is read and checked; now update the agent:
+			agent.state.clearActionContexts() ;
+			if (! hasGoal) {
+				agent.goal = null ;
+				agent.currentGoal = null ;
+				agent.currentTactic = null ;
+				return ;
+			}
+			for (int k=0; k<nodes.size(); k++) restoreGoal(nodes.get(k), records[k], agent.state) ;
+			if (currentGoalIndex < 0) {
+				agent.currentGoal = null ;
+				agent.currentTactic = null ;
+			}
+			else {
+				agent.currentGoal = (PrimitiveGoal) nodes.get(currentGoalIndex) ;
+				agent.currentTactic = currentTacticIndex < 0 ? null
+						: tacticNodes(agent.currentGoal.goal.tactic).get(currentTacticIndex) ;
+			}
+		}
+		catch(IOException | IndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("Corrupt agent snapshot.", e) ;
+		}
+	}
+
+	/**
+	 * Read the content of the agent's state. A StateSerializer reads into the
+	 * existing state, so the current content is saved first, and put back if the
+	 * snapshot turns out to be corrupt.
+	 */
+	private static void readState(BasicAgent agent, DataInputStream in) throws IOException {
+		var backup = new ByteArrayOutputStream() ;
+		try (var out = new DataOutputStream(backup)) {
+			agent.stateSerializer.write(agent.state, out) ;
+		}
+		try {
+			agent.stateSerializer.read(agent.state, in) ;
+		}
+		catch(IOException | RuntimeException e) {
+			try (var saved = new DataInputStream(new ByteArrayInputStream(backup.toByteArray()))) {
+				agent.stateSerializer.read(agent.state, saved) ;
+			}
+			throw e ;
+		}
+	}
+
+	private static GoalRecord readGoal(DataInputStream in) throws IOException {
+		var R = new GoalRecord() ;
+		R.combinator = in.readByte() ;
+		R.numberOfSubgoals = in.readInt() ;
+		R.status = in.readByte() ;
+		R.info = in.readBoolean() ? in.readUTF() : null ;
+		R.bmax = in.readDouble() ;
+		R.budget = in.readDouble() ;
+		R.consumedBudget = in.readDouble() ;
+		R.pendingBudget = in.readDouble() ;
+		R.consumedTime = in.readLong() ;
+		R.pendingTime = in.readLong() ;
+		if (R.combinator == GoalsCombinator.PRIMITIVE.ordinal()) {
+			R.goalStatus = in.readByte() ;
+			R.goalInfo = in.readBoolean() ? in.readUTF() : null ;
+			R.distance = in.readBoolean() ? in.readDouble() : null ;
+			R.completed = new boolean[in.readInt()] ;
+			for (int k=0; k<R.completed.length; k++) R.completed[k] = in.readBoolean() ;
+		}
+		return R ;
+	}
+
+	private static void checkShape(BasicAgent agent, GoalStructure G, GoalRecord R) {
+		if (G.combinator.ordinal() != R.combinator || G.subgoals.size() != R.numberOfSubgoals) throw mismatch(agent) ;
+		if (! isStatus(R.status) || (G instanceof PrimitiveGoal && ! isStatus(R.goalStatus)))
+			throw new IllegalArgumentException("Corrupt agent snapshot.") ;
+		if (G instanceof PrimitiveGoal
+				&& tacticNodes(((PrimitiveGoal) G).goal.tactic).size() != R.completed.length) throw mismatch(agent) ;
+	}
+
+	private static boolean isStatus(byte ordinal) {
+		return 0 <= ordinal && ordinal < ProgressStatus_.values().length ;
+	}
+
+	private static IllegalArgumentException mismatch(BasicAgent agent) {
+		return new IllegalArgumentException("Agent " + agent.id + ": the snapshot does not match the agent's goal structure.") ;
+	}
+
+	private static void restoreGoal(GoalStructure G, GoalRecord R, SimpleState state) {
+		restoreStatus(G.status, R.status, R.info) ;
+		G.bmax = R.bmax ;
+		G.budget = R.budget ;
+		G.consumedBudget = R.consumedBudget ;
+		G.pendingBudget = R.pendingBudget ;
+		G.consumedTime = R.consumedTime ;
+		G.pendingTime = R.pendingTime ;
+		if (G instanceof PrimitiveGoal) {
+			var goal = ((PrimitiveGoal) G).goal ;
+			restoreStatus(goal.status, R.goalStatus, R.goalInfo) ;
+			goal.distance = R.distance ;
+			var tactics = tacticNodes(goal.tactic) ;
+			for (int k=0; k<tactics.size(); k++) {
+				var T = tactics.get(k) ;
+				if (T instanceof PrimitiveTactic) ((PrimitiveTactic) T).action.markCompleted(state, R.completed[k]) ;
+			}
+		}
+	}
+
+	private static void restoreStatus(ProgressStatus status, byte ordinal, String info) {
+		status.status = ProgressStatus_.values()[ordinal] ;
+		status.info = info ;
+	}
+
+	/**
+	 * Return the nodes of the given goal structure, in pre-order.
+	 */
+	static List<GoalStructure> goalNodes(GoalStructure G) {
+		List<GoalStructure> nodes = new ArrayList<>() ;
+		collectGoalNodes(G,nodes) ;
+		return nodes ;
+	}
+
+	private static void collectGoalNodes(GoalStructure G, List<GoalStructure> nodes) {
+		nodes.add(G) ;
+		for (var H : G.subgoals) collectGoalNodes(H,nodes) ;
+	}
+
+	/**
+	 * Return the nodes of the given tactic, in pre-order.
+	 */
+	static List<Tactic> tacticNodes(Tactic T) {
+		List<Tactic> nodes = new ArrayList<>() ;
+		if (T != null) collectTacticNodes(T,nodes) ;
+		return nodes ;
+	}
+
+	private static void collectTacticNodes(Tactic T, List<Tactic> nodes) {
+		nodes.add(T) ;
+		if (T.subtactics != null) {
+			for (var U : T.subtactics) collectTacticNodes(U,nodes) ;
+		}
+	}
+
+}
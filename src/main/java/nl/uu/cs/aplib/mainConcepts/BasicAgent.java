@@ -9,14 +9,19 @@ import java.util.logging.Logger;
 
 import static nl.uu.cs.aplib.AplibEDSL.* ;
 import nl.uu.cs.aplib.Logging;
+import nl.uu.cs.aplib.Metrics;
 import nl.uu.cs.aplib.exception.AplibError;
 import nl.uu.cs.aplib.mainConcepts.Action.Abort;
 import nl.uu.cs.aplib.mainConcepts.GoalStructure.GoalsCombinator;
 import nl.uu.cs.aplib.mainConcepts.GoalStructure.PrimitiveGoal;
 import nl.uu.cs.aplib.mainConcepts.Tactic.PrimitiveTactic;
+import nl.uu.cs.aplib.metrics.Counter;
+import nl.uu.cs.aplib.metrics.MetricsRegistry;
+import nl.uu.cs.aplib.metrics.Timer;
 import nl.uu.cs.aplib.multiAgentSupport.ComNode;
 import nl.uu.cs.aplib.multiAgentSupport.Message;
 import nl.uu.cs.aplib.multiAgentSupport.Messenger;
+import nl.uu.cs.aplib.utils.NanoTime;
 import nl.uu.cs.aplib.utils.Time;
 
 /**
@@ -120,6 +125,9 @@ public class BasicAgent {
 	 * A time tracker used to calculated the agent's actions' execution time for the purpose
 	 * of budget calculation. This is declared as an explicit field so that it can be
 	 * conveniently mocked during testing (you have to test from the same package).
+	 * By default it tracks time in ms, see {@link #useNanoTime()} to track it in ns.
+	 * The measured time is converted to ns before it is registered in the statistics
+	 * of the actions and goals, so with the default these have ms resolution.
 	 */
 	protected Time mytime = new Time() ;
 	
@@ -135,6 +143,32 @@ public class BasicAgent {
 	 */
 	protected CostFunction costFunction = new CostFunction() ;
 	
+	/**
+	 * A buffer to collect the enabled actions at every tick. It is reused across ticks
+	 * to avoid allocating a new list every time.
+	 */
+	protected List<PrimitiveTactic> candidates = new ArrayList<>() ;
+	
+	/**
+	 * If true, the budget and time consumed at every update are only registered at the
+	 * current goal, and are propagated to its ancestors when the current goal is closed.
+	 * See {@link #useBatchedBudgetPropagation()}.
+	 */
+	protected boolean batchedBudgetPropagation = false ;
+	
+	/**
+	 * Used to include the agent's state in snapshots, see {@link #snapshot()}. If
+	 * null, snapshots do not include the state.
+	 */
+	protected StateSerializer stateSerializer = null ;
+	
+	/**
+	 * The registry from which the metrics below were obtained; see {@link Metrics}.
+	 */
+	private MetricsRegistry metricsRegistry = null ;
+	private Timer updateTimer ;
+	private Counter noEnabledActionCounter ;
+	
 	/**
 	 * Create a blank agent. You will need to at least attach a {@link SimpleState} and 
 	 * a {@link GoalStructure} to it before it can be used to do something.
@@ -166,6 +200,7 @@ public class BasicAgent {
 	 * method can be used in the Fluent Interface style.
 	 */
 	public BasicAgent setGoal(GoalStructure g) {
+		flushBudgetOfCurrentGoal() ;
 		goal = g ;
 		if (! allGoalsHaveTactic(g)) 
 			throw new IllegalArgumentException("Agent " + id + ": some goal has no tactic.") ;
@@ -175,9 +210,27 @@ public class BasicAgent {
 		if (currentTactic == null) 
 			throw new IllegalArgumentException("Agent "  + id 
 					+ ", goal " + currentGoal.goal.name + ": has NO tactic.") ;
+		// the execution contexts of actions the new goal does not use would otherwise
+		// accumulate in the state; those of the previous goal are kept until now, so
+		// that they can still be inspected after that goal was concluded:
+		if (state != null) state.retainActionContexts(actionsOf(g)) ;
 		return this ; 
 	}
 	
+	/**
+	 * Return the actions in the tactics of the given goal structure.
+	 */
+	private static Set<Action> actionsOf(GoalStructure g) {
+		Set<Action> actions = Collections.newSetFromMap(new IdentityHashMap<>()) ;
+		for (var G : AgentSnapshot.goalNodes(g)) {
+			if (! (G instanceof PrimitiveGoal)) continue ;
+			for (var T : AgentSnapshot.tacticNodes(((PrimitiveGoal) G).goal.getTactic())) {
+				if (T instanceof PrimitiveTactic) actions.add(((PrimitiveTactic) T).action) ;
+			}
+		}
+		return actions ;
+	}
+	
 	private static boolean allGoalsHaveTactic(GoalStructure g) {
 		if (g instanceof PrimitiveGoal) {
 			var g_ = (PrimitiveGoal) g ;
@@ -219,6 +272,25 @@ public class BasicAgent {
 		costFunction = f ; return this ;
 	}
 	
+	/**
+	 * Let the agent register consumed budget and time only at its current goal,
+	 * rather than at the current goal and all its ancestors at every update. The
+	 * consumption is propagated to the ancestors when the current goal is closed,
+	 * or when the goal structure is changed through {@link #addAfter(GoalStructure)},
+	 * {@link #addBefore(GoalStructure)} or {@link #remove(GoalStructure)}. This
+	 * saves work on deep goal structures. Since the current goal's own budget is
+	 * still updated at every update, goals fail on exhausted budget exactly as they
+	 * do without batching. The method returns the agent itself so that it can be
+	 * used in the Fluent Interface style.
+	 */
+	public BasicAgent useBatchedBudgetPropagation() {
+		batchedBudgetPropagation = true ; return this ;
+	}
+	
+	private void flushBudgetOfCurrentGoal() {
+		if (currentGoal != null) currentGoal.flushPendingConsumption() ;
+	}
+	
 	/**
 	 * Return the agent's id, if it was set.
 	 */
@@ -254,6 +326,18 @@ public class BasicAgent {
 		return this  ;
 	}
 	
+	/**
+	 * Measure the time spent on actions and goals with {@link NanoTime}, rather than with
+	 * the default ms {@link Time}. This makes the time statistics of the actions and
+	 * goals (and thus their latency histograms) precise below one ms, and not affected by
+	 * adjustments of the wall-clock. The method returns the agent itself so that this
+	 * method can be used in the Fluent Interface style.
+	 */
+	public BasicAgent useNanoTime() {
+		mytime = new NanoTime() ;
+		return this ;
+	}
+	
 	/**
 	 * Replace the agent's deliberation module with the one given to this method.
 	 * The method returns the agent itself so that this method can be used in the
@@ -270,11 +354,18 @@ public class BasicAgent {
 	 * setting the {@code goal} and {@code currentGoal} fields to null.
 	 */
 	protected void detachgoal() {
+		flushBudgetOfCurrentGoal() ;
 		lastHandledGoal = goal ;
 		goal = null ;
 		currentGoal = null ;
 	}
 	
+	/**
+	 * Return the top goal the agent is currently working on, or null if it has none,
+	 * e.g. because its goal has been concluded and detached.
+	 */
+	public GoalStructure getGoal() { return goal ; }
+	
 	/**
 	 * Return the goal-structure that was last detached by this agent. A goal is detached
 	 * when it is declared successful or failed. 
@@ -282,7 +373,54 @@ public class BasicAgent {
 	public GoalStructure getLastHandledGoal() { return lastHandledGoal ; }
 	
 	/**
-	 * Currently unimplemented.
+	 * Set the serializer that is used to include the agent's state in its snapshots,
+	 * see {@link #snapshot()}. The method returns the agent itself so that this
+	 * method can be used in the Fluent Interface style.
+	 */
+	public BasicAgent withStateSerializer(StateSerializer serializer) {
+		stateSerializer = serializer ; return this ;
+	}
+	
+	/**
+	 * Take a snapshot of this agent's reasoning state, in a compact binary form. The
+	 * snapshot contains the status, budget and time bookkeeping of every node in the
+	 * agent's goal structure, the completion flags of the actions in its tactics, the
+	 * current goal and tactic, and, if a {@link StateSerializer} was set, the content
+	 * of the agent's state. It can be given to {@link #restore(byte[])}, e.g. to
+	 * continue a long run from a checkpoint.
+	 * 
+	 * <p>
+	 * The goal structure itself, and the deliberation and cost function of the
+	 * agent, are not part of the snapshot. Neither are the last proposals of the
+	 * goals.
+	 */
+	public byte[] snapshot() {
+		return AgentSnapshot.write(this) ;
+	}
+	
+	/**
+	 * Restore this agent's reasoning state from the given snapshot, see
+	 * {@link #snapshot()}. The agent must already have a goal structure of the same
+	 * shape as the one it had when the snapshot was taken, e.g. one that is built by
+	 * the same code. A different agent can be used, so that a run can be forked from
+	 * a checkpoint. If the snapshot includes the state, this agent must have a
+	 * {@link StateSerializer} that can read it. The agent's cached guard results and
+	 * its own statistics of the actions are reset.
+	 * 
+	 * <p>
+	 * The snapshot is first read and checked completely, so if it does not fit
+	 * the goal structure an IllegalArgumentException is thrown and the goal
+	 * structure is left unchanged. The method returns the agent itself so that
+	 * this method can be used in the Fluent Interface style.
+	 */
+	public BasicAgent restore(byte[] snapshot) {
+		AgentSnapshot.read(this,snapshot) ;
+		return this ;
+	}
+	
+	/**
+	 * Currently unimplemented. To continue from an earlier point of a run, see
+	 * {@link #snapshot()} and {@link #restore(byte[])}.
 	 */
 	public void restart() { 
 		throw new UnsupportedOperationException() ;
@@ -322,6 +460,7 @@ public class BasicAgent {
 		if (currentGoal == null || currentGoal.isTopGoal()) 
 			throw new IllegalArgumentException() ;
 		
+		flushBudgetOfCurrentGoal() ;
 		var parent = currentGoal.parent ;
 		if (parent.combinator == GoalsCombinator.REPEAT) {
 			// if the parent is a REPEAT-node, it can only have one child. So, we insert
@@ -329,20 +468,12 @@ public class BasicAgent {
 			var H = SEQ(currentGoal,G) ;
 			H.budget = parent.budget ;
 			parent.subgoals.clear(); 
-			parent.subgoals.add(H) ;
-			H.parent = parent ;
+			parent.insertSubgoal(0,H) ;
 			return ;
 		}
 		else {
-			int k = currentGoal.parent.subgoals.indexOf(currentGoal) ;
-			int N = currentGoal.parent.subgoals.size() ;
-			if (k==N-1) {
-				currentGoal.parent.subgoals.add(G) ;
-			}
-			else {
-				currentGoal.parent.subgoals.add(k+1,G);
-			}
-			G.parent = currentGoal.parent ;
+			int k = currentGoal.indexInParent() ;
+			parent.insertSubgoal(k+1,G) ;
 		}
 	}
 	
@@ -367,9 +498,10 @@ public class BasicAgent {
 	public void addBefore(GoalStructure G) {
 		if (currentGoal == null || currentGoal.isTopGoal()) throw new IllegalArgumentException() ;
 		
+		flushBudgetOfCurrentGoal() ;
 		// currentGoal must therefore have a parent:
 		var parent = currentGoal.parent ;
-		int k = parent.subgoals.indexOf(currentGoal) ;
+		int k = currentGoal.indexInParent() ;
 		
 		// case (1), G was already added. This is the case if G occurs as a previous
 		// sibling under a SEQ parent.
@@ -386,9 +518,8 @@ public class BasicAgent {
 		g1.budget = parent.budget ;
 		repeatNode.budget = parent.budget ;
 		if (Double.isFinite(parent.budget)) repeatNode.maxbudget(parent.budget) ;
-		parent.subgoals.remove(k) ;
-		parent.subgoals.add(k,repeatNode);
-		repeatNode.parent = parent ;
+		parent.removeSubgoal(k) ;
+		parent.insertSubgoal(k,repeatNode);
 	    // case-2 done
 	}
 	
@@ -398,12 +529,13 @@ public class BasicAgent {
 	 */
 	public void remove(GoalStructure G) {
 		if (goal==null || currentGoal.isDescendantOf(G)) throw new IllegalArgumentException() ;
+		flushBudgetOfCurrentGoal() ;
 		removeGoalWorker(goal,G) ;
 	}
 	
 	private boolean removeGoalWorker(GoalStructure H, GoalStructure tobeRemoved) {
-		if (H.subgoals.contains(tobeRemoved)) {
-			H.subgoals.remove(tobeRemoved) ;
+		if (tobeRemoved.parent == H && tobeRemoved.indexInParent() >= 0) {
+			H.removeSubgoal(tobeRemoved.indexInParent()) ;
 			if (H.subgoals.isEmpty()) {
 				if (H.isTopGoal()) {
 					throw new AplibError("Removal of a goal structure causes the topgoal to become childless.") ;
@@ -456,6 +588,10 @@ public class BasicAgent {
 	 * This method also keeps track of the computation time so far used to work on
 	 * the topgoal as well as the current subgoal. If this exceeds the allocated
 	 * time, the corresponding topgoal/subgoal will be marked as failed.
+	 * 
+	 * <p>
+	 * The Environment is locked for the whole update, unless it is in the
+	 * fine-grained locking mode ({@link Environment#useFineGrainedLocking()}).
 	 */
 	public void update() {
 		if (goal == null) {
@@ -468,6 +604,12 @@ public class BasicAgent {
 		// the budget at the end of every update instead.
 			
 		mytime.sample(); 
+		if (state.env != null && state.env.usesFineGrainedLocking()) {
+			// the Environment guards its own refresh and commands, so the rest of the
+			// agent's reasoning can run in parallel with other agents:
+			updateWorker() ;
+			return ;
+		}
 		// We need to lock the environment since there may be multiple agents
 		// sharing the same environment:
 		lockEnvironment() ;
@@ -479,11 +621,52 @@ public class BasicAgent {
 	}
 	
 	private void updateWorker() {
+		var registry = Metrics.getRegistry() ;
+		if (registry.isNoOp()) {
+			updateWorker_() ;
+			return ;
+		}
+		bindMetrics(registry) ;
+		long t0 = System.nanoTime() ;
+		try {
+			updateWorker_() ;
+		}
+		finally {
+			updateTimer.record(System.nanoTime() - t0) ;
+			if (candidates.isEmpty()) noEnabledActionCounter.inc(); 
+		}
+	}
+	
+	/**
+	 * Make sure that the metric handles of this agent come from the given registry.
+	 */
+	private void bindMetrics(MetricsRegistry registry) {
+		if (registry == metricsRegistry) return ;
+		String prefix = "agent." + id + "." ;
+		updateTimer = registry.timer(prefix + "update") ;
+		noEnabledActionCounter = registry.counter(prefix + "noEnabledAction") ;
+		registry.gauge(prefix + "budget", () -> {
+			var g = goal ;
+			return g == null ? 0 : g.budget ;
+		}) ;
+		metricsRegistry = registry ;
+	}
+	
+	/**
+	 * The distance of the goal to being solved, or NaN if it has none yet.
+	 */
+	private static double distanceOf(Goal g) {
+		Double d = g.distance() ;
+		return d == null ? Double.NaN : d ;
+	}
+	
+	private void updateWorker_() {
 		
 		// update the agent's state:
 		state.updateState() ;
 		
-		var candidates = currentTactic.getFirstEnabledActions(state) ;
+		candidates.clear();
+		currentTactic.collectFirstEnabledActions(state,candidates) ;
 		if (candidates.isEmpty()) {
 			// if no action is enabled, we wait until the next update, to see
 			// if the environment changes its state.
@@ -496,7 +679,10 @@ public class BasicAgent {
 		var chosenAction = deliberation.deliberate(state,candidates) ;
 		
 		
-		if (chosenAction.action instanceof Abort) {
+		boolean wantsOutcomes = deliberation.wantsOutcomes() ;
+		double distanceBefore = wantsOutcomes ? distanceOf(currentGoal.goal) : Double.NaN ;
+		boolean isAbort = chosenAction.action instanceof Abort ;
+		if (isAbort) {
 			// if the action is ABORT:
 			currentGoal.setStatusToFail("Abort was invoked.");
 		}
@@ -507,15 +693,24 @@ public class BasicAgent {
 			if (currentGoal.goal.getStatus().success()) {
 				currentGoal.setStatusToSuccess("Solved by " + chosenAction.action.name);
 			}
-			currentGoal.registerConsumedBudget(costFunction.getCost());
+			if (batchedBudgetPropagation) 
+				currentGoal.registerConsumedBudgetLocally(costFunction.getCost());
+			else
+				currentGoal.registerConsumedBudget(costFunction.getCost());
 		}
 		
 		// registering some statistics:
-		chosenAction.action.invocationCount++ ;
-		var elapsed = mytime.elapsedTimeSinceLastSample() ;
+		var elapsed = mytime.unit().toNanos(mytime.elapsedTimeSinceLastSample()) ;
 		//System.out.println("### elapsed: " + elapsed) ;
-		chosenAction.action.totalRuntime += elapsed ;   
-		currentGoal.registerUsedTime(elapsed);
+		chosenAction.action.registerInvocation(state,elapsed) ;
+		if (wantsOutcomes && ! isAbort) {
+			deliberation.reportOutcome(state, chosenAction, costFunction.getCost(), elapsed, 
+					distanceBefore, distanceOf(currentGoal.goal), currentGoal.goal.getStatus().success()) ;
+		}
+		if (batchedBudgetPropagation)
+			currentGoal.registerUsedTimeLocally(elapsed);
+		else
+			currentGoal.registerUsedTime(elapsed);
 
 		
 		// if the current goal is not decided (still in progres), check if its budget is
@@ -523,6 +718,11 @@ public class BasicAgent {
 		if (currentGoal.getStatus().inProgress() && currentGoal.budget <= 0d) {
 			currentGoal.setStatusToFailBecauseBudgetExhausted();
 		}
+		// the consumption registered after the current goal was closed still has to
+		// be propagated:
+		if (batchedBudgetPropagation && ! currentGoal.getStatus().inProgress()) {
+			currentGoal.flushPendingConsumption();
+		}
 		
 		// check the status of top-level goal; if it is resolved, the agent is done:
 		if (goal.getStatus().success() || goal.getStatus().failed())  {
@@ -550,8 +750,8 @@ public class BasicAgent {
 		}
 		else {
 			// else the currentgoal is still in-progress
-			if(chosenAction.action.isCompleted()) {
-				currentTactic = chosenAction.calcNextTactic() ;
+			if(chosenAction.action.isCompleted(state)) {
+				currentTactic = chosenAction.calcNextTactic(state) ;
 				// if no tactic can be found, reset it to the root tactic of the goal:
 				if (currentTactic == null) 
 					currentTactic = currentGoal.goal.getTactic() ;
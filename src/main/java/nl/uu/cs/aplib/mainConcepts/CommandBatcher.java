@@ -0,0 +1,176 @@
+package nl.uu.cs.aplib.mainConcepts;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nl.uu.cs.aplib.mainConcepts.Environment.EnvOperation;
+
+/**
+ * Collects the batchable commands that are sent to an {@link Environment} within
+ * a time window, and executes them together, through
+ * {@link Environment#sendBatch_(List)}; see
+ * {@link Environment#useCommandBatching(long, int, String...)}.
+ *
+ * <p>
+ * The first command that arrives when there is no open batch opens a new batch.
+ * Its sender becomes the batch's leader: it waits until the window has passed, or
+ * until the batch is full, and then executes the batch. The senders of the other
+ * commands in the batch wait until the leader is done. Read-only commands in the
+ * same batch with the same target, command and argument are merged into one
+ * operation, also if they have different invokers; every invoker gets its own
+ * result (see {@link EnvOperation#invokerIds}).
+ *
+ * <p>The leader waits while holding the locks that its sender holds. So batching
+ * requires the fine-grained locking mode, where a read-only command only holds
+ * the Environment's read-lock.
+ */
+class CommandBatcher {
+
+	static class Batch {
+		List<EnvOperation> operations = new ArrayList<>() ;
+		Map<List<Object>,EnvOperation> readOnlyOperations = new HashMap<>() ;
+		int numberOfSenders = 0 ;
+		boolean closed = false ;
+		CountDownLatch done = new CountDownLatch(1) ;
+
+		/**
+		 * Add the given command to this batch, and return the operation that will
+		 * actually be executed for it. This is the command itself, unless a
+		 * read-only command with the same target, command and argument is already
+		 * in the batch; the invoker of the given command is then added to that one.
+		 */
+		EnvOperation add(EnvOperation cmd) {
+			numberOfSenders++ ;
+			if (cmd.readOnly) {
+				var key = Arrays.asList(cmd.targetId, cmd.command, cmd.arg) ;
+				var existing = readOnlyOperations.putIfAbsent(key, cmd) ;
+				if (existing != null) {
+					if (existing.invokerIds == null && ! Objects.equals(existing.invokerId, cmd.invokerId)) {
+						existing.invokerIds = new ArrayList<>() ;
+						existing.invokerIds.add(existing.invokerId) ;
+					}
+					if (existing.invokerIds != null && ! existing.invokerIds.contains(cmd.invokerId)) 
+						existing.invokerIds.add(cmd.invokerId) ;
+					return existing ;
+				}
+			}
+			operations.add(cmd) ;
+			return cmd ;
+		}
+
+		void await() {
+			boolean interrupted = false ;
+			while (true) {
+				try {
+					done.await() ;
+					break ;
+				}
+				catch(InterruptedException e) {
+					interrupted = true ;
+				}
+			}
+			if (interrupted) Thread.currentThread().interrupt() ;
+		}
+	}
+
+	Environment env ;
+	long window ;
+	int maxBatchSize ;
+	Set<String> commands ;
+
+	/**
+	 * The batch that new commands are added to, if any.
+	 */
+	Batch current = null ;
+
+	AtomicLong numberOfBatches = new AtomicLong() ;
+
+	CommandBatcher(Environment env, long window, int maxBatchSize, Set<String> commands) {
+		this.env = env ;
+		this.window = window ;
+		this.maxBatchSize = maxBatchSize ;
+		this.commands = commands ;
+	}
+
+	boolean isBatchable(EnvOperation cmd) {
+		return commands.contains(cmd.command) ;
+	}
+
+	/**
+	 * Add the given command to the current batch, wait until the batch is executed,
+	 * and return the command's result.
+	 */
+	Object submit(EnvOperation cmd) {
+		Batch B ;
+		EnvOperation operation ;
+		boolean leader = false ;
+		synchronized(this) {
+			if (current == null) {
+				current = new Batch() ;
+				leader = true ;
+			}
+			B = current ;
+			operation = B.add(cmd) ;
+			if (B.numberOfSenders >= maxBatchSize) close(B) ;
+		}
+		if (leader) {
+			synchronized(this) {
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(window) ;
+				long remaining ;
+				while (! B.closed && (remaining = deadline - System.nanoTime()) > 0) {
+					try {
+						TimeUnit.NANOSECONDS.timedWait(this, remaining) ;
+					}
+					catch(InterruptedException e) {
+						Thread.currentThread().interrupt() ;
+						break ;
+					}
+				}
+				if (! B.closed) close(B) ;
+			}
+			execute(B) ;
+		}
+		else {
+			B.await() ;
+		}
+		if (operation.exception != null) {
+			if (operation.exception instanceof RuntimeException) throw (RuntimeException) operation.exception ;
+			if (operation.exception instanceof Error) throw (Error) operation.exception ;
+			throw new RuntimeException(operation.exception) ;
+		}
+		if (operation.resultPerInvoker == null) return operation.result ;
+		if (! operation.resultPerInvoker.containsKey(cmd.invokerId))
+			throw new IllegalStateException("The batch gave no result of " + cmd.command + " for " + cmd.invokerId) ;
+		return operation.resultPerInvoker.get(cmd.invokerId) ;
+	}
+
+	private void close(Batch B) {
+		B.closed = true ;
+		if (current == B) current = null ;
+		notifyAll() ;
+	}
+
+	private void execute(Batch B) {
+		try {
+			numberOfBatches.incrementAndGet() ;
+			env.sendBatch_(B.operations) ;
+		}
+		catch(RuntimeException | Error e) {
+			for (var op : B.operations) {
+				if (op.exception == null) op.exception = e ;
+			}
+		}
+		finally {
+			B.done.countDown() ;
+		}
+	}
+
+}
@@ -0,0 +1,126 @@
+package nl.uu.cs.aplib.mainConcepts;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nl.uu.cs.aplib.mainConcepts.Environment.EnvOperation;
+
+/**
+ * Executes the asynchronous commands of an {@link Environment}, see
+ * {@link Environment#sendCommandAsync(String, String, String, Object, Class)}.
+ *
+ * <ul>
+ * <li>At most maxInFlight commands are executed at the same time, each on its own
+ * worker thread.
+ * <li>The commands of the same invoker are executed one after another, in the
+ * order in which they were sent. Commands of different invokers can overtake each
+ * other.
+ * <li>Every command gets a sequence number when it is sent. Whatever order the
+ * commands complete in, the Environment's instrumenters see them in the order of
+ * their sequence numbers.
+ * </ul>
+ */
+class CommandPipeline {
+
+	/**
+	 * Used to tell {@link Environment#sendCommand(String, String, String, Object, Class)}
+	 * that it runs on behalf of a pipeline, so that it hands its operation over
+	 * for instrumentation, rather than instrumenting it right away.
+	 */
+	static class DeferredInstrumentation {
+		Environment env ;
+		EnvOperation operation ;
+		DeferredInstrumentation(Environment env) { this.env = env ; }
+	}
+
+	static final ThreadLocal<DeferredInstrumentation> deferred = new ThreadLocal<>() ;
+
+	static final CompletableFuture<Object> DONE = CompletableFuture.completedFuture(null) ;
+
+	static AtomicInteger pipelineCounter = new AtomicInteger() ;
+
+	Environment env ;
+	int maxInFlight ;
+	ExecutorService workers ;
+
+	/**
+	 * The last command sent by every invoker, that is not completed yet.
+	 */
+	Map<String,CompletableFuture<Object>> tails = new HashMap<>() ;
+
+	long nextSequenceNumber = 0 ;
+	long nextToInstrument = 0 ;
+
+	/**
+	 * Completed commands that wait for the commands before them to be
+	 * instrumented. A null value means that there is nothing to instrument, e.g.
+	 * because the command failed.
+	 */
+	TreeMap<Long,EnvOperation> completed = new TreeMap<>() ;
+
+	CommandPipeline(Environment env, int maxInFlight) {
+		this.env = env ;
+		this.maxInFlight = maxInFlight ;
+		int id = pipelineCounter.incrementAndGet() ;
+		AtomicInteger threadCounter = new AtomicInteger() ;
+		workers = Executors.newFixedThreadPool(maxInFlight, r -> {
+			var t = new Thread(r, "CommandPipeline-" + id + "-" + threadCounter.incrementAndGet()) ;
+			t.setDaemon(true) ;
+			return t ;
+		}) ;
+	}
+
+	CompletableFuture<Object> submit(String invokerId, String targetId, String command, Object arg, Class expectedTypeOfResult) {
+		final CompletableFuture<Object> F ;
+		var sender = env.usage.get() ;
+		synchronized(this) {
+			long seqnr = nextSequenceNumber++ ;
+			var previous = tails.getOrDefault(invokerId, DONE) ;
+			F = previous
+				.handle((r,e) -> null)
+				.thenApplyAsync(x -> execute(seqnr, sender, invokerId, targetId, command, arg, expectedTypeOfResult), workers) ;
+			tails.put(invokerId, F) ;
+		}
+		F.whenComplete((r,e) -> {
+			synchronized(this) {
+				tails.remove(invokerId, F) ;
+			}
+		}) ;
+		return F ;
+	}
+
+	private Object execute(long seqnr, Environment.Usage sender, 
+			String invokerId, String targetId, String command, Object arg, Class expectedTypeOfResult) {
+		var D = new DeferredInstrumentation(env) ;
+		deferred.set(D) ;
+		// charge the command to the thread that sent it:
+		env.usage.set(sender) ;
+		try {
+			return env.sendCommand(invokerId, targetId, command, arg, expectedTypeOfResult) ;
+		}
+		finally {
+			env.usage.remove() ;
+			deferred.remove() ;
+			instrumentInOrder(seqnr, D.operation) ;
+		}
+	}
+
+	private synchronized void instrumentInOrder(long seqnr, EnvOperation operation) {
+		completed.put(seqnr, operation) ;
+		while (! completed.isEmpty() && completed.firstKey() == nextToInstrument) {
+			var op = completed.pollFirstEntry().getValue() ;
+			if (op != null) env.instrument(op) ;
+			nextToInstrument++ ;
+		}
+	}
+
+	void shutdown() {
+		workers.shutdown() ;
+	}
+
+}
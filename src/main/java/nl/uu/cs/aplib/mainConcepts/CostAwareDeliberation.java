@@ -0,0 +1,221 @@
+package nl.uu.cs.aplib.mainConcepts;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import nl.uu.cs.aplib.mainConcepts.Tactic.PrimitiveTactic;
+
+/**
+ * A {@link Deliberation} that learns, for every action, how much progress towards
+ * the current goal it makes, and how much budget it costs. When multiple actions
+ * are enabled, it prefers the one that is expected to give the most progress per
+ * unit of budget. This is treated as a multi-armed bandit problem, using the UCB1
+ * policy: every action gets a score
+ * 
+ * <pre>
+ *    avg. reward / ((avg. cost + c0) / (avg. cost of the candidates + c0)) + c * sqrt(ln N / n)
+ * </pre>
+ * 
+ * where n is the number of times the action was executed, and N is the total
+ * number of executions. The second term favors actions that have been tried less
+ * often; it is not scaled by the cost, so that an action that costs nothing but
+ * makes no progress is only tried as often as any other unrewarding action. The
+ * smoothing term c0 is a fraction of the avg. cost of the candidates (see
+ * {@link #withCostSmoothing(double)}); it keeps the reward of cheap actions from
+ * getting an unbounded boost. The action with the highest score is chosen. Actions that have never been
+ * executed are tried first.
+ * 
+ * <p>
+ * The reward of an execution is 1 if it solves the current goal. Otherwise it is
+ * the relative decrease of the goal's distance (see {@link Goal#distance()}), which
+ * is between 0 and 1. The cost is the cost calculated by the agent's {@link CostFunction},
+ * plus optionally a charge for the execution time (see {@link #chargeRuntime(double)}).
+ * 
+ * <p>
+ * What is learned is kept per action, across goals. So, the same instance should
+ * not be shared by agents that do not share their actions.
+ */
+public class CostAwareDeliberation extends Deliberation {
+	
+	/**
+	 * What has been learned about a single action.
+	 */
+	static class ActionStats {
+		int count = 0 ;
+		double totalReward = 0 ;
+		double totalCost = 0 ;
+		long totalRuntime = 0 ;
+		
+		double meanReward() { return count == 0 ? 0 : totalReward / count ; }
+		double meanCost() { return count == 0 ? 0 : totalCost / count ; }
+	}
+	
+	Map<Action,ActionStats> stats = new IdentityHashMap<>() ;
+	int totalCount = 0 ;
+	
+	/**
+	 * The weight c of the exploration term in the score.
+	 */
+	double exploration = Math.sqrt(2) ;
+	
+	/**
+	 * The cost charged for every ms of execution time, on top of the cost calculated
+	 * by the agent's cost function.
+	 */
+	double runtimeCostPerMs = 0 ;
+	
+	/**
+	 * The smoothing term c0 in the score, as a fraction of the avg. cost of the
+	 * candidates.
+	 */
+	double costSmoothing = 0.5 ;
+	
+	public CostAwareDeliberation() { super() ; }
+	
+	/**
+	 * Set the weight of the exploration term in the score; the default is sqrt(2).
+	 * A lower value makes the deliberation stick sooner to the action that did best
+	 * so far. The method returns the deliberation itself so that it can be used in
+	 * the Fluent Interface style.
+	 */
+	public CostAwareDeliberation withExploration(double c) {
+		if (c < 0) throw new IllegalArgumentException() ;
+		exploration = c ; return this ;
+	}
+	
+	/**
+	 * Add the given cost for every ms of execution time of an action, on top of the
+	 * cost calculated by the agent's cost function. This makes the deliberation
+	 * prefer faster actions. The method returns the deliberation itself so that it
+	 * can be used in the Fluent Interface style.
+	 */
+	public CostAwareDeliberation chargeRuntime(double costPerMs) {
+		if (costPerMs < 0) throw new IllegalArgumentException() ;
+		runtimeCostPerMs = costPerMs ; return this ;
+	}
+	
+	/**
+	 * Set the smoothing term that is added to the costs when dividing the avg. reward
+	 * by the relative cost of an action, as a fraction of the avg. cost of the
+	 * candidates; the default is 0.5. The reward of an action that costs nothing then
+	 * weighs at most (1+s)/s times more than the same reward of an action of average
+	 * cost. A lower value makes the deliberation more sensitive to costs. The method returns the deliberation itself
+	 * so that it can be used in the Fluent Interface style.
+	 */
+	public CostAwareDeliberation withCostSmoothing(double s) {
+		if (s <= 0) throw new IllegalArgumentException() ;
+		costSmoothing = s ; return this ;
+	}
+	
+	private ActionStats statsOf(Action a) {
+		var S = stats.get(a) ;
+		if (S == null) {
+			S = new ActionStats() ;
+			stats.put(a,S) ;
+		}
+		return S ;
+	}
+
+	@Override
+	public PrimitiveTactic deliberate(SimpleState currentstate, List<PrimitiveTactic> candidates) {
+		int N = candidates.size() ;
+		if (N == 1) return candidates.get(0) ;
+		
+		// first try actions that have never been executed; choose randomly among them:
+		PrimitiveTactic chosen = null ;
+		int untried = 0 ;
+		double totalMeanCost = 0 ;
+		for (int k=0; k<N; k++) {
+			var S = stats.get(candidates.get(k).action) ;
+			if (S == null || S.count == 0) {
+				untried++ ;
+				if (rnd.nextInt(untried) == 0) chosen = candidates.get(k) ;
+			}
+			else totalMeanCost += S.meanCost() ;
+		}
+		if (chosen != null) return chosen ;
+		
+		double avgCost = totalMeanCost / N ;
+		double c0 = costSmoothing * avgCost ;
+		double logTotal = Math.log(Math.max(1,totalCount)) ;
+		double bestScore = Double.NEGATIVE_INFINITY ;
+		int ties = 0 ;
+		for (int k=0; k<N; k++) {
+			var S = stats.get(candidates.get(k).action) ;
+			double score = S.meanReward() ;
+			if (avgCost > 0) score = score / ((S.meanCost() + c0) / (avgCost + c0)) ;
+			score += exploration * Math.sqrt(logTotal / S.count) ;
+			if (score > bestScore) {
+				bestScore = score ;
+				chosen = candidates.get(k) ;
+				ties = 1 ;
+			}
+			else if (score == bestScore) {
+				ties++ ;
+				if (rnd.nextInt(ties) == 0) chosen = candidates.get(k) ;
+			}
+		}
+		return chosen ;
+	}
+	
+	@Override
+	public boolean wantsOutcomes() {
+		return true ;
+	}
+	
+	@Override
+	public void reportOutcome(SimpleState currentstate, PrimitiveTactic chosen, 
+			double cost, long runtime, 
+			double distanceBefore, double distanceAfter, boolean goalSolved) {
+		double reward = 0 ;
+		if (goalSolved) {
+			reward = 1 ;
+		}
+		// a NaN distance fails the comparison:
+		else if (Math.abs(distanceBefore) > 0 && !Double.isNaN(distanceAfter)) {
+			reward = (Math.abs(distanceBefore) - Math.abs(distanceAfter)) / Math.abs(distanceBefore) ;
+			reward = Math.max(0, Math.min(1, reward)) ;
+		}
+		var S = statsOf(chosen.action) ;
+		S.count++ ;
+		S.totalReward += reward ;
+		S.totalCost += cost + runtimeCostPerMs * runtime / 1000000d ;
+		S.totalRuntime += runtime ;
+		totalCount++ ;
+	}
+	
+	/**
+	 * Return the number of executions of the given action that this deliberation
+	 * has learned from.
+	 */
+	public int count(Action a) {
+		var S = stats.get(a) ;
+		return S == null ? 0 : S.count ;
+	}
+	
+	/**
+	 * Return the average reward of the executions of the given action.
+	 */
+	public double meanReward(Action a) {
+		var S = stats.get(a) ;
+		return S == null ? 0 : S.meanReward() ;
+	}
+	
+	/**
+	 * Return the average cost of the executions of the given action.
+	 */
+	public double meanCost(Action a) {
+		var S = stats.get(a) ;
+		return S == null ? 0 : S.meanCost() ;
+	}
+	
+	/**
+	 * Forget everything that has been learned.
+	 */
+	public void reset() {
+		stats.clear();
+		totalCount = 0 ;
+	}
+
+}
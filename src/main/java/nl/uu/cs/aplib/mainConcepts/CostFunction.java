@@ -1,11 +1,19 @@
 package nl.uu.cs.aplib.mainConcepts;
 
+import java.util.concurrent.TimeUnit;
+
+import nl.uu.cs.aplib.Metrics;
+
 /**
  * This class provides a method to calculate the budget-cost of executing an
  * action. This class will define this cost to be 1.0 for each invocation of
  * an action. You can override this class if you want to have a more complicated
  * cost function, e.g. if you want to charge the action's computation time
- * as the cost.
+ * as the cost. The nested classes {@link TimeCost}, {@link EnvCallsCost} and
+ * {@link BytesTransferredCost} charge real resources: the action's execution time,
+ * the number of commands it sends to the Environment, and the number of bytes it
+ * exchanges with the real environment. With these, the budget of a goal (see
+ * {@link GoalStructure#maxbudget(double)}) caps the use of these resources.
  * 
  * @author wish
  *
@@ -18,14 +26,106 @@ public class CostFunction {
 	 * Execute an action on the given agent state, and calculate the cost of this execution.
 	 * The cost will be stored in the field {@link cost}. This method simply defines the
 	 * cost to be always 1. Override this method to define different costing.
+	 * 
+	 * <p>If metrics are enabled (see {@link Metrics}), the execution time is reported.
 	 */
 	public Object executeAction_andInstrumentCost(SimpleState state, Action a) {
 		cost = 0.0 ;
-		Object proposal = a.exec1(state) ;
+		Object proposal = executeAction(state,a) ;
 		cost = 1.0 ;
 		return proposal ;
 	}
 	
+	/**
+	 * Execute the action on the given state, reporting its execution time to
+	 * the metrics registry if metrics are enabled.
+	 */
+	protected Object executeAction(SimpleState state, Action a) {
+		var registry = Metrics.getRegistry() ;
+		if (registry.isNoOp()) return a.exec1(state) ;
+		var timer = a.execTimer(registry) ;
+		long t0 = System.nanoTime() ;
+		try {
+			return a.exec1(state) ;
+		}
+		finally {
+			timer.record(System.nanoTime() - t0) ;
+		}
+	}
+	
 	public double getCost() { return cost ; }
+	
+	/**
+	 * A cost function that charges the execution time of an action. By default the
+	 * time is charged in ms, with sub-ms precision.
+	 */
+	static public class TimeCost extends CostFunction {
+		
+		double nanosPerUnit ;
+		
+		/**
+		 * Charge the execution time in ms.
+		 */
+		public TimeCost() { this(TimeUnit.MILLISECONDS) ; }
+		
+		/**
+		 * Charge the execution time in the given unit; e.g. with TimeUnit.NANOSECONDS
+		 * every ns costs 1.0.
+		 */
+		public TimeCost(TimeUnit unit) { nanosPerUnit = unit.toNanos(1) ; }
+		
+		@Override
+		public Object executeAction_andInstrumentCost(SimpleState state, Action a) {
+			cost = 0.0 ;
+			long t0 = System.nanoTime() ;
+			Object proposal = executeAction(state,a) ;
+			cost = (System.nanoTime() - t0) / nanosPerUnit ;
+			return proposal ;
+		}
+	}
+	
+	/**
+	 * A cost function that charges 1.0 for every command that an action sends to
+	 * the agent's Environment. So, an action that does not interact with the
+	 * Environment is free. Only the commands sent by the thread that executes the
+	 * action are counted, so agents that run in parallel on the same Environment
+	 * are not charged for each other's commands. An asynchronous command is
+	 * charged when it is executed, which may be after the action that sent it.
+	 */
+	static public class EnvCallsCost extends CostFunction {
+		
+		public EnvCallsCost() { super() ; }
+		
+		@Override
+		public Object executeAction_andInstrumentCost(SimpleState state, Action a) {
+			cost = 0.0 ;
+			long n0 = state.env().getNumberOfCommandsSentByCurrentThread() ;
+			Object proposal = executeAction(state,a) ;
+			cost = state.env().getNumberOfCommandsSentByCurrentThread() - n0 ;
+			return proposal ;
+		}
+	}
+	
+	/**
+	 * A cost function that charges 1.0 for every byte that is exchanged with the
+	 * real environment during the execution of an action. This relies on the
+	 * Environment to register the bytes it exchanges; see
+	 * {@link Environment#registerBytesTransferred(long)}. Like {@link EnvCallsCost},
+	 * only the bytes of the commands sent by the thread that executes the action
+	 * are counted.
+	 */
+	static public class BytesTransferredCost extends CostFunction {
+		
+		public BytesTransferredCost() { super() ; }
+		
+		@Override
+		public Object executeAction_andInstrumentCost(SimpleState state, Action a) {
+			cost = 0.0 ;
+			long n0 = state.env().getNumberOfBytesTransferredByCurrentThread() ;
+			Object proposal = executeAction(state,a) ;
+			cost = state.env().getNumberOfBytesTransferredByCurrentThread() - n0 ;
+			return proposal ;
+		}
+	}
 
 }
@@ -28,5 +28,36 @@ public class Deliberation {
 	public PrimitiveTactic deliberate(SimpleState currentstate, List<PrimitiveTactic> candidates) {
 		return candidates.get(rnd.nextInt(candidates.size())) ;
 	}
+	
+	/**
+	 * True if this deliberation wants to learn from the outcomes of the actions it
+	 * chooses. Only then will the agent invoke
+	 * {@link #reportOutcome(SimpleState, PrimitiveTactic, double, long, double, double, boolean)}.
+	 * This root implementation returns false.
+	 */
+	public boolean wantsOutcomes() {
+		return false ;
+	}
+	
+	/**
+	 * Invoked by the agent after it has executed the action chosen by
+	 * {@link #deliberate(SimpleState, List)}, so that a subclass can learn from the
+	 * outcome. This root implementation ignores it. It is only invoked if
+	 * {@link #wantsOutcomes()} is true, and not when the chosen action is an
+	 * {@link Action.Abort}.
+	 * 
+	 * @param chosen         The chosen tactic, whose action was executed.
+	 * @param cost           The cost of the execution, as calculated by the agent's {@link CostFunction}.
+	 * @param runtime        The time the agent spent on the update, in ns.
+	 * @param distanceBefore The distance of the current goal to being solved before the
+	 *                       execution (see {@link Goal#distance()}); it is NaN if the
+	 *                       goal has no distance yet.
+	 * @param distanceAfter  The distance after the execution; it can be NaN too.
+	 * @param goalSolved     True if the execution solved the current goal.
+	 */
+	public void reportOutcome(SimpleState currentstate, PrimitiveTactic chosen, 
+			double cost, long runtime, 
+			double distanceBefore, double distanceAfter, boolean goalSolved) {
+	}
 
 }
@@ -1,10 +1,16 @@
 package nl.uu.cs.aplib.mainConcepts;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Logger;
 
 import nl.uu.cs.aplib.Logging;
+import nl.uu.cs.aplib.Metrics;
 
 /**
  * 
@@ -51,6 +57,39 @@ import nl.uu.cs.aplib.Logging;
  * the Environment state, e.g. for the purpose of checking some correctness
  * property.
  * 
+ * <p>
+ * By default an agent locks the whole Environment for the duration of its
+ * {@code update()}, so agents sharing the same Environment are fully serialized.
+ * Alternatively, an Environment can be put in the <b>fine-grained locking</b>
+ * mode, see {@link #useFineGrainedLocking()}. In this mode the Environment only
+ * locks itself during {@code refresh()} and {@code sendCommand(...)}, while the
+ * rest of the agents' reasoning (guard evaluation, deliberation, goal
+ * bookkeeping) runs in parallel. Commands declared as read-only (see
+ * {@link #declareReadOnlyCommands(String...)}) can then be executed concurrently;
+ * other commands, and refresh, get exclusive access.
+ * 
+ * <p>
+ * Commands can also be sent <b>asynchronously</b>, see
+ * {@link #sendCommandAsync(String, String, String, Object, Class)}. This lets an
+ * agent continue while a command travels to a remote environment and back. This
+ * requires the fine-grained locking mode. With
+ * {@link #usePipelining(int)}, several asynchronous commands can be in flight at
+ * the same time.
+ * 
+ * <p>
+ * When many agents send the same kind of command, e.g. an observe, every tick,
+ * an Environment can <b>batch</b> them, see {@link #useCommandBatching(long, int, String...)}.
+ * Commands sent within a short time window are then executed together, through
+ * {@link #sendBatch_(List)}, which an implementation can override to send them to
+ * the real environment in a single request.
+ * 
+ * <p>
+ * Finally, an Environment can publish <b>change notifications</b> through
+ * {@link #notifyChange(String)}, e.g. when the real environment pushes a new
+ * observation. Interested parties, such as autonomous agents that are waiting
+ * for something to change, can listen to them by registering a
+ * {@link ChangeListener}.
+ * 
  * @author wish
  *
  */
@@ -63,20 +102,166 @@ public class Environment {
 	 * something with it.
 	 */
 	ReentrantLock lock = new ReentrantLock() ;
+	
+	/**
+	 * When true, agents will not use {@link #lock}. Instead, the Environment guards
+	 * its refresh and commands with {@link #rwlock}.
+	 */
+	volatile boolean fineGrainedLocking = false ;
+	
+	/**
+	 * The lock used in the fine-grained locking mode. Read-only commands take the
+	 * read-lock; all other operations take the write-lock.
+	 */
+	ReentrantReadWriteLock rwlock = new ReentrantReadWriteLock() ;
+	
+	/**
+	 * The names of commands that do not change the state of the real environment, nor
+	 * that of this Environment.
+	 */
+	Set<String> readOnlyCommands = new HashSet<>() ;
+	
+	/**
+	 * The number of commands sent through {@link #sendCommand(String, String, String, Object, Class)}.
+	 */
+	AtomicLong numberOfCommandsSent = new AtomicLong() ;
+	
+	/**
+	 * The number of bytes exchanged with the real environment, as registered by
+	 * {@link #registerBytesTransferred(long)}.
+	 */
+	AtomicLong numberOfBytesTransferred = new AtomicLong() ;
+	
+	/**
+	 * The commands sent and the bytes exchanged on behalf of a single invoker.
+	 */
+	static class Usage {
+		AtomicLong commands = new AtomicLong() ;
+		AtomicLong bytes = new AtomicLong() ;
+	}
+	
+	/**
+	 * The usage of the invoker that runs on the current thread. A worker of the
+	 * {@link CommandPipeline} runs on behalf of the thread that sent the command.
+	 */
+	final ThreadLocal<Usage> usage = ThreadLocal.withInitial(Usage::new) ;
+	
+	/**
+	 * Executes the asynchronous commands. It is created when the first one is sent.
+	 */
+	volatile CommandPipeline pipeline = null ;
+	
+	/**
+	 * The maximum number of asynchronous commands that are executed at the same time.
+	 */
+	int maxCommandsInFlight = 1 ;
+	
+	/**
+	 * Collects batchable commands, if command batching is used.
+	 */
+	volatile CommandBatcher batcher = null ;
 		
 	/**
 	 * Create an instance of this environment.
 	 */
 	public Environment() { 	}
 	
+	/**
+	 * Put this Environment in the fine-grained locking mode. Agents using this
+	 * Environment will then no longer lock it for the whole duration of their
+	 * {@code update()}. Instead, the Environment is only locked while it is being
+	 * refreshed, or while it executes a command. Commands declared as read-only
+	 * can run concurrently with each other.
+	 * 
+	 * <p>Only use this mode if your agents do not need an exclusive view on the
+	 * Environment over a whole update, e.g. if their guards only read state that
+	 * is kept in the agents' own states. The method returns this Environment so
+	 * that it can be used in the Fluent Interface style.
+	 */
+	public Environment useFineGrainedLocking() {
+		fineGrainedLocking = true ; return this ;
+	}
+	
+	/**
+	 * True if this Environment is in the fine-grained locking mode.
+	 */
+	public boolean usesFineGrainedLocking() { return fineGrainedLocking ; }
+	
+	/**
+	 * Declare the given commands as read-only. Such commands should not change
+	 * the state of the real environment nor that of this Environment, so that
+	 * in the fine-grained locking mode they can be executed concurrently. The
+	 * method returns this Environment so that it can be used in the Fluent
+	 * Interface style.
+	 */
+	public Environment declareReadOnlyCommands(String ... commands) {
+		for (String c : commands) readOnlyCommands.add(c) ;
+		return this ;
+	}
+	
+	/**
+	 * True if the given command has been declared as read-only.
+	 */
+	public boolean isReadOnlyCommand(String command) {
+		return readOnlyCommands.contains(command) ;
+	}
+	
+	
+	/**
+	 * Return the number of commands sent through this Environment so far. This
+	 * only increases. If agents run in parallel on this Environment (see
+	 * {@link #useFineGrainedLocking()}), it includes the commands of all agents.
+	 */
+	public long getNumberOfCommandsSent() { return numberOfCommandsSent.get() ; }
+	
+	/**
+	 * Return the number of bytes exchanged with the real environment so far, as
+	 * registered by {@link #registerBytesTransferred(long)}. This only increases.
+	 */
+	public long getNumberOfBytesTransferred() { return numberOfBytesTransferred.get() ; }
+	
+	/**
+	 * Return the number of commands sent through this Environment so far by the
+	 * current thread. Its asynchronous commands are included once they are executed.
+	 * Unlike {@link #getNumberOfCommandsSent()}, this does not include the commands
+	 * of agents that run on other threads. This only increases.
+	 */
+	public long getNumberOfCommandsSentByCurrentThread() { return usage.get().commands.get() ; }
+	
+	/**
+	 * Return the number of bytes exchanged with the real environment so far by the
+	 * commands of the current thread, as registered by {@link #registerBytesTransferred(long)}.
+	 * Its asynchronous commands are included once they are executed. This only increases.
+	 */
+	public long getNumberOfBytesTransferredByCurrentThread() { return usage.get().bytes.get() ; }
+	
+	/**
+	 * Register that n bytes have been sent to or received from the real environment.
+	 * Implementations of Environment that communicate with a real environment over
+	 * some channel should call this, so that agents can be charged for it (see
+	 * {@link CostFunction.BytesTransferredCost}).
+	 */
+	protected void registerBytesTransferred(long n) {
+		numberOfBytesTransferred.addAndGet(n) ;
+		usage.get().bytes.addAndGet(n) ;
+	}
 	
 	/**
 	 * Call  {@link #refreshWorker()} to inspect the actual environment and reflect its actual state into this
 	 * abstract representation. This will also implicitly call {@link #instrument(String)}.
 	 */
 	public final void refresh() { 
-		refreshWorker() ;
-		instrument(REFRESH_CMD) ;
+		if (! fineGrainedLocking) {
+			refreshWorker() ;
+			instrument(REFRESH_CMD) ;
+			return ;
+		}
+		rwlock.writeLock().lock();
+		try {
+			refreshWorker() ;
+			instrument(REFRESH_CMD) ;
+		}
+		finally { rwlock.writeLock().unlock(); }
 	}
 	
 	/**
@@ -138,13 +323,59 @@ public class Environment {
 			         Class expectedTypeOfResult
 			         ) {
 		var cmd = new EnvOperation(invokerId,targetId,command,arg,expectedTypeOfResult) ;
-		var response = sendCommand_(cmd) ;
-		cmd.result = response ;
-		instrument(cmd) ;
-		return response ;
+		cmd.readOnly = isReadOnlyCommand(command) ;
+		numberOfCommandsSent.incrementAndGet() ;
+		usage.get().commands.incrementAndGet() ;
+		var registry = Metrics.getRegistry() ;
+		if (registry.isNoOp()) return sendCommandWorker(cmd) ;
+		long t0 = System.nanoTime() ;
+		try {
+			return sendCommandWorker(cmd) ;
+		}
+		finally {
+			registry.timer("env.command." + command).record(System.nanoTime() - t0) ;
+		}
+	}
+	
+	private Object sendCommandWorker(EnvOperation cmd) {
+		if (! fineGrainedLocking) {
+			var response = execute(cmd) ;
+			cmd.result = response ;
+			instrumentOrDefer(cmd) ;
+			return response ;
+		}
+		Lock L = cmd.readOnly ? rwlock.readLock() : rwlock.writeLock() ;
+		L.lock();
+		try {
+			var response = execute(cmd) ;
+			cmd.result = response ;
+			instrumentOrDefer(cmd) ;
+			return response ;
+		}
+		finally { L.unlock(); }
 	}
 	
 	
+	private Object execute(EnvOperation cmd) {
+		var B = batcher ;
+		if (B != null && B.isBatchable(cmd)) return B.submit(cmd) ;
+		return sendCommand_(cmd) ;
+	}
+	
+	/**
+	 * Instrument the given command, unless it is executed on behalf of an
+	 * asynchronous command of this Environment. The latter are instrumented by the
+	 * {@link CommandPipeline}, in the order in which they were sent.
+	 */
+	private void instrumentOrDefer(EnvOperation cmd) {
+		var D = CommandPipeline.deferred.get() ;
+		if (D != null && D.env == this && D.operation == null) {
+			D.operation = cmd ;
+			return ;
+		}
+		instrument(cmd) ;
+	}
+	
 	/**
 	 * A simplified version of the other sendCommand where the expectedTypeOfResult parameter
 	 * is left unspecified (set to null). When using this method the agent is assumed
@@ -158,6 +389,174 @@ public class Environment {
 	         ) {
 		return sendCommand(invokerId,targetId,command,arg,null) ; }
 	
+	/**
+	 * Put this Environment in the pipelining mode, where up to maxInFlight
+	 * asynchronous commands can be executed at the same time, see
+	 * {@link #sendCommandAsync(String, String, String, Object, Class)}. Without this,
+	 * asynchronous commands are executed one at a time. This should be called
+	 * before the first asynchronous command is sent. The method returns this
+	 * Environment so that it can be used in the Fluent Interface style.
+	 * 
+	 * <p>In this mode {@link #sendCommand_(EnvOperation)} can be invoked by several
+	 * threads at the same time, so it should be able to handle that, e.g. by
+	 * tagging the requests it sends over its connection, and matching the replies
+	 * with them. Since asynchronous commands require the fine-grained locking mode (see
+	 * {@link #useFineGrainedLocking()}), only read-only commands can actually run at
+	 * the same time; the other commands still get exclusive access.
+	 */
+	public synchronized Environment usePipelining(int maxInFlight) {
+		if (maxInFlight <= 0) throw new IllegalArgumentException() ;
+		maxCommandsInFlight = maxInFlight ;
+		if (pipeline != null) {
+			pipeline.shutdown() ;
+			pipeline = null ;
+		}
+		return this ;
+	}
+	
+	/**
+	 * Return the maximum number of asynchronous commands that can be executed at
+	 * the same time, see {@link #usePipelining(int)}.
+	 */
+	public int getMaxCommandsInFlight() { return maxCommandsInFlight ; }
+	
+	/**
+	 * Send a command to the environment, like {@link #sendCommand(String, String, String, Object, Class)},
+	 * but without waiting for the result. The command is executed on a worker
+	 * thread, and the returned future is completed with its result, or completed
+	 * exceptionally if the command throws an exception.
+	 * 
+	 * <ul>
+	 * <li>The asynchronous commands of the same invoker are executed in the order in
+	 * which they were sent, one after another.
+	 * <li>The commands of different invokers may be executed at the same time, if
+	 * this Environment is in the pipelining mode (see {@link #usePipelining(int)}).
+	 * <li>The instrumenters of this Environment see the asynchronous commands in the
+	 * order in which they were sent, even if they complete in a different order. A
+	 * future can therefore be completed before its command is instrumented.
+	 * </ul>
+	 * 
+	 * There is no ordering between asynchronous commands and commands sent through
+	 * the synchronous sendCommand.
+	 * 
+	 * <p>This Environment must be in the fine-grained locking mode (see
+	 * {@link #useFineGrainedLocking()}), so that the worker threads lock it the same
+	 * way as the agents do. Otherwise an IllegalStateException is thrown.
+	 */
+	public CompletableFuture<Object> sendCommandAsync(
+			String invokerId,
+			String targetId,
+			String command,
+			Object arg,
+			Class expectedTypeOfResult
+			) {
+		if (! fineGrainedLocking) 
+			throw new IllegalStateException("Asynchronous commands require the fine-grained locking mode, see useFineGrainedLocking().") ;
+		var P = pipeline ;
+		if (P == null) {
+			synchronized(this) {
+				if (pipeline == null) pipeline = new CommandPipeline(this, maxCommandsInFlight) ;
+				P = pipeline ;
+			}
+		}
+		return P.submit(invokerId, targetId, command, arg, expectedTypeOfResult) ;
+	}
+	
+	/**
+	 * A simplified version of the other sendCommandAsync where the expectedTypeOfResult
+	 * parameter is left unspecified (set to null).
+	 */
+	public CompletableFuture<Object> sendCommandAsync(
+			String invokerId,
+			String targetId,
+			String command,
+			Object arg
+			) {
+		return sendCommandAsync(invokerId,targetId,command,arg,null) ;
+	}
+	
+	/**
+	 * Turn on command batching for the given commands. When one of them is sent, it
+	 * is not executed right away. Instead, the commands are collected until window
+	 * ms have passed since the first one arrived, or until maxBatchSize of them have
+	 * been collected. They are then executed together, through {@link #sendBatch_(List)},
+	 * and every sender gets back the result of its own command. Read-only commands
+	 * in the same batch with the same target, command, and an equal argument are
+	 * merged into a single operation, also if they are sent by different invokers;
+	 * see {@link EnvOperation#invokerIds}. The method returns this Environment so
+	 * that it can be used in the Fluent Interface style.
+	 * 
+	 * <p>Batching requires the fine-grained locking mode (see {@link #useFineGrainedLocking()}),
+	 * else an IllegalStateException is thrown: the first sender of a batch waits for
+	 * the others while holding the locks of its command, and in the default mode an
+	 * agent holds the lock of the whole Environment. Batching only helps if several
+	 * threads send commands at the same time, e.g. agents that run in parallel, or
+	 * asynchronous commands in the pipelining mode (see {@link #usePipelining(int)}).
+	 * Note that commands that are not read-only still get exclusive access to the
+	 * Environment, so they end up in batches of one.
+	 */
+	public Environment useCommandBatching(long window, int maxBatchSize, String ... commands) {
+		if (window < 0 || maxBatchSize <= 0) throw new IllegalArgumentException() ;
+		if (! fineGrainedLocking) 
+			throw new IllegalStateException("Command batching requires the fine-grained locking mode, see useFineGrainedLocking().") ;
+		batcher = new CommandBatcher(this, window, maxBatchSize, new HashSet<>(Arrays.asList(commands))) ;
+		return this ;
+	}
+	
+	/**
+	 * Turn off command batching.
+	 */
+	public Environment stopCommandBatching() {
+		batcher = null ;
+		return this ;
+	}
+	
+	/**
+	 * Return the number of batches executed so far, see {@link #useCommandBatching(long, int, String...)}.
+	 */
+	public long getNumberOfBatchesSent() {
+		var B = batcher ;
+		return B == null ? 0 : B.numberOfBatches.get() ;
+	}
+	
+	/**
+	 * Execute a batch of commands, see {@link #useCommandBatching(long, int, String...)}.
+	 * This should put the result of every command in its result field. If a single
+	 * command fails, its exception should be put in its exception field; the other
+	 * commands in the batch are not affected. If this method throws an exception,
+	 * all commands in the batch fail with that exception.
+	 * 
+	 * <p>An operation in which the commands of several invokers are merged has
+	 * their ids in its invokerIds field. If the result depends on the invoker, e.g.
+	 * for an observe, the results should be put in its resultPerInvoker field;
+	 * else in its result field, which all the invokers then get.
+	 * 
+	 * <p>This implementation executes the commands one by one, with
+	 * {@link #sendCommand_(EnvOperation)}; a merged operation is executed once per
+	 * invoker. Override it to send the whole batch to the real environment in one
+	 * go, e.g. as a single request.
+	 */
+	protected void sendBatch_(List<EnvOperation> batch) {
+		for (var cmd : batch) {
+			try {
+				if (cmd.invokerIds == null) {
+					cmd.result = sendCommand_(cmd) ;
+					continue ;
+				}
+				var results = new HashMap<String,Object>() ;
+				for (var invoker : cmd.invokerIds) {
+					var single = new EnvOperation(invoker, cmd.targetId, cmd.command, cmd.arg, cmd.expectedTypeOfResult) ;
+					single.readOnly = cmd.readOnly ;
+					results.put(invoker, sendCommand_(single)) ;
+				}
+				cmd.resultPerInvoker = results ;
+			}
+			catch(RuntimeException e) {
+				cmd.exception = e ;
+			}
+		}
+	}
+	
 	/**
 	 * Override this method to implement an actual Environment.
 	 * 
@@ -207,6 +606,12 @@ public class Environment {
 		 */
 		public Class expectedTypeOfResult ;
 		
+		/**
+		 * True if this operation is a command that was declared as read-only by the
+		 * Environment that executes it. See {@link Environment#declareReadOnlyCommands(String...)}.
+		 */
+		public boolean readOnly = false ;
+		
 		
 		/**
 		 * Used to store the result of the operation, if any. If the field
@@ -216,6 +621,26 @@ public class Environment {
 		 */
 		public Object result = null ;
 		
+		/**
+		 * Used to store the exception thrown by the operation, if it was executed as
+		 * part of a batch and failed, see {@link Environment#sendBatch_(List)}.
+		 */
+		public Throwable exception = null ;
+		
+		/**
+		 * If the read-only commands of several invokers are merged into this operation,
+		 * as part of a batch (see {@link Environment#useCommandBatching(long, int, String...)}),
+		 * the ids of these invokers, starting with invokerId. Else null.
+		 */
+		public List<String> invokerIds = null ;
+		
+		/**
+		 * The results of an operation with several invokers (see invokerIds), by
+		 * invoker, if the result depends on the invoker. If it is null, all the
+		 * invokers get the result field.
+		 */
+		public Map<String,Object> resultPerInvoker = null ;
+		
 		public EnvOperation(String invokerId, String targetId, String command, Object arg, Class expectedTypeOfResult) {
 			this.invokerId = invokerId ;
 			this.targetId = targetId ;
@@ -263,8 +688,12 @@ public class Environment {
 	 */
 	protected void instrument(EnvOperation operation) {
 		if (debugmode) {
-			lastOperation = operation ;
-			for(EnvironmentInstrumenter I : instrumenters) I.update(this);
+			// read-only commands may run concurrently in the fine-grained locking mode,
+			// so instrumenters are updated one operation at a time:
+			synchronized(instrumenters) {
+				lastOperation = operation ;
+				for(EnvironmentInstrumenter I : instrumenters) I.update(this);
+			}
 		}
 	}
 	
@@ -292,6 +721,49 @@ public class Environment {
 		return this ;
 	}
 	
+	List<ChangeListener> changeListeners = new CopyOnWriteArrayList<>() ;
+	
+	/**
+	 * Register the given listener to this environment. It will be invoked whenever
+	 * {@link #notifyChange(String)} is called.
+	 */
+	public Environment addChangeListener(ChangeListener L) {
+		if (L == null) throw new IllegalArgumentException() ;
+		changeListeners.add(L) ;
+		return this ;
+	}
+	
+	public Environment removeChangeListener(ChangeListener L) {
+		changeListeners.remove(L) ;
+		return this ;
+	}
+	
+	/**
+	 * Announce that some part of the real environment, identified by the given topic,
+	 * has changed. All registered change listeners will be invoked, on the calling
+	 * thread. Implementations of Environment should call this e.g. when they receive
+	 * a new observation from the real environment. The topics are free-form names;
+	 * a natural choice is to use the names that actions declare in
+	 * {@link Action#guardDependsOn(String...)}.
+	 */
+	public void notifyChange(String topic) {
+		for (ChangeListener L : changeListeners) L.changed(this, topic) ;
+	}
+	
+	/**
+	 * An interface for listeners to the change notifications of an Environment,
+	 * see {@link Environment#notifyChange(String)}. Implementations should return
+	 * quickly, and should not block on locks held by agents, as the notification
+	 * may come from any thread.
+	 */
+	public static interface ChangeListener {
+		
+		/**
+		 * Invoked when the given topic of the Environment env has changed.
+		 */
+		public void changed(Environment env, String topic) ;
+	}
+	
 	/**
 	 * An interface for instrumenters that you can attach to an environment. You
 	 * attach an instrumenter to an environment through the method
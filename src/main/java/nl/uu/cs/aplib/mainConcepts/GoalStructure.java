@@ -39,7 +39,14 @@ public class GoalStructure {
 	static public enum GoalsCombinator { SEQ, FIRSTOF, REPEAT, PRIMITIVE }
 	
 	GoalStructure parent = null ;
-	List<GoalStructure> subgoals = new LinkedList<GoalStructure>() ; 
+	List<GoalStructure> subgoals = new ArrayList<GoalStructure>() ; 
+	
+	/**
+	 * The position of this goal structure in its parent's list of subgoals, or -1 if
+	 * it has no parent. Use {@link #indexInParent()} to read it, as it may be stale
+	 * if the parent's subgoals were changed directly.
+	 */
+	int indexInParent = -1 ;
 	GoalsCombinator combinator ;
 	ProgressStatus status = new ProgressStatus() ;
 	
@@ -53,8 +60,25 @@ public class GoalStructure {
 	 */
 	double consumedBudget = 0 ;
 	
+	/**
+	 * Total time, in ns, spent so far on this goal structure. Unless the agent uses
+	 * {@link BasicAgent#useNanoTime()}, it is measured with ms resolution.
+	 */
 	long consumedTime = 0 ;
 	
+	/**
+	 * Budget consumed by this goal structure that has not been propagated to its
+	 * ancestors yet. This is only used when the agent batches the propagation of
+	 * consumed budget, see {@link #registerConsumedBudgetLocally(double)}.
+	 */
+	double pendingBudget = 0 ;
+	
+	/**
+	 * Time used by this goal structure that has not been propagated to its
+	 * ancestors yet.
+	 */
+	long pendingTime = 0 ;
+	
 	/**
 	 * The budget that remains for this goal structure.
 	 */
@@ -74,6 +98,7 @@ public class GoalStructure {
 				var g = subgoals[k] ;
 				this.subgoals.add(g) ;
 				g.parent = this ;
+				g.indexInParent = k ;
 			}			
 		}
 	}
@@ -95,6 +120,47 @@ public class GoalStructure {
 	 */
 	public boolean isTopGoal() { return parent == null ; }
 	
+	/**
+	 * Return the position of this goal structure in its parent's list of subgoals,
+	 * or -1 if it has no parent. This is normally a constant-time lookup. If the
+	 * cached position turns out to be stale, it is recalculated.
+	 */
+	int indexInParent() {
+		if (parent == null) return -1 ;
+		int k = indexInParent ;
+		if (k < 0 || k >= parent.subgoals.size() || parent.subgoals.get(k) != this) {
+			k = parent.subgoals.indexOf(this) ;
+			indexInParent = k ;
+		}
+		return k ;
+	}
+	
+	/**
+	 * Insert G as the k-th subgoal of this goal structure, and make this goal structure
+	 * G's parent. The positions of the subsequent subgoals are updated.
+	 */
+	void insertSubgoal(int k, GoalStructure G) {
+		subgoals.add(k,G) ;
+		G.parent = this ;
+		renumberSubgoalsFrom(k) ;
+	}
+	
+	/**
+	 * Remove the k-th subgoal of this goal structure. The positions of the subsequent
+	 * subgoals are updated.
+	 */
+	void removeSubgoal(int k) {
+		var G = subgoals.remove(k) ;
+		// G may already have been moved under another parent:
+		if (G.parent == this) G.indexInParent = -1 ;
+		renumberSubgoalsFrom(k) ;
+	}
+	
+	private void renumberSubgoalsFrom(int k) {
+		int N = subgoals.size() ;
+		for (int i=k; i<N; i++) subgoals.get(i).indexInParent = i ;
+	}
+	
 	/**
 	 * Check if this goal structure is isomorphic with H. This is the case if they
 	 * have primitive goals with the same names, and they have the same tree-shapes.
@@ -124,12 +190,13 @@ public class GoalStructure {
 	 * to its ancestors.
 	 */
 	void setStatusToSuccess(String info) {
+		flushPendingConsumption() ;
 		status.setToSuccess(info) ;
 		if (! isTopGoal()) {
 			switch(parent.combinator) {
 			   case FIRSTOF : parent.setStatusToSuccess(info); break ;
 			   case SEQ : 
-				    int i = parent.subgoals.indexOf(this) ;
+				    int i = indexInParent() ;
 				    if (i == parent.subgoals.size()-1)
 					  	 parent.setStatusToSuccess(info); 
 				    break ;
@@ -143,6 +210,7 @@ public class GoalStructure {
 	 * to its ancestors.
 	 */
 	void setStatusToFail(String reason) {
+		flushPendingConsumption() ;
 		status.setToFail(reason);
 		if (! isTopGoal()) {
 			if (parent.budget <= 0d) {
@@ -153,7 +221,7 @@ public class GoalStructure {
 			   case SEQ : 
 				    parent.setStatusToFail(reason); break;
 			   case FIRSTOF :
-				    int i = parent.subgoals.indexOf(this) ;
+				    int i = indexInParent() ;
 					if (i == parent.subgoals.size()-1)
 						parent.setStatusToFail(reason);
 					break;
@@ -214,7 +282,7 @@ public class GoalStructure {
 				  // parent also failed
 				  //return parent.getNextPrimitiveGoal_andAllocateBudget() ;
 			   // else: so, this goal is solved:
-			   int k = parent.subgoals.indexOf(this) ;
+			   int k = indexInParent() ;
 			   //if (k == parent.subgoals.size() - 1 ) 
 				  // this case should have been caught by the if-parent case above; as it implies
 				  // that the parent succeeded
@@ -234,7 +302,7 @@ public class GoalStructure {
 				  // that the parent succeeded
 				  //return parent.getNextPrimitiveGoal_andAllocateBudget() ;
 			   // else: so, this goal failed:
-			   k = parent.subgoals.indexOf(this) ;
+			   k = indexInParent() ;
 			   //if (k == parent.subgoals.size() - 1 ) 
 					// this case should have caught by the if-parent above; as it implies that the
 					// patent failed
@@ -314,9 +382,48 @@ public class GoalStructure {
 		if (! isTopGoal()) parent.registerUsedTime(duration);
 	}
 	
+	/**
+	 * As {@link #registerConsumedBudget(double)}, but delta is only subtracted from
+	 * this goal-structure's own budget. The ancestors are only updated when
+	 * {@link #flushPendingConsumption()} is called. This is safe for the agent's
+	 * budget check, since the budget of the current goal is never larger than
+	 * that of its ancestors.
+	 */
+	void registerConsumedBudgetLocally(double delta) {
+		consumedBudget += delta ;
+		budget -= delta ;
+		if (! isTopGoal()) pendingBudget += delta ;
+	}
 	
 	/**
-	 * Return the remaining budget for this goal structure.
+	 * As {@link #registerUsedTime(long)}, but the ancestors are only updated when
+	 * {@link #flushPendingConsumption()} is called.
+	 */
+	void registerUsedTimeLocally(long duration) {
+		consumedTime += duration ;
+		if (! isTopGoal()) pendingTime += duration ;
+	}
+	
+	/**
+	 * Propagate the budget and time registered through {@link #registerConsumedBudgetLocally(double)}
+	 * and {@link #registerUsedTimeLocally(long)} to the ancestors of this goal structure.
+	 * This is called automatically when this goal structure is closed.
+	 */
+	void flushPendingConsumption() {
+		if (pendingBudget == 0 && pendingTime == 0) return ;
+		if (! isTopGoal()) {
+			parent.registerConsumedBudget(pendingBudget) ;
+			parent.registerUsedTime(pendingTime) ;
+		}
+		pendingBudget = 0 ;
+		pendingTime = 0 ;
+	}
+	
+	
+	/**
+	 * Return the remaining budget for this goal structure. If the agent batches the
+	 * propagation of consumed budget, the budget of a goal structure that still has
+	 * an open descendant does not include that descendant's most recent consumption.
 	 */
 	public double getBudget() { return budget ; }
 	
@@ -366,6 +473,27 @@ public class GoalStructure {
 		System.out.println(showGoalStructureStatus()) ; 
 	}
 	
+	/**
+	 * Return the union of the names that the guards of the actions in the tactics of
+	 * this goal structure depend on, see {@link Action#guardDependsOn(String...)}.
+	 * The method returns null if some action does not declare its dependencies, or if
+	 * some leaf goal has no tactic, as the guards may then depend on anything.
+	 */
+	public Set<String> getGuardDependencies() {
+		Set<String> names = new HashSet<>() ;
+		return collectGuardDependencies(names) ? names : null ;
+	}
+	
+	private boolean collectGuardDependencies(Set<String> names) {
+		if (this instanceof PrimitiveGoal) {
+			var tactic = ((PrimitiveGoal) this).goal.tactic ;
+			return tactic != null && tactic.collectGuardDependencies(names) ;
+		}
+		boolean declared = true ;
+		for (GoalStructure G : subgoals) declared = G.collectGuardDependencies(names) && declared ;
+		return declared ;
+	}
+	
 	/**
 	 * A special subclass of {@link GoalStructure} to represent a leaf, wrapping around
 	 * an instance of {@link Goal}.
@@ -60,8 +60,79 @@ public class SimpleState {
 	 */
 	Logger logger ;
 	
+	/**
+	 * Versions of named parts of this state, see {@link #markChanged(String)}.
+	 */
+	Map<String,Long> versions = new HashMap<>() ;
+	
+	long lastVersion = 0 ;
+	
+	/**
+	 * The execution contexts of the actions used by the agent that owns this state,
+	 * see {@link Action.ExecutionContext}. Guards may be evaluated on other threads
+	 * (see {@link Tactic#parallel()}), so access is synchronized on the map.
+	 */
+	private final Map<Action,Action.ExecutionContext> actionContexts = new IdentityHashMap<>() ;
+	
 	public SimpleState() { }
 	
+	/**
+	 * Register that the part of this state identified by the given name has changed.
+	 * Actions whose guards declare a dependency on this name (see
+	 * {@link Action#guardDependsOn(String...)}) will then re-evaluate their guards the
+	 * next time they are queried. Call this e.g. from {@link #updateState()} or from
+	 * an action's effect whenever it changes the corresponding part of the state.
+	 */
+	public void markChanged(String name) {
+		versions.put(name, ++lastVersion) ;
+	}
+	
+	/**
+	 * Return the execution context of the given Action for the agent that owns this
+	 * state. It is created the first time it is asked for.
+	 */
+	public Action.ExecutionContext contextOf(Action a) {
+		synchronized(actionContexts) {
+			var ctx = actionContexts.get(a) ;
+			if (ctx == null) {
+				ctx = new Action.ExecutionContext() ;
+				actionContexts.put(a,ctx) ;
+			}
+			return ctx ;
+		}
+	}
+	
+	/**
+	 * Forget the execution contexts of all actions, e.g. because the agent is
+	 * restored from a snapshot.
+	 */
+	void clearActionContexts() {
+		synchronized(actionContexts) {
+			actionContexts.clear();
+		}
+	}
+	
+	/**
+	 * Forget the execution contexts of all actions that are not in the given set
+	 * (compared by identity), e.g. because the agent got a new goal and will not use
+	 * the other actions anymore.
+	 */
+	void retainActionContexts(Set<Action> actions) {
+		synchronized(actionContexts) {
+			actionContexts.keySet().retainAll(actions) ;
+		}
+	}
+	
+	/**
+	 * Return the current version of the part of this state identified by the given
+	 * name. The version changes every time {@link #markChanged(String)} is called on
+	 * the name. It is 0 if the name was never marked as changed.
+	 */
+	public long versionOf(String name) {
+		Long v = versions.get(name) ;
+		return v == null ? 0 : v ;
+	}
+	
 	/**
 	 * Every instance of this class requires an instance to the {@link Environment} that is
 	 * used by the agent that owns this state. This methods allows you to set this
@@ -0,0 +1,32 @@
+package nl.uu.cs.aplib.mainConcepts;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A StateSerializer writes the content of an agent's state into a snapshot of the
+ * agent, and reads it back; see {@link BasicAgent#snapshot()} and
+ * {@link BasicAgent#restore(byte[])}. Only the application knows what the state of
+ * its agents contains, so it has to provide its own serializer if the state is to
+ * be included in snapshots.
+ *
+ * <p>
+ * The serializer does not create a new state. When restoring, it should overwrite
+ * the content of the state that is attached to the agent, so that e.g. the
+ * state's pointer to the {@link Environment} stays intact.
+ */
+public interface StateSerializer {
+
+	/**
+	 * Write the content of the given state to out.
+	 */
+	public void write(SimpleState state, DataOutput out) throws IOException ;
+
+	/**
+	 * Read the content that was written by {@link #write(SimpleState, DataOutput)}
+	 * from in, and put it in the given state.
+	 */
+	public void read(SimpleState state, DataInput in) throws IOException ;
+
+}
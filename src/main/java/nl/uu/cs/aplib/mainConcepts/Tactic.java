@@ -1,7 +1,11 @@
 package nl.uu.cs.aplib.mainConcepts;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
@@ -38,6 +42,11 @@ import nl.uu.cs.aplib.mainConcepts.GoalStructure.GoalsCombinator;
  *    
  * </ol>   
  * 
+ * An ANYOF or FIRSTOF tactic can be marked with {@link #parallel()}, in which
+ * case the guards in its subtactics are evaluated concurrently, on a shared
+ * {@link ForkJoinPool}. This is only done for actions whose guards are declared
+ * with {@link Action#sideEffectFreeGuard()}.
+ * 
  * @author Wish
  *
  */
@@ -50,46 +59,186 @@ public class Tactic {
 	static public enum TacticType { FIRSTOF, ANYOF, SEQ, PRIMITIVE } 
 	
 	Tactic parent = null ;
+	
+	/**
+	 * The subtactics of this tactic. A tactic tree is not changed after it is
+	 * constructed, so this list is array-backed for fast positional access.
+	 */
 	List<Tactic> subtactics ;
+	
+	/**
+	 * The position of this tactic in its parent's list of subtactics, or -1 if
+	 * this tactic has no parent. It is fixed when the parent is constructed.
+	 */
+	int indexInParent = -1 ;
+	
 	TacticType strTy ;
 	
+	/**
+	 * If true, the guards in the subtactics of this ANYOF or FIRSTOF tactic are
+	 * evaluated in parallel, see {@link #parallel()}.
+	 */
+	boolean parallel = false ;
+	
+	/**
+	 * The pool on which parallel guard evaluations are done.
+	 */
+	static ForkJoinPool guardEvaluationPool = ForkJoinPool.commonPool() ;
+	
 	/**
 	 * Construct a new Tactic of the given type, with the given subtactics.
 	 */
 	public Tactic(TacticType type, Tactic ... subtactics) {
 		strTy = type ;
-		this.subtactics = new LinkedList<Tactic>() ;
+		this.subtactics = new ArrayList<Tactic>(subtactics.length) ;
 		for (Tactic p : subtactics) {
+			p.indexInParent = this.subtactics.size() ;
 			this.subtactics.add(p) ;
 			p.parent = this ;
 		}
 	}
 	
+	/**
+	 * Mark this tactic to evaluate the guards of its subtactics in parallel. This
+	 * is only useful for an ANYOF or FIRSTOF tactic with many subtactics whose guards
+	 * are expensive, e.g. because they do path finding or Prolog queries. The
+	 * result is the same as that of a sequential evaluation:
+	 * 
+	 * <ul>
+	 * <li>ANYOF: all subtactics are evaluated in parallel.
+	 * <li>FIRSTOF: all subtactics are evaluated speculatively in parallel, and the
+	 * first one (in the given order) with an enabled action is taken.
+	 * </ul>
+	 * 
+	 * A subtactic is only handed to another thread if all of its actions declare
+	 * their guards to be side-effect free, see {@link Action#sideEffectFreeGuard()}.
+	 * Other subtactics are evaluated on the agent's own thread. The method returns
+	 * this tactic, so that it can be used in the Fluent Interface style.
+	 */
+	public Tactic parallel() {
+		parallel = true ;
+		return this ;
+	}
+	
+	/**
+	 * Set the pool used by {@link #parallel()} tactics to evaluate guards. By
+	 * default this is {@link ForkJoinPool#commonPool()}.
+	 */
+	public static void setGuardEvaluationPool(ForkJoinPool pool) {
+		if (pool == null) throw new IllegalArgumentException() ;
+		guardEvaluationPool = pool ;
+	}
+	
 	/**
 	 * Given a state, this method returns the set of actions in this tactic
 	 * which are both eligible for executions and whose guard are true on the
 	 * state.
 	 */
 	List<PrimitiveTactic> getFirstEnabledActions(SimpleState agentstate) {
-		
 		List<PrimitiveTactic> actions = new LinkedList<PrimitiveTactic>() ;
+		collectFirstEnabledActions(agentstate,actions) ;
+		return actions ;
+	}
+	
+	/**
+	 * The same as {@link #getFirstEnabledActions(SimpleState)}, but the enabled actions
+	 * are appended to the given buffer rather than to a fresh list. This allows an
+	 * agent to reuse the same buffer at every tick. The method returns true if
+	 * it finds at least one enabled action.
+	 */
+	boolean collectFirstEnabledActions(SimpleState agentstate, List<PrimitiveTactic> buffer) {
+		int N = subtactics.size() ;
+		if (parallel && N > 1 && (strTy == TacticType.ANYOF || strTy == TacticType.FIRSTOF)) 
+			return collectFirstEnabledActionsInParallel(agentstate,buffer) ;
 		switch(strTy) {
-		   case FIRSTOF : for (Tactic PT : subtactics) {
-				             actions = PT.getFirstEnabledActions(agentstate) ;
-				             if (! actions.isEmpty()) return actions ;
+		   case FIRSTOF : for (int k=0; k<N; k++) {
+				             if (subtactics.get(k).collectFirstEnabledActions(agentstate,buffer)) return true ;
 			              } 
-			              return actions ;
-		   case ANYOF   : for (Tactic PT : subtactics) {
-				             actions.addAll(PT.getFirstEnabledActions(agentstate)) ;
+			              return false ;
+		   case ANYOF   : boolean found = false ;
+			              for (int k=0; k<N; k++) {
+				             found = subtactics.get(k).collectFirstEnabledActions(agentstate,buffer) || found ;
 			              }
-			              return actions ;
-		   case SEQ : return subtactics.get(0).getFirstEnabledActions(agentstate) ;
+			              return found ;
+		   case SEQ : return subtactics.get(0).collectFirstEnabledActions(agentstate,buffer) ;
 		   case PRIMITIVE : var this_ = (PrimitiveTactic) this ;
-		                    if (this_.action.isEnabled(agentstate)) actions.add(this_) ;
-			                return actions ;
+		                    if (this_.action.isEnabled(agentstate)) {
+		                    	buffer.add(this_) ;
+		                    	return true ;
+		                    }
+			                return false ;
 		}
 		// should not happen:
-		return null ;
+		return false ;
+	}
+	
+	/**
+	 * The parallel variant of {@link #collectFirstEnabledActions(SimpleState, List)}
+	 * for ANYOF and FIRSTOF tactics. The subtactics are evaluated on the guard
+	 * evaluation pool, except those with guards that are not side-effect free, and
+	 * the first one, which are evaluated on the calling thread. The enabled actions
+	 * are added to the buffer in the same order as in a sequential evaluation.
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean collectFirstEnabledActionsInParallel(SimpleState agentstate, List<PrimitiveTactic> buffer) {
+		int N = subtactics.size() ;
+		ForkJoinTask<List<PrimitiveTactic>>[] forked = new ForkJoinTask[N] ;
+		for (int k=1; k<N; k++) {
+			var T = subtactics.get(k) ;
+			if (! T.allGuardsAreSideEffectFree()) continue ;
+			forked[k] = guardEvaluationPool.submit(() -> {
+				List<PrimitiveTactic> enabled = new ArrayList<>() ;
+				T.collectFirstEnabledActions(agentstate,enabled) ;
+				return enabled ;
+			}) ;
+		}
+		boolean found = false ;
+		for (int k=0; k<N; k++) {
+			if (found && strTy == TacticType.FIRSTOF) {
+				// the remaining speculative evaluations are not needed, but we still wait for
+				// them, so that no guard is running when the agent changes its state. Their
+				// exceptions are ignored, as a sequential evaluation would not reach them:
+				if (forked[k] != null) forked[k].quietlyJoin() ;
+				continue ;
+			}
+			if (forked[k] == null) {
+				found = subtactics.get(k).collectFirstEnabledActions(agentstate,buffer) || found ;
+			}
+			else {
+				var enabled = forked[k].join() ;
+				buffer.addAll(enabled) ;
+				found = found || ! enabled.isEmpty() ;
+			}
+		}
+		return found ;
+	}
+	
+	/**
+	 * True if all actions in this tactic declare their guards to be side-effect free.
+	 */
+	boolean allGuardsAreSideEffectFree() {
+		if (this instanceof PrimitiveTactic) return ((PrimitiveTactic) this).action.sideEffectFreeGuard ;
+		for (Tactic T : subtactics) {
+			if (! T.allGuardsAreSideEffectFree()) return false ;
+		}
+		return true ;
+	}
+	
+	/**
+	 * Add the names that the guards of the actions in this tactic depend on (see
+	 * {@link Action#guardDependsOn(String...)}) to the given set. The method returns
+	 * false if some action in this tactic does not declare its dependencies.
+	 */
+	boolean collectGuardDependencies(Set<String> names) {
+		if (this instanceof PrimitiveTactic) {
+			var deps = ((PrimitiveTactic) this).action.guardDependencies ;
+			if (deps == null) return false ;
+			for (String n : deps) names.add(n) ;
+			return true ;
+		}
+		boolean declared = true ;
+		for (Tactic T : subtactics) declared = T.collectGuardDependencies(names) && declared ;
+		return declared ;
 	}
 	
 	/**
@@ -99,9 +248,12 @@ public class Tactic {
 	 * <p>Note: if the top tactic consists of only FIRSTof and ANYof
 	 * nodes, and no actions are persistent, this method should return null. Else the next
 	 * tactic is determined by the presence of SEQ and uncompleted persistent
-	 * actions.
+	 * actions. Whether an action is completed is looked up in the given state of
+	 * the agent that executes this tactic. If the state is null, the completion
+	 * status set by the agent that last executed the action is used instead, see
+	 * {@link Action#isCompleted()}.
 	 */
-	Tactic calcNextTactic() {
+	Tactic calcNextTactic(SimpleState agentstate) {
 		
 		if (parent == null)
 			// the root tactic itself cannot have any next-tactic:
@@ -110,15 +262,16 @@ public class Tactic {
 	    if (strTy == TacticType.PRIMITIVE) {
 	    	var this_ = (PrimitiveTactic) this ;
 	    	// well, if the current action is not completed yet, stay on it:
-	    	if (! this_.action.isCompleted()) return this ; 
+	    	boolean completed = agentstate == null ? this_.action.completed : this_.action.isCompleted(agentstate) ;
+	    	if (! completed) return this ; 
 	    }
 		
 	    switch(parent.strTy) {
-	       case FIRSTOF : return parent.calcNextTactic() ;
-	       case ANYOF   : return parent.calcNextTactic() ;
-	       case SEQ     : int k = parent.subtactics.indexOf(this) ;
+	       case FIRSTOF : return parent.calcNextTactic(agentstate) ;
+	       case ANYOF   : return parent.calcNextTactic(agentstate) ;
+	       case SEQ     : int k = indexInParent ;
 			              if (k == parent.subtactics.size() - 1) 
-				              return parent.calcNextTactic() ;
+				              return parent.calcNextTactic(agentstate) ;
 			              else
 				              return parent.subtactics.get(k+1) ;
 	    }
@@ -126,6 +279,12 @@ public class Tactic {
 		return null ;
 	}
 	
+	/**
+	 * As {@link #calcNextTactic(SimpleState)}, using the completion status set by
+	 * the agent that last executed each action.
+	 */
+	Tactic calcNextTactic() { return calcNextTactic(null) ; }
+	
 	/**
 	 * Write some basic statistics of this Tactic (e.g. the number of times
 	 * each Action in this Tactic has been invoked, and its total running time)
@@ -136,13 +295,22 @@ public class Tactic {
 		if (parent == null) {
 			// root-tactic
 			s += "\n   tot. #invoked: " + totInvocation() ;
-			s += "\n   tot. #used time: " + totRuntime() + " (ms)" ;
+			s += "\n   tot. #used time: " + toMillis(totRuntime()) + " (ms)" ;
 		}
 		if (this instanceof PrimitiveTactic) {
 			var action = ((PrimitiveTactic) this).action ;
 			s +=   "\n   action: " + action.name 
-				 + "\n     #invoked: " + action.invocationCount 
-				 + "\n     used time: " + action.totalRuntime + " (ms)" ;
+				 + "\n     #invoked: " + action.invocationCount.get() 
+				 + "\n     used time: " + toMillis(action.totalRuntime.get()) + " (ms)" ;
+			if (action.latency.count() > 0) {
+				s += "\n     latency p50/p99/max: " 
+				     + toMillis(action.latency.percentile(50)) + "/"
+				     + toMillis(action.latency.percentile(99)) + "/"
+				     + toMillis(action.latency.max()) + " (ms)" ;
+			}
+			if (action.guardDependencies != null) {
+				s += "\n     guard cache hits/misses: " + action.guardCacheHits.get() + "/" + action.guardCacheMisses.get() ;
+			}
 			return s ;
 		}
 		for (Tactic S : subtactics) {
@@ -151,16 +319,20 @@ public class Tactic {
 		return s ;
 	}
 	
+	private static String toMillis(long nanos) {
+		return String.format("%.3f", nanos / 1000000d) ;
+	}
+	
 	int totInvocation() {
 		if (this instanceof PrimitiveTactic) {
-			return ((PrimitiveTactic) this).action.invocationCount ;
+			return ((PrimitiveTactic) this).action.invocationCount.get() ;
 		}
 		return subtactics.stream().mapToInt(T -> T.totInvocation()).sum() ;
 	}
 	
 	long totRuntime() {
 		if (this instanceof PrimitiveTactic) {
-			return ((PrimitiveTactic) this).action.totalRuntime ;
+			return ((PrimitiveTactic) this).action.totalRuntime.get() ;
 		}
 		return subtactics.stream().mapToLong(T -> T.totRuntime()).sum() ;
 	}
@@ -168,8 +340,11 @@ public class Tactic {
 	public void resetStatistics() {
 		if (this instanceof PrimitiveTactic) {
 			var action = ((PrimitiveTactic) this).action ;
-			action.totalRuntime = 0 ;
-			action.invocationCount = 0 ;
+			action.totalRuntime.set(0) ;
+			action.latency.reset();
+			action.invocationCount.set(0) ;
+			action.guardCacheHits.set(0) ;
+			action.guardCacheMisses.set(0) ;
 		}
 	}
 	
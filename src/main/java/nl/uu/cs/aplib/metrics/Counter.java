@@ -0,0 +1,23 @@
+package nl.uu.cs.aplib.metrics;
+
+/**
+ * A metric that counts how many times something happened.
+ */
+public interface Counter {
+	
+	/**
+	 * Increase the counter by the given amount.
+	 */
+	public void inc(long delta) ;
+	
+	/**
+	 * Increase the counter by one.
+	 */
+	public default void inc() { inc(1) ; }
+	
+	/**
+	 * Return the current value of the counter.
+	 */
+	public long count() ;
+
+}
@@ -0,0 +1,15 @@
+package nl.uu.cs.aplib.metrics;
+
+/**
+ * A metric whose value is sampled when it is read, e.g. the remaining budget
+ * of an agent.
+ */
+@FunctionalInterface
+public interface Gauge {
+	
+	/**
+	 * Return the current value of this gauge.
+	 */
+	public double value() ;
+
+}
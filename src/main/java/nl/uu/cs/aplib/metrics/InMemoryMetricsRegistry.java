@@ -0,0 +1,100 @@
+package nl.uu.cs.aplib.metrics;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link MetricsRegistry} that keeps its metrics in memory. Use {@link #snapshot()}
+ * to get the current values of all metrics, e.g. at the end of a test run. This
+ * registry is thread-safe.
+ */
+public class InMemoryMetricsRegistry implements MetricsRegistry {
+	
+	static class InMemoryCounter implements Counter {
+		LongAdder value = new LongAdder() ;
+		public void inc(long delta) { value.add(delta) ; }
+		public long count() { return value.sum() ; }
+	}
+	
+	static class InMemoryTimer implements Timer {
+		LongAdder count = new LongAdder() ;
+		LongAdder total = new LongAdder() ;
+		LongAccumulator max = new LongAccumulator(Math::max, 0) ;
+		public void record(long nanos) {
+			count.increment() ;
+			total.add(nanos) ;
+			max.accumulate(nanos) ;
+		}
+		public long count() { return count.sum() ; }
+		public long totalNanos() { return total.sum() ; }
+		public long maxNanos() { return max.get() ; }
+	}
+	
+	Map<String,InMemoryCounter> counters = new ConcurrentHashMap<>() ;
+	Map<String,InMemoryTimer> timers = new ConcurrentHashMap<>() ;
+	Map<String,Gauge> gauges = new ConcurrentHashMap<>() ;
+	
+	public InMemoryMetricsRegistry() { }
+
+	@Override
+	public Counter counter(String name) {
+		return counters.computeIfAbsent(name, n -> new InMemoryCounter()) ;
+	}
+
+	@Override
+	public Timer timer(String name) {
+		return timers.computeIfAbsent(name, n -> new InMemoryTimer()) ;
+	}
+
+	@Override
+	public void gauge(String name, Gauge gauge) {
+		gauges.put(name,gauge) ;
+	}
+	
+	/**
+	 * Return the current values of all metrics, sorted by name. A counter or gauge
+	 * named x appears as x. A timer named x appears as three entries: x.count,
+	 * x.totalMs and x.maxMs.
+	 */
+	public SortedMap<String,Double> snapshot() {
+		SortedMap<String,Double> snapshot = new TreeMap<>() ;
+		for (var e : counters.entrySet()) {
+			snapshot.put(e.getKey(), (double) e.getValue().count()) ;
+		}
+		for (var e : timers.entrySet()) {
+			var timer = e.getValue() ;
+			snapshot.put(e.getKey() + ".count", (double) timer.count()) ;
+			snapshot.put(e.getKey() + ".totalMs", timer.totalNanos() / 1000000d) ;
+			snapshot.put(e.getKey() + ".maxMs", timer.maxNanos() / 1000000d) ;
+		}
+		for (var e : gauges.entrySet()) {
+			snapshot.put(e.getKey(), e.getValue().value()) ;
+		}
+		return snapshot ;
+	}
+	
+	/**
+	 * Format the current values of all metrics to a readable string, one metric per line.
+	 */
+	public String showSnapshot() {
+		StringBuilder s = new StringBuilder() ;
+		for (var e : snapshot().entrySet()) {
+			s.append(e.getKey()).append(": ").append(e.getValue()).append("\n") ;
+		}
+		return s.toString() ;
+	}
+	
+	/**
+	 * Remove all metrics from this registry.
+	 */
+	public void clear() {
+		counters.clear();
+		timers.clear();
+		gauges.clear();
+	}
+
+}
@@ -0,0 +1,42 @@
+package nl.uu.cs.aplib.metrics;
+
+/**
+ * A registry provides named metrics. Asking for a metric with the same name twice
+ * gives the same metric. Aplib reports to the registry that is installed through
+ * {@link nl.uu.cs.aplib.Metrics}; by default this is {@link #NO_OP}, which ignores
+ * everything.
+ * 
+ * <p>
+ * Implementations should be thread-safe, as agents running on different threads
+ * may report to the same registry.
+ */
+public interface MetricsRegistry {
+	
+	/**
+	 * A registry whose metrics ignore all reports. Aplib checks for this registry
+	 * and then skips measuring altogether.
+	 */
+	public static final MetricsRegistry NO_OP = new NoOpMetricsRegistry() ;
+	
+	/**
+	 * Return the counter with the given name. It is created if it does not exist yet.
+	 */
+	public Counter counter(String name) ;
+	
+	/**
+	 * Return the timer with the given name. It is created if it does not exist yet.
+	 */
+	public Timer timer(String name) ;
+	
+	/**
+	 * Register a gauge under the given name. It replaces the gauge previously registered
+	 * under the same name, if there is one.
+	 */
+	public void gauge(String name, Gauge gauge) ;
+	
+	/**
+	 * True if this registry ignores all reports.
+	 */
+	public default boolean isNoOp() { return false ; }
+
+}
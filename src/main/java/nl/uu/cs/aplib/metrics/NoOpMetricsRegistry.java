@@ -0,0 +1,34 @@
+package nl.uu.cs.aplib.metrics;
+
+/**
+ * The registry behind {@link MetricsRegistry#NO_OP}.
+ */
+class NoOpMetricsRegistry implements MetricsRegistry {
+	
+	static final Counter NO_OP_COUNTER = new Counter() {
+		public void inc(long delta) { }
+		public long count() { return 0 ; }
+	} ;
+	
+	static final Timer NO_OP_TIMER = new Timer() {
+		public void record(long nanos) { }
+		public long count() { return 0 ; }
+		public long totalNanos() { return 0 ; }
+		public long maxNanos() { return 0 ; }
+	} ;
+	
+	NoOpMetricsRegistry() { }
+
+	@Override
+	public Counter counter(String name) { return NO_OP_COUNTER ; }
+
+	@Override
+	public Timer timer(String name) { return NO_OP_TIMER ; }
+
+	@Override
+	public void gauge(String name, Gauge gauge) { }
+	
+	@Override
+	public boolean isNoOp() { return true ; }
+
+}
@@ -0,0 +1,29 @@
+package nl.uu.cs.aplib.metrics;
+
+/**
+ * A metric that keeps track of the durations of some repeated activity, e.g.
+ * the executions of an action.
+ */
+public interface Timer {
+	
+	/**
+	 * Record a single duration, in ns.
+	 */
+	public void record(long nanos) ;
+	
+	/**
+	 * Return the number of recorded durations.
+	 */
+	public long count() ;
+	
+	/**
+	 * Return the sum of all recorded durations, in ns.
+	 */
+	public long totalNanos() ;
+	
+	/**
+	 * Return the longest recorded duration, in ns.
+	 */
+	public long maxNanos() ;
+
+}
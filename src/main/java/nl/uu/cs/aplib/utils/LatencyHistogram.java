@@ -0,0 +1,110 @@
+package nl.uu.cs.aplib.utils;
+
+/**
+ * A compact histogram to keep track of the distribution of latencies, e.g. the
+ * execution time of an action, from which percentiles such as the median or
+ * the 99th percentile can be obtained.
+ * 
+ * <p>
+ * Recorded values are put in buckets. Values below 16 each have their own bucket.
+ * Larger values are grouped by their highest bit, and each such group is split
+ * into 16 equally wide buckets. So, the reported percentiles are accurate up to
+ * about 6%, while the histogram needs no more than 976 counters, whatever the
+ * range of the values is. The counters are only allocated at the first recording.
+ * The maximum is tracked exactly.
+ * 
+ * <p>
+ * The methods of this class are synchronized, so that a histogram can be shared,
+ * e.g. by agents that share the same action.
+ */
+public class LatencyHistogram {
+	
+	static final int SUB_BUCKET_BITS = 4 ;
+	static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS ;
+	static final int NUM_OF_BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS ;
+	
+	long[] counts = null ;
+	long count = 0 ;
+	long total = 0 ;
+	long max = 0 ;
+	
+	public LatencyHistogram() { }
+	
+	static int bucketOf(long value) {
+		if (value < SUB_BUCKETS) return (int) value ;
+		int highestBit = 63 - Long.numberOfLeadingZeros(value) ;
+		int shift = highestBit - SUB_BUCKET_BITS ;
+		int sub = (int) ((value >>> shift) & (SUB_BUCKETS - 1)) ;
+		return (shift + 1) * SUB_BUCKETS + sub ;
+	}
+	
+	/**
+	 * The largest value that falls into the given bucket.
+	 */
+	static long upperBoundOf(int bucket) {
+		if (bucket < SUB_BUCKETS) return bucket ;
+		int shift = bucket / SUB_BUCKETS - 1 ;
+		long sub = bucket % SUB_BUCKETS ;
+		long lower = (SUB_BUCKETS + sub) << shift ;
+		return lower + (1L << shift) - 1 ;
+	}
+	
+	/**
+	 * Record a value. Negative values are recorded as 0.
+	 */
+	public synchronized void record(long value) {
+		if (value < 0) value = 0 ;
+		if (counts == null) counts = new long[NUM_OF_BUCKETS] ;
+		counts[bucketOf(value)]++ ;
+		count++ ;
+		total += value ;
+		if (value > max) max = value ;
+	}
+	
+	/**
+	 * Return the number of recorded values.
+	 */
+	public synchronized long count() { return count ; }
+	
+	/**
+	 * Return the largest recorded value, or 0 if nothing was recorded.
+	 */
+	public synchronized long max() { return max ; }
+	
+	/**
+	 * Return the average of the recorded values, or 0 if nothing was recorded.
+	 */
+	public synchronized double mean() {
+		if (count == 0) return 0 ;
+		return (double) total / (double) count ;
+	}
+	
+	/**
+	 * Return an approximation of the given percentile (between 0 and 100) of the recorded
+	 * values. E.g. percentile(50) gives the median. The returned value is at least as
+	 * large as the actual percentile, but never larger than {@link #max()}. If nothing
+	 * was recorded, 0 is returned.
+	 */
+	public synchronized long percentile(double p) {
+		if (p < 0 || p > 100) throw new IllegalArgumentException() ;
+		if (count == 0) return 0 ;
+		long rank = Math.max(1, (long) Math.ceil(p / 100d * count)) ;
+		long seen = 0 ;
+		for (int k=0; k<NUM_OF_BUCKETS; k++) {
+			seen += counts[k] ;
+			if (seen >= rank) return Math.min(upperBoundOf(k), max) ;
+		}
+		return max ;
+	}
+	
+	/**
+	 * Forget all recorded values.
+	 */
+	public synchronized void reset() {
+		counts = null ;
+		count = 0 ;
+		total = 0 ;
+		max = 0 ;
+	}
+
+}
@@ -0,0 +1,28 @@
+package nl.uu.cs.aplib.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A variant of {@link Time} that tracks time in nanoseconds, using System.nanoTime.
+ * Unlike System.currentTimeMillis, this clock is monotonic: it is not affected
+ * by adjustments of the wall-clock. It is also precise enough to measure actions
+ * that take less than a millisecond. The returned values are only meaningful for
+ * calculating elapsed time.
+ */
+public class NanoTime extends Time {
+	
+	public NanoTime() { super() ; }
+	
+	/**
+	 * Return the current value of System.nanoTime.
+	 */
+	@Override
+	public long currentTime() { return System.nanoTime() ; }
+	
+	/**
+	 * Nanoseconds.
+	 */
+	@Override
+	public TimeUnit unit() { return TimeUnit.NANOSECONDS ; }
+
+}
@@ -1,7 +1,10 @@
 package nl.uu.cs.aplib.utils;
 
+import java.util.concurrent.TimeUnit;
+
 /**
- * A class to track elapsed computing time.
+ * A class to track elapsed computing time. Time is tracked in ms; see {@link NanoTime}
+ * for a variant that tracks time in nanoseconds.
  */
 public class Time {
 	
@@ -15,6 +18,11 @@ public class Time {
 	 */
 	public long currentTime() { return System.currentTimeMillis() ; }
 	
+	/**
+	 * The unit of the time values returned by this class, which is milliseconds.
+	 */
+	public TimeUnit unit() { return TimeUnit.MILLISECONDS ; }
+	
 	/**
 	 * Remember the time when this method is called. The time is sampled using System.currentTimeMillis,
 	 * which is supposed to return time in ms since the UNIX epoch.
@@ -24,8 +32,8 @@ public class Time {
 	}
 
 	/**
-	 * Return the time that has elapsed since the last call to sample(). Assuming time was tracked in
-	 * ms, this will also return the elapsed time in ms.
+	 * Return the time that has elapsed since the last call to sample(). The result is
+	 * expressed in the unit given by {@link #unit()}.
 	 */
 	public long elapsedTimeSinceLastSample() {
 		return currentTime() - lastsample ;
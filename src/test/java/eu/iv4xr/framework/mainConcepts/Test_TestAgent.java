@@ -112,4 +112,39 @@ public class Test_TestAgent {
 	}
 	
 
+	@Test
+	public void test_merge() {
+		var agent1 = new TestAgent("A1",null) ;
+		var agent2 = new TestAgent("A2",null) ;
+		var data1 = new TestDataCollector() ;
+		var data2 = new TestDataCollector() ;
+		agent1.setTestDataCollector(data1) ;
+		agent2.setTestDataCollector(data2) ;
+		var p1 = new CoveragePointEvent("p1") ;
+		var p2 = new CoveragePointEvent("p2") ;
+		data1.startTrackingCoveragePoint(p1);
+		
+		agent1.registerVisit(new CoveragePointEvent("p1"));
+		agent2.registerVisit(new CoveragePointEvent("p2"));
+		agent2.registerVisit(new CoveragePointEvent("p2"));
+		agent1.registerVerdict(new VerdictEvent("inv0","some info",true));
+		agent2.registerVerdict(new VerdictEvent("inv0","some info",false));
+		
+		var merged = data1.merge(data2) ;
+		assertTrue(merged.getNumberOfPassVerdictsSeen() == 1) ;
+		assertTrue(merged.getNumberOfFailVerdictsSeen() == 1) ;
+		assertTrue(merged.getNumberOfFailVerdictsSeen("A2") == 1) ;
+		assertTrue(merged.getLastFailVerdict().familyName.equals("inv0")) ;
+		assertTrue(merged.getCollectiveCoverage().get(p1) == 1) ;
+		assertTrue(merged.getCollectiveCoverage().get(p2) == 2) ;
+		assertTrue(merged.getTestAgentCoverage("A1").get(p2) == 0) ;
+		assertTrue(merged.getTestAgentCoverage("A2").get(p1) == 0) ;
+		assertTrue(merged.getTestAgentCoverage("A2").get(p2) == 2) ;
+		assertTrue(merged.getTestAgentTrace("A1").size() == data1.getTestAgentTrace("A1").size()) ;
+		// the merged collectors are unchanged:
+		assertTrue(data1.getNumberOfFailVerdictsSeen() == 0) ;
+		assertTrue(data2.getCollectiveCoverage().get(p2) == 2) ;
+	}
+	
+
 }
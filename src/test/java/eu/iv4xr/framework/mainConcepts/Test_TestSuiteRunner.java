@@ -0,0 +1,148 @@
+package eu.iv4xr.framework.mainConcepts;
+
+import static nl.uu.cs.aplib.AplibEDSL.* ;
+import static eu.iv4xr.framework.mainConcepts.ObservationEvent.*;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.* ;
+
+import eu.iv4xr.framework.mainConcepts.TestSuiteRunner.Outcome;
+import nl.uu.cs.aplib.agents.State;
+import nl.uu.cs.aplib.mainConcepts.Environment;
+
+public class Test_TestSuiteRunner {
+
+	static class MyState extends State {
+		int counter = 0 ;
+	}
+
+	/**
+	 * An agent that increments a counter, until it reaches target. Every update
+	 * sleeps for the given time, to simulate an environment with latency. The agent
+	 * visits a coverage point and registers a verdict when it is done.
+	 */
+	static TestAgent mkAgent(String id, int target, long latency) {
+		var agent = new TestAgent(id,"tester").attachState(new MyState()) ;
+		var inc = action("inc").do1((MyState S) -> {
+			sleepx(latency) ;
+			S.counter++ ;
+			if (S.counter == target) {
+				agent.registerVisit(new CoveragePointEvent("done")) ;
+				agent.registerVerdict(new VerdictEvent("counter", id, true)) ;
+			}
+			return S.counter ;
+		}) ;
+		agent.setGoal(goal("g").toSolve((Integer x) -> x >= target).withTactic(inc.lift()).lift()) ;
+		return agent ;
+	}
+
+	static class ClosableEnv extends Environment implements AutoCloseable {
+		volatile boolean closed = false ;
+		@Override
+		public void close() { closed = true ; }
+	}
+
+	static void sleepx(long t) {
+		try { Thread.sleep(t) ; } catch(InterruptedException e) { }
+	}
+
+	@Test
+	public void test_outcomes() {
+		var ok = mkAgent("ok", 5, 1) ;
+		var failing = new TestAgent("failing","tester").attachState(new MyState()) ;
+		failing.setGoal(goal("g").toSolve((Integer x) -> true).withTactic(ABORT()).lift()) ;
+		var crashing = new TestAgent("crashing","tester").attachState(new MyState()) ;
+		crashing.setGoal(goal("g").toSolve((Integer x) -> true)
+				.withTactic(action("boom").do1((MyState S) -> { throw new IllegalStateException("boom") ; }).lift())
+				.lift()) ;
+		var badEnv = mkAgent("badEnv", 5, 1) ;
+		var slow = mkAgent("slow", 1000, 5) ;
+		var slowEnv = new ClosableEnv() ;
+
+		var runner = new TestSuiteRunner(2)
+				.add(ok, () -> new Environment())
+				.add(failing, () -> new Environment())
+				.add(crashing, () -> new Environment())
+				.add(badEnv, () -> { throw new RuntimeException("no SUT") ; })
+				.add(slow, () -> slowEnv, 100) ;
+		var results = runner.run() ;
+
+		assertEquals(5, results.size()) ;
+		assertEquals(Outcome.SUCCESS, results.get(0).getOutcome()) ;
+		assertEquals(5, results.get(0).getNumberOfUpdates()) ;
+		assertEquals(Outcome.FAILED, results.get(1).getOutcome()) ;
+		assertEquals(Outcome.CRASHED, results.get(2).getOutcome()) ;
+		assertEquals("boom", results.get(2).getException().getMessage()) ;
+		assertEquals(Outcome.CRASHED, results.get(3).getOutcome()) ;
+		assertEquals(0, results.get(3).getNumberOfUpdates()) ;
+		assertEquals(Outcome.TIMEOUT, results.get(4).getOutcome()) ;
+		assertTrue(results.get(4).getNumberOfUpdates() < 1000) ;
+		// the agent that timed out has failed and detached its goal, and its
+		// environment is closed:
+		assertNull(slow.getGoal()) ;
+		assertTrue(slow.getLastHandledGoal().getStatus().failed()) ;
+		assertTrue(slowEnv.closed) ;
+		for (int k=0; k<5; k++) assertSame(runner.entries.get(k).agent, results.get(k).getAgent()) ;
+	}
+
+	@Test
+	public void test_collected_data() {
+		var shared = new TestDataCollector() ;
+		var agent1 = mkAgent("A1", 3, 0) ;
+		var agent2 = mkAgent("A2", 4, 0) ;
+		var agent3 = mkAgent("A3", 5, 0).setTestDataCollector(shared) ;
+		var agent4 = mkAgent("A4", 6, 0).setTestDataCollector(shared) ;
+		var runner = new TestSuiteRunner()
+				.add(agent1, () -> new Environment())
+				.add(agent2, () -> new Environment())
+				.add(agent3, () -> new Environment())
+				.add(agent4, () -> new Environment()) ;
+		for (var R : runner.run()) assertEquals(Outcome.SUCCESS, R.getOutcome()) ;
+
+		// agents without a data collector get their own:
+		assertNotNull(agent1.getTestDataCollector()) ;
+		assertNotSame(agent1.getTestDataCollector(), agent2.getTestDataCollector()) ;
+
+		var data = runner.getCollectedTestData() ;
+		assertEquals(4, data.getNumberOfPassVerdictsSeen()) ;
+		assertEquals(0, data.getNumberOfFailVerdictsSeen()) ;
+		var done = new CoveragePointEvent("done") ;
+		assertEquals(4, data.getCollectiveCoverage().get(done)) ;
+		for (var id : new String[] { "A1", "A2", "A3", "A4" }) {
+			assertEquals(1, data.getNumberOfPassVerdictsSeen(id)) ;
+			assertEquals(1, data.getTestAgentCoverage(id).get(done)) ;
+			assertEquals(1, data.getTestAgentTrace(id).size()) ;
+		}
+		// the shared collector itself is not changed:
+		assertEquals(2, shared.getNumberOfPassVerdictsSeen()) ;
+	}
+
+	/**
+	 * Compare running a suite of agents one after another with running them with a
+	 * TestSuiteRunner. The agents' environments have latency, and the agents need
+	 * different numbers of updates. The times are only printed.
+	 */
+	@Test
+	public void benchmark_sequential_vs_runner() {
+		int N = 16 ;
+		long t0 = System.currentTimeMillis() ;
+		for (int k=0; k<N; k++) {
+			var agent = mkAgent("agent" + k, 2 + k, 2) ;
+			agent.setTestDataCollector(new TestDataCollector()) ;
+			agent.attachEnvironment(new Environment()) ;
+			while (agent.getGoal() != null) agent.update() ;
+		}
+		long sequentialTime = System.currentTimeMillis() - t0 ;
+
+		var runner = new TestSuiteRunner(4) ;
+		for (int k=0; k<N; k++) runner.add(mkAgent("agent" + k, 2 + k, 2), () -> new Environment()) ;
+		t0 = System.currentTimeMillis() ;
+		var results = runner.run() ;
+		long runnerTime = System.currentTimeMillis() - t0 ;
+		System.out.println("** " + N + " test agents, sequential: " + sequentialTime + " ms, "
+				+ "TestSuiteRunner(4): " + runnerTime + " ms") ;
+		for (var R : results) assertEquals(Outcome.SUCCESS, R.getOutcome()) ;
+		assertEquals(N, runner.getCollectedTestData().getNumberOfPassVerdictsSeen()) ;
+	}
+
+}
@@ -1,12 +1,18 @@
 package eu.iv4xr.framework.mainConcepts;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.util.Objects;
+
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import eu.iv4xr.framework.spatial.Vec3;
+
 public class Test_WorldEntity {
 	
 	
@@ -77,4 +83,198 @@ public class Test_WorldEntity {
 		
 	}
 
+	@Test
+	public void test_stateHash() {
+		var door1 = door("d1") ;
+		var door2 = door("d2") ;
+		assertEquals(door1.stateHash(), door2.stateHash()) ;
+		
+		// modifications after hashing should be noticed:
+		door1.properties.put("isOpen",true) ;
+		assertNotEquals(door1.stateHash(), door2.stateHash()) ;
+		door1.properties.remove("isOpen") ;
+		assertFalse(door1.hasSameState(door2)) ;
+		door1.properties.put("isOpen",false) ;
+		assertTrue(door1.hasSameState(door2)) ;
+		door1.position = new Vec3(1,0,0) ;
+		assertFalse(door1.hasSameState(door2)) ;
+		door1.position.x = 0 ;
+		door1.position = null ;
+		assertTrue(door1.hasSameState(door2)) ;
+		
+		// ... also in the elements, though changing an element in place needs an
+		// explicit invalidation of the bag:
+		var bag1 = bag("bag1") ;
+		bag1.elements.put("d1",door1) ;
+		var bag2 = bag("bag1") ;
+		bag2.elements.put("d1",door("d1")) ;
+		assertTrue(bag1.hasSameState(bag2)) ;
+		door1.properties.put("isOpen",true) ;
+		bag1.invalidateStateHash() ;
+		assertFalse(bag1.hasSameState(bag2)) ;
+		bag1.elements.put("d1",door("d1")) ;
+		assertTrue(bag1.hasSameState(bag2)) ;
+		bag1.elements.put("d1",door1) ;
+		
+		// in-place mutation of a Vec3 needs an explicit invalidation:
+		door1.properties.put("isOpen",false) ;
+		door1.position = new Vec3(0) ;
+		bag2.elements.get("d1").position = new Vec3(0) ;
+		bag1.invalidateStateHash() ;
+		bag2.invalidateStateHash() ;
+		assertTrue(bag1.hasSameState(bag2)) ;
+		door1.position.x = 1 ;
+		bag1.invalidateStateHash() ;
+		assertFalse(bag1.hasSameState(bag2)) ;
+		
+		// values with the same 32-bit hashcode, or equal numbers of different types:
+		door1 = door("d1") ;
+		door2 = door("d1") ;
+		door1.properties.put("inscription","Aa") ;
+		door2.properties.put("inscription","BB") ;
+		assertFalse(door1.hasSameState(door2)) ;
+		door1.properties.put("inscription",1) ;
+		door2.properties.put("inscription",1L) ;
+		assertFalse(door1.hasSameState(door2)) ;
+		door2.properties.put("inscription",1) ;
+		door1.properties.put("pos",new Vec3(-0f,1,2)) ;
+		door2.properties.put("pos",new Vec3(0f,1,2)) ;
+		assertTrue(door1.hasSameState(door2)) ;
+		
+		// positions that differ in a few ulps:
+		door1 = door("d1") ;
+		door2 = door("d1") ;
+		door1.position = new Vec3(1,2,3) ;
+		float x = 1f ;
+		for (int k=0; k<31; k++) x = Math.nextDown(x) ;
+		door2.position = new Vec3(x, Math.nextUp(2f), 3) ;
+		assertFalse(door1.hasSameState(door2)) ;
+		door2.position = new Vec3(1,2,3) ;
+		assertTrue(door1.hasSameState(door2)) ;
+		door1.properties.put("n", 5) ;
+		door2.properties.put("n", 4L) ;
+		assertFalse(door1.hasSameState(door2)) ;
+		door2.properties.put("n", 5) ;
+		
+		// values of other types are compared with their equals:
+		door1.properties.put("list", (java.io.Serializable) java.util.List.of("a","b")) ;
+		door2.properties.put("list", (java.io.Serializable) java.util.List.of("a","b")) ;
+		assertTrue(door1.hasSameState(door2)) ;
+		door2.properties.put("list", (java.io.Serializable) java.util.List.of("a","c")) ;
+		assertFalse(door1.hasSameState(door2)) ;
+	}
+	
+	/**
+	 * Compare the states of bags with many elements with nested elements, as
+	 * WorldModel.updateEntity does when a new observation is merged. The numbers are
+	 * only printed.
+	 */
+	@Test
+	public void benchmark_hasSameState() {
+		int numberOfBags = 200 ;
+		int rounds = 20 ;
+		var current = new WorldEntity[numberOfBags] ;
+		for (int b=0; b<numberOfBags; b++) current[b] = nestedBag("bag" + b) ;
+		long preSeriesTime = 0, firstTime = 0, cachedTime = 0 ;
+		for (int r=0; r<rounds; r++) {
+			var observed = new WorldEntity[numberOfBags] ;
+			for (int b=0; b<numberOfBags; b++) observed[b] = nestedBag("bag" + b) ;
+			long t0 = System.nanoTime() ;
+			for (int b=0; b<numberOfBags; b++) assertTrue(preSeriesHasSameState(observed[b],current[b])) ;
+			preSeriesTime += System.nanoTime() - t0 ;
+			t0 = System.nanoTime() ;
+			for (int b=0; b<numberOfBags; b++) assertTrue(observed[b].hasSameState(current[b])) ;
+			firstTime += System.nanoTime() - t0 ;
+			t0 = System.nanoTime() ;
+			for (int b=0; b<numberOfBags; b++) assertTrue(observed[b].hasSameState(current[b])) ;
+			cachedTime += System.nanoTime() - t0 ;
+			current = observed ;
+		}
+		System.out.println("** hasSameState on " + numberOfBags + " bags of 20 items with 5 properties each: "
+				+ (preSeriesTime / rounds / 1000) + " us with the old hashCode and deep comparison, "
+				+ (firstTime / rounds / 1000) + " us per merge of fresh observations, "
+				+ (cachedTime / rounds / 1000) + " us when both sides are already hashed") ;
+	}
+	
+	/**
+	 * A copy of hasSameState as it was before the state-hash was introduced: a check on
+	 * hashCode, followed by a deep comparison.
+	 */
+	static boolean preSeriesHasSameState(WorldEntity e, WorldEntity old) {
+		if (!e.dynamic) return true ;
+		if (preSeriesHashCode(e) != preSeriesHashCode(old)) return false ;
+		if (! (Objects.equals(e.position,old.position)
+				   && Objects.equals(e.velocity,old.velocity)
+				   && e.properties.size() == old.properties.size()
+				   && Objects.equals(e.extent,old.extent)))
+		    return false ;
+		for (var P : e.properties.entrySet()) {
+			var q = old.properties.get(P.getKey()) ;
+			if (! P.getValue().equals(q)) return false ;
+		}
+		if (e.elements.size() != old.elements.size()) return false ;
+		for (var elem_ : e.elements.entrySet()) {
+			var elem2 = old.elements.get(elem_.getKey()) ;
+			if (elem2 == null) return false ;
+			if (!preSeriesHasSameState(elem_.getValue(),elem2)) return false ;
+		}
+		return true ;
+	}
+	
+	/**
+	 * The old hashCode, Objects.hash(position,velocity,extent,properties,elements).
+	 */
+	static int preSeriesHashCode(WorldEntity e) {
+		int elementsHash = 0 ;
+		for (var E : e.elements.entrySet()) elementsHash += E.getKey().hashCode() ^ preSeriesHashCode(E.getValue()) ;
+		return Objects.hash(e.position,e.velocity,e.extent,e.properties,elementsHash) ;
+	}
+	
+	@Test
+	public void test_hasSameState_with_non_exact_values() {
+		// values of other types are hashed by their hashCode; equal hashes must
+		// then still be compared:
+		var a = new WorldEntity("a","bag",true) ;
+		var b = new WorldEntity("a","bag",true) ;
+		a.properties.put("p", new CollidingValue(1)) ;
+		b.properties.put("p", new CollidingValue(2)) ;
+		assertEquals(a.stateHash(), b.stateHash()) ;
+		assertFalse(a.hasSameState(b)) ;
+		b.properties.put("p", new CollidingValue(1)) ;
+		assertTrue(a.hasSameState(b)) ;
+		// also when the value sits in an element:
+		var c = new WorldEntity("c","bag",true) ;
+		var d = new WorldEntity("c","bag",true) ;
+		c.elements.put("a", a) ;
+		d.elements.put("a", new WorldEntity("a","bag",true)) ;
+		d.elements.get("a").properties.put("p", new CollidingValue(3)) ;
+		assertEquals(c.stateHash(), d.stateHash()) ;
+		assertFalse(c.hasSameState(d)) ;
+	}
+	
+	static class CollidingValue implements java.io.Serializable {
+		private static final long serialVersionUID = 1L;
+		int x ;
+		CollidingValue(int x) { this.x = x ; }
+		@Override
+		public int hashCode() { return 0 ; }
+		@Override
+		public boolean equals(Object o) { return o instanceof CollidingValue && ((CollidingValue) o).x == x ; }
+	}
+	
+	WorldEntity nestedBag(String id) {
+		var bag = bag(id) ;
+		for (int k=0; k<20; k++) {
+			var item = new WorldEntity(id + ".item" + k, "item", true) ;
+			item.position = new Vec3(k,0,0) ;
+			item.properties.put("name", "item number " + k) ;
+			item.properties.put("weight", k * 0.5f) ;
+			item.properties.put("count", k) ;
+			item.properties.put("magic", k % 2 == 0) ;
+			item.properties.put("owner", id) ;
+			bag.elements.put(item.id, item) ;
+		}
+		return bag ;
+	}
+
 }
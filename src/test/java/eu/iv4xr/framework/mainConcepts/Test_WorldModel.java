@@ -1,12 +1,25 @@
 package eu.iv4xr.framework.mainConcepts;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import com.google.gson.Gson;
+
+import eu.iv4xr.framework.spatial.Box;
+import eu.iv4xr.framework.spatial.Vec3;
+
 public class Test_WorldModel {
 	
 	WorldEntity door(String id) {
@@ -126,4 +139,396 @@ public class Test_WorldModel {
 				
 	}
 
+	WorldEntity placed(WorldEntity e, float x, float z, long timestamp) {
+		e.position = new Vec3(x,0,z) ;
+		e.timestamp = timestamp ;
+		return e ;
+	}
+	
+	@Test
+	public void test_spatialQueries() {
+		var wom = new WorldModel() ;
+		assertNull(wom.nearestEntity(new Vec3(0), null)) ;
+		var obs = new WorldModel() ;
+		obs.timestamp = 1 ;
+		obs.elements.put("d1", placed(door("d1"),1,0,1)) ;
+		obs.elements.put("d2", placed(door("d2"),5,0,1)) ;
+		obs.elements.put("excalibur", placed(sword("excalibur"),2,0,1)) ;
+		obs.elements.put("ghost", new WorldEntity("ghost","ghost",true)) ;
+		wom.mergeNewObservation(obs) ;
+		assertEquals(Set("d1","excalibur"), ids(wom.entitiesWithin(new Vec3(0), 3))) ;
+		assertEquals("excalibur", wom.nearestEntity(new Vec3(3,0,0), null).id) ;
+		assertEquals("d2", wom.nearestEntity(new Vec3(3,0,0), e -> e.type.equals("door") && e.position.x > 2).id) ;
+		
+		// the door d1 moves; the index should follow:
+		obs = new WorldModel() ;
+		obs.timestamp = 2 ;
+		obs.elements.put("d1", placed(door("d1"),10,10,2)) ;
+		wom.mergeNewObservation(obs) ;
+		assertEquals(Set("excalibur"), ids(wom.entitiesWithin(new Vec3(0), 3))) ;
+		assertEquals(Set("d1"), ids(wom.entitiesInBox(new Box(new Vec3(10,0,10), new Vec3(1))))) ;
+		
+		// removals by a complete delta (which does not need to know the base observation):
+		var delta = new WorldModelDelta() ;
+		delta.timestamp = 3 ;
+		delta.removed.add("d1") ;
+		wom.mergeDelta(delta) ;
+		assertEquals(List.of("excalibur","d2"), ids_(wom.nearestEntities(new Vec3(0), 5, null))) ;
+		
+		// direct modifications of the elements are noticed too:
+		wom.elements.put("sting", placed(sword("sting"),0,0,3)) ;
+		assertEquals("sting", wom.nearestEntity(new Vec3(0), null).id) ;
+		wom.elements.remove("sting") ;
+		assertEquals("excalibur", wom.nearestEntity(new Vec3(0), null).id) ;
+		// .. but moving an entity in place needs an invalidation:
+		wom.getElement("d2").position = new Vec3(0) ;
+		wom.invalidateIndexes() ;
+		assertEquals("d2", wom.nearestEntity(new Vec3(0), null).id) ;
+	}
+	
+	/**
+	 * The elements of a WorldModel decoded by Gson are a plain map. They are replaced
+	 * by a tracked copy at the first query, so that the index can be kept.
+	 */
+	@Test
+	public void test_spatialQueries_onDecodedWorldModel() {
+		var obs = new WorldModel() ;
+		obs.timestamp = 1 ;
+		// without properties, as Gson cannot decode their values:
+		obs.elements.put("d1", placed(new WorldEntity("d1","door",true),1,0,1)) ;
+		obs.elements.put("excalibur", placed(new WorldEntity("excalibur","sword",false),2,0,1)) ;
+		var wom = new Gson().fromJson(new Gson().toJson(obs), WorldModel.class) ;
+		assertFalse(wom.elements instanceof WorldEntity.StateMap) ;
+		assertEquals(Set("d1","excalibur"), ids(wom.entitiesWithin(new Vec3(0), 3))) ;
+		assertTrue(wom.elements instanceof WorldEntity.StateMap) ;
+		// later modifications are noticed:
+		wom.elements.put("sting", placed(new WorldEntity("sting","sword",false),0,0,1)) ;
+		assertEquals("sting", wom.nearestEntity(new Vec3(0), null).id) ;
+		
+		// the same holds for the type index:
+		wom = new Gson().fromJson(new Gson().toJson(obs), WorldModel.class) ;
+		assertEquals(Set("excalibur"), ids(wom.entitiesOfType("sword"))) ;
+		assertTrue(wom.elements instanceof WorldEntity.StateMap) ;
+		wom.elements.put("sting", placed(new WorldEntity("sting","sword",false),0,0,1)) ;
+		assertEquals(Set("excalibur","sting"), ids(wom.entitiesOfType("sword"))) ;
+	}
+	
+	static java.util.Set<String> Set(String ... ids) {
+		return new HashSet<>(List.of(ids)) ;
+	}
+	
+	static java.util.Set<String> ids(List<WorldEntity> entities) {
+		return new HashSet<>(ids_(entities)) ;
+	}
+	
+	static List<String> ids_(List<WorldEntity> entities) {
+		List<String> ids = new ArrayList<>() ;
+		for (var e : entities) ids.add(e.id) ;
+		return ids ;
+	}
+	
+	/**
+	 * Compare the spatial queries with a scan over all entities, for 10k and 100k
+	 * entities spread over a 1km x 1km area, 1% of which are doors. Between queries,
+	 * observations of 50 moving entities are merged, so that the index is also
+	 * updated. The numbers are only printed.
+	 */
+	@Test
+	public void benchmark_spatialQueries() {
+		for (int N : new int[] { 10000, 100000 }) {
+			var rnd = new Random(N) ;
+			var wom = new WorldModel().useSpatialIndex(5) ;
+			var obs = new WorldModel() ;
+			obs.timestamp = 0 ;
+			for (int k=0; k<N; k++) {
+				var e = k % 100 == 0 ? door("e" + k) : new WorldEntity("e" + k, "rock", true) ;
+				obs.elements.put(e.id, placed(e, rnd.nextFloat() * 1000, rnd.nextFloat() * 1000, 0)) ;
+			}
+			long t0 = System.nanoTime() ;
+			wom.mergeNewObservation(obs) ;
+			wom.nearestEntity(new Vec3(0), null) ;
+			long buildTime = System.nanoTime() - t0 ;
+			
+			int queries = 200 ;
+			long indexTime = 0, scanTime = 0, mergeTime = 0 ;
+			for (int q=0; q<queries; q++) {
+				obs = new WorldModel() ;
+				obs.timestamp = q+1 ;
+				for (int m=0; m<50; m++) {
+					var e = new WorldEntity("e" + (m * 101 + 1), "rock", true) ;
+					obs.elements.put(e.id, placed(e, rnd.nextFloat() * 1000, rnd.nextFloat() * 1000, q+1)) ;
+				}
+				t0 = System.nanoTime() ;
+				wom.mergeNewObservation(obs) ;
+				mergeTime += System.nanoTime() - t0 ;
+				
+				var p = new Vec3(rnd.nextFloat() * 1000, 0, rnd.nextFloat() * 1000) ;
+				t0 = System.nanoTime() ;
+				var within = wom.entitiesWithin(p, 5) ;
+				var nearestDoor = wom.nearestEntity(p, e -> e.type.equals("door")) ;
+				indexTime += System.nanoTime() - t0 ;
+				
+				t0 = System.nanoTime() ;
+				List<WorldEntity> within2 = new ArrayList<>() ;
+				for (var e : wom.elements.values()) if (Vec3.dist(p, e.position) <= 5) within2.add(e) ;
+				var nearestDoor2 = wom.elements.values().stream()
+						.filter(e -> e.type.equals("door"))
+						.min(Comparator.comparingDouble(e -> Vec3.distSq(p, e.position))).get() ;
+				scanTime += System.nanoTime() - t0 ;
+				
+				assertEquals(ids(within2), ids(within)) ;
+				assertEquals(Vec3.distSq(p, nearestDoor2.position), Vec3.distSq(p, nearestDoor.position)) ;
+			}
+			System.out.println("** " + N + " entities: building the index " + (buildTime / 1000000) + " ms; radius + nearest-door query: "
+					+ (indexTime / queries / 1000) + " us with the index, " + (scanTime / queries / 1000) + " us by scanning; merging 50 moved entities: "
+					+ (mergeTime / queries / 1000) + " us") ;
+		}
+	}
+
+	@Test
+	public void test_typeAndPropertyIndexes() {
+		var wom = new WorldModel().indexProperty("isOpen") ;
+		var obs = world(1) ;
+		obs.elements.put("d3", door("d3")) ;
+		obs.getElement("d3").properties.put("isOpen", true) ;
+		wom.mergeNewObservation(obs) ;
+		assertEquals(Set("d1","d2","d3"), ids(wom.entitiesOfType("door"))) ;
+		assertEquals(Set("excalibur"), ids(wom.entitiesOfType("sword"))) ;
+		assertTrue(wom.entitiesOfType("dragon").isEmpty()) ;
+		assertEquals(Set("d1","d2"), ids(wom.entitiesWithProperty("isOpen", false))) ;
+		assertEquals(Set("d1","d2"), ids(wom.entitiesOfType("door", "isOpen", false))) ;
+		
+		// d1 is opened; the indexes should follow:
+		obs = world(2) ;
+		obs.getElement("d1").properties.put("isOpen", true) ;
+		wom.mergeNewObservation(obs) ;
+		assertEquals(Set("d2"), ids(wom.entitiesWithProperty("isOpen", false))) ;
+		assertEquals(Set("d1","d3"), ids(wom.entitiesOfType("door", "isOpen", true))) ;
+		
+		// a property that is not indexed:
+		wom.getElement("d2").properties.put("color", "red") ;
+		assertEquals(Set("d2"), ids(wom.entitiesWithProperty("color", "red"))) ;
+		assertEquals(Set("d2"), ids(wom.entitiesOfType("door", "color", "red"))) ;
+		assertThrows(IllegalArgumentException.class, () -> wom.entitiesWithProperty("color", null)) ;
+		
+		// removals by a complete delta, and direct modifications of the elements:
+		var delta = new WorldModelDelta() ;
+		delta.timestamp = 3 ;
+		delta.removed.add("d3") ;
+		wom.mergeDelta(delta) ;
+		assertEquals(Set("d1"), ids(wom.entitiesWithProperty("isOpen", true))) ;
+		wom.elements.put("d4", door("d4")) ;
+		assertEquals(Set("d2","d4"), ids(wom.entitiesOfType("door", "isOpen", false))) ;
+		// .. but changing the property of an entity in place needs an invalidation:
+		wom.getElement("d4").properties.put("isOpen", true) ;
+		wom.invalidateIndexes() ;
+		assertEquals(Set("d2"), ids(wom.entitiesWithProperty("isOpen", false))) ;
+	}
+	
+	/**
+	 * Compare looking up the closed doors in a WorldModel of 100k entities through
+	 * the type and property indexes, with filtering all elements. Between lookups,
+	 * observations in which some doors are opened or closed are merged. The
+	 * numbers are only printed.
+	 */
+	@Test
+	public void benchmark_typeAndPropertyIndexes() {
+		int N = 100000 ;
+		var rnd = new Random(N) ;
+		var wom = new WorldModel().indexProperty("isOpen") ;
+		var obs = new WorldModel() ;
+		for (int k=0; k<N; k++) {
+			var e = k % 100 == 0 ? door("e" + k) : new WorldEntity("e" + k, k % 3 == 0 ? "rock" : "tree", true) ;
+			obs.elements.put(e.id, e) ;
+		}
+		wom.mergeNewObservation(obs) ;
+		int lookups = 200 ;
+		long indexTime = 0, scanTime = 0, mergeTime = 0 ;
+		for (int q=0; q<lookups; q++) {
+			obs = new WorldModel() ;
+			obs.timestamp = q+1 ;
+			for (int m=0; m<20; m++) {
+				var e = door("e" + rnd.nextInt(N/100) * 100) ;
+				e.properties.put("isOpen", rnd.nextBoolean()) ;
+				e.timestamp = q+1 ;
+				obs.elements.put(e.id, e) ;
+			}
+			long t0 = System.nanoTime() ;
+			wom.mergeNewObservation(obs) ;
+			mergeTime += System.nanoTime() - t0 ;
+			
+			t0 = System.nanoTime() ;
+			var closed = wom.entitiesOfType("door", "isOpen", false) ;
+			indexTime += System.nanoTime() - t0 ;
+			t0 = System.nanoTime() ;
+			List<WorldEntity> closed2 = new ArrayList<>() ;
+			for (var e : wom.elements.values()) 
+				if (e.type.equals("door") && ! e.getBooleanProperty("isOpen")) closed2.add(e) ;
+			scanTime += System.nanoTime() - t0 ;
+			assertEquals(ids(closed2), ids(closed)) ;
+		}
+		System.out.println("** looking up the closed doors among " + N + " entities: " 
+				+ (indexTime / lookups / 1000) + " us with the indexes, " + (scanTime / lookups / 1000) + " us by scanning; merging 20 doors: "
+				+ (mergeTime / lookups / 1000) + " us") ;
+	}
+
+	static void assignTimeStamp(WorldModel obs, long timestamp) {
+		for (var e : obs.elements.values()) e.assignTimeStamp(timestamp) ;
+	}
+	
+	WorldModel doorObservation(long timestamp, boolean d1IsOpen, boolean d2IsOpen) {
+		var obs = new WorldModel() ;
+		obs.timestamp = timestamp ;
+		var d1 = door("d1") ;
+		d1.properties.put("isOpen", d1IsOpen) ;
+		var d2 = door("d2") ;
+		d2.properties.put("isOpen", d2IsOpen) ;
+		obs.elements.put("d1", d1) ;
+		obs.elements.put("d2", d2) ;
+		assignTimeStamp(obs, timestamp) ;
+		return obs ;
+	}
+	
+	@Test
+	public void test_history() {
+		var wom = new WorldModel().keepHistory(3, 100) ;
+		// d1 toggles every 2 ticks, d2 stays closed:
+		for (long t=0; t<10; t++) {
+			wom.mergeNewObservation(doorObservation(t, (t/2) % 2 == 1, false)) ;
+		}
+		// d1 was closed at 0-1, open at 2-3, closed at 4-5, open at 6-7, closed at 8-9
+		assertEquals(3, wom.history("d1").size()) ;
+		assertTrue(wom.history("d2").isEmpty()) ;
+		assertEquals(3, wom.historySize()) ;
+		assertEquals(List.of(2L,4L,6L), List.of(wom.history("d1").get(0).lastStutterTimestamp,
+				wom.history("d1").get(1).lastStutterTimestamp, wom.history("d1").get(2).lastStutterTimestamp)) ;
+		for (long t=2; t<10; t++) {
+			assertEquals((t/2) % 2 == 1, wom.stateAt("d1", t).getBooleanProperty("isOpen")) ;
+		}
+		// the states before 2 are dropped:
+		assertNull(wom.stateAt("d1", 1)) ;
+		// d2 never changed:
+		assertEquals(false, wom.stateAt("d2", 0).getBooleanProperty("isOpen")) ;
+		assertNull(wom.stateAt("d2", -1)) ;
+		assertNull(wom.stateAt("d3", 5)) ;
+		
+		// a cap on the total history: d1 and d2 both toggle every tick:
+		var wom2 = new WorldModel().keepHistory(10, 5) ;
+		for (long t=0; t<10; t++) {
+			wom2.mergeNewObservation(doorObservation(t, t % 2 == 1, t % 2 == 1)) ;
+			assertTrue(wom2.historySize() <= 5) ;
+		}
+		assertEquals(5, wom2.historySize()) ;
+		// the oldest states are dropped first; the last five are those of d2 at 6, and
+		// of both doors at 7 and 8:
+		assertEquals(2, wom2.history("d1").size()) ;
+		assertEquals(3, wom2.history("d2").size()) ;
+		assertEquals(7, wom2.history("d1").get(0).timestamp) ;
+		assertEquals(6, wom2.history("d2").get(0).timestamp) ;
+		
+		// no history by default:
+		var wom3 = new WorldModel() ;
+		for (long t=0; t<10; t++) wom3.mergeNewObservation(doorObservation(t, t % 2 == 1, false)) ;
+		assertEquals(0, wom3.historySize()) ;
+		assertNull(wom3.stateAt("d1", 5)) ;
+		assertEquals(true, wom3.stateAt("d1", 9).getBooleanProperty("isOpen")) ;
+	}
+	
+	@Test
+	public void test_history_sharing() {
+		var wom = new WorldModel().keepHistory(5, 100) ;
+		for (long t=0; t<3; t++) {
+			var obs = new WorldModel() ;
+			obs.timestamp = t ;
+			var bag = new WorldEntity("bag","bag",true) ;
+			bag.properties.put("weight", (int) t) ;
+			bag.elements.put("d1", door("d1")) ;
+			var d2 = door("d2") ;
+			d2.properties.put("isOpen", t == 1) ;
+			bag.elements.put("d2", d2) ;
+			// a non-dynamic element whose content still differs:
+			var sword = sword("s") ;
+			sword.properties.put("sharpness", (int) t) ;
+			bag.elements.put("s", sword) ;
+			obs.elements.put("bag", bag) ;
+			assignTimeStamp(obs, t) ;
+			wom.mergeNewObservation(obs) ;
+		}
+		var history = wom.history("bag") ;
+		var bag = wom.getElement("bag") ;
+		assertEquals(2, history.size()) ;
+		// d1 never changes, so the past states share it; d2 changed at 1 and 2:
+		assertTrue(history.get(0).elements.get("d1") == history.get(1).elements.get("d1")) ;
+		assertTrue(history.get(0).elements.get("d2") != history.get(1).elements.get("d2")) ;
+		assertTrue(history.get(0).elements.get("s") != history.get(1).elements.get("s")) ;
+		// the current state is not shared, and the timestamps are unchanged:
+		assertTrue(history.get(1).elements.get("d1") != bag.elements.get("d1")) ;
+		assertEquals(0, history.get(1).elements.get("d1").timestamp) ;
+		assertEquals(2, bag.elements.get("d1").timestamp) ;
+		assertEquals(0, history.get(0).timestamp) ;
+		assertEquals(1, history.get(1).timestamp) ;
+		assertEquals(false, history.get(0).elements.get("d2").getBooleanProperty("isOpen")) ;
+		assertEquals(true, history.get(1).elements.get("d2").getBooleanProperty("isOpen")) ;
+		// the previous state of the current state is not changed by the sharing:
+		var previous = bag.getPreviousState() ;
+		assertTrue(previous != history.get(1)) ;
+		assertTrue(previous.elements.get("d1") != history.get(1).elements.get("d1")) ;
+		assertEquals(1, previous.elements.get("d1").timestamp) ;
+		assertEquals(1, previous.timestamp) ;
+		assertEquals(1, history.get(1).elements.get("d2").timestamp) ;
+	}
+	
+	/**
+	 * Merge 200 observations of 1000 bags with 10 items each, in which one of the
+	 * items changes every tick, keeping a history of 50 states per bag (capped at
+	 * 20000 states). This is compared with keeping the history by deep-cloning
+	 * every changed entity. The numbers are only printed.
+	 */
+	@Test
+	public void benchmark_history() throws Exception {
+		int numberOfBags = 1000 ;
+		int ticks = 200 ;
+		var wom = new WorldModel().keepHistory(50, 20000) ;
+		var wom2 = new WorldModel() ;
+		long historyTime = 0, cloneTime = 0 ;
+		List<WorldEntity> clones = new java.util.LinkedList<>() ;
+		for (int t=0; t<ticks; t++) {
+			var obs = new WorldModel() ;
+			var obs2 = new WorldModel() ;
+			obs.timestamp = t ;
+			obs2.timestamp = t ;
+			for (int b=0; b<numberOfBags; b++) {
+				obs.elements.put("bag" + b, bag(b, t)) ;
+				obs2.elements.put("bag" + b, bag(b, t)) ;
+			}
+			assignTimeStamp(obs, t) ;
+			assignTimeStamp(obs2, t) ;
+			long t0 = System.nanoTime() ;
+			wom.mergeNewObservation(obs) ;
+			historyTime += System.nanoTime() - t0 ;
+			t0 = System.nanoTime() ;
+			for (var e : wom2.mergeNewObservation(obs2)) {
+				clones.add(e.deepclone()) ;
+				if (clones.size() > 20000) clones.remove(0) ;
+			}
+			cloneTime += System.nanoTime() - t0 ;
+		}
+		assertEquals(20000, wom.historySize()) ;
+		System.out.println("** merging " + numberOfBags + " bags of 10 items with a history of 20000 states: " 
+				+ (historyTime / ticks / 1000) + " us per tick; with deepclone of the changed bags: "
+				+ (cloneTime / ticks / 1000) + " us per tick") ;
+	}
+	
+	WorldEntity bag(int b, int t) {
+		var bag = new WorldEntity("bag" + b, "bag", true) ;
+		for (int k=0; k<10; k++) {
+			var item = new WorldEntity("bag" + b + ".item" + k, "item", true) ;
+			item.properties.put("name", "item number " + k) ;
+			// item k changes at the ticks t with t%10 == k:
+			item.properties.put("uses", t - Math.floorMod(t - k, 10)) ;
+			bag.elements.put(item.id, item) ;
+		}
+		return bag ;
+	}
+
 }
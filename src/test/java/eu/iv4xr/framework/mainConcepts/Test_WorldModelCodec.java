@@ -0,0 +1,242 @@
+package eu.iv4xr.framework.mainConcepts;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.* ;
+
+import com.google.gson.Gson;
+
+import static eu.iv4xr.framework.mainConcepts.WorldModelAssertions.* ;
+
+import eu.iv4xr.framework.spatial.Vec3;
+
+public class Test_WorldModelCodec {
+
+	static WorldEntity door(String id, boolean open) {
+		var e = new WorldEntity(id,"door",true) ;
+		e.position = new Vec3(1,2,3) ;
+		e.extent = new Vec3(0.5f) ;
+		e.timestamp = 10 ;
+		e.properties.put("isOpen",open) ;
+		return e ;
+	}
+
+	static WorldModel mkWorldModel() {
+		var wom = new WorldModel() ;
+		wom.agentId = "agent1" ;
+		wom.position = new Vec3(5,0,5) ;
+		wom.velocity = new Vec3(0,0,-1.5f) ;
+		wom.timestamp = 10 ;
+		var door1 = door("d1",true) ;
+		door1.linkPreviousState(door("d1",false)) ;
+		door1.getPreviousState().timestamp = 7 ;
+		door1.lastStutterTimestamp = 8 ;
+		wom.elements.put("d1",door1) ;
+		wom.elements.put("d2",door("d2",false)) ;
+		var bag = new WorldEntity("bag","container",true) ;
+		bag.properties.put("int", -42) ;
+		bag.properties.put("long", 1L << 40) ;
+		bag.properties.put("float", 0.25f) ;
+		bag.properties.put("double", Math.PI) ;
+		bag.properties.put("string", "déjà vu") ;
+		bag.properties.put("string2", "déjà vu") ;
+		bag.properties.put("null", null) ;
+		bag.properties.put("vec", new Vec3(7,8,9)) ;
+		bag.properties.put("ints", new int[] { 1, -2, 300000 }) ;
+		bag.properties.put("floats", new float[] { 1.5f, -2 }) ;
+		bag.properties.put("other", (java.io.Serializable) List.of("a","b")) ;
+		var sword = new WorldEntity("sword","weapon",false) ;
+		bag.elements.put("sword",sword) ;
+		// an element stored under a key that is not its id:
+		bag.elements.put("slot2",new WorldEntity("shield","weapon",false)) ;
+		wom.elements.put("bag",bag) ;
+		return wom ;
+	}
+
+	@Test
+	public void test_roundtrip() throws Exception {
+		var wom = mkWorldModel() ;
+		var decoded = WorldModelCodec.decodeWorldModel(WorldModelCodec.encode(wom)) ;
+		assertSameWorldModel(wom, decoded) ;
+		assertNotSame(wom.elements.get("d1"), decoded.elements.get("d1")) ;
+
+		// over a stream, several in a row:
+		var out = new ByteArrayOutputStream() ;
+		WorldModelCodec.write(wom, out) ;
+		WorldModelCodec.write(new WorldModel(), out) ;
+		var in = new ByteArrayInputStream(out.toByteArray()) ;
+		assertSameWorldModel(wom, WorldModelCodec.readWorldModel(in)) ;
+		assertSameWorldModel(new WorldModel(), WorldModelCodec.readWorldModel(in)) ;
+		assertEquals(-1, in.read()) ;
+	}
+
+	@Test
+	public void test_deepclone() throws Exception {
+		var bag = mkWorldModel().elements.get("bag") ;
+		var clone = bag.deepclone() ;
+		assertSameEntity(bag, clone) ;
+		clone.elements.get("sword").position = new Vec3(1) ;
+		assertNull(bag.elements.get("sword").position) ;
+
+		var door = mkWorldModel().elements.get("d1") ;
+		assertSameEntity(door, door.deepclone()) ;
+		assertTrue(door.hasSameState(door.deepclone())) ;
+	}
+
+	static class Chest extends WorldEntity {
+		private static final long serialVersionUID = 1L;
+		int gold = 0 ;
+		Chest(String id) { super(id,"chest",true) ; }
+	}
+	
+	@Test
+	public void test_deepclone_subclass() throws Exception {
+		var chest = new Chest("c") ;
+		chest.gold = 100 ;
+		chest.properties.put("token", new Token("t")) ;
+		var copy = chest.deepclone() ;
+		assertTrue(copy instanceof Chest) ;
+		assertEquals(100, ((Chest) copy).gold) ;
+		assertSameEntity(chest, copy) ;
+		
+		// also as an element of a plain entity:
+		var room = new WorldEntity("room","room",true) ;
+		room.elements.put("c", chest) ;
+		var room2 = room.deepclone() ;
+		assertTrue(room2.elements.get("c") instanceof Chest) ;
+		assertEquals(100, ((Chest) room2.elements.get("c")).gold) ;
+		
+		// the codec is used for plain entities, also with values that the codec
+		// would not decode from a message:
+		var bag = new WorldEntity("bag","bag",true) ;
+		bag.properties.put("token", new Token("t2")) ;
+		assertEquals("t2", ((Token) bag.deepclone().properties.get("token")).name) ;
+	}
+
+	@Test
+	public void test_corrupt_input() {
+		var bytes = WorldModelCodec.encode(mkWorldModel()) ;
+		assertThrows(IllegalArgumentException.class, () -> WorldModelCodec.decodeWorldModel(java.util.Arrays.copyOf(bytes, bytes.length / 2))) ;
+		bytes[0] = 99 ;
+		assertThrows(IllegalArgumentException.class, () -> WorldModelCodec.decodeWorldModel(bytes)) ;
+	}
+
+	static class Token implements java.io.Serializable {
+		private static final long serialVersionUID = 1L;
+		String name ;
+		Token(String name) { this.name = name ; }
+		@Override
+		public boolean equals(Object o) { return o instanceof Token && ((Token) o).name.equals(name) ; }
+		@Override
+		public int hashCode() { return name.hashCode() ; }
+	}
+	
+	@Test
+	public void test_serialized_values_are_filtered() {
+		var e = new WorldEntity("e","bag",true) ;
+		e.properties.put("list", new java.util.ArrayList<>(List.of(1,2))) ;
+		e.properties.put("token", new Token("t")) ;
+		var bytes = WorldModelCodec.encode(e) ;
+		// Token is not in an allowed package:
+		var ex = assertThrows(IllegalArgumentException.class, () -> WorldModelCodec.decodeWorldEntity(bytes)) ;
+		assertTrue(ex.getCause() instanceof java.io.InvalidClassException) ;
+		assertThrows(IllegalArgumentException.class, () -> WorldModelCodec.allowSerializedValues("!*")) ;
+		
+		WorldModelCodec.allowSerializedValues(Token.class.getName()) ;
+		var e2 = WorldModelCodec.decodeWorldEntity(bytes) ;
+		assertEquals(List.of(1,2), e2.properties.get("list")) ;
+		assertEquals("t", ((Token) e2.properties.get("token")).name) ;
+	}
+
+	static WorldModel mkLargeWorldModel(int numberOfEntities, boolean withProperties) {
+		var wom = new WorldModel() ;
+		wom.agentId = "agent" ;
+		wom.position = new Vec3(1,2,3) ;
+		wom.timestamp = 100 ;
+		for (int k=0; k<numberOfEntities; k++) {
+			var e = new WorldEntity("entity" + k, "type" + (k % 10), k % 2 == 0) ;
+			e.position = new Vec3(k, k+1, k+2) ;
+			e.extent = new Vec3(0.5f) ;
+			e.velocity = new Vec3(0) ;
+			e.timestamp = 100 ;
+			if (withProperties) {
+				e.properties.put("isOpen", k % 3 == 0) ;
+				e.properties.put("health", k % 100) ;
+				e.properties.put("color", "color" + (k % 5)) ;
+			}
+			wom.elements.put(e.id, e) ;
+		}
+		return wom ;
+	}
+
+	static byte[] javaSerialize(WorldModel wom) throws Exception {
+		var bytes = new ByteArrayOutputStream() ;
+		try (var out = new ObjectOutputStream(bytes)) { out.writeObject(wom) ; }
+		return bytes.toByteArray() ;
+	}
+
+	static WorldModel javaDeserialize(byte[] bytes) throws Exception {
+		try (var in = new ObjectInputStream(new ByteArrayInputStream(bytes))) { return (WorldModel) in.readObject() ; }
+	}
+
+	static interface Codec {
+		byte[] encode(WorldModel wom) throws Exception ;
+		WorldModel decode(byte[] bytes) throws Exception ;
+	}
+
+	static void measure(String name, Codec codec, WorldModel wom, int repeat) throws Exception {
+		// warm up:
+		for (int k=0; k<5; k++) codec.decode(codec.encode(wom)) ;
+		byte[] bytes = null ;
+		long t0 = System.nanoTime() ;
+		for (int k=0; k<repeat; k++) bytes = codec.encode(wom) ;
+		long encodeTime = (System.nanoTime() - t0) / repeat ;
+		WorldModel decoded = null ;
+		t0 = System.nanoTime() ;
+		for (int k=0; k<repeat; k++) decoded = codec.decode(bytes) ;
+		long decodeTime = (System.nanoTime() - t0) / repeat ;
+		System.out.println("**    " + name + ": " + (bytes.length / 1024) + " KB, encode " + (encodeTime / 1000)
+				+ " us, decode " + (decodeTime / 1000) + " us") ;
+		assertSameWorldModel(wom, decoded) ;
+	}
+
+	/**
+	 * Compare the size, and encoding and decoding time, of a WorldModel of 10000
+	 * entities with the binary codec, Gson, and Java serialization. The numbers are
+	 * only printed.
+	 */
+	@Test
+	public void benchmark_codecs() throws Exception {
+		var gson = new Gson() ;
+		var binary = new Codec() {
+			public byte[] encode(WorldModel wom) { return WorldModelCodec.encode(wom) ; }
+			public WorldModel decode(byte[] bytes) { return WorldModelCodec.decodeWorldModel(bytes) ; }
+		} ;
+		var json = new Codec() {
+			public byte[] encode(WorldModel wom) { return gson.toJson(wom).getBytes(java.nio.charset.StandardCharsets.UTF_8) ; }
+			public WorldModel decode(byte[] bytes) { return gson.fromJson(new String(bytes, java.nio.charset.StandardCharsets.UTF_8), WorldModel.class) ; }
+		} ;
+		var java = new Codec() {
+			public byte[] encode(WorldModel wom) throws Exception { return javaSerialize(wom) ; }
+			public WorldModel decode(byte[] bytes) throws Exception { return javaDeserialize(bytes) ; }
+		} ;
+		int N = 10000 ;
+		int repeat = 10 ;
+		System.out.println("** a WorldModel of " + N + " entities without properties:") ;
+		var wom = mkLargeWorldModel(N, false) ;
+		measure("binary", binary, wom, repeat) ;
+		measure("Gson", json, wom, repeat) ;
+		measure("Java serialization", java, wom, repeat) ;
+		// Gson cannot decode the properties map, as its values are typed Serializable:
+		System.out.println("** a WorldModel of " + N + " entities with 3 properties each:") ;
+		wom = mkLargeWorldModel(N, true) ;
+		measure("binary", binary, wom, repeat) ;
+		measure("Java serialization", java, wom, repeat) ;
+	}
+
+}
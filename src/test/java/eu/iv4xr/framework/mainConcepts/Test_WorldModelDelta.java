@@ -0,0 +1,205 @@
+package eu.iv4xr.framework.mainConcepts;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.* ;
+
+import static eu.iv4xr.framework.mainConcepts.WorldModelAssertions.* ;
+
+import eu.iv4xr.framework.spatial.Vec3;
+
+public class Test_WorldModelDelta {
+
+	/**
+	 * A world with a number of static walls, and a number of doors whose states
+	 * change over time. The agent sees the walls, and the doors whose number is at
+	 * least its own position.
+	 */
+	static class MyEnv extends W3DEnvironment {
+		int numberOfWalls ;
+		int numberOfDoors ;
+		int time = 0 ;
+		int agentPosition = 0 ;
+
+		MyEnv(int numberOfWalls, int numberOfDoors) {
+			this.numberOfWalls = numberOfWalls ;
+			this.numberOfDoors = numberOfDoors ;
+		}
+
+		/**
+		 * Advance time; the agent moves one door further every 5 ticks.
+		 */
+		void tick() {
+			time++ ;
+			if (time % 5 == 0) agentPosition++ ;
+		}
+
+		WorldModel fullObservation() {
+			var wom = new WorldModel() ;
+			wom.agentId = "agent" ;
+			wom.timestamp = time ;
+			wom.position = new Vec3(agentPosition, 0, 0) ;
+			for (int k=0; k<numberOfWalls; k++) {
+				var e = new WorldEntity("wall" + k, "wall", false) ;
+				e.position = new Vec3(k, 0, 10) ;
+				e.timestamp = time ;
+				wom.elements.put(e.id, e) ;
+			}
+			for (int k=agentPosition; k<numberOfDoors; k++) {
+				var e = new WorldEntity("door" + k, "door", true) ;
+				e.position = new Vec3(k, 0, 5) ;
+				// door k toggles every k+1 ticks:
+				e.properties.put("isOpen", (time / (k+1)) % 2 == 0) ;
+				e.timestamp = time ;
+				wom.elements.put(e.id, e) ;
+			}
+			return wom ;
+		}
+
+		@Override
+		protected Object sendCommand_(EnvOperation cmd) {
+			if (cmd.command.equals(OBSERVE_CMDNAME)) return fullObservation() ;
+			if (cmd.command.equals(OBSERVE_DELTA_CMDNAME))
+				return deltaObservation(cmd.invokerId, (Long) cmd.arg, fullObservation()) ;
+			throw new IllegalArgumentException() ;
+		}
+	}
+
+	@Test
+	public void test_delta_merge_equals_full_merge() {
+		var env = new MyEnv(20, 8) ;
+		var full = new WorldModel() ;
+		full.agentId = "agent" ;
+		var viaDelta = new WorldModel() ;
+		viaDelta.agentId = "agent" ;
+		for (int t=0; t<30; t++) {
+			var changed1 = full.mergeNewObservation(env.observe("agent")) ;
+			var delta = viaDelta.observeDelta(env) ;
+			if (t == 0) assertTrue(delta.isComplete()) ;
+			else {
+				assertFalse(delta.isComplete()) ;
+				// the walls never change:
+				assertTrue(delta.changed.keySet().stream().noneMatch(id -> id.startsWith("wall"))) ;
+			}
+			var changed2 = viaDelta.mergeDelta(delta) ;
+			assertEquals(changed1.size(), changed2.size()) ;
+			assertSameWorldModel(full, viaDelta) ;
+			env.tick() ;
+		}
+		// the environment only remembers the last acknowledged observation, and the
+		// one sent after it:
+		assertEquals(2, env.sentObservations.get("agent").size()) ;
+	}
+
+	@Test
+	public void test_invalid_deltas() {
+		var env = new MyEnv(3, 3) ;
+		var wom = new WorldModel() ;
+		wom.agentId = "agent" ;
+		wom.mergeDelta(wom.observeDelta(env)) ;
+		env.tick() ;
+		var delta = env.observeDelta("agent", wom.timestamp) ;
+		env.tick() ;
+		var delta2 = env.observeDelta("agent", delta.timestamp) ;
+		// delta2 is relative to delta, which has not been merged:
+		assertThrows(IllegalArgumentException.class, () -> wom.mergeDelta(delta2)) ;
+		wom.mergeDelta(delta) ;
+		// an older delta:
+		assertThrows(IllegalArgumentException.class, () -> wom.mergeDelta(WorldModelDelta.diff(null, new WorldModel()))) ;
+
+		// a WorldModel that does not know what it observed at the base time:
+		var wom2 = new WorldModel() ;
+		wom2.agentId = "agent" ;
+		wom2.mergeNewObservation(env.observe("agent")) ;
+		var delta3 = WorldModelDelta.diff(wom2, wom2) ;
+		delta3.timestamp = wom2.timestamp + 1 ;
+		assertThrows(IllegalArgumentException.class, () -> wom2.mergeDelta(delta3)) ;
+		assertTrue(wom2.observeDelta(env).isComplete()) ;
+
+		// removed entities; the entities that are not mentioned are unchanged:
+		var delta4 = WorldModelDelta.diff(wom, wom) ;
+		assertTrue(delta4.changed.isEmpty() && delta4.leftView.isEmpty()) ;
+		delta4.timestamp = wom.timestamp + 1 ;
+		delta4.removed.add("door1") ;
+		wom.mergeDelta(delta4) ;
+		assertNull(wom.getElement("door1")) ;
+		assertEquals(delta4.timestamp, wom.getElement("door2").timestamp) ;
+		assertEquals(0, wom.getElement("door2").lastStutterTimestamp) ;
+		
+		// entities that left the view keep their timestamp:
+		var delta5 = WorldModelDelta.diff(wom, wom) ;
+		delta5.timestamp = wom.timestamp + 1 ;
+		delta5.leftView.add("door2") ;
+		wom.mergeDelta(delta5) ;
+		assertEquals(delta4.timestamp, wom.getElement("door2").timestamp) ;
+		assertEquals(delta5.timestamp, wom.getElement("wall0").timestamp) ;
+	}
+
+	@Test
+	public void test_agent_changes_do_not_affect_the_environment() {
+		var env = new MyEnv(3, 3) ;
+		var wom = new WorldModel() ;
+		wom.agentId = "agent" ;
+		wom.mergeDelta(wom.observeDelta(env)) ;
+		// the agent changes an entity it received:
+		wom.getElement("door2").properties.put("isOpen", false) ;
+		env.tick() ;
+		// door2 did not change in the environment, which still compares with what
+		// it sent:
+		var delta = wom.observeDelta(env) ;
+		assertFalse(delta.changed.containsKey("door2")) ;
+		wom.mergeDelta(delta) ;
+		assertEquals(false, wom.getElement("door2").properties.get("isOpen")) ;
+	}
+
+	@Test
+	public void test_codec() {
+		var env = new MyEnv(5, 5) ;
+		env.observeDelta("agent", -1) ;
+		for (int k=0; k<7; k++) env.tick() ;
+		var delta = env.observeDelta("agent", 0) ;
+		delta.removed.add("door9") ;
+		var decoded = WorldModelCodec.decodeWorldModelDelta(WorldModelCodec.encode(delta)) ;
+		assertEquals(delta.agentId, decoded.agentId) ;
+		assertEquals(0, decoded.baseTimestamp) ;
+		assertEquals(7, decoded.timestamp) ;
+		assertEquals(delta.position, decoded.position) ;
+		assertEquals(delta.changed.keySet(), decoded.changed.keySet()) ;
+		// the agent moved past door0:
+		assertEquals(java.util.Set.of("door0"), delta.leftView) ;
+		assertEquals(delta.leftView, decoded.leftView) ;
+		assertEquals(delta.removed, decoded.removed) ;
+	}
+
+	/**
+	 * Compare merging full observations with merging deltas, in a scene with 5000
+	 * static walls and 20 doors, over 50 ticks. The size of the observations is
+	 * measured with {@link WorldModelCodec}. The numbers are only printed.
+	 */
+	@Test
+	public void benchmark_full_vs_delta() {
+		int ticks = 50 ;
+		var env = new MyEnv(5000, 20) ;
+		var full = new WorldModel() ;
+		var viaDelta = new WorldModel() ;
+		long fullBytes = 0, deltaBytes = 0, fullMergeTime = 0, deltaMergeTime = 0 ;
+		for (int t=0; t<ticks; t++) {
+			var obs = env.observe("agent") ;
+			fullBytes += WorldModelCodec.encode(obs).length ;
+			long t0 = System.nanoTime() ;
+			full.mergeNewObservation(obs) ;
+			fullMergeTime += System.nanoTime() - t0 ;
+
+			var delta = env.observeDelta("agent", viaDelta.timestamp) ;
+			deltaBytes += WorldModelCodec.encode(delta).length ;
+			t0 = System.nanoTime() ;
+			viaDelta.mergeDelta(delta) ;
+			deltaMergeTime += System.nanoTime() - t0 ;
+			env.tick() ;
+		}
+		System.out.println("** " + ticks + " observations of 5000 static and 20 dynamic entities. Full: "
+				+ (fullBytes / ticks / 1024) + " KB, merge " + (fullMergeTime / ticks / 1000) + " us per tick. Delta: "
+				+ (deltaBytes / ticks / 1024) + " KB, merge " + (deltaMergeTime / ticks / 1000) + " us per tick") ;
+		assertEquals(full.elements.keySet(), viaDelta.elements.keySet()) ;
+	}
+
+}
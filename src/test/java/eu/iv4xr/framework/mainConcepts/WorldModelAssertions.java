@@ -0,0 +1,43 @@
+package eu.iv4xr.framework.mainConcepts;
+
+import static org.junit.jupiter.api.Assertions.* ;
+
+/**
+ * Assertions on {@link WorldModel}s and {@link WorldEntity}s, shared by the tests
+ * that check that some way of transferring or merging them preserves them.
+ */
+class WorldModelAssertions {
+
+	static void assertSameEntity(WorldEntity e1, WorldEntity e2) {
+		assertEquals(e1.id, e2.id) ;
+		assertEquals(e1.type, e2.type) ;
+		assertEquals(e1.dynamic, e2.dynamic) ;
+		assertEquals(e1.timestamp, e2.timestamp) ;
+		assertEquals(e1.lastStutterTimestamp, e2.lastStutterTimestamp) ;
+		assertEquals(e1.position, e2.position) ;
+		assertEquals(e1.extent, e2.extent) ;
+		assertEquals(e1.velocity, e2.velocity) ;
+		assertEquals(e1.properties.keySet(), e2.properties.keySet()) ;
+		for (var P : e1.properties.entrySet()) {
+			var v = e2.properties.get(P.getKey()) ;
+			if (P.getValue() instanceof int[]) assertArrayEquals((int[]) P.getValue(), (int[]) v) ;
+			else if (P.getValue() instanceof float[]) assertArrayEquals((float[]) P.getValue(), (float[]) v) ;
+			else assertEquals(P.getValue(), v) ;
+		}
+		assertEquals(e1.elements.keySet(), e2.elements.keySet()) ;
+		for (var key : e1.elements.keySet()) assertSameEntity(e1.elements.get(key), e2.elements.get(key)) ;
+		assertEquals(e1.hasPreviousState(), e2.hasPreviousState()) ;
+		if (e1.hasPreviousState()) assertSameEntity(e1.getPreviousState(), e2.getPreviousState()) ;
+	}
+
+	static void assertSameWorldModel(WorldModel wom1, WorldModel wom2) {
+		assertEquals(wom1.agentId, wom2.agentId) ;
+		assertEquals(wom1.position, wom2.position) ;
+		assertEquals(wom1.extent, wom2.extent) ;
+		assertEquals(wom1.velocity, wom2.velocity) ;
+		assertEquals(wom1.timestamp, wom2.timestamp) ;
+		assertEquals(wom1.elements.keySet(), wom2.elements.keySet()) ;
+		for (var key : wom1.elements.keySet()) assertSameEntity(wom1.elements.get(key), wom2.elements.get(key)) ;
+	}
+
+}
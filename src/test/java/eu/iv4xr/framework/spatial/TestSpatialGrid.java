@@ -0,0 +1,98 @@
+package eu.iv4xr.framework.spatial;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+public class TestSpatialGrid {
+	
+	List<Vec3> randomPoints(Random rnd, int n, float size) {
+		List<Vec3> points = new ArrayList<>() ;
+		for (int k=0; k<n; k++) {
+			points.add(new Vec3(rnd.nextFloat() * size - size/2, rnd.nextFloat() * 4, rnd.nextFloat() * size - size/2)) ;
+		}
+		return points ;
+	}
+	
+	SpatialGrid<Integer> grid(List<Vec3> points, float cellSize) {
+		var grid = new SpatialGrid<Integer>(cellSize) ;
+		for (int k=0; k<points.size(); k++) grid.put("" + k, points.get(k), k) ;
+		return grid ;
+	}
+	
+	@Test
+	public void test_put_remove() {
+		var grid = new SpatialGrid<String>(1) ;
+		grid.put("a", new Vec3(0.5f,0,0.5f), "a") ;
+		grid.put("b", new Vec3(3,0,3), "b") ;
+		assertEquals(2, grid.size()) ;
+		assertEquals(List.of("a"), grid.withinRadius(new Vec3(0), 1)) ;
+		// moving an item:
+		grid.put("a", new Vec3(10,0,10), "a") ;
+		assertEquals(2, grid.size()) ;
+		assertTrue(grid.withinRadius(new Vec3(0), 1).isEmpty()) ;
+		assertEquals(List.of("b","a"), grid.nearest(new Vec3(0), 5, null)) ;
+		assertTrue(grid.remove("b")) ;
+		assertTrue(! grid.remove("b")) ;
+		assertEquals(List.of("a"), grid.nearest(new Vec3(0), 5, null)) ;
+		// an item without position is not stored:
+		grid.put("a", null, "a") ;
+		assertEquals(0, grid.size()) ;
+		assertThrows(IllegalArgumentException.class, () -> new SpatialGrid<String>(0)) ;
+	}
+	
+	@Test
+	public void test_queries_against_bruteforce() {
+		var rnd = new Random(3) ;
+		var points = randomPoints(rnd, 2000, 100) ;
+		// include some far away points, beyond the range of the cells:
+		points.add(new Vec3(1e9f, 0, 0)) ;
+		points.add(new Vec3(-1e9f, 0, 1e9f)) ;
+		for (float cellSize : new float[] { 0.5f, 3f, 50f }) {
+			var grid = grid(points, cellSize) ;
+			for (int q=0; q<50; q++) {
+				var center = new Vec3(rnd.nextFloat() * 120 - 60, 2, rnd.nextFloat() * 120 - 60) ;
+				float radius = rnd.nextFloat() * 20 ;
+				var expected = new HashSet<Integer>() ;
+				for (int k=0; k<points.size(); k++) 
+					if (Vec3.dist(center, points.get(k)) <= radius) expected.add(k) ;
+				assertEquals(expected, new HashSet<>(grid.withinRadius(center, radius))) ;
+				
+				var box = new Box(center, new Vec3(radius, 1, 2*radius)) ;
+				expected.clear() ;
+				for (int k=0; k<points.size(); k++) {
+					var p = points.get(k) ;
+					if (Math.abs(p.x - center.x) <= radius/2 && Math.abs(p.y - center.y) <= 0.5f && Math.abs(p.z - center.z) <= radius)
+						expected.add(k) ;
+				}
+				assertEquals(expected, new HashSet<>(grid.withinBox(box))) ;
+				
+				// nearest, with a filter that only accepts 1 in 100 items:
+				for (int filterMod : new int[] { 1, 100 }) {
+					var sorted = new ArrayList<Integer>() ;
+					for (int k=0; k<points.size(); k++) if (k % filterMod == 0) sorted.add(k) ;
+					sorted.sort(Comparator.comparingDouble((Integer k) -> Vec3.distSq(center, points.get(k)))) ;
+					var nearest = grid.nearest(center, 7, k -> k % filterMod == 0) ;
+					assertEquals(7, nearest.size()) ;
+					for (int i=0; i<7; i++) {
+						assertEquals(Vec3.distSq(center, points.get(sorted.get(i))), Vec3.distSq(center, points.get(nearest.get(i)))) ;
+					}
+				}
+			}
+		}
+		// asking for more items than there are:
+		var grid = grid(points.subList(0, 10), 1) ;
+		assertEquals(10, grid.nearest(new Vec3(0), 20, null).size()) ;
+		assertEquals(List.of(0,1,2,3,4,5,6,7,8,9), grid.nearest(new Vec3(0), 20, null).stream().sorted().collect(Collectors.toList())) ;
+	}
+
+}
@@ -0,0 +1,44 @@
+package nl.uu.cs.aplib.agents;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+import static nl.uu.cs.aplib.AplibEDSL.* ;
+
+import nl.uu.cs.aplib.mainConcepts.Action;
+
+/**
+ * Helpers shared by the tests of autonomous agents, whether run by their own
+ * thread or by an {@link AgentScheduler}.
+ */
+class AgentFixtures {
+
+	/**
+	 * The states of the agents made by {@link #mkAgent}, as an agent does not give
+	 * access to its state.
+	 */
+	static Map<AutonomousBasicAgent,State> states = new ConcurrentHashMap<>() ;
+
+	static void sleepx(long t) {
+		try { Thread.sleep(t) ; } catch(Exception e) { }
+	}
+
+	/**
+	 * Make an agent with the given state and a single goal, which is solved by the
+	 * given action once the action's result satisfies the predicate.
+	 */
+	static AutonomousBasicAgent mkAgent(String id, String role, State state, long samplingInterval,
+			Action action, Predicate<Integer> solved) {
+		var agent = new AutonomousBasicAgent(id,role)
+			    . attachState(state)
+			    . setSamplingInterval(samplingInterval) ;
+		var g = goal("g").toSolve(solved).withTactic(action.lift()) . lift() ;
+		agent.setGoal(g) ;
+		states.put(agent,state) ;
+		return agent ;
+	}
+
+	static State stateOf(AutonomousBasicAgent agent) { return states.get(agent) ; }
+
+}
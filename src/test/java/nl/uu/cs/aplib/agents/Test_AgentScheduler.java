@@ -0,0 +1,204 @@
+package nl.uu.cs.aplib.agents;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.* ;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static nl.uu.cs.aplib.AplibEDSL.* ;
+import static nl.uu.cs.aplib.agents.AgentFixtures.* ;
+
+import nl.uu.cs.aplib.mainConcepts.*;
+import nl.uu.cs.aplib.multiAgentSupport.ComNode;
+import nl.uu.cs.aplib.multiAgentSupport.Message.MsgCastType;
+
+public class Test_AgentScheduler {
+
+	static class MyState extends State {
+		volatile int counter = 0 ;
+	}
+
+	static AutonomousBasicAgent mkAgent(String id, long samplingInterval, int target) {
+		var state = (MyState) (new MyState().setEnvironment(new Environment())) ;
+		var a0 = action("a0")
+				 . do1((MyState S)-> { S.counter++ ; return S.counter ; }) ;
+		return AgentFixtures.mkAgent(id, "worker", state, samplingInterval, a0, x -> x == target) ;
+	}
+
+	static int counter(AutonomousBasicAgent agent) {
+		return ((MyState) stateOf(agent)).counter ;
+	}
+
+	@Test
+	public void test_many_agents_on_few_threads() {
+		var scheduler = new AgentScheduler(4) ;
+		List<AutonomousBasicAgent> agents = new ArrayList<>() ;
+		for (int k=0; k<2000; k++) {
+			var agent = mkAgent("agent" + k, 1, 10) ;
+			agents.add(agent) ;
+			scheduler.register(agent) ;
+		}
+		for (var agent : agents) {
+			var g = agent.waitUntilTheGoalIsConcluded() ;
+			assertTrue(g.getStatus().success()) ;
+			assertEquals(10, counter(agent)) ;
+		}
+		scheduler.shutdown();
+		assertEquals(0, scheduler.numberOfAgents()) ;
+	}
+
+	@Test
+	public void test_pause_resume_stop() {
+		var scheduler = new AgentScheduler(2) ;
+		var agent = mkAgent("agent", 10, -1) ;
+		scheduler.register(agent) ;
+		while (counter(agent) == 0) sleepx(10) ;
+
+		agent.pause() ;
+		sleepx(100) ;
+		var cnt0 = counter(agent) ;
+		sleepx(200) ;
+		assertEquals(cnt0, counter(agent)) ;
+
+		agent.resume() ;
+		while (counter(agent) < cnt0 + 5) sleepx(10) ;
+
+		agent.stop() ;
+		sleepx(100) ;
+		assertEquals(0, scheduler.numberOfAgents()) ;
+		cnt0 = counter(agent) ;
+		sleepx(200) ;
+		assertEquals(cnt0, counter(agent)) ;
+		scheduler.shutdown();
+	}
+
+	@Test
+	public void test_reregister_after_exception_and_stop() {
+		var scheduler = new AgentScheduler(2) ;
+		var state = (MyState) (new MyState().setEnvironment(new Environment())) ;
+		var agent = new AutonomousBasicAgent("agent","worker")
+			    . attachState(state)
+			    . setSamplingInterval(1) ;
+		boolean[] crash = { true } ;
+		var a0 = action("a0")
+				 . do1((MyState S)-> { 
+					 if (crash[0]) throw new IllegalStateException() ;
+					 S.counter++ ; 
+					 return S.counter ; })
+				 . lift() ;
+		agent.setGoal(goal("g").toSolve((Integer x) -> x == 10).withTactic(a0) . lift()) ;
+		
+		// the exception removes the agent from the scheduler:
+		scheduler.register(agent) ;
+		while (scheduler.numberOfAgents() > 0) sleepx(10) ;
+		crash[0] = false ;
+		scheduler.register(agent) ;
+		while (state.counter < 3) sleepx(10) ;
+		
+		// stopping also removes it:
+		agent.stop() ;
+		while (scheduler.numberOfAgents() > 0) sleepx(10) ;
+		agent.resume() ;
+		scheduler.register(agent) ;
+		var g = agent.waitUntilTheGoalIsConcluded() ;
+		assertTrue(g.getStatus().success()) ;
+		assertEquals(10, state.counter) ;
+		scheduler.shutdown();
+	}
+
+	/**
+	 * An agent that is moved to another scheduler while it is in the middle of a
+	 * tick should get its next tick from the new scheduler.
+	 */
+	@Test
+	public void test_reregister_during_tick() throws InterruptedException {
+		var scheduler1 = new AgentScheduler(2) ;
+		var scheduler2 = new AgentScheduler(2) ;
+		var state = (MyState) (new MyState().setEnvironment(new Environment())) ;
+		var inTick = new CountDownLatch(1) ;
+		var release = new CountDownLatch(1) ;
+		var a0 = action("a0")
+				 . do1((MyState S)-> { 
+					 if (S.counter == 0) {
+						 inTick.countDown() ;
+						 try { release.await() ; } catch(InterruptedException e) { }
+					 }
+					 S.counter++ ; 
+					 return S.counter ; }) ;
+		// a very long interval between ticks, so only a wake-up gives the second tick:
+		var agent = AgentFixtures.mkAgent("agent", "worker", state, 60000, a0, x -> x == 2) ;
+		scheduler1.register(agent) ;
+		inTick.await() ;
+		scheduler1.deregister(agent) ;
+		scheduler2.register(agent) ;
+		release.countDown() ;
+		for (int k=0; k<200 && state.counter < 2; k++) sleepx(10) ;
+		assertEquals(2, state.counter) ;
+		assertTrue(agent.waitUntilTheGoalIsConcluded().getStatus().success()) ;
+		scheduler1.shutdown();
+		scheduler2.shutdown();
+	}
+
+	@Test
+	public void test_setgoal_and_msg_awaken_agent() {
+		var scheduler = new AgentScheduler(2) ;
+		var comNode = new ComNode() ;
+		// an agent with a very long interval between ticks:
+		var agent1 = mkAgent("agent1", 60000, 2).registerTo(comNode) ;
+		var agent2 = new AutonomousBasicAgent("neo","programmer")
+			     .attachState(new MyState().setEnvironment(new Environment()))
+			     .registerTo(comNode) ;
+
+		scheduler.register(agent1) ;
+		while (counter(agent1) == 0) sleepx(10) ;
+		// agent1 now sleeps for a long time; a message should awaken it:
+		agent2.messenger().send("neo",0, MsgCastType.SINGLECAST, "agent1","blabla") ;
+		var g = agent1.waitUntilTheGoalIsConcluded() ;
+		assertTrue(g.getStatus().success()) ;
+
+		// agent1 is now parked without a goal; setting a new one should awaken it:
+		var a1 = action("a1")
+				 . do1((MyState S)-> { S.counter = 100 ; return S.counter ; })
+				 . lift() ;
+		agent1.setGoal(goal("g2").toSolve((Integer x) -> x == 100).withTactic(a1) . lift()) ;
+		g = agent1.waitUntilTheGoalIsConcluded() ;
+		assertTrue(g.getStatus().success()) ;
+		scheduler.shutdown();
+	}
+
+	/**
+	 * Compare the throughput (ticks per second) of the thread-per-agent model with
+	 * that of the scheduler. This is not an assertion on performance; the numbers
+	 * are just printed.
+	 */
+	@Test
+	public void benchmark_ticksPerSecond() {
+		int N = 500 ;
+		long duration = 1000 ;
+
+		// thread per agent:
+		List<AutonomousBasicAgent> agents = new ArrayList<>() ;
+		for (int k=0; k<N; k++) agents.add(mkAgent("agent" + k, 0, -1)) ;
+		for (var agent : agents) new Thread(() -> agent.loop()) . start() ;
+		sleepx(duration) ;
+		for (var agent : agents) agent.stop() ;
+		long threadTicks = agents.stream().mapToLong(A -> counter(A)).sum() ;
+
+		// scheduler:
+		var scheduler = new AgentScheduler() ;
+		agents.clear() ;
+		for (int k=0; k<N; k++) agents.add(mkAgent("agent" + k, 0, -1)) ;
+		for (var agent : agents) scheduler.register(agent) ;
+		sleepx(duration) ;
+		scheduler.shutdown();
+		long schedulerTicks = agents.stream().mapToLong(A -> counter(A)).sum() ;
+
+		System.out.println("** " + N + " agents, ticks/sec. Thread per agent: " + (threadTicks * 1000 / duration)
+				+ ", scheduler: " + (schedulerTicks * 1000 / duration)) ;
+		assertTrue(threadTicks > 0) ;
+		assertTrue(schedulerTicks > 0) ;
+	}
+
+}
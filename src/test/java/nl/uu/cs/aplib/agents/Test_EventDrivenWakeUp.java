@@ -0,0 +1,249 @@
+package nl.uu.cs.aplib.agents;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.* ;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static nl.uu.cs.aplib.AplibEDSL.* ;
+import static nl.uu.cs.aplib.agents.AgentFixtures.* ;
+
+import nl.uu.cs.aplib.mainConcepts.*;
+import nl.uu.cs.aplib.multiAgentSupport.ComNode;
+import nl.uu.cs.aplib.multiAgentSupport.Message.MsgCastType;
+
+public class Test_EventDrivenWakeUp {
+
+	/**
+	 * An environment with a "door" that an external thread can change.
+	 */
+	static class DoorEnv extends Environment {
+		volatile int version = 0 ;
+		volatile long changedAt = 0 ;
+		AtomicInteger guardEvaluations = new AtomicInteger() ;
+
+		void change() {
+			changedAt = System.nanoTime() ;
+			version++ ;
+			notifyChange("door") ;
+		}
+	}
+
+	static class MyState extends State {
+		int seen = 0 ;
+		int reactions = 0 ;
+		long totalLatency = 0 ;
+		DoorEnv env_() { return (DoorEnv) env() ; }
+	}
+
+	/**
+	 * An action that reacts whenever the door changes.
+	 */
+	static Action mkReact(boolean declareDependencies) {
+		var react = action("react")
+				 . do1((MyState S)-> {
+					  S.seen = S.env_().version ;
+					  S.reactions++ ;
+					  S.totalLatency += System.nanoTime() - S.env_().changedAt ;
+					  return S.reactions ; })
+				 . on_((MyState S) -> {
+					  S.env_().guardEvaluations.incrementAndGet() ;
+					  return S.env_().version > S.seen ; }) ;
+		if (declareDependencies) react.guardDependsOn("door") ;
+		return react ;
+	}
+
+	/**
+	 * An agent that reacts whenever the door changes. If target is positive, its
+	 * goal is solved after that many reactions.
+	 */
+	static AutonomousBasicAgent mkAgent(String id, long samplingInterval, int target, boolean declareDependencies) {
+		var state = (MyState) (new MyState().setEnvironment(new DoorEnv())) ;
+		return AgentFixtures.mkAgent(id, "doorman", state, samplingInterval, mkReact(declareDependencies),
+				x -> target > 0 && x >= target) ;
+	}
+
+	static MyState state(AutonomousBasicAgent agent) { return (MyState) stateOf(agent) ; }
+
+	static DoorEnv env(AutonomousBasicAgent agent) { return state(agent).env_() ; }
+
+	@Test
+	public void test_relevant_topics() {
+		var agent = mkAgent("agent", 1000, 1, true) ;
+		agent.useEventDrivenWakeUp() ;
+		var env = env(agent) ;
+		new Thread(() -> agent.loop()) . start() ;
+		while (env.guardEvaluations.get() == 0) sleepx(10) ;
+		sleepx(50) ;
+		int evals = env.guardEvaluations.get() ;
+
+		// a notification on an unrelated topic should not wake the agent:
+		env.notifyChange("window") ;
+		sleepx(200) ;
+		assertEquals(evals, env.guardEvaluations.get()) ;
+
+		// but a change on the door should, long before the back-off expires:
+		long t0 = System.currentTimeMillis() ;
+		env.change() ;
+		var g = agent.waitUntilTheGoalIsConcluded() ;
+		assertTrue(g.getStatus().success()) ;
+		assertTrue(System.currentTimeMillis() - t0 < 900) ;
+		agent.stop() ;
+	}
+
+	/**
+	 * The relevant topics are those of the current goal, not of the whole goal
+	 * structure, and they change when the agent moves to the next goal.
+	 */
+	@Test
+	public void test_relevant_topics_follow_the_current_goal() {
+		var agent = mkAgent("agent", 1000, 1, true) ;
+		var env = env(agent) ;
+		var windowOpen = new AtomicBoolean(false) ;
+		var open = action("open")
+				 . do1((MyState S) -> 0)
+				 . on_((MyState S) -> {
+					  env.guardEvaluations.incrementAndGet() ;
+					  return windowOpen.get() ; })
+				 . guardDependsOn("window") ;
+		agent.setGoal(SEQ(
+				goal("g0").toSolve((Integer x) -> x == 0).withTactic(open.lift()) . lift(),
+				goal("g1").toSolve((Integer x) -> x >= 2).withTactic(mkReact(true).lift()) . lift())) ;
+		agent.useEventDrivenWakeUp() ;
+		new Thread(() -> agent.loop()) . start() ;
+		while (env.guardEvaluations.get() == 0) sleepx(10) ;
+		sleepx(50) ;
+		int evals = env.guardEvaluations.get() ;
+
+		// while the agent works on g0, the door is not relevant:
+		env.change() ;
+		sleepx(200) ;
+		assertEquals(evals, env.guardEvaluations.get()) ;
+
+		// solving g0 moves the agent to g1, which reacts to the door:
+		windowOpen.set(true) ;
+		env.notifyChange("window") ;
+		while (state(agent).reactions < 1) sleepx(10) ;
+		sleepx(50) ;
+		long t0 = System.currentTimeMillis() ;
+		env.change() ;
+		var g = agent.waitUntilTheGoalIsConcluded() ;
+		assertTrue(g.getStatus().success()) ;
+		assertTrue(System.currentTimeMillis() - t0 < 900) ;
+		agent.stop() ;
+	}
+
+	@Test
+	public void test_undeclared_dependencies_make_all_topics_relevant() {
+		var agent = mkAgent("agent", 1000, 1, false) ;
+		agent.useEventDrivenWakeUp() ;
+		var env = env(agent) ;
+		new Thread(() -> agent.loop()) . start() ;
+		while (env.guardEvaluations.get() == 0) sleepx(10) ;
+		sleepx(50) ;
+		int evals = env.guardEvaluations.get() ;
+		env.notifyChange("window") ;
+		sleepx(200) ;
+		assertEquals(evals + 1, env.guardEvaluations.get()) ;
+		agent.stop() ;
+	}
+
+	@Test
+	public void test_message_wakes_agent() {
+		var comNode = new ComNode() ;
+		var agent1 = mkAgent("agent1", 60000, 1, true).registerTo(comNode) ;
+		agent1.useEventDrivenWakeUp("door") ;
+		var agent2 = new AutonomousBasicAgent("agent2","sender")
+			     .attachState(new MyState().setEnvironment(new Environment()))
+			     .registerTo(comNode) ;
+		var env = env(agent1) ;
+		new Thread(() -> agent1.loop()) . start() ;
+		while (env.guardEvaluations.get() == 0) sleepx(10) ;
+		sleepx(50) ;
+		int evals = env.guardEvaluations.get() ;
+		agent2.messenger().send("agent2",0, MsgCastType.SINGLECAST, "agent1","knock knock") ;
+		sleepx(200) ;
+		// the message causes a tick; the door is unchanged, so the guard is still cached:
+		assertEquals(evals, env.guardEvaluations.get()) ;
+		assertEquals(1, state(agent1).messenger.size()) ;
+		env.change() ;
+		assertTrue(agent1.waitUntilTheGoalIsConcluded().getStatus().success()) ;
+		agent1.stop() ;
+	}
+
+	/**
+	 * An idle event-driven agent should not sleep through its back-off when it is
+	 * stopped.
+	 */
+	@Test
+	public void test_stop_ends_idle_agent() throws InterruptedException {
+		var agent = mkAgent("agent", 60000, 1, true).useEventDrivenWakeUp().setMaxBackoff(60000) ;
+		var env = env(agent) ;
+		var agentThread = new Thread(() -> agent.loop()) ;
+		agentThread.start() ;
+		while (env.guardEvaluations.get() == 0) sleepx(10) ;
+		sleepx(200) ;
+		long t0 = System.currentTimeMillis() ;
+		agent.stop() ;
+		agentThread.join(5000) ;
+		assertFalse(agentThread.isAlive()) ;
+		assertTrue(System.currentTimeMillis() - t0 < 1000) ;
+	}
+
+	@Test
+	public void test_with_scheduler() {
+		var scheduler = new AgentScheduler(2) ;
+		var agent = mkAgent("agent", 60000, 3, true).useEventDrivenWakeUp() ;
+		var env = env(agent) ;
+		scheduler.register(agent) ;
+		for (int k=0; k<3; k++) {
+			while (state(agent).reactions < k) sleepx(10) ;
+			env.change() ;
+		}
+		var g = agent.waitUntilTheGoalIsConcluded() ;
+		assertTrue(g.getStatus().success()) ;
+		assertEquals(3, state(agent).reactions) ;
+		scheduler.shutdown();
+	}
+
+	/**
+	 * Compare the reaction latency and the work done by a polling agent with that of
+	 * an event-driven agent, while an external thread changes the environment every
+	 * 50ms. This is not an assertion on performance; the numbers are just printed.
+	 */
+	@Test
+	public void benchmark_polling_vs_eventDriven() {
+		var bean = ManagementFactory.getThreadMXBean() ;
+		int changes = 20 ;
+		String[] modes = { "polling(200ms)", "polling(0ms)", "event-driven" } ;
+		for (var mode : modes) {
+			AutonomousBasicAgent agent ;
+			switch(mode) {
+			  case "polling(200ms)" : agent = mkAgent("agent", 200, -1, false) ; break ;
+			  case "polling(0ms)"   : agent = mkAgent("agent", 0, -1, false) ; break ;
+			  default : agent = mkAgent("agent", 200, -1, true).useEventDrivenWakeUp() ;
+			}
+			var env = env(agent) ;
+			var agentThread = new Thread(() -> agent.loop()) ;
+			agentThread.start() ;
+			while (env.guardEvaluations.get() == 0) sleepx(10) ;
+			long cpu0 = bean.isThreadCpuTimeSupported() ? bean.getThreadCpuTime(agentThread.getId()) : 0 ;
+			for (int k=0; k<changes; k++) {
+				sleepx(50) ;
+				env.change() ;
+			}
+			sleepx(300) ;
+			long cpu = bean.isThreadCpuTimeSupported() ? bean.getThreadCpuTime(agentThread.getId()) - cpu0 : 0 ;
+			agent.stop() ;
+			var state = state(agent) ;
+			System.out.println("** " + mode + ": #reactions " + state.reactions
+					+ ", avrg latency " + (state.totalLatency / Math.max(1,state.reactions) / 1000) + " us"
+					+ ", #guard evaluations " + env.guardEvaluations.get()
+					+ ", agent cpu " + (cpu / 1000000) + " ms") ;
+			assertTrue(state.reactions > 0) ;
+		}
+	}
+
+}
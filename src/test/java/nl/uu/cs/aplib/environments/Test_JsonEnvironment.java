@@ -0,0 +1,165 @@
+package nl.uu.cs.aplib.environments;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.* ;
+
+import com.google.gson.Gson;
+
+import eu.iv4xr.framework.mainConcepts.WorldEntity;
+import eu.iv4xr.framework.mainConcepts.WorldModel;
+import eu.iv4xr.framework.spatial.Vec3;
+
+public class Test_JsonEnvironment {
+
+	static class Item {
+		String name ;
+		int value ;
+		List<String> tags = new LinkedList<>() ;
+	}
+
+	static class TrackedStream extends ByteArrayInputStream {
+		boolean closed = false ;
+		TrackedStream(byte[] bytes) { super(bytes) ; }
+		@Override
+		public void close() { closed = true ; }
+	}
+
+	/**
+	 * An environment that replies to every command with the given Json, in the
+	 * form specified by the command's name.
+	 */
+	static class MyEnv extends JsonEnvironment {
+		String json ;
+		List<TrackedStream> streams = new LinkedList<>() ;
+
+		MyEnv(String json) { this.json = json ; }
+
+		InputStream stream() {
+			var in = new TrackedStream(json.getBytes(StandardCharsets.UTF_8)) ;
+			streams.add(in) ;
+			return in ;
+		}
+
+		@Override
+		protected Object sendCommand_(EnvOperation cmd) {
+			switch(cmd.command) {
+			  case "string" : return json ;
+			  case "stream" : return stream() ;
+			  case "channel" : return Channels.newChannel(stream()) ;
+			  case "reader" : return new StringReader(json) ;
+			}
+			return null ;
+		}
+	}
+
+	static Item mkItem(int numberOfTags) {
+		var item = new Item() ;
+		item.name = "déjà vu 😀" ;
+		item.value = 42 ;
+		for (int k=0; k<numberOfTags; k++) item.tags.add("tagé" + k + "😀") ;
+		return item ;
+	}
+
+	@Test
+	public void test_streaming_replies() {
+		// large enough to cross the decoder's buffer boundaries:
+		var item = mkItem(20000) ;
+		var json = new Gson().toJson(item) ;
+		int numberOfBytes = json.getBytes(StandardCharsets.UTF_8).length ;
+		assertTrue(numberOfBytes > 3 * Utf8StreamReader.BUFFER_SIZE) ;
+		var env = new MyEnv(json) ;
+		for (var mode : new String[] { "string", "stream", "channel", "reader" }) {
+			var parsed = (Item) env.sendCommand("agent", null, mode, null, Item.class) ;
+			assertEquals(item.name, parsed.name) ;
+			assertEquals(item.value, parsed.value) ;
+			assertEquals(item.tags, parsed.tags) ;
+		}
+		// also a String reply counts its UTF-8 bytes, not its characters:
+		assertTrue(numberOfBytes > json.length()) ;
+		assertEquals(3L * numberOfBytes, env.getNumberOfBytesTransferred()) ;
+		// the streams are closed, also if the reply is not parsed:
+		assertNull(env.sendCommand("agent", null, "stream", null, null)) ;
+		assertEquals(3, env.streams.size()) ;
+		for (var in : env.streams) assertTrue(in.closed) ;
+		assertNull(env.sendCommand("agent", null, "nothing", null, Item.class)) ;
+	}
+
+	@Test
+	public void test_utf8StreamReader_reuse() throws Exception {
+		var reader = new Utf8StreamReader() ;
+		char[] buf = new char[7] ;
+		for (var s : new String[] { "é😀abcéé😀x", "", "plain ascii text" }) {
+			reader.reset(new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8))) ;
+			var sb = new StringBuilder() ;
+			int n ;
+			while ((n = reader.read(buf, 0, buf.length)) >= 0) sb.append(buf, 0, n) ;
+			assertEquals(s, sb.toString()) ;
+			assertEquals(s.getBytes(StandardCharsets.UTF_8).length, reader.numberOfBytesRead) ;
+			assertEquals(s.getBytes(StandardCharsets.UTF_8).length, Utf8StreamReader.utf8Length(s)) ;
+			assertEquals(-1, reader.read(buf, 0, buf.length)) ;
+			reader.close() ;
+		}
+	}
+
+	static String mkWorldModelJson(int numberOfEntities) {
+		var wom = new WorldModel() ;
+		wom.agentId = "agent" ;
+		wom.position = new Vec3(1,2,3) ;
+		wom.timestamp = 100 ;
+		for (int k=0; k<numberOfEntities; k++) {
+			var e = new WorldEntity("entity" + k, "type" + (k % 10), k % 2 == 0) ;
+			e.position = new Vec3(k, k+1, k+2) ;
+			e.extent = new Vec3(0.5f, 0.5f, 0.5f) ;
+			e.velocity = new Vec3(0,0,0) ;
+			e.timestamp = 100 ;
+			wom.elements.put(e.id, e) ;
+		}
+		return new Gson().toJson(wom) ;
+	}
+
+	/**
+	 * Compare parsing a large WorldModel reply from a String with parsing it from a
+	 * stream, in time and allocated bytes per reply. The numbers are only printed.
+	 */
+	@Test
+	public void benchmark_string_vs_streaming() {
+		var json = mkWorldModelJson(20000) ;
+		byte[] bytes = json.getBytes(StandardCharsets.UTF_8) ;
+		var env = new JsonEnvironment() {
+			@Override
+			protected Object sendCommand_(EnvOperation cmd) {
+				// the String path has to build the whole reply first:
+				if (cmd.command.equals("string")) return new String(bytes, StandardCharsets.UTF_8) ;
+				return new ByteArrayInputStream(bytes) ;
+			}
+		} ;
+		var bean = ManagementFactory.getThreadMXBean() ;
+		var sunBean = bean instanceof com.sun.management.ThreadMXBean ? (com.sun.management.ThreadMXBean) bean : null ;
+		long threadId = Thread.currentThread().getId() ;
+		int repeat = 20 ;
+		for (var mode : new String[] { "string", "stream" }) {
+			// warm up:
+			for (int k=0; k<3; k++) env.sendCommand("agent", null, mode, null, WorldModel.class) ;
+			long alloc0 = sunBean != null ? sunBean.getThreadAllocatedBytes(threadId) : 0 ;
+			long t0 = System.nanoTime() ;
+			WorldModel wom = null ;
+			for (int k=0; k<repeat; k++) wom = (WorldModel) env.sendCommand("agent", null, mode, null, WorldModel.class) ;
+			long time = System.nanoTime() - t0 ;
+			long alloc = sunBean != null ? sunBean.getThreadAllocatedBytes(threadId) - alloc0 : 0 ;
+			System.out.println("** parsing a " + (bytes.length / 1024) + " KB WorldModel from a " + mode 
+					+ ": " + (time / repeat / 1000) + " us, " + (alloc / repeat / 1024) + " KB allocated per reply") ;
+			assertEquals(20000, wom.elements.size()) ;
+			assertEquals(new Vec3(5,6,7), wom.elements.get("entity5").position) ;
+		}
+	}
+
+}
@@ -0,0 +1,169 @@
+package nl.uu.cs.aplib.environments;
+
+import static nl.uu.cs.aplib.AplibEDSL.* ;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.* ;
+
+import nl.uu.cs.aplib.mainConcepts.BasicAgent;
+import nl.uu.cs.aplib.mainConcepts.Environment;
+import nl.uu.cs.aplib.mainConcepts.SimpleState;
+
+public class Test_RecordReplay {
+
+	/**
+	 * An environment with a counter that can be incremented. Every command takes
+	 * the given time, to simulate a slow system under test.
+	 */
+	static class CounterEnv extends Environment {
+		int counter = 0 ;
+		long latency ;
+
+		CounterEnv(long latency) { this.latency = latency ; }
+
+		@Override
+		protected Object sendCommand_(EnvOperation cmd) {
+			if (latency > 0) {
+				try { Thread.sleep(latency) ; } catch(InterruptedException e) { }
+			}
+			switch(cmd.command) {
+			   case "inc" : counter += (Integer) cmd.arg ; return counter ;
+			   case "get" : return counter ;
+			   case "explode" : throw new IllegalStateException("kaboom " + counter) ;
+			}
+			throw new IllegalArgumentException() ;
+		}
+	}
+
+	static class MyState extends SimpleState {
+		String trace = "" ;
+	}
+
+	/**
+	 * Run an agent that increments the counter by 1, 2, 3, ... until it is at least
+	 * target. Return the trace of the agent.
+	 */
+	static String run(Environment env, int target) {
+		var state = (MyState) (new MyState().setEnvironment(env)) ;
+		var agent = new BasicAgent().attachState(state) ;
+		var inc = action("inc").do1((MyState S) -> {
+			int step = S.trace.length() + 1 ;
+			int x = (Integer) S.env().sendCommand("agent", "counter", "inc", step) ;
+			S.trace += (char) ('a' + x % 26) ;
+			return x ;
+		}) ;
+		agent.setGoal(goal("g").toSolve((Integer x) -> x >= target).withTactic(inc.lift()).lift()) ;
+		int k = 0 ;
+		while (agent.getGoal() != null && k < 1000) { agent.update() ; k++ ; }
+		return state.trace ;
+	}
+
+	@Test
+	public void test_record_and_replay() {
+		var log = new ByteArrayOutputStream() ;
+		var recorder = new RecordingEnvironment(new CounterEnv(0), log) ;
+		var recordedTrace = run(recorder, 100) ;
+		assertEquals(14, recorder.getNumberOfRecords()) ;
+
+		var replay = new ReplayEnvironment(new ByteArrayInputStream(log.toByteArray())) ;
+		assertEquals(14, replay.getNumberOfRecords()) ;
+		assertEquals(recordedTrace, run(replay, 100)) ;
+		assertTrue(replay.isExhausted()) ;
+	}
+
+	@Test
+	public void test_divergence() {
+		var log = new ByteArrayOutputStream() ;
+		var recorder = new RecordingEnvironment(new CounterEnv(0), log) ;
+		recorder.sendCommand("agent", "counter", "inc", 1) ;
+		recorder.sendCommand("agent", "counter", "get", null) ;
+		var replay = new ReplayEnvironment(new ByteArrayInputStream(log.toByteArray())) ;
+		// a different argument:
+		assertThrows(IllegalStateException.class, () -> replay.sendCommand("agent", "counter", "inc", 2)) ;
+		assertEquals(1, replay.sendCommand("agent", "counter", "inc", 1)) ;
+		// a different command:
+		assertThrows(IllegalStateException.class, () -> replay.sendCommand("agent", "counter", "inc", 1)) ;
+		assertEquals(1, replay.sendCommand("agent", "counter", "get", null)) ;
+		// nothing left:
+		assertThrows(IllegalStateException.class, () -> replay.sendCommand("agent", "counter", "get", null)) ;
+		// an invoker that was not recorded:
+		assertThrows(IllegalStateException.class, () -> replay.sendCommand("other", "counter", "get", null)) ;
+	}
+
+	@Test
+	public void test_exceptions_and_interleaving() {
+		var log = new ByteArrayOutputStream() ;
+		var recorder = new RecordingEnvironment(new CounterEnv(0), log) ;
+		recorder.sendCommand("A", "counter", "inc", 1) ;
+		recorder.sendCommand("B", "counter", "inc", 10) ;
+		var e = assertThrows(IllegalStateException.class, () -> recorder.sendCommand("A", "counter", "explode", null)) ;
+		recorder.sendCommand("B", "counter", "get", null) ;
+
+		var replay = new ReplayEnvironment(new ByteArrayInputStream(log.toByteArray())) ;
+		// B's commands are now sent before A's:
+		assertEquals(11, replay.sendCommand("B", "counter", "inc", 10)) ;
+		assertEquals(11, replay.sendCommand("B", "counter", "get", null)) ;
+		assertEquals(1, replay.sendCommand("A", "counter", "inc", 1)) ;
+		var e2 = assertThrows(IllegalStateException.class, () -> replay.sendCommand("A", "counter", "explode", null)) ;
+		assertEquals(e.getMessage(), e2.getMessage()) ;
+		assertTrue(replay.isExhausted()) ;
+	}
+
+	@Test
+	public void test_append_to_file() throws Exception {
+		var file = Files.createTempFile("envlog", ".bin") ;
+		try {
+			Files.delete(file) ;
+			var recorder1 = new RecordingEnvironment(new CounterEnv(0), file) ;
+			recorder1.sendCommand("agent", "counter", "inc", 1) ;
+			recorder1.close() ;
+			var recorder2 = new RecordingEnvironment(new CounterEnv(0), file) ;
+			recorder2.sendCommand("agent", "counter", "inc", 5) ;
+			recorder2.close() ;
+			// simulate a crash in the middle of writing a record:
+			var bytes = Files.readAllBytes(file) ;
+			var truncated = Arrays.copyOf(bytes, bytes.length + 6) ;
+			truncated[bytes.length + 3] = 5 ;
+			Files.write(file, truncated) ;
+
+			var replay = new ReplayEnvironment(file) ;
+			assertEquals(2, replay.getNumberOfRecords()) ;
+			assertEquals(1, replay.sendCommand("agent", "counter", "inc", 1)) ;
+			assertEquals(5, replay.sendCommand("agent", "counter", "inc", 5)) ;
+		}
+		finally {
+			Files.deleteIfExists(file) ;
+		}
+	}
+
+	@Test
+	public void test_not_a_log() {
+		assertThrows(IllegalArgumentException.class, () -> new ReplayEnvironment(new ByteArrayInputStream(new byte[] { 1, 2, 3, 4, 5, 6 }))) ;
+		assertThrows(IllegalArgumentException.class, () -> new ReplayEnvironment(new ByteArrayInputStream(new byte[0]))) ;
+	}
+
+	/**
+	 * Compare running an agent against a slow environment with replaying the same
+	 * run from a log. The times are only printed.
+	 */
+	@Test
+	public void benchmark_record_vs_replay() {
+		var log = new ByteArrayOutputStream() ;
+		long t0 = System.currentTimeMillis() ;
+		var recordedTrace = run(new RecordingEnvironment(new CounterEnv(5), log), 5000) ;
+		long recordTime = System.currentTimeMillis() - t0 ;
+		var replay = new ReplayEnvironment(new ByteArrayInputStream(log.toByteArray())) ;
+		t0 = System.currentTimeMillis() ;
+		var replayedTrace = run(replay, 5000) ;
+		long replayTime = System.currentTimeMillis() - t0 ;
+		System.out.println("** " + replay.getNumberOfRecords() + " commands (" + log.size() + " bytes log), "
+				+ "recording: " + recordTime + " ms, replay: " + replayTime + " ms") ;
+		assertEquals(recordedTrace, replayedTrace) ;
+	}
+
+}
@@ -0,0 +1,196 @@
+package nl.uu.cs.aplib.mainConcepts;
+
+import static nl.uu.cs.aplib.AplibEDSL.* ;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.* ;
+
+import nl.uu.cs.aplib.environments.ConsoleEnvironment;
+
+public class Test_AgentSnapshot {
+
+	static class MyState extends SimpleState {
+		int counter = 0 ;
+		String trace = "" ;
+	}
+
+	static class MyStateSerializer implements StateSerializer {
+		@Override
+		public void write(SimpleState state, DataOutput out) throws IOException {
+			var S = (MyState) state ;
+			out.writeInt(S.counter) ;
+			out.writeUTF(S.trace) ;
+		}
+		@Override
+		public void read(SimpleState state, DataInput in) throws IOException {
+			var S = (MyState) state ;
+			S.counter = in.readInt() ;
+			S.trace = in.readUTF() ;
+		}
+	}
+
+	/**
+	 * The goal structure SEQ(g1, g2, g3), where g2 is solved by a persistent action
+	 * that needs several ticks.
+	 */
+	static BasicAgent mkAgent() {
+		var state = (MyState) (new MyState().setEnvironment(new ConsoleEnvironment())) ;
+		var a1 = action("a1").do1((MyState S) -> { S.trace += "a1 " ; return S.counter ; }) ;
+		var a2 = action("a2")
+				 .do1((MyState S) -> { S.counter++ ; S.trace += "a2 " ; return S.counter ; })
+				 .until((MyState S) -> S.counter % 5 == 0) ;
+		var a3 = action("a3").do1((MyState S) -> { S.trace += "a3 " ; return S.counter ; }) ;
+		var g1 = goal("g1").toSolve((Integer x) -> true).withTactic(lift(a1)).lift() ;
+		var g2 = goal("g2").toSolve((Integer x) -> x == 10).withTactic(SEQ(lift(a2),lift(a3))).lift() ;
+		var g3 = goal("g3").toSolve((Integer x) -> true).withTactic(lift(a3)).lift() ;
+		var agent = new BasicAgent()
+				.attachState(state)
+				.withStateSerializer(new MyStateSerializer()) ;
+		agent.setGoal(SEQ(g1,g2.maxbudget(50),g3)) ;
+		agent.budget(100) ;
+		return agent ;
+	}
+
+	static BasicAgent mkBlankAgent() {
+		return new BasicAgent()
+				.attachState(new MyState().setEnvironment(new ConsoleEnvironment()))
+				.withStateSerializer(new MyStateSerializer()) ;
+	}
+
+	static MyState state(BasicAgent agent) { return (MyState) agent.state ; }
+
+	static void runToCompletion(BasicAgent agent) {
+		int k = 0 ;
+		while (agent.goal != null && k < 100) { agent.update() ; k++ ; }
+	}
+
+	@Test
+	public void test_fork_from_snapshot() {
+		var agent = mkAgent() ;
+		// g1 is solved, and g2's persistent action is half way:
+		for (int k=0; k<4; k++) agent.update() ;
+		var snapshot = agent.snapshot() ;
+		var topgoal = agent.goal ;
+
+		runToCompletion(agent) ;
+		assertTrue(topgoal.getStatus().success()) ;
+
+		var fork = mkAgent().restore(snapshot) ;
+		var forkgoal = fork.goal ;
+		assertEquals(state(agent).counter - 7, state(fork).counter) ;
+		runToCompletion(fork) ;
+		assertTrue(forkgoal.getStatus().success()) ;
+		assertEquals(state(agent).trace, state(fork).trace) ;
+		assertEquals(state(agent).counter, state(fork).counter) ;
+		assertEquals(topgoal.getBudget(), forkgoal.getBudget()) ;
+		assertEquals(topgoal.consumedBudget, forkgoal.consumedBudget) ;
+		for (int k=0; k<3; k++) {
+			assertEquals(topgoal.subgoals.get(k).getStatus().toString(), forkgoal.subgoals.get(k).getStatus().toString()) ;
+			assertEquals(topgoal.subgoals.get(k).getBudget(), forkgoal.subgoals.get(k).getBudget()) ;
+		}
+	}
+
+	@Test
+	public void test_snapshot_of_concluded_agent() {
+		var agent = mkAgent() ;
+		runToCompletion(agent) ;
+		var fork = mkAgent().restore(agent.snapshot()) ;
+		assertNull(fork.goal) ;
+		assertEquals(state(agent).trace, state(fork).trace) ;
+	}
+
+	@Test
+	public void test_mismatching_snapshot() {
+		var agent = mkAgent() ;
+		agent.update() ;
+		var snapshot = agent.snapshot() ;
+
+		var other = mkBlankAgent() ;
+		var g = goal("g").toSolve((Integer x) -> true).withTactic(lift(action("a"))).lift() ;
+		other.setGoal(g) ;
+		assertThrows(IllegalArgumentException.class, () -> other.restore(snapshot)) ;
+		assertTrue(g.getStatus().inProgress()) ;
+		assertEquals("", ((MyState) other.state).trace) ;
+
+		var noSerializer = new BasicAgent().attachState(new MyState()) ;
+		noSerializer.setGoal(mkAgent().goal) ;
+		assertThrows(IllegalArgumentException.class, () -> noSerializer.restore(snapshot)) ;
+		assertThrows(IllegalArgumentException.class, () -> mkAgent().restore(new byte[] { 1, 2, 3 })) ;
+	}
+
+	@Test
+	public void test_corrupt_snapshot_leaves_agent_unchanged() {
+		var agent = mkAgent() ;
+		for (int k=0; k<4; k++) agent.update() ;
+		var snapshot = agent.snapshot() ;
+
+		var other = mkAgent() ;
+		other.update() ;
+		var trace = state(other).trace ;
+		int counter = state(other).counter ;
+		var currentGoal = other.currentGoal ;
+		var currentTactic = other.currentTactic ;
+		double consumed = other.goal.consumedBudget ;
+
+		// the index of the current tactic is out of range; it is the int before the state,
+		// which consists of a boolean, an int, and a UTF string:
+		var corrupt = snapshot.clone() ;
+		int stateLength = 1 + 4 + 2 + state(agent).trace.length() ;
+		corrupt[corrupt.length - stateLength - 1] = 99 ;
+		assertThrows(IllegalArgumentException.class, () -> other.restore(corrupt)) ;
+		// the state is cut off:
+		var truncated = java.util.Arrays.copyOf(snapshot, snapshot.length - 3) ;
+		assertThrows(IllegalArgumentException.class, () -> other.restore(truncated)) ;
+
+		assertEquals(trace, state(other).trace) ;
+		assertEquals(counter, state(other).counter) ;
+		assertSame(currentGoal, other.currentGoal) ;
+		assertSame(currentTactic, other.currentTactic) ;
+		assertEquals(consumed, other.goal.consumedBudget) ;
+		assertTrue(other.goal.getStatus().inProgress()) ;
+		// the intact snapshot can still be restored:
+		other.restore(snapshot) ;
+		assertEquals(state(agent).trace, state(other).trace) ;
+	}
+
+	static GoalStructure mkWideGoal(int N) {
+		GoalStructure[] leaves = new GoalStructure[N] ;
+		for (int k=0; k<N; k++) {
+			var a = action("a" + k).do1((MyState S) -> S.counter) ;
+			leaves[k] = goal("g" + k).toSolve((Integer x) -> false).withTactic(FIRSTof(lift(a),ABORT())).lift() ;
+		}
+		return FIRSTof(leaves) ;
+	}
+
+	/**
+	 * Measure the size of a snapshot of an agent with a goal structure of 1000
+	 * leaves, and the time to take and restore it. The numbers are only printed.
+	 */
+	@Test
+	public void benchmark_snapshot() {
+		int N = 1000 ;
+		var agent = mkBlankAgent() ;
+		agent.setGoal(mkWideGoal(N)) ;
+		var fork = mkBlankAgent() ;
+		fork.setGoal(mkWideGoal(N)) ;
+		for (int k=0; k<10; k++) agent.update() ;
+
+		int repeat = 200 ;
+		byte[] snapshot = null ;
+		long t0 = System.nanoTime() ;
+		for (int k=0; k<repeat; k++) snapshot = agent.snapshot() ;
+		long writeTime = System.nanoTime() - t0 ;
+		t0 = System.nanoTime() ;
+		for (int k=0; k<repeat; k++) fork.restore(snapshot) ;
+		long readTime = System.nanoTime() - t0 ;
+		System.out.println("** snapshot of an agent with " + N + " leaf goals: " + snapshot.length + " bytes, "
+				+ "snapshot: " + (writeTime / repeat / 1000) + " us, restore: " + (readTime / repeat / 1000) + " us") ;
+		assertEquals(agent.currentGoal.goal.name, fork.currentGoal.goal.name) ;
+		assertEquals(agent.goal.consumedBudget, fork.goal.consumedBudget) ;
+	}
+
+}
@@ -206,6 +206,78 @@ public class Test_BasicAgent {
 	}
 	
 	
+	/**
+	 * One tactic, with a persistent action and an action that passes its guard's
+	 * result to its effect, shared by agents running on different threads.
+	 */
+	@Test
+	public void test_sharedTacticLibrary() throws InterruptedException {
+		var a0 = action("a0")
+				 .do1((MyState S)-> {S.counter++ ; return S.counter ; })
+				 .until((MyState S)-> S.counter == 100)
+				 .lift() ;
+		var a1 = action("a1")
+				 .do2((MyState S) -> (String name) -> { S.last = name ; return -1 ; })
+				 .on((MyState S) -> S.counter == 100 ? "a1 of " + S.hashCode() : null) 
+				 .lift();
+		var library = SEQ(a0,a1) ;
+		
+		int N = 8 ;
+		MyState[] states = new MyState[N] ;
+		GoalStructure[] goals = new GoalStructure[N] ;
+		Thread[] threads = new Thread[N] ;
+		for (int k=0; k<N; k++) {
+			var state = (MyState) (new MyState().setEnvironment(new ConsoleEnvironment())) ;
+			var agent = new BasicAgent() .attachState(state);
+			var g = goal("g").toSolve((Integer x) -> x == -1).withTactic(library).lift() ;
+			agent.setGoal(g) ;
+			states[k] = state ; goals[k] = g ;
+			threads[k] = new Thread(() -> { while (g.getStatus().inProgress()) agent.update() ; }) ;
+		}
+		for (var t : threads) t.start();
+		for (var t : threads) t.join();
+		
+		for (int k=0; k<N; k++) {
+			assertTrue(goals[k].getStatus().success()) ;
+			assertEquals(100, states[k].counter) ;
+			assertEquals("a1 of " + states[k].hashCode(), states[k].last) ;
+			assertEquals(100, states[k].contextOf(a0.action).getInvocationCount()) ;
+			assertTrue(states[k].contextOf(a0.action).isCompleted()) ;
+		}
+		// the statistics of the action itself are summed over all agents:
+		assertEquals(100*N, a0.action.getInvocationCount()) ;
+		assertEquals(N, a1.action.getInvocationCount()) ;
+	}
+	
+	/**
+	 * The execution contexts of the actions of a concluded goal are kept until the
+	 * agent gets a goal that does not use those actions.
+	 */
+	@Test
+	public void test_actionContextsDroppedOnNewGoal() {
+		var state = (MyState) (new MyState().setEnvironment(new ConsoleEnvironment())) ;
+		var agent = new BasicAgent() .attachState(state);
+		var a0 = action("a0").do1((MyState S)-> { S.counter++ ; return S.counter ; }).lift() ;
+		var a1 = action("a1").do1((MyState S)-> { S.counter-- ; return S.counter ; }).lift() ;
+		var g0 = goal("g0").toSolve((Integer x) -> x == 1).withTactic(a0).lift() ;
+		agent.setGoal(g0) ;
+		agent.update() ;
+		assertTrue(g0.getStatus().success()) ;
+		assertTrue(state.contextOf(a0.action).isCompleted()) ;
+		assertTrue(a0.action.isCompleted()) ;
+		
+		var g1 = goal("g1").toSolve((Integer x) -> x == 0).withTactic(a1).lift() ;
+		agent.setGoal(g1) ;
+		agent.update() ;
+		assertTrue(g1.getStatus().success()) ;
+		// a0's context was dropped, so the agent sees a fresh one:
+		assertFalse(state.contextOf(a0.action).isCompleted()) ;
+		assertEquals(0, state.contextOf(a0.action).getInvocationCount()) ;
+		assertEquals(1, state.contextOf(a1.action).getInvocationCount()) ;
+		// the statistics of the action itself are unaffected:
+		assertEquals(1, a0.action.getInvocationCount()) ;
+	}
+	
 	// test whether H contains G
 	private boolean contains(GoalStructure H, GoalStructure G) {
 		if (H==G) return true ;
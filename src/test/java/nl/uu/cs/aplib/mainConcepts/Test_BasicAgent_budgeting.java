@@ -2,10 +2,14 @@ package nl.uu.cs.aplib.mainConcepts;
 
 import static nl.uu.cs.aplib.AplibEDSL.* ;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.* ;
 
 import nl.uu.cs.aplib.environments.ConsoleEnvironment;
+import nl.uu.cs.aplib.environments.JsonEnvironment;
 import nl.uu.cs.aplib.mainConcepts.BasicAgent;
 import nl.uu.cs.aplib.mainConcepts.SimpleState;
 import nl.uu.cs.aplib.mainConcepts.GoalStructure.*;
@@ -114,4 +118,153 @@ public class Test_BasicAgent_budgeting {
 	    topgoal.printGoalStructureStatus();
 	}
 
+	/**
+	 * Construct a goal structure with nested FIRSTOF, SEQ and REPEAT nodes, where
+	 * some goals exhaust their budget and others are solved.
+	 */
+	GoalStructure mkDeepGoalStructure() {
+	    var a0 = action("a0").do1((MyState S)-> {S.counter = 100 ; return S.counter ; }) ;
+	    var a1 = action("a1").do1((MyState S)-> {S.counter++ ; return S.counter ; }) ;
+	    var a2 = action("a2").do1((MyState S)-> {S.counter = 0 ; return S.counter ; }) ;
+	    var g1 = lift(goal("g1").toSolve((Integer k) -> k==6) . withTactic(lift(a0))).maxbudget(2) ;
+	    var g2 = lift(goal("g2").toSolve((Integer k) -> k==103) . withTactic(lift(a1))) ;
+	    var g3 = lift(goal("g3").toSolve((Integer k) -> k==1) . withTactic(lift(a0))).maxbudget(3) ;
+	    var g4 = lift(goal("g4").toSolve((Integer k) -> k==0) . withTactic(lift(a2))) ;
+	    var g5 = lift(goal("g5").toSolve((Integer k) -> k==4) . withTactic(lift(a1))) ;
+	    var g6 = lift(goal("g6").toSolve((Integer k) -> k==-1) . withTactic(lift(a1))) ;
+	    return SEQ(FIRSTof(g1,g2),
+	    		   REPEAT(SEQ(g3,g4)).maxbudget(7),
+	    		   SEQ(SEQ(g5), g6).maxbudget(12)) ;
+	}
+	
+	void collectBudgets(GoalStructure G, List<String> budgets) {
+		budgets.add("" + G.status + ", budget:" + G.budget + ", consumed:" + G.consumedBudget) ;
+		for (var H : G.subgoals) collectBudgets(H,budgets) ;
+	}
+	
+	List<String> runDeepGoalStructure(boolean batched) {
+		var state = (MyState) (new MyState().setEnvironment(new ConsoleEnvironment())) ;
+		var agent = new BasicAgent() .attachState(state);
+		if (batched) agent.useBatchedBudgetPropagation() ;
+		var topgoal = mkDeepGoalStructure() ;
+		agent.setGoal(30, topgoal) ;
+		List<String> trace = new ArrayList<>() ;
+		int k = 0 ;
+		while (agent.goal != null && k < 100) {
+			agent.update();
+			trace.add(agent.currentGoal == null ? "-" : agent.currentGoal.goal.name) ;
+			k++ ;
+		}
+		collectBudgets(topgoal,trace) ;
+		return trace ;
+	}
+	
+	@Test
+	public void test_batchedBudgetPropagation() {
+		var eager = runDeepGoalStructure(false) ;
+		var batched = runDeepGoalStructure(true) ;
+		assertEquals(eager, batched) ;
+		// the top goal should fail:
+		assertTrue(eager.get(eager.indexOf("-") + 1).contains("FAILED")) ;
+		
+		// in batched mode the ancestors are only updated when the current goal is closed:
+		var state = (MyState) (new MyState().setEnvironment(new ConsoleEnvironment())) ;
+		var agent = new BasicAgent() .attachState(state) .useBatchedBudgetPropagation() ;
+		var a1 = action("a1").do1((MyState S)-> {S.counter++ ; return S.counter ; }) ;
+		var g = lift(goal("g").toSolve((Integer x) -> x==3) . withTactic(lift(a1))) ;
+		var topgoal = SEQ(g) ;
+		agent.setGoal(10, topgoal) ;
+		agent.update();
+		agent.update();
+		assertEquals(8d, g.getBudget()) ;
+		assertEquals(10d, topgoal.getBudget()) ;
+		agent.update();
+		assertTrue(topgoal.getStatus().success()) ;
+		assertEquals(7d, topgoal.getBudget()) ;
+		assertEquals(3d, topgoal.consumedBudget) ;
+	}
+
+	static class MyJsonEnv extends JsonEnvironment {
+		@Override
+		protected Object sendCommand_(EnvOperation cmd) { return "\"abcd\"" ; }
+	}
+	
+	@Test
+	public void test_resourceCostFunctions() {
+		var state = (MyState) (new MyState().setEnvironment(new MyJsonEnv())) ;
+		// an action that sends two commands:
+		var a0 = action("a0").do1((MyState S)-> { 
+			S.env().sendCommand("a", null, "x", null, String.class) ;
+			S.env().sendCommand("a", null, "y", null, String.class) ;
+			S.counter++ ; 
+			return S.counter ; }) ;
+		
+		var agent = new BasicAgent() .attachState(state) .withCostFunction(new CostFunction.EnvCallsCost()) ;
+		var g = lift(goal("g").toSolve((Integer k) -> k==100) . withTactic(lift(a0))) .maxbudget(5) ;
+		agent.setGoal(g) ;
+		agent.update();
+		agent.update();
+		assertEquals(1d, g.getBudget()) ;
+		agent.update();
+		assertTrue(g.getStatus().failed()) ;
+		assertEquals(6d, g.consumedBudget) ;
+		assertEquals(6, state.env().getNumberOfCommandsSent()) ;
+		
+		// every command transfers 6 bytes:
+		agent = new BasicAgent() .attachState(state) .withCostFunction(new CostFunction.BytesTransferredCost()) ;
+		g = lift(goal("g").toSolve((Integer k) -> k==100) . withTactic(lift(a0))) .maxbudget(30) ;
+		agent.setGoal(g) ;
+		agent.update();
+		assertEquals(18d, g.getBudget()) ;
+		agent.update();
+		agent.update();
+		assertTrue(g.getStatus().failed()) ;
+		// including the commands sent by the first agent:
+		assertEquals(72, state.env().getNumberOfBytesTransferred()) ;
+		
+		// an action that takes at least 5ms:
+		var a1 = action("a1").do1((MyState S)-> { sleepx(5) ; return 0 ; }) ;
+		agent = new BasicAgent() .attachState(state) .withCostFunction(new CostFunction.TimeCost()) ;
+		g = lift(goal("g").toSolve((Integer k) -> k==100) . withTactic(lift(a1))) .maxbudget(1000) ;
+		agent.setGoal(g) ;
+		agent.update();
+		assertTrue(g.consumedBudget >= 5 && g.consumedBudget < 1000) ;
+	}
+	
+	@Test
+	public void test_resourceCostFunctions_sharedEnvironment() throws InterruptedException {
+		var env = new MyJsonEnv() ;
+		var state = (MyState) (new MyState().setEnvironment(env)) ;
+		var a0 = action("a0").do1((MyState S)-> { 
+			S.env().sendCommand("a", null, "x", null, String.class) ;
+			S.env().sendCommand("a", null, "y", null, String.class) ;
+			sleepx(1) ;
+			S.counter++ ; 
+			return S.counter ; }) ;
+		// another agent keeps sending commands on the same Environment:
+		var stop = new java.util.concurrent.atomic.AtomicBoolean() ;
+		var other = new Thread(() -> {
+			while (! stop.get()) env.sendCommand("b", null, "z", null, String.class) ;
+		}) ;
+		other.start() ;
+		try {
+			var agent = new BasicAgent() .attachState(state) .withCostFunction(new CostFunction.EnvCallsCost()) ;
+			var g = lift(goal("g").toSolve((Integer k) -> k==100) . withTactic(lift(a0))) .maxbudget(1000) ;
+			agent.setGoal(g) ;
+			for (int k=0; k<10; k++) agent.update();
+			assertEquals(20d, g.consumedBudget) ;
+			
+			agent = new BasicAgent() .attachState(state) .withCostFunction(new CostFunction.BytesTransferredCost()) ;
+			g = lift(goal("g").toSolve((Integer k) -> k==100) . withTactic(lift(a0))) .maxbudget(1000) ;
+			agent.setGoal(g) ;
+			for (int k=0; k<10; k++) agent.update();
+			assertEquals(120d, g.consumedBudget) ;
+		}
+		finally {
+			stop.set(true) ;
+			other.join() ;
+		}
+		assertTrue(env.getNumberOfCommandsSent() > 40) ;
+	}
+
 }
@@ -0,0 +1,185 @@
+package nl.uu.cs.aplib.mainConcepts;
+
+import static nl.uu.cs.aplib.AplibEDSL.* ;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.* ;
+
+import nl.uu.cs.aplib.environments.ConsoleEnvironment;
+import nl.uu.cs.aplib.exampleUsages.GuessNumberGame;
+import nl.uu.cs.aplib.exampleUsages.fiveGame.FiveGame;
+import nl.uu.cs.aplib.exampleUsages.fiveGame.FiveGame_withAgent;
+import nl.uu.cs.aplib.exampleUsages.fiveGame.FiveGame.GAMESTATUS;
+import nl.uu.cs.aplib.exampleUsages.fiveGame.FiveGame.SQUARE;
+
+public class Test_CostAwareDeliberation {
+	
+	static class MyState extends SimpleState {
+		int x = 100 ;
+	}
+	
+	/**
+	 * A cost function that charges 10 for the action named "expensive", and nothing
+	 * for the action named "free".
+	 */
+	static class MyCostFunction extends CostFunction {
+		@Override
+		public Object executeAction_andInstrumentCost(SimpleState state, Action a) {
+			var o = super.executeAction_andInstrumentCost(state, a) ;
+			if (a.name.equals("expensive")) cost = 10 ;
+			if (a.name.equals("free")) cost = 0 ;
+			return o ;
+		}
+	}
+	
+	@Test
+	public void test_prefers_progress_per_cost() {
+		var state = new MyState() ;
+		state.setEnvironment(new Environment()) ;
+		var delib = new CostAwareDeliberation() ;
+		var agent = new BasicAgent() 
+				    . attachState(state) 
+				    . useDeliberation(delib)
+				    . withCostFunction(new MyCostFunction()) ;
+		// "expensive" makes the most progress, but at a high cost:
+		var good = action("good").do1((MyState S) -> { S.x = S.x - 2 ; return S.x ; }) ;
+		var useless = action("useless").do1((MyState S) -> S.x) ;
+		var expensive = action("expensive").do1((MyState S) -> { S.x = S.x - 4 ; return S.x ; }) ;
+		var g = goal("g").ftoSolve((Integer x) -> (double) x) . withTactic(ANYof(lift(good),lift(useless),lift(expensive))) . lift() ;
+		agent.setGoal(g) ;
+		while (g.getStatus().inProgress()) agent.update() ;
+		
+		assertTrue(delib.count(good) > delib.count(useless)) ;
+		assertTrue(delib.count(good) > delib.count(expensive)) ;
+		assertEquals(0d, delib.meanReward(useless)) ;
+		assertEquals(10d, delib.meanCost(expensive)) ;
+		assertEquals(1d, delib.meanCost(good)) ;
+		
+		delib.reset() ;
+		assertEquals(0, delib.count(good)) ;
+	}
+	
+	@Test
+	public void test_free_action_without_progress() {
+		var state = new MyState() ;
+		state.setEnvironment(new Environment()) ;
+		var delib = new CostAwareDeliberation() ;
+		var agent = new BasicAgent() 
+				    . attachState(state) 
+				    . useDeliberation(delib)
+				    . withCostFunction(new MyCostFunction()) ;
+		// "free" costs nothing, but makes no progress either:
+		var good = action("good").do1((MyState S) -> { S.x = S.x - 10 ; return S.x ; }) ;
+		var free = action("free").do1((MyState S) -> S.x) ;
+		var g = goal("g").ftoSolve((Integer x) -> (double) x) . withTactic(ANYof(lift(good),lift(free))) . lift() ;
+		agent.setGoal(g) ;
+		int ticks = 0 ;
+		while (g.getStatus().inProgress() && ticks < 100) {
+			agent.update() ;
+			ticks++ ;
+		}
+		
+		assertTrue(g.getStatus().success()) ;
+		assertEquals(10, delib.count(good)) ;
+		assertTrue(delib.count(free) < delib.count(good)) ;
+		assertEquals(0d, delib.meanCost(free)) ;
+	}
+	
+	/**
+	 * A console that plays the user of the {@link GuessNumberGame}.
+	 */
+	static class SimulatedUser extends ConsoleEnvironment {
+		int secret ;
+		Random rnd ;
+		SimulatedUser(int secret, Random rnd) { this.secret = secret ; this.rnd = rnd ; }
+		
+		@Override
+		protected String sendCommand_(EnvOperation cmd) {
+			if (cmd.command.equals("println")) return null ;
+			var question = (String) cmd.arg ;
+			if (question.startsWith("Type a number")) return "" + rnd.nextInt(secret + 1) ;
+			int x = Integer.parseInt(question.substring(6, question.indexOf('?'))) ;
+			return x == secret ? "y" : "n" ;
+		}
+	}
+	
+	double avgTicksGuessNumberGame(Deliberation delib, int numberOfGames) {
+		var rnd = new Random(3) ;
+		var tactic = ANYof(GuessNumberGame.askLowerBound(), GuessNumberGame.guess()) ;
+		int ticks = 0 ;
+		for (int k=0; k<numberOfGames; k++) {
+			var belief = new GuessNumberGame.MyAgentState() ;
+			belief.setEnvironment(new SimulatedUser(rnd.nextInt(11),rnd)) ;
+			var g = goal("the-goal")
+	        	    .toSolve((String p) -> p.equals("y") || p.equals("out of range"))
+	        	    .withTactic(tactic)
+	        	    .lift() ;
+			var agent = new BasicAgent() . attachState(belief) . useDeliberation(delib) . setGoal(g) ;
+			while (g.getStatus().inProgress()) {
+				agent.update() ;
+				ticks++ ;
+			}
+		}
+		return (double) ticks / numberOfGames ;
+	}
+	
+	/**
+	 * Play a number of FiveGames with an agent using the given deliberation. Return the
+	 * average number of ticks over the games that the agent won, and the number of won games.
+	 */
+	double[] avgTicksFiveGame(Deliberation delib, int numberOfGames) {
+		var rnd = new Random(5) ;
+		var tactic = ANYof(FiveGame_withAgent.winningMove(), 
+				           FiveGame_withAgent.block(), 
+				           FiveGame_withAgent.smartMove(), 
+				           FiveGame_withAgent.besideHV(rnd)) ;
+		int ticks = 0 ;
+		int won = 0 ;
+		for (int k=0; k<numberOfGames; k++) {
+			var thegame = new FiveGame(7,0) ;
+			var g = goal("goal")
+					. toSolve((GAMESTATUS st) -> st == GAMESTATUS.CROSSWON)
+					. withTactic(tactic)
+					. lift() ;
+			var agent = new BasicAgent() . attachState(FiveGame_withAgent.mkState(thegame)) . useDeliberation(delib) . setGoal(g) ;
+			var opponent = new FiveGame.RandomPlayer(SQUARE.CIRCLE,thegame) ;
+			int t = 0 ;
+			while (thegame.getGameStatus() == GAMESTATUS.UNFINISHED) {
+				opponent.move() ;
+				if (thegame.getGameStatus() != GAMESTATUS.UNFINISHED) break ;
+				agent.update() ;
+				t++ ;
+			}
+			if (thegame.getGameStatus() == GAMESTATUS.CROSSWON) {
+				won++ ;
+				ticks += t ;
+			}
+		}
+		return new double[] { won == 0 ? 0 : (double) ticks / won, won } ;
+	}
+	
+	/**
+	 * Compare the average number of ticks to solve the games in the exampleUsages
+	 * package, with random deliberation and with cost-aware deliberation. Both games
+	 * use ANYof tactics here, so that there is a choice to make. The numbers are only
+	 * printed.
+	 */
+	@Test
+	public void benchmark_ticksToSolve() {
+		int N = 200 ;
+		double random = avgTicksGuessNumberGame(new Deliberation(), N) ;
+		double costAware = avgTicksGuessNumberGame(new CostAwareDeliberation(), N) ;
+		System.out.println("** GuessNumberGame, avg. ticks to solve over " + N + " games. Random: " 
+				+ random + ", cost-aware: " + costAware) ;
+		assertTrue(random > 0 && costAware > 0) ;
+		
+		N = 20 ;
+		var random5 = avgTicksFiveGame(new Deliberation(), N) ;
+		var costAware5 = avgTicksFiveGame(new CostAwareDeliberation(), N) ;
+		System.out.println("** FiveGame, " + N + " games. Random: " + random5[1] + " won, avg. ticks to win: " + random5[0] 
+				+ ". Cost-aware: " + costAware5[1] + " won, avg. ticks to win: " + costAware5[0]) ;
+	}
+
+}
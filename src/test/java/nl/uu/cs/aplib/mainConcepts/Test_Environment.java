@@ -1,6 +1,9 @@
 package nl.uu.cs.aplib.mainConcepts;
 
+import static nl.uu.cs.aplib.AplibEDSL.* ;
+
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.jupiter.api.Test;
 
@@ -110,4 +113,402 @@ public class Test_Environment {
 		
 	}
 
+	/**
+	 * An environment that tracks how many commands are executed concurrently.
+	 */
+	static class ConcurrencyTrackingEnv extends Environment {
+		AtomicInteger active = new AtomicInteger(0) ;
+		AtomicInteger maxActive = new AtomicInteger(0) ;
+		// the max. number of commands active while a mutating command is active:
+		AtomicInteger maxActiveWhileWriting = new AtomicInteger(0) ;
+		
+		@Override
+		protected Object sendCommand_(EnvOperation opr) {
+			int n = active.incrementAndGet() ;
+			maxActive.accumulateAndGet(n, Math::max) ;
+			try { Thread.sleep(1) ; } catch(InterruptedException e) { }
+			if (! opr.readOnly) maxActiveWhileWriting.accumulateAndGet(active.get(), Math::max) ;
+			active.decrementAndGet() ;
+			return opr.command ;
+		}
+	}
+	
+	static void busyWait(long nanos) {
+		long t0 = System.nanoTime() ;
+		while (System.nanoTime() - t0 < nanos) { }
+	}
+	
+	static void runInParallel(int numOfThreads, Runnable task) {
+		List<Thread> threads = new LinkedList<>() ;
+		for (int k=0; k<numOfThreads; k++) threads.add(new Thread(task)) ;
+		for (var t : threads) t.start();
+		for (var t : threads) {
+			try { t.join(); } catch(InterruptedException e) { }
+		}
+	}
+	
+	@Test
+	public void test_fineGrainedLocking() {
+		var env = new ConcurrencyTrackingEnv() ;
+		env.useFineGrainedLocking().declareReadOnlyCommands("observe") ;
+		assertTrue(env.usesFineGrainedLocking()) ;
+		assertTrue(env.isReadOnlyCommand("observe")) ;
+		assertFalse(env.isReadOnlyCommand("move")) ;
+		
+		env.turnOnDebugInstrumentation() ;
+		env.sendCommand("agent", null, "observe", null) ;
+		assertTrue(env.getLastOperation().readOnly) ;
+		env.sendCommand("agent", null, "move", null) ;
+		assertFalse(env.getLastOperation().readOnly) ;
+		env.turnOffDebugInstrumentation() ;
+		
+		// mutating commands are executed one at a time:
+		runInParallel(4, () -> { for (int i=0; i<20; i++) env.sendCommand("agent", null, "move", null) ; }) ;
+		assertEquals(1, env.maxActive.get()) ;
+		assertEquals(1, env.maxActiveWhileWriting.get()) ;
+		
+		// read-only commands can overlap:
+		runInParallel(4, () -> { for (int i=0; i<20; i++) env.sendCommand("agent", null, "observe", null) ; }) ;
+		assertTrue(env.maxActive.get() > 1) ;
+		
+		// when mixed, a mutating command still never overlaps with anything else:
+		env.maxActiveWhileWriting.set(0) ;
+		runInParallel(4, () -> { 
+			for (int i=0; i<20; i++) {
+				env.sendCommand("agent", null, "observe", null) ; 
+				env.sendCommand("agent", null, "move", null) ; 
+			}}) ;
+		assertEquals(1, env.maxActiveWhileWriting.get()) ;
+	}
+	
+	static class CounterState extends SimpleState {
+		int counter = 0 ;
+	}
+	
+	/**
+	 * Measure the throughput of multiple agents sharing the same Environment, each
+	 * doing some expensive reasoning in its guard and then a read-only command. The
+	 * agents are run with and without fine-grained locking. The numbers are printed;
+	 * this is not an assertion on performance.
+	 */
+	@Test
+	public void benchmark_sharedEnvironmentThroughput() {
+		int numOfAgents = 8 ;
+		int ticks = 200 ;
+		for (boolean fineGrained : new boolean[] { false, true }) {
+			var env = new ConcurrencyTrackingEnv() ;
+			env.declareReadOnlyCommands("observe") ;
+			if (fineGrained) env.useFineGrainedLocking() ;
+			List<BasicAgent> agents = new LinkedList<>() ;
+			for (int k=0; k<numOfAgents; k++) {
+				var state = new CounterState() ;
+				var a = action("observe")
+						. do1((CounterState S) -> { 
+							S.counter++ ; 
+							S.env().sendCommand("agent", null, "observe", null) ;
+							return S.counter ; })
+						. on_((CounterState S) -> { busyWait(200_000) ; return true ; }) ;
+				var g = goal("g").toSolve((Integer x) -> false).withTactic(a.lift()).lift() ;
+				agents.add(new BasicAgent().attachState(state).attachEnvironment(env).setGoal(g)) ;
+			}
+			long t0 = System.nanoTime() ;
+			List<Thread> threads = new LinkedList<>() ;
+			for (var agent : agents) {
+				threads.add(new Thread(() -> { for (int i=0; i<ticks; i++) agent.update() ; })) ;
+			}
+			for (var t : threads) t.start();
+			for (var t : threads) {
+				try { t.join(); } catch(InterruptedException e) { }
+			}
+			long duration = System.nanoTime() - t0 ;
+			System.out.println("** " + numOfAgents + " agents on a shared environment, fine-grained locking: " + fineGrained 
+					+ ", ticks/sec: " + (numOfAgents * ticks * 1_000_000_000L / duration)) ;
+			for (var agent : agents) assertEquals(ticks, ((CounterState) agent.state).counter) ;
+		}
+	}
+
+	/**
+	 * An environment whose commands take some time, as if it is remote. It tracks
+	 * the number of commands that are executed at the same time.
+	 */
+	static class RemoteEnv extends Environment {
+		long latency ;
+		AtomicInteger inFlight = new AtomicInteger() ;
+		AtomicInteger maxInFlight = new AtomicInteger() ;
+		List<String> executed = Collections.synchronizedList(new LinkedList<>()) ;
+		
+		RemoteEnv(long latency) { this.latency = latency ; }
+		
+		@Override
+		protected Object sendCommand_(EnvOperation cmd) {
+			int n = inFlight.incrementAndGet() ;
+			maxInFlight.accumulateAndGet(n, Math::max) ;
+			try {
+				// let later commands of other invokers complete earlier:
+				long t = cmd.arg == null ? latency : (Integer) cmd.arg ;
+				Thread.sleep(t) ;
+			}
+			catch(InterruptedException e) { }
+			finally { inFlight.decrementAndGet() ; }
+			if (cmd.command.equals("fail")) throw new IllegalStateException("failed " + cmd.invokerId) ;
+			executed.add(cmd.invokerId + "." + cmd.command) ;
+			return cmd.invokerId + "." + cmd.command ;
+		}
+	}
+	
+	@Test
+	public void test_sendCommandAsync() throws Exception {
+		var env = new RemoteEnv(5) ;
+		// agents lock the whole environment, so its commands cannot run on other threads:
+		assertThrows(IllegalStateException.class, () -> env.sendCommandAsync("A", null, "c0", null)) ;
+		env.useFineGrainedLocking() ;
+		var F1 = env.sendCommandAsync("A", null, "c1", 30) ;
+		var F2 = env.sendCommandAsync("A", null, "c2", 0) ;
+		var F3 = env.sendCommandAsync("A", null, "fail", null) ;
+		var F4 = env.sendCommandAsync("A", null, "c3", null) ;
+		assertEquals("A.c3", F4.get()) ;
+		assertEquals("A.c1", F1.get()) ;
+		assertEquals("A.c2", F2.get()) ;
+		var e = assertThrows(java.util.concurrent.ExecutionException.class, () -> F3.get()) ;
+		assertEquals("failed A", e.getCause().getMessage()) ;
+		// not in pipelining mode, so one command at a time, in the order they were sent:
+		assertEquals(1, env.maxInFlight.get()) ;
+		assertEquals(List.of("A.c1", "A.c2", "A.c3"), env.executed) ;
+		assertEquals(4, env.getNumberOfCommandsSent()) ;
+	}
+	
+	@Test
+	public void test_pipelining() throws Exception {
+		var env = new RemoteEnv(5) ;
+		env.useFineGrainedLocking() .usePipelining(4) .declareReadOnlyCommands("c0","c1","c2","c3","c4") ;
+		List<String> instrumented = Collections.synchronizedList(new LinkedList<>()) ;
+		env.turnOnDebugInstrumentation() ;
+		env.registerInstrumenter(new EnvironmentInstrumenter() {
+			@Override
+			public void update(Environment env) {
+				var op = env.getLastOperation() ;
+				instrumented.add(op.invokerId + "." + op.command) ;
+			}
+			@Override
+			public void reset() { }
+		}) ;
+		List<java.util.concurrent.CompletableFuture<Object>> futures = new LinkedList<>() ;
+		List<String> expectedOrder = new LinkedList<>() ;
+		for (int k=0; k<5; k++) {
+			for (var invoker : new String[] { "A", "B", "C", "D" }) {
+				// A's commands are slow, D's are fast:
+				int latency = (int) (4 - invoker.charAt(0) + 'A') * 5 ;
+				futures.add(env.sendCommandAsync(invoker, null, "c" + k, latency)) ;
+				expectedOrder.add(invoker + ".c" + k) ;
+			}
+		}
+		for (var F : futures) F.get() ;
+		// wait until the instrumentation catches up:
+		for (int k=0; k<100 && instrumented.size() < 20; k++) Thread.sleep(10) ;
+		
+		assertTrue(env.maxInFlight.get() > 1) ;
+		assertTrue(env.maxInFlight.get() <= 4) ;
+		// commands completed out of order, but are instrumented in the order they were sent:
+		assertNotEquals(expectedOrder, env.executed) ;
+		assertEquals(expectedOrder, instrumented) ;
+		// per invoker, the commands are executed in order:
+		for (var invoker : new String[] { "A", "B", "C", "D" }) {
+			List<String> executedByInvoker = new LinkedList<>() ;
+			for (var c : env.executed) if (c.startsWith(invoker)) executedByInvoker.add(c) ;
+			for (int k=0; k<5; k++) assertEquals(invoker + ".c" + k, executedByInvoker.get(k)) ;
+		}
+	}
+	
+	/**
+	 * Compare sending 40 observes, by 8 agents, to an environment with a latency
+	 * of 10ms per command, synchronously and with pipelining. The times are printed;
+	 * this is not an assertion on performance.
+	 */
+	@Test
+	public void benchmark_pipelining() throws Exception {
+		int N = 40 ;
+		var env = new RemoteEnv(10) ;
+		long t0 = System.currentTimeMillis() ;
+		for (int k=0; k<N; k++) env.sendCommand("agent" + (k % 8), null, "observe", null) ;
+		long syncTime = System.currentTimeMillis() - t0 ;
+		
+		env = new RemoteEnv(10) ;
+		env.useFineGrainedLocking() .usePipelining(8) .declareReadOnlyCommands("observe") ;
+		t0 = System.currentTimeMillis() ;
+		List<java.util.concurrent.CompletableFuture<Object>> futures = new LinkedList<>() ;
+		for (int k=0; k<N; k++) futures.add(env.sendCommandAsync("agent" + (k % 8), null, "observe", null)) ;
+		for (var F : futures) F.get() ;
+		long pipelinedTime = System.currentTimeMillis() - t0 ;
+		System.out.println("** " + N + " commands with 10ms latency, synchronous: " + syncTime 
+				+ " ms, pipelined(8): " + pipelinedTime + " ms") ;
+		assertEquals(N, env.executed.size()) ;
+	}
+
+	/**
+	 * An environment where every request to the real environment costs the given
+	 * latency, whether it is a single command or a batch. The requests go over a
+	 * single connection, so they are handled one at a time.
+	 */
+	static class BatchingEnv extends Environment {
+		long latency ;
+		AtomicInteger requests = new AtomicInteger() ;
+		AtomicInteger executedCommands = new AtomicInteger() ;
+		
+		BatchingEnv(long latency) { this.latency = latency ; }
+		
+		synchronized void roundTrip() {
+			requests.incrementAndGet() ;
+			try { Thread.sleep(latency) ; } catch(InterruptedException e) { }
+		}
+		
+		/**
+		 * Answer the command; a merged command is answered for all its invokers at once.
+		 */
+		Object answer(EnvOperation cmd) {
+			executedCommands.incrementAndGet() ;
+			if (cmd.command.equals("fail")) throw new IllegalStateException("failed " + cmd.invokerId) ;
+			if (cmd.invokerIds != null) {
+				cmd.resultPerInvoker = new HashMap<>() ;
+				for (var invoker : cmd.invokerIds) cmd.resultPerInvoker.put(invoker, invoker + "." + cmd.command) ;
+				return null ;
+			}
+			return cmd.invokerId + "." + cmd.command ;
+		}
+		
+		@Override
+		protected Object sendCommand_(EnvOperation cmd) {
+			roundTrip() ;
+			return answer(cmd) ;
+		}
+		
+		@Override
+		protected void sendBatch_(List<EnvOperation> batch) {
+			roundTrip() ;
+			for (var cmd : batch) {
+				try { cmd.result = answer(cmd) ; }
+				catch(RuntimeException e) { cmd.exception = e ; }
+			}
+		}
+	}
+	
+	/**
+	 * Let every invoker send the given command at the same time, each from its own
+	 * thread, and return the results (or exceptions).
+	 */
+	static Map<String,Object> sendConcurrently(Environment env, String command, String ... invokers) throws Exception {
+		Map<String,Object> results = new java.util.concurrent.ConcurrentHashMap<>() ;
+		var barrier = new java.util.concurrent.CyclicBarrier(invokers.length) ;
+		List<Thread> threads = new LinkedList<>() ;
+		for (int k=0; k<invokers.length; k++) {
+			String invoker = invokers[k] ;
+			String key = invoker + "#" + k ;
+			threads.add(new Thread(() -> {
+				try {
+					barrier.await() ;
+					var r = env.sendCommand(invoker, null, invoker.startsWith("bad") ? "fail" : command, null) ;
+					results.put(key, r) ;
+				}
+				catch(Exception e) { results.put(key, e) ; }
+			})) ;
+		}
+		for (var t : threads) t.start() ;
+		for (var t : threads) t.join() ;
+		return results ;
+	}
+	
+	@Test
+	public void test_commandBatching() throws Exception {
+		var env = new BatchingEnv(1) ;
+		env.declareReadOnlyCommands("observe", "fail") ;
+		// agents would hold the whole environment while waiting for a batch:
+		assertThrows(IllegalStateException.class, () -> env.useCommandBatching(200, 6, "observe")) ;
+		env.useFineGrainedLocking() ;
+		env.useCommandBatching(200, 6, "observe", "fail") ;
+		// A sends two identical observes; badC's command fails:
+		var results = sendConcurrently(env, "observe", "A", "A", "B", "badC", "D", "E") ;
+		
+		// the batch is full, so it is sent before the window expires, in one request:
+		assertEquals(1, env.requests.get()) ;
+		assertEquals(1, env.getNumberOfBatchesSent()) ;
+		assertEquals(6, env.getNumberOfCommandsSent()) ;
+		// the observes are merged into one operation, that is answered per invoker:
+		assertEquals(2, env.executedCommands.get()) ;
+		assertEquals("A.observe", results.get("A#0")) ;
+		assertEquals("A.observe", results.get("A#1")) ;
+		assertEquals("B.observe", results.get("B#2")) ;
+		assertEquals("D.observe", results.get("D#4")) ;
+		assertTrue(results.get("badC#3") instanceof IllegalStateException) ;
+		
+		// commands that are not batchable are sent right away:
+		env.sendCommand("A", null, "other", null) ;
+		assertEquals(2, env.requests.get()) ;
+		
+		// a batch that is not full is sent when its window expires:
+		env.useCommandBatching(50, 100, "observe") ;
+		results = sendConcurrently(env, "observe", "A", "B", "C") ;
+		assertEquals(3, env.requests.get()) ;
+		assertEquals("C.observe", results.get("C#2")) ;
+		
+		env.stopCommandBatching() ;
+		sendConcurrently(env, "observe", "A", "B") ;
+		assertEquals(5, env.requests.get()) ;
+		
+		// the default sendBatch_ executes a merged command once per invoker:
+		var env2 = new Environment() {
+			@Override
+			protected Object sendCommand_(EnvOperation cmd) { return cmd.invokerId + "." + cmd.command ; }
+		} ;
+		env2.declareReadOnlyCommands("observe") .useFineGrainedLocking() .useCommandBatching(200, 3, "observe") ;
+		results = sendConcurrently(env2, "observe", "A", "B", "A") ;
+		assertEquals(1, env2.getNumberOfBatchesSent()) ;
+		assertEquals("A.observe", results.get("A#0")) ;
+		assertEquals("B.observe", results.get("B#1")) ;
+		assertEquals("A.observe", results.get("A#2")) ;
+	}
+	
+	/**
+	 * Compare the throughput of 8 agents that share an environment with a latency
+	 * of 5ms per request, and observe every tick, with and without command batching.
+	 * The numbers are printed; this is not an assertion on performance.
+	 */
+	@Test
+	public void benchmark_commandBatching() {
+		int numOfAgents = 8 ;
+		int ticks = 20 ;
+		for (boolean batching : new boolean[] { false, true }) {
+			var env = new BatchingEnv(5) ;
+			env.declareReadOnlyCommands("observe") ;
+			env.useFineGrainedLocking() ;
+			if (batching) env.useCommandBatching(2, numOfAgents, "observe") ;
+			List<BasicAgent> agents = new LinkedList<>() ;
+			for (int k=0; k<numOfAgents; k++) {
+				var state = new CounterState() ;
+				String id = "agent" + k ;
+				var a = action("observe")
+						. do1((CounterState S) -> { 
+							S.counter++ ; 
+							S.env().sendCommand(id, null, "observe", null) ;
+							return S.counter ; }) ;
+				var g = goal("g").toSolve((Integer x) -> false).withTactic(a.lift()).lift() ;
+				agents.add(new BasicAgent().attachState(state).attachEnvironment(env).setGoal(g)) ;
+			}
+			long t0 = System.nanoTime() ;
+			List<Thread> threads = new LinkedList<>() ;
+			for (var agent : agents) {
+				threads.add(new Thread(() -> { for (int i=0; i<ticks; i++) agent.update() ; })) ;
+			}
+			for (var t : threads) t.start();
+			for (var t : threads) {
+				try { t.join(); } catch(InterruptedException e) { }
+			}
+			long duration = System.nanoTime() - t0 ;
+			System.out.println("** " + numOfAgents + " agents observing a 5ms-latency environment, batching: " + batching 
+					+ ", requests: " + env.requests.get()
+					+ ", executed observes: " + env.executedCommands.get()
+					+ ", ticks/sec: " + (numOfAgents * ticks * 1_000_000_000L / duration)) ;
+			for (var agent : agents) assertEquals(ticks, ((CounterState) agent.state).counter) ;
+			assertTrue(env.executedCommands.get() <= numOfAgents * ticks) ;
+		}
+	}
+
 }
@@ -425,4 +425,68 @@ public class Test_GoalStructure {
 		assertTrue(g.getBudget() == Double.POSITIVE_INFINITY) ;
 	}
 	
+	@Test
+	public void test_indexInParent() {
+		setup() ;
+		assertEquals(-1, d.indexInParent()) ;
+		assertEquals(0, c.indexInParent()) ;
+		assertEquals(1, g6.indexInParent()) ;
+		assertEquals(1, b.indexInParent()) ;
+		assertEquals(2, g5.indexInParent()) ;
+		
+		var h = lift(goal("h")) ;
+		c.insertSubgoal(1, h) ;
+		assertTrue(h.parent == c) ;
+		assertEquals(0, a.indexInParent()) ;
+		assertEquals(1, h.indexInParent()) ;
+		assertEquals(2, b.indexInParent()) ;
+		assertEquals(3, g5.indexInParent()) ;
+		
+		c.removeSubgoal(0) ;
+		assertEquals(-1, a.indexInParent) ;
+		assertEquals(0, h.indexInParent()) ;
+		assertEquals(2, g5.indexInParent()) ;
+		
+		// changing the subgoals directly makes the cached index stale; it should
+		// then be recalculated:
+		c.subgoals.remove(h) ;
+		assertEquals(0, b.indexInParent()) ;
+		assertEquals(1, g5.indexInParent()) ;
+	}
+	
+	/**
+	 * Walk through a SEQ of many primitive goals, and a FIRSTOF of many primitive goals,
+	 * and compare the time with and without the cached sibling index. The numbers are
+	 * only printed.
+	 */
+	@Test
+	public void benchmark_wideGoalStructure() {
+		int N = 10000 ;
+		long[] times = new long[4] ;
+		for (int useCache=0; useCache<2; useCache++) {
+			for (int seq=0; seq<2; seq++) {
+				var leaves = new GoalStructure[N] ;
+				for (int k=0; k<N; k++) leaves[k] = lift(goal("g" + k)) ;
+				var top = seq==1 ? SEQ(leaves) : FIRSTof(leaves) ;
+				int count = 0 ;
+				long t0 = System.nanoTime() ;
+				var g = top.getDeepestFirstPrimGoal_andAllocateBudget() ;
+				while (g != null) {
+					count++ ;
+					if (useCache == 0) g.indexInParent = -1 ;
+					if (seq==1) g.setStatusToSuccess("") ; else g.setStatusToFail("") ;
+					if (useCache == 0) g.indexInParent = -1 ;
+					g = g.getNextPrimitiveGoal_andAllocateBudget() ;
+				}
+				times[2*useCache + seq] = System.nanoTime() - t0 ;
+				assertEquals(N, count) ;
+				if (seq==1) assertTrue(top.getStatus().success()) ; else assertTrue(top.getStatus().failed()) ;
+			}
+		}
+		System.out.println("** " + N + " subgoals. FIRSTOF: " + (times[0]/1000000) + " ms with indexOf, "
+				+ (times[2]/1000000) + " ms with cached index. SEQ: " 
+				+ (times[1]/1000000) + " ms with indexOf, "
+				+ (times[3]/1000000) + " ms with cached index.") ;
+	}
+	
 }
@@ -2,8 +2,16 @@ package nl.uu.cs.aplib.mainConcepts;
 
 import static nl.uu.cs.aplib.AplibEDSL.* ;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+
 import org.junit.jupiter.api.Test;
 
+import nl.uu.cs.aplib.mainConcepts.Tactic.PrimitiveTactic;
+
 import nl.uu.cs.aplib.mainConcepts.SimpleState;
 
 import static org.junit.jupiter.api.Assertions.* ;
@@ -84,4 +92,268 @@ public class Test_Tactic {
 		
 	}
 	
+	@Test
+	public void test_calcNextTactic_perState() {
+		// as above, but the completion status is looked up in the state of the
+		// agent that executes the tactic:
+		var a0 = lift(action("a0")) ;
+		var a1 = lift(action("a1")) ;
+		var a2 = lift(action("a2")) ;
+		var a3 = lift(action("a3")) ;
+		var a4 = lift(action("a4")) ;
+		var a5 = lift(action("a5")) ;
+
+        var s1 = FIRSTof(a0,a1) ;
+        var s2 = ANYof(s1,a2) ;
+        var S = new SimpleState() ;
+        
+        S.contextOf(a0.action).completed = false ;
+        assertTrue(a0.calcNextTactic(S) == a0) ;
+
+        S.contextOf(a0.action).completed = true ;
+        assertTrue(a0.calcNextTactic(S) == null) ;
+        S.contextOf(a1.action).completed = true ;
+        assertTrue(a1.calcNextTactic(S) == null) ;
+        S.contextOf(a2.action).completed = true ;
+        assertTrue(a2.calcNextTactic(S) == null) ;
+        
+        var s3 = ANYof(a3,a4) ;
+        var s4 = SEQ(s2,s3,a5) ;
+        assertTrue(a2.calcNextTactic(S) == s3) ;
+        assertTrue(s2.calcNextTactic(S) == s3) ;
+        
+        S.contextOf(a3.action).completed = true ;
+        assertTrue(a3.calcNextTactic(S) == a5) ;
+        assertTrue(s3.calcNextTactic(S) == a5) ;
+        
+        var s5 = SEQ(a0,a1) ;
+        var s6 = SEQ(s5,a2) ;
+        S.contextOf(a1.action).completed = true ;
+        assertTrue(a1.calcNextTactic(S) == a2) ;
+        S.contextOf(a2.action).completed = true ;
+        assertTrue(a2.calcNextTactic(S) == null) ;
+        
+		
+		
+	}
+	
+	@Test
+	public void test_guardCache() {
+		int[] evaluations = { 0 } ;
+		var state = Int(1) ;
+		var a0 = action("a0")
+				. on_((IntState s) -> { evaluations[0]++ ; return s.i == 1 ; })
+				. guardDependsOn("i")
+				. do1((IntState s) -> s.i) ;
+		var a1 = action("a1")
+				. on_((IntState s) -> { evaluations[0]++ ; return s.i == 2 ; })
+				. guardDependsOn("i") ;
+		var T = ANYof(lift(a0),lift(a1)) ;
+		
+		assertTrue(T.getFirstEnabledActions(state).size() == 1) ;
+		assertEquals(2, evaluations[0]) ;
+		assertEquals(2, a0.getGuardCacheMisses() + a1.getGuardCacheMisses()) ;
+		
+		// nothing changed, so the guards should not be re-evaluated:
+		assertTrue(T.getFirstEnabledActions(state).size() == 1) ;
+		assertTrue(T.getFirstEnabledActions(state).size() == 1) ;
+		assertEquals(2, evaluations[0]) ;
+		assertEquals(2, a0.getGuardCacheHits()) ;
+		assertEquals(2, a1.getGuardCacheHits()) ;
+		
+		// marking an unrelated part of the state as changed keeps the cache:
+		state.markChanged("j") ;
+		assertTrue(T.getFirstEnabledActions(state).size() == 1) ;
+		assertEquals(2, evaluations[0]) ;
+		
+		// marking i as changed invalidates the cache:
+		state.i = 2 ;
+		state.markChanged("i") ;
+		var enabled = T.getFirstEnabledActions(state) ;
+		assertEquals(4, evaluations[0]) ;
+		assertTrue(enabled.size() == 1 && enabled.get(0).action == a1) ;
+		
+		// the cache does not carry over to another state, but each state (so, each
+		// agent) keeps its own cache:
+		T.getFirstEnabledActions(Int(1)) ;
+		assertEquals(6, evaluations[0]) ;
+		T.getFirstEnabledActions(state) ;
+		assertEquals(6, evaluations[0]) ;
+		
+		// executing an action drops its cached guard, so a0 is queried again,
+		// whereas a1 still uses its cache:
+		a0.exec1(state) ;
+		evaluations[0] = 0 ;
+		a0.isEnabled(state) ;
+		a1.isEnabled(state) ;
+		assertEquals(1, evaluations[0]) ;
+		
+		// guards without declared dependencies are always evaluated:
+		var a2 = action("a2").on_((IntState s) -> { evaluations[0]++ ; return true ; }) ;
+		evaluations[0] = 0 ;
+		a2.isEnabled(state) ;
+		a2.isEnabled(state) ;
+		assertEquals(2, evaluations[0]) ;
+		assertEquals(0, a2.getGuardCacheHits() + a2.getGuardCacheMisses()) ;
+	}
+	
+	@Test
+	public void test_indexInParent_and_collect() {
+		var a0 = lift(action("a0").on_(s -> ((IntState) s).i == 0)) ;
+		var a1 = lift(action("a1").on_(s -> ((IntState) s).i == 1)) ;
+		var a2 = lift(action("a2").on_(s -> ((IntState) s).i == 1)) ;
+		var a3 = lift(action("a3").on_(s -> ((IntState) s).i == 3)) ;
+		var t = SEQ(a0, ANYof(a1,a2), a3) ;
+		assertEquals(-1, t.indexInParent) ;
+		assertEquals(0, a0.indexInParent) ;
+		assertEquals(1, a1.parent.indexInParent) ;
+		assertEquals(1, a2.indexInParent) ;
+		assertEquals(2, a3.indexInParent) ;
+		
+		// the buffer is appended to, and not cleared:
+		List<PrimitiveTactic> buffer = new ArrayList<>() ;
+		assertFalse(t.collectFirstEnabledActions(Int(1), buffer)) ;
+		assertTrue(a1.parent.collectFirstEnabledActions(Int(1), buffer)) ;
+		assertTrue(FIRSTof(a3,a0).collectFirstEnabledActions(Int(0), buffer)) ;
+		assertEquals(List.of(a1,a2,a0), buffer) ;
+	}
+	
+	/**
+	 * Build a tactic tree of the given depth, where every node has the given
+	 * number of children. Only the odd-numbered leaves are enabled on state 1.
+	 */
+	static Tactic mkDeepTactic(int depth, int width, int[] leafCounter) {
+		if (depth == 0) {
+			int k = leafCounter[0]++ ;
+			boolean enabled = k % 2 == 1 ;
+			return lift(action("a" + k).on_(s -> enabled && ((IntState) s).i == 1)) ;
+		}
+		Tactic[] children = new Tactic[width] ;
+		for (int i=0; i<width; i++) children[i] = mkDeepTactic(depth-1,width,leafCounter) ;
+		switch(depth % 3) {
+		   case 0  : return FIRSTof(children) ;
+		   case 1  : return ANYof(children) ;
+		   default : return SEQ(children) ;
+		}
+	}
+	
+	/**
+	 * Compare the time to calculate the enabled actions with a fresh list per call
+	 * against a reused buffer. The numbers are only printed.
+	 */
+	@Test
+	public void benchmark_collectEnabledActions() {
+		int depth = 6 ;
+		int width = 3 ;
+		int numOfLeaves = (int) Math.pow(width,depth) ;
+		var tactic = mkDeepTactic(depth,width,new int[1]) ;
+		var state = Int(1) ;
+		int N = 20000 ;
+		
+		int found = 0 ;
+		long t0 = System.nanoTime() ;
+		for (int k=0; k<N; k++) found += tactic.getFirstEnabledActions(state).size() ;
+		long allocating = System.nanoTime() - t0 ;
+		
+		List<PrimitiveTactic> buffer = new ArrayList<>() ;
+		t0 = System.nanoTime() ;
+		for (int k=0; k<N; k++) {
+			buffer.clear();
+			tactic.collectFirstEnabledActions(state,buffer) ;
+			found += buffer.size() ;
+		}
+		long buffered = System.nanoTime() - t0 ;
+		
+		System.out.println("** tactic with " + numOfLeaves + " leaves, " + N + " calls. Fresh list: " 
+		      + (allocating / 1000000) + " ms, reused buffer: " + (buffered / 1000000) + " ms") ;
+		assertEquals(tactic.getFirstEnabledActions(state), buffer) ;
+		assertFalse(buffer.isEmpty()) ;
+		assertEquals(2*N*buffer.size(), found) ;
+	}
+	
+
+	static void sleepx(long t) {
+		try { Thread.sleep(t) ; } catch(Exception e) { }
+	}
+	
+	/**
+	 * An action whose guard is enabled on the states in the given range, and which
+	 * passes the state's value + k to its effect. The guard records the threads on
+	 * which it is evaluated.
+	 */
+	static PrimitiveTactic slowAction(int k, int lo, int hi, long delay, Set<Thread> threads) {
+		return action("a" + k)
+				.on((IntState S) -> { 
+					threads.add(Thread.currentThread()) ;
+					sleepx(delay) ;
+					return lo <= S.i && S.i <= hi ? S.i + k : null ; })
+				.do2((IntState S) -> (Integer x) -> x) 
+				.sideEffectFreeGuard()
+				.lift() ;
+	}
+	
+	@Test
+	public void test_parallelGuardEvaluation() {
+		Set<Thread> threads = ConcurrentHashMap.newKeySet() ;
+		PrimitiveTactic[] actions = new PrimitiveTactic[20] ;
+		for (int k=0; k<20; k++) actions[k] = slowAction(k, k, k+5, 1, threads) ;
+		var state = Int(10) ;
+		var sequential = ANYof(actions).getFirstEnabledActions(state) ;
+		var anyof = ANYof(actions).parallel() ;
+		var parallel = anyof.getFirstEnabledActions(state) ;
+		assertEquals(sequential, parallel) ;
+		assertEquals(6, parallel.size()) ;
+		assertTrue(threads.size() > 1) ;
+		// each enabled action still receives its own guard result:
+		for (var a : parallel) {
+			int k = Integer.parseInt(a.action.name.substring(1)) ;
+			assertEquals(10 + k, a.action.exec1(state)) ;
+		}
+		
+		// speculative FIRSTOF picks the same subtactic as a sequential evaluation:
+		var firstof = FIRSTof(actions).parallel() ;
+		assertEquals(FIRSTof(actions).getFirstEnabledActions(state), firstof.getFirstEnabledActions(state)) ;
+		assertEquals(List.of(actions[5]), firstof.getFirstEnabledActions(state)) ;
+		assertTrue(firstof.getFirstEnabledActions(Int(99)).isEmpty()) ;
+		
+		// guards that are not declared side-effect free stay on the calling thread:
+		threads.clear();
+		var a = lift(action("a").on_((IntState S) -> { threads.add(Thread.currentThread()) ; return true ; })) ;
+		var b = lift(action("b").on_((IntState S) -> { threads.add(Thread.currentThread()) ; return true ; })) ;
+		assertEquals(List.of(a,b), ANYof(a,b).parallel().getFirstEnabledActions(state)) ;
+		assertEquals(Set.of(Thread.currentThread()), threads) ;
+	}
+	
+	/**
+	 * Compare sequential and parallel evaluation of an ANYOF with 24 guards that
+	 * each take about 2ms. The numbers are only printed.
+	 */
+	@Test
+	public void benchmark_parallelGuardEvaluation() {
+		var pool = new ForkJoinPool(8) ;
+		Tactic.setGuardEvaluationPool(pool);
+		try {
+			Set<Thread> threads = ConcurrentHashMap.newKeySet() ;
+			PrimitiveTactic[] actions = new PrimitiveTactic[24] ;
+			for (int k=0; k<24; k++) actions[k] = slowAction(k, k, k, 2, threads) ;
+			var sequential = ANYof(actions) ;
+			var parallel = ANYof(actions).parallel() ;
+			var state = Int(3) ;
+			int N = 20 ;
+			long t0 = System.nanoTime() ;
+			for (int k=0; k<N; k++) sequential.getFirstEnabledActions(state) ;
+			long seqTime = System.nanoTime() - t0 ;
+			t0 = System.nanoTime() ;
+			for (int k=0; k<N; k++) parallel.getFirstEnabledActions(state) ;
+			long parTime = System.nanoTime() - t0 ;
+			System.out.println("** ANYOF with 24 guards of ~2ms, " + N + " evaluations. Sequential: " 
+			      + (seqTime / 1000000) + " ms, parallel: " + (parTime / 1000000) + " ms") ;
+			assertEquals(List.of(actions[3]), parallel.getFirstEnabledActions(state)) ;
+		}
+		finally {
+			Tactic.setGuardEvaluationPool(ForkJoinPool.commonPool());
+			pool.shutdown();
+		}
+	}
+	
 }
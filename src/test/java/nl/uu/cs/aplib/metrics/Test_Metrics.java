@@ -0,0 +1,73 @@
+package nl.uu.cs.aplib.metrics;
+
+import static nl.uu.cs.aplib.AplibEDSL.* ;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.* ;
+
+import nl.uu.cs.aplib.Metrics;
+import nl.uu.cs.aplib.environments.ConsoleEnvironment;
+import nl.uu.cs.aplib.mainConcepts.BasicAgent;
+import nl.uu.cs.aplib.mainConcepts.SimpleState;
+
+public class Test_Metrics {
+	
+	static class MyState extends SimpleState {
+		int counter = 0 ;
+	}
+	
+	void runAgent() {
+		var state = new MyState() ;
+		state.setEnvironment(new ConsoleEnvironment()) ;
+		var agent = new BasicAgent("007","spy") .attachState(state) ;
+		var a0 = action("a0")
+				 . do1((MyState S)-> { 
+					 S.counter++ ; 
+					 ((ConsoleEnvironment) S.env()).println("counter=" + S.counter) ;
+					 return S.counter ; }) 
+				 . on_((MyState S) -> S.counter < 3)
+				 . lift() ;
+		var a1 = action("a1").do1((MyState S)-> 0) . on_((MyState S) -> S.counter > 5) . lift() ;
+		var g = goal("g").toSolve((Integer x) -> x == 3).withTactic(FIRSTof(a1,a0)) . lift() ;
+		agent.setGoal(10,g) ;
+		for (int k=0; k<3; k++) agent.update() ;
+		assertTrue(g.getStatus().success()) ;
+	}
+	
+	@Test
+	public void test_noOpRegistry() {
+		assertFalse(Metrics.isEnabled()) ;
+		var registry = MetricsRegistry.NO_OP ;
+		registry.counter("x").inc() ;
+		registry.timer("y").record(100) ;
+		assertEquals(0, registry.counter("x").count()) ;
+		assertEquals(0, registry.timer("y").count()) ;
+		runAgent() ;
+	}
+	
+	@Test
+	public void test_inMemoryRegistry() {
+		var registry = Metrics.useInMemoryRegistry() ;
+		try {
+			assertTrue(Metrics.isEnabled()) ;
+			runAgent() ;
+			var snapshot = registry.snapshot() ;
+			System.out.println(registry.showSnapshot()) ;
+			assertEquals(3d, snapshot.get("agent.007.update.count")) ;
+			assertEquals(0d, snapshot.get("agent.007.noEnabledAction")) ;
+			// the goal is concluded and detached, so there is no budget left:
+			assertEquals(0d, snapshot.get("agent.007.budget")) ;
+			assertEquals(3d, snapshot.get("action.a0.guard.count")) ;
+			assertEquals(3d, snapshot.get("action.a1.guard.count")) ;
+			assertEquals(3d, snapshot.get("action.a0.exec.count")) ;
+			assertEquals(0d, snapshot.get("action.a1.exec.count")) ;
+			assertEquals(3d, snapshot.get("env.command.println.count")) ;
+			assertTrue(snapshot.get("action.a0.exec.totalMs") >= snapshot.get("action.a0.exec.maxMs")) ;
+		}
+		finally {
+			Metrics.disable() ;
+		}
+		assertFalse(Metrics.isEnabled()) ;
+	}
+
+}
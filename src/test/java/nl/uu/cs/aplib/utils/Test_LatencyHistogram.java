@@ -0,0 +1,39 @@
+package nl.uu.cs.aplib.utils;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.* ;
+
+public class Test_LatencyHistogram {
+	
+	@Test
+	public void test_buckets() {
+		for (long v=0; v<100000; v++) {
+			int b = LatencyHistogram.bucketOf(v) ;
+			assertTrue(v <= LatencyHistogram.upperBoundOf(b)) ;
+			if (b > 0) assertTrue(v > LatencyHistogram.upperBoundOf(b-1)) ;
+		}
+		assertTrue(LatencyHistogram.bucketOf(Long.MAX_VALUE) < LatencyHistogram.NUM_OF_BUCKETS) ;
+	}
+	
+	@Test
+	public void test_percentiles() {
+		var H = new LatencyHistogram() ;
+		assertEquals(0, H.percentile(50)) ;
+		for (long v=1; v<=1000; v++) H.record(v * 1000) ;
+		assertEquals(1000, H.count()) ;
+		assertEquals(1000000, H.max()) ;
+		assertEquals(500500d, H.mean()) ;
+		// percentiles are accurate up to about 6%:
+		long p50 = H.percentile(50) ;
+		assertTrue(p50 >= 500000 && p50 <= 500000 * 1.07) ;
+		long p99 = H.percentile(99) ;
+		assertTrue(p99 >= 990000 && p99 <= 1000000) ;
+		assertEquals(1000000, H.percentile(100)) ;
+		
+		H.reset();
+		assertEquals(0, H.count()) ;
+		H.record(7) ;
+		assertEquals(7, H.percentile(50)) ;
+	}
+
+}